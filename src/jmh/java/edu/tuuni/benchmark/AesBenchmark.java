@@ -0,0 +1,89 @@
+package edu.tuuni.benchmark;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * Suites de SuiteCifrado con clave de 128 bits, procesando la factura en trozos
+ * de 64 KB con update() y un doFinal() final, igual que EmpaquetarFactura y
+ * DesempaquetarFactura. El Cipher se crea una vez y se reinicializa con init()
+ * en cada operación (como los objetos por hilo de EmpaquetarFactura).
+ * GCM no admite cifrar dos veces con el mismo nonce: se cambia en cada operación.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class AesBenchmark {
+
+    private static final int TROZO = 64 * 1024;
+
+    @Param({"BC", "JDK"})
+    public String proveedor;
+
+    @Param({"1024", "1048576", "67108864"})
+    public int tamano;
+
+    @Param({"AES_128_CBC", "AES_128_GCM"})
+    public String suite;
+
+    private Cipher cipher;
+    private SecretKeySpec clave;
+    private byte[] iv;
+    private long operaciones = 0;
+    private byte[] claro;
+    private byte[] cifrado;
+
+    @Setup(Level.Trial)
+    public void preparar() throws GeneralSecurityException {
+        SplittableRandom aleatorio = new SplittableRandom(1);
+        this.clave = new SecretKeySpec(PaqueteBenchmark.bytesAleatorios(aleatorio, 16), "AES");
+        this.iv = PaqueteBenchmark.bytesAleatorios(aleatorio, this.esGCM() ? 12 : 16);
+        this.claro = PaqueteBenchmark.bytesAleatorios(aleatorio, this.tamano);
+        this.cipher = Proveedores.cipher(this.proveedor, this.esGCM() ? "AES/GCM/NoPadding" : "AES/CBC/PKCS5Padding");
+        this.cipher.init(Cipher.ENCRYPT_MODE, this.clave, this.parametros(this.iv));
+        this.cifrado = this.cipher.doFinal(this.claro);
+    }
+
+    @Benchmark
+    public void cifrar(Blackhole agujero) throws GeneralSecurityException {
+        byte[] nonce = this.iv.clone();
+        ByteBuffer.wrap(nonce).putLong(0, ++this.operaciones);
+        this.cipher.init(Cipher.ENCRYPT_MODE, this.clave, this.parametros(nonce));
+        procesar(this.cipher, this.claro, agujero);
+    }
+
+    @Benchmark
+    public void descifrar(Blackhole agujero) throws GeneralSecurityException {
+        this.cipher.init(Cipher.DECRYPT_MODE, this.clave, this.parametros(this.iv));
+        procesar(this.cipher, this.cifrado, agujero);
+    }
+
+    private boolean esGCM() {
+        return this.suite.equals("AES_128_GCM");
+    }
+
+    private AlgorithmParameterSpec parametros(byte[] iv) {
+        return this.esGCM() ? new GCMParameterSpec(128, iv) : new IvParameterSpec(iv);
+    }
+
+    private static void procesar(Cipher cipher, byte[] datos, Blackhole agujero) throws GeneralSecurityException {
+        for (int posicion = 0; posicion < datos.length; posicion += TROZO) {
+            agujero.consume(cipher.update(datos, posicion, Math.min(TROZO, datos.length - posicion)));
+        }
+        agujero.consume(cipher.doFinal());
+    }
+}
@@ -0,0 +1,114 @@
+package edu.tuuni.benchmark;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Paquetes guardados uno por fichero frente a un ArchivoPaquetes, con la
+ * cantidad de paquetes indicada (de unos 4 KB, como una factura sellada):
+ *   buscarFichero       Paquete.abrir(fichero) de un paquete al azar y su SELLO_TIEMPO
+ *   buscarArchivo       ArchivoPaquetes.buscar(id) de un paquete al azar y su SELLO_TIEMPO
+ *   recorrerFicheros    todos los paquetes del directorio, leyendo su FACTURA_CIFRADA
+ *   recorrerArchivo     todos los paquetes del archivo en el orden de los segmentos
+ * Los recorridos miden una pasada completa (SingleShotTime) y, con la cache de
+ * páginas caliente, sobre todo lo que cuesta abrir millones de ficheros.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ArchivoBenchmark {
+
+    @Param({"1000", "100000"})
+    public int paquetes;
+
+    private Path directorio;
+    private Path ficheros;
+    private AutoCloseable archivo;
+    private List<String> identificadores;
+    private final SplittableRandom aleatorio = new SplittableRandom(7);
+
+    @Setup(Level.Trial)
+    public void preparar() throws Throwable {
+        SplittableRandom contenido = new SplittableRandom(1);
+        this.directorio = Files.createTempDirectory("archivo-benchmark");
+        this.ficheros = Files.createDirectory(this.directorio.resolve("ficheros"));
+        this.archivo = ClasesProyecto.abrirArchivo(this.directorio.resolve("archivo"));
+        for (int i = 0; i < this.paquetes; i++) {
+            Object paquete = ClasesProyecto.nuevoPaquete();
+            ClasesProyecto.anadirBloque(paquete, "FACTURA_CIFRADA", PaqueteBenchmark.bytesAleatorios(contenido, 2048));
+            ClasesProyecto.anadirBloque(paquete, "CLAVE_CIFRADA", PaqueteBenchmark.bytesAleatorios(contenido, 256));
+            ClasesProyecto.anadirBloque(paquete, "FIRMA_EMPRESA", PaqueteBenchmark.bytesAleatorios(contenido, 256));
+            ClasesProyecto.anadirBloque(paquete, "FIRMA_AUTORIDAD", PaqueteBenchmark.bytesAleatorios(contenido, 256));
+            ClasesProyecto.anadirBloque(paquete, "SELLO_TIEMPO", "2024-03-22T10:15:30Z".getBytes());
+            ClasesProyecto.anadirBloque(paquete, "VECTOR_INICIALIZACION", PaqueteBenchmark.bytesAleatorios(contenido, 16));
+            String identificador = String.format("factura-%08d", i);
+            Path fichero = this.ficheros.resolve(identificador + ".paquete");
+            ClasesProyecto.escribirPaquete(paquete, fichero.toString());
+            ClasesProyecto.anadirAlArchivo(this.archivo, identificador, fichero);
+        }
+        this.identificadores = ClasesProyecto.identificadoresArchivo(this.archivo);
+    }
+
+    @TearDown(Level.Trial)
+    public void limpiar() throws Exception {
+        this.archivo.close();
+        try (Stream<Path> todos = Files.walk(this.directorio)) {
+            for (Path fichero : (Iterable<Path>) todos.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(fichero);
+            }
+        }
+    }
+
+    private String alAzar() {
+        return this.identificadores.get(this.aleatorio.nextInt(this.identificadores.size()));
+    }
+
+    @Benchmark
+    public byte[] buscarFichero() throws Throwable {
+        Object paquete = ClasesProyecto.abrirPaquete(this.ficheros.resolve(this.alAzar() + ".paquete").toString());
+        return ClasesProyecto.getContenidoBloque(paquete, "SELLO_TIEMPO");
+    }
+
+    @Benchmark
+    public byte[] buscarArchivo() throws Throwable {
+        return ClasesProyecto.getContenidoBloque(ClasesProyecto.buscarEnArchivo(this.archivo, this.alAzar()), "SELLO_TIEMPO");
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public long recorrerFicheros() throws Throwable {
+        long bytes = 0;
+        try (Stream<Path> todos = Files.list(this.ficheros)) {
+            for (Path fichero : (Iterable<Path>) todos.sorted()::iterator) {
+                bytes += ClasesProyecto.getContenidoBloque(ClasesProyecto.abrirPaquete(fichero.toString()), "FACTURA_CIFRADA").length;
+            }
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public long recorrerArchivo() throws Throwable {
+        long bytes = 0;
+        for (String identificador : ClasesProyecto.identificadoresArchivo(this.archivo)) {
+            bytes += ClasesProyecto.getContenidoBloque(ClasesProyecto.buscarEnArchivo(this.archivo, identificador), "FACTURA_CIFRADA").length;
+        }
+        return bytes;
+    }
+}
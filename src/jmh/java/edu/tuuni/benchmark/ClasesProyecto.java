@@ -0,0 +1,191 @@
+package edu.tuuni.benchmark;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Path;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.List;
+
+/*
+ * Acceso a las clases del proyecto desde los benchmarks. Las herramientas
+ * están en el paquete por defecto, que no se puede importar desde un paquete
+ * con nombre (y JMH necesita uno para el código que genera), así que se usan
+ * MethodHandles. Al estar en campos static final el JIT los trata como
+ * constantes y la llamada cuesta lo mismo que una directa.
+ */
+final class ClasesProyecto {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    static final Class<?> PAQUETE = clase("Paquete");
+    private static final Class<?> FORMATO = clase("Paquete$Formato");
+    private static final Class<?> DIRECTORIO_CLAVES = clase("DirectorioClaves");
+    private static final Class<?> ARCHIVO_PAQUETES = clase("ArchivoPaquetes");
+    private static final Class<?> FILTRO_DUPLICADOS = clase("FiltroDuplicados");
+    private static final Class<?> SESION_CLAVES = clase("SesionClaves");
+
+    private static final MethodHandle NUEVO_PAQUETE = constructor(PAQUETE, MethodType.methodType(void.class));
+    private static final MethodHandle LEER_PAQUETE = constructor(PAQUETE, MethodType.methodType(void.class, String.class));
+    private static final MethodHandle ABRIR_PAQUETE = estatico(PAQUETE, "abrir", MethodType.methodType(PAQUETE, String.class));
+    private static final MethodHandle ANADIR_BLOQUE = metodo(PAQUETE, "anadirBloque", MethodType.methodType(void.class, String.class, byte[].class));
+    private static final MethodHandle CONTENIDO_BLOQUE = metodo(PAQUETE, "getContenidoBloque", MethodType.methodType(byte[].class, String.class));
+    private static final MethodHandle ESCRIBIR_PAQUETE = metodo(PAQUETE, "escribirPaquete", MethodType.methodType(void.class, String.class));
+    private static final MethodHandle SET_FORMATO = metodo(PAQUETE, "setFormato", MethodType.methodType(void.class, FORMATO));
+    private static final MethodHandle EMPAQUETAR = estatico(clase("EmpaquetarFactura"), "empaquetar",
+            MethodType.methodType(void.class, Path.class, Path.class, PublicKey.class, PrivateKey.class, byte[].class, FORMATO));
+    private static final MethodHandle EMPAQUETAR_CON_SESION = estatico(clase("EmpaquetarFactura"), "empaquetar",
+            MethodType.methodType(void.class, Path.class, Path.class, PublicKey.class, PrivateKey.class, byte[].class, FORMATO, SESION_CLAVES));
+    private static final MethodHandle CREAR_SESION = estatico(SESION_CLAVES, "crear", MethodType.methodType(SESION_CLAVES, PublicKey.class, byte[].class));
+    private static final MethodHandle GUARDAR_SESION = metodo(SESION_CLAVES, "guardar", MethodType.methodType(Path.class, Path.class, FORMATO));
+    private static final MethodHandle SELLAR = estatico(clase("SellarFactura"), "sellar",
+            MethodType.methodType(void.class, PAQUETE, PublicKey.class, PrivateKey.class));
+    private static final MethodHandle DESEMPAQUETAR = estatico(clase("DesempaquetarFactura"), "desempaquetar",
+            MethodType.methodType(String.class, String.class, Path.class, PrivateKey.class, DIRECTORIO_CLAVES, DIRECTORIO_CLAVES));
+    private static final MethodHandle ABRIR_CLAVES = estatico(DIRECTORIO_CLAVES, "abrir", MethodType.methodType(DIRECTORIO_CLAVES, String.class));
+    private static final MethodHandle ABRIR_ARCHIVO = estatico(ARCHIVO_PAQUETES, "abrir", MethodType.methodType(ARCHIVO_PAQUETES, Path.class));
+    private static final MethodHandle ANADIR_AL_ARCHIVO = metodo(ARCHIVO_PAQUETES, "anadir", MethodType.methodType(void.class, String.class, Path.class));
+    private static final MethodHandle BUSCAR_EN_ARCHIVO = metodo(ARCHIVO_PAQUETES, "buscar", MethodType.methodType(PAQUETE, String.class));
+    private static final MethodHandle IDENTIFICADORES_ARCHIVO = metodo(ARCHIVO_PAQUETES, "identificadores", MethodType.methodType(List.class));
+    private static final MethodHandle ABRIR_FILTRO = estatico(FILTRO_DUPLICADOS, "abrir", MethodType.methodType(FILTRO_DUPLICADOS, Path.class));
+    private static final MethodHandle ANADIR_AL_FILTRO = metodo(FILTRO_DUPLICADOS, "anadir", MethodType.methodType(boolean.class, byte[].class));
+    private static final MethodHandle CONTIENE_FILTRO = metodo(FILTRO_DUPLICADOS, "contiene", MethodType.methodType(boolean.class, byte[].class));
+
+    private ClasesProyecto() {
+    }
+
+    static Object nuevoPaquete() throws Throwable {
+        return NUEVO_PAQUETE.invoke();
+    }
+
+    static Object leerPaquete(String fichero) throws Throwable {
+        return LEER_PAQUETE.invoke(fichero);
+    }
+
+    static Object abrirPaquete(String fichero) throws Throwable {
+        return ABRIR_PAQUETE.invoke(fichero);
+    }
+
+    static void anadirBloque(Object paquete, String nombre, byte[] contenido) throws Throwable {
+        ANADIR_BLOQUE.invoke(paquete, nombre, contenido);
+    }
+
+    static byte[] getContenidoBloque(Object paquete, String nombre) throws Throwable {
+        return (byte[]) CONTENIDO_BLOQUE.invoke(paquete, nombre);
+    }
+
+    static void escribirPaquete(Object paquete, String fichero) throws Throwable {
+        ESCRIBIR_PAQUETE.invoke(paquete, fichero);
+    }
+
+    static void setFormato(Object paquete, String formato) throws Throwable {
+        SET_FORMATO.invoke(paquete, formato(formato));
+    }
+
+    static void empaquetar(Path factura, Path paquete, PublicKey hacienda, PrivateKey empresa, byte[] idClaveEmpresa, String formato) throws Throwable {
+        EMPAQUETAR.invoke(factura, paquete, hacienda, empresa, idClaveEmpresa, formato(formato));
+    }
+
+    /*
+     * Empaqueta con la sesión de crearSesion() (ver SesionClaves).
+     */
+    static void empaquetar(Path factura, Path paquete, PublicKey hacienda, PrivateKey empresa, byte[] idClaveEmpresa, String formato, Object sesion) throws Throwable {
+        EMPAQUETAR_CON_SESION.invoke(factura, paquete, hacienda, empresa, idClaveEmpresa, formato(formato), sesion);
+    }
+
+    static Object crearSesion(PublicKey hacienda, byte[] idClaveEmpresa) throws Throwable {
+        return CREAR_SESION.invoke(hacienda, idClaveEmpresa);
+    }
+
+    static Path guardarSesion(Object sesion, Path directorio, String formato) throws Throwable {
+        return (Path) GUARDAR_SESION.invoke(sesion, directorio, formato(formato));
+    }
+
+    static void sellar(Object paquete, PublicKey empresa, PrivateKey autoridad) throws Throwable {
+        SELLAR.invoke(paquete, empresa, autoridad);
+    }
+
+    static String desempaquetar(String paquete, Path factura, PrivateKey hacienda, Object clavesEmpresa, Object clavesAutoridad) throws Throwable {
+        return (String) DESEMPAQUETAR.invoke(paquete, factura, hacienda, clavesEmpresa, clavesAutoridad);
+    }
+
+    /*
+     * DirectorioClaves de un fichero .publica o de un directorio de claves.
+     */
+    static Object abrirClaves(String ruta) throws Throwable {
+        return ABRIR_CLAVES.invoke(ruta);
+    }
+
+    /*
+     * ArchivoPaquetes del directorio (se crea si no existe); se cierra con close().
+     */
+    static AutoCloseable abrirArchivo(Path directorio) throws Throwable {
+        return (AutoCloseable) ABRIR_ARCHIVO.invoke(directorio);
+    }
+
+    static void anadirAlArchivo(Object archivo, String identificador, Path paquete) throws Throwable {
+        ANADIR_AL_ARCHIVO.invoke(archivo, identificador, paquete);
+    }
+
+    static Object buscarEnArchivo(Object archivo, String identificador) throws Throwable {
+        return BUSCAR_EN_ARCHIVO.invoke(archivo, identificador);
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<String> identificadoresArchivo(Object archivo) throws Throwable {
+        return (List<String>) IDENTIFICADORES_ARCHIVO.invoke(archivo);
+    }
+
+    /*
+     * FiltroDuplicados del directorio (se crea si no existe); se cierra con close().
+     */
+    static AutoCloseable abrirFiltro(Path directorio) throws Throwable {
+        return (AutoCloseable) ABRIR_FILTRO.invoke(directorio);
+    }
+
+    static boolean anadirAlFiltro(Object filtro, byte[] resumen) throws Throwable {
+        return (boolean) ANADIR_AL_FILTRO.invoke(filtro, resumen);
+    }
+
+    static boolean contieneFiltro(Object filtro, byte[] resumen) throws Throwable {
+        return (boolean) CONTIENE_FILTRO.invoke(filtro, resumen);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object formato(String formato) {
+        return Enum.valueOf((Class) FORMATO, formato);
+    }
+
+    private static Class<?> clase(String nombre) {
+        try {
+            return Class.forName(nombre);
+        } catch (ClassNotFoundException ex) {
+            throw new IllegalStateException("No se encuentra la clase " + nombre + " del proyecto", ex);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> clase, MethodType tipo) {
+        try {
+            return LOOKUP.findConstructor(clase, tipo);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static MethodHandle estatico(Class<?> clase, String nombre, MethodType tipo) {
+        try {
+            return LOOKUP.findStatic(clase, nombre, tipo);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static MethodHandle metodo(Class<?> clase, String nombre, MethodType tipo) {
+        try {
+            return LOOKUP.findVirtual(clase, nombre, tipo);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
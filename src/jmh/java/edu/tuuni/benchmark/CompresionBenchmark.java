@@ -0,0 +1,133 @@
+package edu.tuuni.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Una factura de extremo a extremo con y sin compresión (-Dfactura.compresion,
+ * ver Compresion), con las claves ya cargadas:
+ *   empaquetar     EmpaquetarFactura.empaquetar: comprimir, cifrar, firmar y escribir
+ *   desempaquetar  DesempaquetarFactura.desempaquetar de un paquete sellado:
+ *                  leer, verificar, descifrar y descomprimir
+ * La factura es un JSON con líneas de detalle como las de factura.json hasta
+ * el tamaño indicado. El tamaño del paquete de cada caso se imprime al
+ * preparar la prueba (línea "Paquete: ...").
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class CompresionBenchmark {
+
+    private static final String[] DESCRIPCIONES = {
+        "Servicio de Consultoría", "Licencia de software", "Soporte técnico mensual", "Formación presencial",
+        "Hosting anual", "Desarrollo a medida", "Auditoría de seguridad", "Material de oficina"
+    };
+
+    @Param({"NINGUNA", "DEFLATE"})
+    public String compresion;
+
+    @Param({"16384", "1048576", "16777216"})
+    public int tamano;
+
+    @Param({"TEXTO", "BINARIO"})
+    public String formato;
+
+    private Path directorio;
+    private Path factura;
+    private Path paqueteEmpaquetado;
+    private String paqueteSellado;
+    private Path facturaDescifrada;
+    private KeyPair hacienda;
+    private KeyPair empresa;
+    private byte[] idClaveEmpresa;
+    private Object clavesEmpresa;
+    private Object clavesAutoridad;
+
+    @Setup(Level.Trial)
+    public void preparar() throws Throwable {
+        System.setProperty("factura.compresion", this.compresion);
+        this.directorio = Files.createTempDirectory("compresion-benchmark");
+        this.factura = this.directorio.resolve("factura.json");
+        escribirFactura(this.factura, this.tamano, new SplittableRandom(1));
+        this.paqueteEmpaquetado = this.directorio.resolve("empaquetado.paquete");
+        this.paqueteSellado = this.directorio.resolve("sellado.paquete").toString();
+        this.facturaDescifrada = this.directorio.resolve("descifrada.json");
+
+        KeyPairGenerator generador = Proveedores.generadorClaves("RSA");
+        generador.initialize(2048);
+        this.hacienda = generador.generateKeyPair();
+        this.empresa = generador.generateKeyPair();
+        KeyPair autoridad = generador.generateKeyPair();
+        this.idClaveEmpresa = MessageDigest.getInstance("SHA-256").digest(this.empresa.getPublic().getEncoded());
+        Path publicaEmpresa = this.directorio.resolve("empresa.publica");
+        Path publicaAutoridad = this.directorio.resolve("autoridad.publica");
+        Files.write(publicaEmpresa, this.empresa.getPublic().getEncoded());
+        Files.write(publicaAutoridad, autoridad.getPublic().getEncoded());
+        this.clavesEmpresa = ClasesProyecto.abrirClaves(publicaEmpresa.toString());
+        this.clavesAutoridad = ClasesProyecto.abrirClaves(publicaAutoridad.toString());
+
+        // Paquete sellado para desempaquetar
+        this.empaquetar();
+        Object paquete = ClasesProyecto.abrirPaquete(this.paqueteEmpaquetado.toString());
+        ClasesProyecto.sellar(paquete, this.empresa.getPublic(), autoridad.getPrivate());
+        ClasesProyecto.escribirPaquete(paquete, this.paqueteSellado);
+        System.out.printf(Locale.ROOT, "%nPaquete: factura de %d bytes -> paquete sellado de %d bytes (%.1f%%)%n",
+                Files.size(this.factura), Files.size(Path.of(this.paqueteSellado)), 100.0 * Files.size(Path.of(this.paqueteSellado)) / Files.size(this.factura));
+    }
+
+    @TearDown(Level.Trial)
+    public void limpiar() throws IOException {
+        System.clearProperty("factura.compresion");
+        try (Stream<Path> ficheros = Files.walk(this.directorio)) {
+            for (Path fichero : (Iterable<Path>) ficheros.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(fichero);
+            }
+        }
+    }
+
+    @Benchmark
+    public void empaquetar() throws Throwable {
+        ClasesProyecto.empaquetar(this.factura, this.paqueteEmpaquetado, this.hacienda.getPublic(), this.empresa.getPrivate(), this.idClaveEmpresa, this.formato);
+    }
+
+    @Benchmark
+    public String desempaquetar() throws Throwable {
+        return ClasesProyecto.desempaquetar(this.paqueteSellado, this.facturaDescifrada, this.hacienda.getPrivate(), this.clavesEmpresa, this.clavesAutoridad);
+    }
+
+    /*
+     * Factura JSON de unos tamano bytes: cabecera y líneas de detalle con
+     * valores variados (referencias, cantidades, precios).
+     */
+    static void escribirFactura(Path fichero, int tamano, SplittableRandom aleatorio) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(fichero, StandardCharsets.UTF_8)) {
+            out.write("{\n  \"factura\": {\n    \"numero\": \"2203\",\n    \"fecha\": \"2024-03-22\",\n    \"items\": [\n");
+            int escritos = 0;
+            for (int linea = 1; escritos < tamano; linea++) {
+                String item = String.format(Locale.ROOT,
+                        "%s      {\"linea\": %d, \"descripcion\": \"%s\", \"referencia\": \"REF-%08d\", \"cantidad\": %d, \"precio_unitario\": %.2f, \"iva\": %d}",
+                        (linea > 1) ? ",\n" : "", linea, DESCRIPCIONES[aleatorio.nextInt(DESCRIPCIONES.length)], aleatorio.nextInt(100_000_000),
+                        1 + aleatorio.nextInt(50), 1 + aleatorio.nextDouble() * 500, new int[]{4, 10, 21}[aleatorio.nextInt(3)]);
+                out.write(item);
+                escritos += item.length();
+            }
+            out.write("\n    ]\n  }\n}\n");
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package edu.tuuni.benchmark;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Consultas al registro de facturas presentadas (FiltroDuplicados) con el
+ * número de entradas indicado, con claves como los resúmenes SHA-256:
+ *   contieneNueva      una factura que no está: suele bastar el filtro de Bloom
+ *   contieneRepetida   una factura registrada: filtro de Bloom y tabla
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class FiltroDuplicadosBenchmark {
+
+    private static final int CLAVES_CONSULTA = 1 << 16;
+
+    @Param({"1000000", "10000000"})
+    public int entradas;
+
+    private Path directorio;
+    private AutoCloseable filtro;
+    private final byte[][] registradas = new byte[CLAVES_CONSULTA][];
+    private final byte[][] nuevas = new byte[CLAVES_CONSULTA][];
+    private int siguiente;
+
+    @Setup(Level.Trial)
+    public void preparar() throws Throwable {
+        this.directorio = Files.createTempDirectory("filtro-benchmark");
+        this.filtro = ClasesProyecto.abrirFiltro(this.directorio);
+        SplittableRandom aleatorio = new SplittableRandom(1);
+        for (int i = 0; i < this.entradas; i++) {
+            byte[] resumen = PaqueteBenchmark.bytesAleatorios(aleatorio, 32);
+            ClasesProyecto.anadirAlFiltro(this.filtro, resumen);
+            if (i < CLAVES_CONSULTA) {
+                this.registradas[i] = resumen;
+            }
+        }
+        for (int i = 0; i < CLAVES_CONSULTA; i++) {
+            this.nuevas[i] = PaqueteBenchmark.bytesAleatorios(aleatorio, 32);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void limpiar() throws Exception {
+        this.filtro.close();
+        try (Stream<Path> ficheros = Files.walk(this.directorio)) {
+            for (Path fichero : (Iterable<Path>) ficheros.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(fichero);
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean contieneNueva() throws Throwable {
+        return ClasesProyecto.contieneFiltro(this.filtro, this.nuevas[this.siguiente++ & (CLAVES_CONSULTA - 1)]);
+    }
+
+    @Benchmark
+    public boolean contieneRepetida() throws Throwable {
+        return ClasesProyecto.contieneFiltro(this.filtro, this.registradas[this.siguiente++ & (CLAVES_CONSULTA - 1)]);
+    }
+}
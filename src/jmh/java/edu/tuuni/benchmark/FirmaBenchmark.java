@@ -0,0 +1,98 @@
+package edu.tuuni.benchmark;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.HexFormat;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Algoritmos de firma de AlgoritmoFirma con niveles de seguridad parecidos
+ * (unos 128 bits): RSA de 3072 bits, ECDSA P-256 y Ed25519. Como en Firmas,
+ * se firma y verifica el resumen SHA-256 ya calculado de lo firmado, que es
+ * lo que le cuesta a la Autoridad cada sello. generarClaves mide GenerarClaves.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class FirmaBenchmark {
+
+    private static final byte[] PREFIJO_DIGEST_INFO_SHA256 = HexFormat.of().parseHex("3031300d060960864801650304020105000420");
+
+    @Param({"BC", "JDK"})
+    public String proveedor;
+
+    @Param({"RSA-3072", "EC-P256", "Ed25519"})
+    public String algoritmo;
+
+    private PublicKey clavePublica;
+    private PrivateKey clavePrivada;
+    private Signature firmador;
+    private byte[] resumen;
+    private byte[] firma;
+
+    @Setup(Level.Trial)
+    public void preparar() throws GeneralSecurityException {
+        KeyPair par = this.generarClaves();
+        KeyFactory fabrica = Proveedores.keyFactory(this.proveedor, this.algoritmoClave());
+        this.clavePublica = fabrica.generatePublic(new X509EncodedKeySpec(par.getPublic().getEncoded()));
+        this.clavePrivada = fabrica.generatePrivate(new PKCS8EncodedKeySpec(par.getPrivate().getEncoded()));
+
+        this.resumen = PaqueteBenchmark.bytesAleatorios(new SplittableRandom(1), 32);
+        this.firmador = Proveedores.signature(this.proveedor, this.algoritmoFirma());
+        this.firma = this.firmar();
+    }
+
+    @Benchmark
+    public byte[] firmar() throws GeneralSecurityException {
+        this.firmador.initSign(this.clavePrivada);
+        this.datosFirmados();
+        return this.firmador.sign();
+    }
+
+    @Benchmark
+    public boolean verificar() throws GeneralSecurityException {
+        this.firmador.initVerify(this.clavePublica);
+        this.datosFirmados();
+        return this.firmador.verify(this.firma);
+    }
+
+    @Benchmark
+    public KeyPair generarClaves() throws GeneralSecurityException {
+        KeyPairGenerator generador = Proveedores.keyPairGenerator(this.proveedor, this.algoritmoClave());
+        if (this.algoritmo.startsWith("RSA-")) {
+            generador.initialize(Integer.parseInt(this.algoritmo.substring("RSA-".length())));
+        } else if (this.algoritmo.equals("EC-P256")) {
+            generador.initialize(new ECGenParameterSpec("secp256r1"));
+        }
+        return generador.generateKeyPair();
+    }
+
+    private void datosFirmados() throws GeneralSecurityException {
+        if (this.algoritmo.startsWith("RSA-")) {
+            this.firmador.update(PREFIJO_DIGEST_INFO_SHA256);
+        }
+        this.firmador.update(this.resumen);
+    }
+
+    private String algoritmoClave() {
+        return this.algoritmo.startsWith("RSA-") ? "RSA" : this.algoritmo.equals("EC-P256") ? "EC" : "Ed25519";
+    }
+
+    private String algoritmoFirma() {
+        return this.algoritmo.startsWith("RSA-") ? "NONEwithRSA" : this.algoritmo.equals("EC-P256") ? "NONEwithECDSA" : "Ed25519";
+    }
+}
@@ -0,0 +1,95 @@
+package edu.tuuni.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Escritura y lectura de un paquete con la forma de una factura empaquetada
+ * (FACTURA_CIFRADA del tamaño indicado más los bloques pequeños de claves,
+ * firma e IV), en los dos formatos de fichero:
+ *   escribir           Paquete.escribirPaquete(fichero)
+ *   leer               new Paquete(fichero): lee y decodifica todos los bloques
+ *   abrirPerezoso      Paquete.abrir(fichero) y un bloque pequeño (p.ej. comprobar el sello)
+ *   abrirYDecodificar  Paquete.abrir(fichero) y la factura completa
+ * Para el tamaño de 500 MB hacen falta unos 4 GB de heap (ver @Fork).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PaqueteBenchmark {
+
+    @Param({"1024", "1048576", "67108864", "524288000"})
+    public int tamano;
+
+    @Param({"TEXTO", "BINARIO"})
+    public String formato;
+
+    private Path directorio;
+    private String ficheroLectura;
+    private String ficheroEscritura;
+    private Object paquete;
+
+    @Setup(Level.Trial)
+    public void preparar() throws Throwable {
+        SplittableRandom aleatorio = new SplittableRandom(1);
+        this.paquete = ClasesProyecto.nuevoPaquete();
+        ClasesProyecto.anadirBloque(this.paquete, "FACTURA_CIFRADA", bytesAleatorios(aleatorio, this.tamano));
+        ClasesProyecto.anadirBloque(this.paquete, "CLAVE_CIFRADA", bytesAleatorios(aleatorio, 64));
+        ClasesProyecto.anadirBloque(this.paquete, "FIRMA_EMPRESA", bytesAleatorios(aleatorio, 64));
+        ClasesProyecto.anadirBloque(this.paquete, "ID_CLAVE_EMPRESA", bytesAleatorios(aleatorio, 32));
+        ClasesProyecto.anadirBloque(this.paquete, "VECTOR_INICIALIZACION", bytesAleatorios(aleatorio, 16));
+        ClasesProyecto.setFormato(this.paquete, this.formato);
+
+        this.directorio = Files.createTempDirectory("paquete-benchmark");
+        this.ficheroLectura = this.directorio.resolve("lectura.paquete").toString();
+        this.ficheroEscritura = this.directorio.resolve("escritura.paquete").toString();
+        ClasesProyecto.escribirPaquete(this.paquete, this.ficheroLectura);
+    }
+
+    @TearDown(Level.Trial)
+    public void limpiar() throws IOException {
+        try (Stream<Path> ficheros = Files.walk(this.directorio)) {
+            for (Path fichero : (Iterable<Path>) ficheros.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(fichero);
+            }
+        }
+    }
+
+    @Benchmark
+    public void escribir() throws Throwable {
+        ClasesProyecto.escribirPaquete(this.paquete, this.ficheroEscritura);
+    }
+
+    @Benchmark
+    public Object leer() throws Throwable {
+        return ClasesProyecto.leerPaquete(this.ficheroLectura);
+    }
+
+    @Benchmark
+    public byte[] abrirPerezoso() throws Throwable {
+        return ClasesProyecto.getContenidoBloque(ClasesProyecto.abrirPaquete(this.ficheroLectura), "FIRMA_EMPRESA");
+    }
+
+    @Benchmark
+    public byte[] abrirYDecodificar() throws Throwable {
+        return ClasesProyecto.getContenidoBloque(ClasesProyecto.abrirPaquete(this.ficheroLectura), "FACTURA_CIFRADA");
+    }
+
+    static byte[] bytesAleatorios(SplittableRandom aleatorio, int tamano) {
+        byte[] datos = new byte[tamano];
+        for (int i = 0; i < tamano; i++) {
+            datos[i] = (byte) aleatorio.nextInt(256);
+        }
+        return datos;
+    }
+}
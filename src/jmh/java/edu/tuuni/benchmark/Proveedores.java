@@ -0,0 +1,50 @@
+package edu.tuuni.benchmark;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.security.Signature;
+
+import javax.crypto.Cipher;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/*
+ * Objetos JCA del proveedor comparado en cada benchmark:
+ *   BC   Bouncy Castle, el que usan las herramientas
+ *   JDK  los proveedores de la JVM (SunJCE, SunRsaSign); Bouncy Castle se
+ *        registra al final de la lista, así que sin nombre se elige el del JDK
+ */
+final class Proveedores {
+
+    static {
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    private Proveedores() {
+    }
+
+    /*
+     * Generador de claves de Bouncy Castle, como GenerarClaves.
+     */
+    static KeyPairGenerator generadorClaves(String algoritmo) throws GeneralSecurityException {
+        return KeyPairGenerator.getInstance(algoritmo, "BC");
+    }
+
+    static Cipher cipher(String proveedor, String algoritmo) throws GeneralSecurityException {
+        return proveedor.equals("BC") ? Cipher.getInstance(algoritmo, "BC") : Cipher.getInstance(algoritmo);
+    }
+
+    static Signature signature(String proveedor, String algoritmo) throws GeneralSecurityException {
+        return proveedor.equals("BC") ? Signature.getInstance(algoritmo, "BC") : Signature.getInstance(algoritmo);
+    }
+
+    static KeyFactory keyFactory(String proveedor, String algoritmo) throws GeneralSecurityException {
+        return proveedor.equals("BC") ? KeyFactory.getInstance(algoritmo, "BC") : KeyFactory.getInstance(algoritmo);
+    }
+
+    static KeyPairGenerator keyPairGenerator(String proveedor, String algoritmo) throws GeneralSecurityException {
+        return proveedor.equals("BC") ? KeyPairGenerator.getInstance(algoritmo, "BC") : KeyPairGenerator.getInstance(algoritmo);
+    }
+}
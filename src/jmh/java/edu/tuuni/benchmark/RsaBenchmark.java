@@ -0,0 +1,97 @@
+package edu.tuuni.benchmark;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Operaciones RSA de las herramientas:
+ *   envolver / desenvolver  RSA/ECB/PKCS1Padding de la clave AES de 16 bytes
+ *                           (EmpaquetarFactura / DesempaquetarFactura)
+ *   firmar / verificar      SHA256withRSA sobre un mensaje de 1 KB (el coste de
+ *                           resumir la factura entera crece con su tamaño y no
+ *                           depende de la clave; aquí se mide la parte RSA)
+ * 512 bits es el tamaño de GenerarClaves; 2048 sirve de referencia.
+ * Las claves se regeneran con la KeyFactory del proveedor, como al cargarlas
+ * de fichero.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class RsaBenchmark {
+
+    @Param({"BC", "JDK"})
+    public String proveedor;
+
+    @Param({"512", "2048"})
+    public int bits;
+
+    private PublicKey clavePublica;
+    private PrivateKey clavePrivada;
+    private Cipher cifradorRSA;
+    private Signature firmador;
+    private byte[] claveAES;
+    private byte[] claveEnvuelta;
+    private byte[] mensaje;
+    private byte[] firma;
+
+    @Setup(Level.Trial)
+    public void preparar() throws GeneralSecurityException {
+        KeyPairGenerator generador = Proveedores.generadorClaves("RSA");
+        generador.initialize(this.bits);
+        KeyPair par = generador.generateKeyPair();
+        KeyFactory fabrica = Proveedores.keyFactory(this.proveedor, "RSA");
+        this.clavePublica = fabrica.generatePublic(new X509EncodedKeySpec(par.getPublic().getEncoded()));
+        this.clavePrivada = fabrica.generatePrivate(new PKCS8EncodedKeySpec(par.getPrivate().getEncoded()));
+
+        SplittableRandom aleatorio = new SplittableRandom(1);
+        this.claveAES = PaqueteBenchmark.bytesAleatorios(aleatorio, 16);
+        this.mensaje = PaqueteBenchmark.bytesAleatorios(aleatorio, 1024);
+
+        this.cifradorRSA = Proveedores.cipher(this.proveedor, "RSA/ECB/PKCS1Padding");
+        this.claveEnvuelta = this.envolver();
+        this.firmador = Proveedores.signature(this.proveedor, "SHA256withRSA");
+        this.firma = this.firmar();
+    }
+
+    @Benchmark
+    public byte[] envolver() throws GeneralSecurityException {
+        this.cifradorRSA.init(Cipher.ENCRYPT_MODE, this.clavePublica);
+        return this.cifradorRSA.doFinal(this.claveAES);
+    }
+
+    @Benchmark
+    public byte[] desenvolver() throws GeneralSecurityException {
+        this.cifradorRSA.init(Cipher.DECRYPT_MODE, this.clavePrivada);
+        return this.cifradorRSA.doFinal(this.claveEnvuelta);
+    }
+
+    @Benchmark
+    public byte[] firmar() throws GeneralSecurityException {
+        this.firmador.initSign(this.clavePrivada);
+        this.firmador.update(this.mensaje);
+        return this.firmador.sign();
+    }
+
+    @Benchmark
+    public boolean verificar() throws GeneralSecurityException {
+        this.firmador.initVerify(this.clavePublica);
+        this.firmador.update(this.mensaje);
+        return this.firmador.verify(this.firma);
+    }
+}
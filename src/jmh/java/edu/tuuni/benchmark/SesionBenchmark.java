@@ -0,0 +1,96 @@
+package edu.tuuni.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Desempaquetar una factura sellada con la clave AES cifrada con RSA para
+ * Hacienda (RSA, una operación de clave privada por factura) o envuelta con
+ * la clave de una sesión (SESION, ver SesionClaves: la clave de la sesión se
+ * descifra con RSA la primera vez y las siguientes facturas solo usan AES).
+ * Con cache (-Dfactura.cache, ver CacheClaves) se mide volver a abrir el
+ * mismo paquete, como en una auditoría: la clave AES sale de la cache.
+ * La clave de Hacienda es de 2048 bits; la factura, de 4 KB como las de
+ * factura.json, para que pese la parte de clave y no la de la factura.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class SesionBenchmark {
+
+    @Param({"RSA", "SESION"})
+    public String modo;
+
+    @Param({"", "16M"})
+    public String cache;
+
+    private Path directorio;
+    private String paqueteSellado;
+    private Path facturaDescifrada;
+    private KeyPair hacienda;
+    private Object clavesEmpresa;
+    private Object clavesAutoridad;
+
+    @Setup(Level.Trial)
+    public void preparar() throws Throwable {
+        System.setProperty("factura.cache", this.cache); // se lee al descifrar la primera clave, ya en el fork de esta combinación
+        this.directorio = Files.createTempDirectory("sesion-benchmark");
+        Path factura = this.directorio.resolve("factura.json");
+        CompresionBenchmark.escribirFactura(factura, 4096, new SplittableRandom(1));
+        Path paqueteEmpaquetado = this.directorio.resolve("empaquetado.paquete");
+        this.paqueteSellado = this.directorio.resolve("sellado.paquete").toString();
+        this.facturaDescifrada = this.directorio.resolve("descifrada.json");
+
+        KeyPairGenerator generador = Proveedores.generadorClaves("RSA");
+        generador.initialize(2048);
+        this.hacienda = generador.generateKeyPair();
+        KeyPair empresa = generador.generateKeyPair();
+        KeyPair autoridad = generador.generateKeyPair();
+        byte[] idClaveEmpresa = MessageDigest.getInstance("SHA-256").digest(empresa.getPublic().getEncoded());
+        Path publicaEmpresa = this.directorio.resolve("empresa.publica");
+        Path publicaAutoridad = this.directorio.resolve("autoridad.publica");
+        Files.write(publicaEmpresa, empresa.getPublic().getEncoded());
+        Files.write(publicaAutoridad, autoridad.getPublic().getEncoded());
+        this.clavesEmpresa = ClasesProyecto.abrirClaves(publicaEmpresa.toString());
+        this.clavesAutoridad = ClasesProyecto.abrirClaves(publicaAutoridad.toString());
+
+        // El paquete de sesión va en el mismo directorio que el paquete, donde lo busca DesempaquetarFactura
+        Object sesion = null;
+        if (this.modo.equals("SESION")) {
+            sesion = ClasesProyecto.crearSesion(this.hacienda.getPublic(), idClaveEmpresa);
+            ClasesProyecto.guardarSesion(sesion, this.directorio, "TEXTO");
+        }
+        ClasesProyecto.empaquetar(factura, paqueteEmpaquetado, this.hacienda.getPublic(), empresa.getPrivate(), idClaveEmpresa, "TEXTO", sesion);
+        Object paquete = ClasesProyecto.abrirPaquete(paqueteEmpaquetado.toString());
+        ClasesProyecto.sellar(paquete, empresa.getPublic(), autoridad.getPrivate());
+        ClasesProyecto.escribirPaquete(paquete, this.paqueteSellado);
+    }
+
+    @TearDown(Level.Trial)
+    public void limpiar() throws IOException {
+        System.clearProperty("factura.cache");
+        try (Stream<Path> ficheros = Files.walk(this.directorio)) {
+            for (Path fichero : (Iterable<Path>) ficheros.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(fichero);
+            }
+        }
+    }
+
+    @Benchmark
+    public String desempaquetar() throws Throwable {
+        return ClasesProyecto.desempaquetar(this.paqueteSellado, this.facturaDescifrada, this.hacienda.getPrivate(), this.clavesEmpresa, this.clavesAutoridad);
+    }
+}
@@ -0,0 +1,192 @@
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.EdECKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.InvalidParameterSpecException;
+import java.util.HexFormat;
+
+public enum AlgoritmoFirma {
+
+    /*
+    Algoritmos de firma de Empresas y Autoridad. El algoritmo lo fija la clave:
+    GenerarClaves crea claves de cualquiera de ellos y las herramientas firman y
+    verifican con el que corresponde a cada clave (ver Firmas). El paquete lo
+    indica en los bloques ALGORITMO_FIRMA_EMPRESA y ALGORITMO_FIRMA_AUTORIDAD;
+    si no están (paquetes anteriores) es RSA_SHA256. El de la Empresa va en el
+    MANIFIESTO que firma (ver Manifiesto); el de la Autoridad se añade al
+    sellar. En ambos, si no coincide con la clave, la firma no se da por válida.
+        RSA_SHA256       SHA256withRSA (PKCS#1 v1.5), con la longitud de clave que se quiera
+        ECDSA_SHA256     SHA256withECDSA, claves P-256 (secp256r1)
+        ED25519_SHA256   Ed25519 sobre el resumen SHA-256 del mensaje
+    Todas se calculan a partir del resumen SHA-256 de lo firmado, así que los
+    datos se recorren una sola vez. Para RSA y ECDSA el resultado es idéntico al
+    de SHA256withRSA y SHA256withECDSA; Ed25519 firma los 32 bytes del resumen
+    (no es Ed25519ph, que usaría SHA-512 y un prefijo de dominio).
+     */
+
+    RSA_SHA256("RSA", "NONEwithRSA"),
+    ECDSA_SHA256("EC", "NONEwithECDSA"),
+    ED25519_SHA256("Ed25519", "Ed25519");
+
+    public static final String BLOQUE_EMPRESA = "ALGORITMO_FIRMA_EMPRESA";
+    public static final String BLOQUE_AUTORIDAD = "ALGORITMO_FIRMA_AUTORIDAD";
+    public static final String CURVA_ECDSA = "secp256r1";
+
+    // DigestInfo DER de SHA-256 sin el resumen (RFC 8017, sección 9.2, nota 1)
+    private static final byte[] PREFIJO_DIGEST_INFO_SHA256 = HexFormat.of().parseHex("3031300d060960864801650304020105000420");
+
+    private final String algoritmoClave;
+    private final String algoritmoFirma;
+
+    AlgoritmoFirma(String algoritmoClave, String algoritmoFirma) {
+        this.algoritmoClave = algoritmoClave;
+        this.algoritmoFirma = algoritmoFirma;
+    }
+
+    /*
+    Nombre JCA de las claves del algoritmo (para KeyFactory y KeyPairGenerator).
+    */
+    public String getAlgoritmoClave() {
+        return this.algoritmoClave;
+    }
+
+    public byte[] getIdentificador() {
+        return this.name().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @SuppressWarnings("try") // la Medicion solo mide el bloque, no se usa dentro
+    public byte[] firmar(PrivateKey clavePrivada, byte[] resumen) throws GeneralSecurityException {
+        try (Metricas.Medicion medicion = Metricas.medir(Metricas.Etapa.FIRMAR)) {
+            Signature firmador = Criptografia.signature(this.algoritmoFirma);
+            firmador.initSign(clavePrivada);
+            this.datosFirmados(firmador, resumen);
+            return firmador.sign();
+        }
+    }
+
+    /*
+    Una firma mal codificada (p.ej. de otra longitud) cuenta como no válida.
+    */
+    @SuppressWarnings("try") // la Medicion solo mide el bloque, no se usa dentro
+    public boolean verificar(PublicKey clavePublica, byte[] resumen, byte[] firma) throws GeneralSecurityException {
+        try (Metricas.Medicion medicion = Metricas.medir(Metricas.Etapa.VERIFICAR)) {
+            Signature verificador = Criptografia.signature(this.algoritmoFirma);
+            verificador.initVerify(clavePublica);
+            this.datosFirmados(verificador, resumen);
+            try {
+                return verificador.verify(firma);
+            } catch (SignatureException ex) {
+                return false;
+            }
+        }
+    }
+
+    /*
+    Una firma PKCS#1 v1.5 es la firma RSA "en bruto" del DigestInfo
+    (identificador del algoritmo de resumen || resumen); ECDSA y Ed25519 reciben el resumen tal cual.
+    */
+    private void datosFirmados(Signature firma, byte[] resumen) throws SignatureException {
+        if (this == RSA_SHA256) {
+            firma.update(PREFIJO_DIGEST_INFO_SHA256);
+        }
+        firma.update(resumen);
+    }
+
+    /*
+    Par de claves nuevo. parametro es la longitud en bits para RSA y se ignora
+    en los demás (P-256 y Ed25519 tienen tamaño fijo).
+    */
+    public KeyPair generarClaves(int parametro) throws GeneralSecurityException {
+        return this.generarClaves(parametro, new SecureRandom());
+    }
+
+    /*
+    Como generarClaves(int), con la fuente de aleatoriedad indicada (p.ej. una
+    por hilo al generar muchas claves en paralelo, ver GenerarClaves --lote).
+    */
+    public KeyPair generarClaves(int parametro, SecureRandom aleatorio) throws GeneralSecurityException {
+        KeyPairGenerator generador = Criptografia.keyPairGenerator(this.algoritmoClave);
+        if (this == RSA_SHA256) {
+            generador.initialize(parametro, aleatorio);
+        } else if (this == ECDSA_SHA256) {
+            generador.initialize(new ECGenParameterSpec(CURVA_ECDSA), aleatorio);
+        } else {
+            generador.initialize(255, aleatorio); // Ed25519: el tamaño es fijo
+        }
+        return generador.generateKeyPair();
+    }
+
+    /*
+    Algoritmo de una clave. Cada proveedor nombra a su manera las claves EC
+    ("EC", "ECDSA") y Ed25519 ("Ed25519", "EdDSA").
+    */
+    public static AlgoritmoFirma deClave(Key clave) throws InvalidKeyException {
+        switch (clave.getAlgorithm()) {
+            case "RSA":
+                return RSA_SHA256;
+            case "EC":
+            case "ECDSA":
+                if (!(clave instanceof ECKey) || !esP256(((ECKey) clave).getParams())) {
+                    throw new InvalidKeyException("Solo se admiten claves EC de la curva P-256");
+                }
+                return ECDSA_SHA256;
+            case "Ed25519":
+            case "EdDSA":
+                if (clave instanceof EdECKey && !((EdECKey) clave).getParams().getName().equalsIgnoreCase("Ed25519")) {
+                    throw new InvalidKeyException("Solo se admiten claves EdDSA de Ed25519");
+                }
+                return ED25519_SHA256;
+            default:
+                throw new InvalidKeyException("Algoritmo de clave no admitido para firmar: " + clave.getAlgorithm());
+        }
+    }
+
+    /*
+    Compara todos los parámetros de la curva con los de P-256 (cuerpo,
+    coeficientes a y b, generador, orden y cofactor): otras curvas de 256 bits,
+    como secp256k1 o brainpoolP256r1, tienen el mismo tamaño de cuerpo.
+    */
+    private static boolean esP256(ECParameterSpec parametros) {
+        ECParameterSpec p256 = ParametrosP256.PARAMETROS;
+        return parametros != null
+                && parametros.getCurve().getField().equals(p256.getCurve().getField())
+                && parametros.getCurve().getA().equals(p256.getCurve().getA())
+                && parametros.getCurve().getB().equals(p256.getCurve().getB())
+                && parametros.getGenerator().equals(p256.getGenerator())
+                && parametros.getOrder().equals(p256.getOrder())
+                && parametros.getCofactor() == p256.getCofactor();
+    }
+
+    // Parámetros de referencia de P-256, calculados la primera vez que se comprueba una clave EC
+    private static class ParametrosP256 {
+        static final ECParameterSpec PARAMETROS;
+
+        static {
+            try {
+                AlgorithmParameters parametros = AlgorithmParameters.getInstance("EC");
+                parametros.init(new ECGenParameterSpec(CURVA_ECDSA));
+                PARAMETROS = parametros.getParameterSpec(ECParameterSpec.class);
+            } catch (NoSuchAlgorithmException | InvalidParameterSpecException ex) {
+                throw new IllegalStateException("Curva " + CURVA_ECDSA + " no disponible", ex);
+            }
+        }
+    }
+
+    /*
+    Algoritmo indicado en el bloque ALGORITMO_FIRMA_* de un paquete (null si no lo tiene).
+    */
+    public static AlgoritmoFirma deBloque(byte[] identificador) throws NoSuchAlgorithmException {
+        if (identificador == null) {
+            return RSA_SHA256;
+        }
+        String nombre = new String(identificador, StandardCharsets.UTF_8);
+        for (AlgoritmoFirma algoritmo : values()) {
+            if (algoritmo.name().equals(nombre)) {
+                return algoritmo;
+            }
+        }
+        throw new NoSuchAlgorithmException("Algoritmo de firma desconocido: " + nombre);
+    }
+}
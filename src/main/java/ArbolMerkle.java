@@ -0,0 +1,124 @@
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ArbolMerkle {
+
+    /*
+    Árbol de Merkle SHA-256 sobre los paquetes de un lote de sellado.
+    La Autoridad firma solo la raíz (y el sello de tiempo) y cada paquete lleva
+    la prueba de inclusión que permite recalcular esa raíz a partir de su hoja.
+        hoja = SHA-256(0x00 || resumen del MANIFIESTO)       (ver Manifiesto)
+        hoja = SHA-256(0x00 || factura cifrada || clave cifrada)   en paquetes sin manifiesto
+        nodo = SHA-256(0x01 || izquierdo || derecho)
+    Si un nivel tiene un número impar de nodos, el último sube sin combinarse.
+    Prueba: secuencia de pasos de 33 bytes, un byte de lado (LADO_IZQUIERDO si el
+    hermano va a la izquierda, LADO_DERECHO si va a la derecha) y su hash.
+     */
+
+    public static final int TAMANO_HASH = 32;
+    public static final byte LADO_IZQUIERDO = 0;
+    public static final byte LADO_DERECHO = 1;
+
+    private static final byte PREFIJO_HOJA = 0x00;
+    private static final byte PREFIJO_NODO = 0x01;
+
+    private final List<byte[][]> niveles = new ArrayList<>();
+
+    public ArbolMerkle(List<byte[]> hojas) {
+        if (hojas.isEmpty()) {
+            throw new IllegalArgumentException("Un árbol de Merkle necesita al menos una hoja");
+        }
+        byte[][] nivel = hojas.toArray(new byte[0][]);
+        this.niveles.add(nivel);
+        while (nivel.length > 1) {
+            byte[][] superior = new byte[(nivel.length + 1) / 2][];
+            for (int i = 0; i < superior.length; i++) {
+                int izquierdo = 2 * i;
+                superior[i] = (izquierdo + 1 < nivel.length) ? nodo(nivel[izquierdo], nivel[izquierdo + 1]) : nivel[izquierdo];
+            }
+            nivel = superior;
+            this.niveles.add(nivel);
+        }
+    }
+
+    public byte[] getRaiz() {
+        return this.niveles.get(this.niveles.size() - 1)[0];
+    }
+
+    /*
+    Prueba de inclusión de la hoja indicada.
+    */
+    public byte[] prueba(int indice) {
+        ByteArrayOutputStream prueba = new ByteArrayOutputStream();
+        for (int n = 0; n < this.niveles.size() - 1; n++) {
+            byte[][] nivel = this.niveles.get(n);
+            int hermano = indice ^ 1;
+            if (hermano < nivel.length) {
+                prueba.write((hermano < indice) ? LADO_IZQUIERDO : LADO_DERECHO);
+                prueba.writeBytes(nivel[hermano]);
+            }
+            indice /= 2;
+        }
+        return prueba.toByteArray();
+    }
+
+    /*
+    Recalcula la raíz a partir del hash de una hoja y su prueba de inclusión.
+    */
+    public static byte[] raizDesdePrueba(byte[] hoja, byte[] prueba) {
+        if (prueba.length % (TAMANO_HASH + 1) != 0) {
+            throw new IllegalArgumentException("Prueba de inclusión mal formada");
+        }
+        byte[] actual = hoja;
+        for (int posicion = 0; posicion < prueba.length; posicion += TAMANO_HASH + 1) {
+            byte lado = prueba[posicion];
+            byte[] hermano = Arrays.copyOfRange(prueba, posicion + 1, posicion + 1 + TAMANO_HASH);
+            if (lado == LADO_IZQUIERDO) {
+                actual = nodo(hermano, actual);
+            } else if (lado == LADO_DERECHO) {
+                actual = nodo(actual, hermano);
+            } else {
+                throw new IllegalArgumentException("Prueba de inclusión mal formada");
+            }
+        }
+        return actual;
+    }
+
+    /*
+    Digest preparado para calcular una hoja por partes (p.ej. leyendo la factura
+    cifrada como stream): basta con añadirle el contenido y llamar a digest().
+    */
+    public static MessageDigest nuevaHoja() {
+        MessageDigest sha256 = sha256();
+        sha256.update(PREFIJO_HOJA);
+        return sha256;
+    }
+
+    public static byte[] hoja(byte[]... partes) {
+        MessageDigest sha256 = nuevaHoja();
+        for (byte[] parte : partes) {
+            sha256.update(parte);
+        }
+        return sha256.digest();
+    }
+
+    private static byte[] nodo(byte[] izquierdo, byte[] derecho) {
+        MessageDigest sha256 = sha256();
+        sha256.update(PREFIJO_NODO);
+        sha256.update(izquierdo);
+        sha256.update(derecho);
+        return sha256.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex); // SHA-256 está en toda JVM
+        }
+    }
+}
@@ -0,0 +1,837 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+public class ArchivoPaquetes implements Closeable {
+
+    /*
+    Archivo de paquetes sellados: en lugar de un fichero por paquete, los
+    paquetes se añaden uno detrás de otro a unos pocos ficheros grandes
+    (segmentos) y un índice, también de solo añadir, dice en qué segmento y
+    posición está cada uno. Un directorio con millones de paquetes pasa a ser
+    un directorio con unos pocos segmentos.
+        segmento-00000001.seg ...   registros de paquete, en orden de llegada
+        indice                      identificador -> segmento, posición, longitud
+    Cada registro de un segmento es:
+        int     MAGIA_REGISTRO
+        short   longitud del identificador (UTF-8) y el identificador
+        int     longitud del paquete (BAJA si es una baja)
+        byte[]  el fichero del paquete tal cual (formato texto o binario)
+        int     CRC-32C del identificador y del paquete
+    Al abrir, el índice se carga en memoria (una entrada por paquete); lo que
+    haya en los segmentos después de lo indexado (p.ej. si el proceso murió
+    entre escribir el registro y su entrada) se recupera recorriendo los
+    registros, y un último registro a medio escribir se descarta. El registro
+    se lleva a disco antes de escribir su entrada; aun así, si el índice
+    llegó a disco y el segmento no (p.ej. con un disco que reordena las
+    escrituras), las entradas que apuntan más allá del último registro
+    correcto de su segmento se descartan y se reescribe el índice sin ellas.
+    Buscar un paquete es una consulta al índice en memoria y una lectura del
+    segmento mapeado, sin copiar el paquete: Paquete.abrir(ByteBuffer)
+    decodifica solo los bloques que se piden. Añadir un identificador que ya
+    existe lo sustituye; lo sustituido y lo eliminado sigue ocupando sitio en
+    los segmentos hasta que se compacta.
+    Compactar copia los paquetes vivos, en el orden en que están, a segmentos
+    nuevos, escribe un índice nuevo y lo cambia por el antiguo (rename
+    atómico) antes de borrar los segmentos antiguos: el índice guarda el
+    primer segmento válido, así que si se interrumpe después del cambio los
+    segmentos antiguos que queden se borran al abrir. Si se interrumpe antes,
+    los segmentos nuevos se recuperan como copias de paquetes ya indexados.
+    Un solo proceso puede tener abierto el archivo (lo impide un bloqueo del
+    fichero "bloqueo"); dentro de él se puede buscar desde varios hilos a la vez.
+    abrirLectura() lo abre solo para buscar: no recupera ni trunca nada (lo
+    que no esté en el índice se indexa solo en memoria) y admite lectores de
+    otros procesos a la vez, pero no un proceso que lo tenga abierto para añadir.
+     */
+
+    public static final String INDICE = "indice";
+    public static final long TAMANO_SEGMENTO_POR_DEFECTO = 256L * 1024 * 1024;
+
+    private static final byte[] MAGIA_INDICE = {'F', 'A', 'C', 'I', 'D', 'X', '1', '\n'};
+    private static final int MAGIA_REGISTRO = 0x50515245; // "PQRE"
+    private static final int BAJA = -1;
+    private static final String PREFIJO_SEGMENTO = "segmento-";
+    private static final String EXTENSION_SEGMENTO = ".seg";
+    private static final String INDICE_NUEVO = "indice.nuevo";
+    private static final String BLOQUEO = "bloqueo";
+    private static final int CABECERA_INDICE = MAGIA_INDICE.length + Integer.BYTES;
+
+    private final Path directorio;
+    private final long tamanoSegmento;
+    private final boolean soloLectura;
+    private final ReadWriteLock cerrojo = new ReentrantReadWriteLock();
+    private final Map<Integer, MappedByteBuffer> mapas = new ConcurrentHashMap<>();
+    private Map<String, Ubicacion> indice = new ConcurrentHashMap<>();
+    private FileChannel canalIndice;
+    private FileChannel canalBloqueo;
+    private FileChannel canalSegmento;
+    private int segmentoActivo;
+    private long tamanoActivo;
+    private int primerSegmento;
+    private long bytesSegmentos; // todo lo escrito en segmentos, vivo o no
+
+    /*
+    Dónde está el último registro de un paquete. fin es la posición siguiente al registro.
+    */
+    private static class Ubicacion {
+        final int segmento;
+        final long posicion;
+        final int longitud;
+        final long fin;
+
+        Ubicacion(int segmento, long posicion, int largoIdentificador, int longitud) {
+            this.segmento = segmento;
+            this.posicion = posicion;
+            this.longitud = longitud;
+            this.fin = posicion + tamanoRegistro(largoIdentificador, Math.max(longitud, 0));
+        }
+
+        long inicioPaquete() {
+            return this.fin - Integer.BYTES - this.longitud;
+        }
+    }
+
+    private ArchivoPaquetes(Path directorio, long tamanoSegmento, boolean soloLectura) {
+        this.directorio = directorio;
+        this.tamanoSegmento = tamanoSegmento;
+        this.soloLectura = soloLectura;
+    }
+
+    public static ArchivoPaquetes abrir(Path directorio) throws IOException {
+        return abrir(directorio, TAMANO_SEGMENTO_POR_DEFECTO);
+    }
+
+    /*
+    Abre el archivo del directorio, o lo crea si no existe. Los segmentos
+    nuevos se cierran al pasar de tamanoSegmento bytes (un paquete más grande
+    va solo en su segmento).
+    */
+    public static ArchivoPaquetes abrir(Path directorio, long tamanoSegmento) throws IOException {
+        if (tamanoSegmento <= 0 || tamanoSegmento > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Tamaño de segmento no válido: " + tamanoSegmento);
+        }
+        Files.createDirectories(directorio);
+        return cargar(new ArchivoPaquetes(directorio, tamanoSegmento, false));
+    }
+
+    /*
+    Abre un archivo que ya existe solo para buscar en él (p.ej. para
+    verificarlo con DesempaquetarFactura --lote): no modifica ningún fichero.
+    */
+    public static ArchivoPaquetes abrirLectura(Path directorio) throws IOException {
+        if (!esArchivo(directorio)) {
+            throw new NoSuchFileException(directorio.resolve(INDICE).toString(), null, "No es un archivo de paquetes");
+        }
+        return cargar(new ArchivoPaquetes(directorio, TAMANO_SEGMENTO_POR_DEFECTO, true));
+    }
+
+    private static ArchivoPaquetes cargar(ArchivoPaquetes archivo) throws IOException {
+        try {
+            archivo.cargar();
+        } catch (IOException | RuntimeException ex) {
+            archivo.close();
+            throw ex;
+        }
+        return archivo;
+    }
+
+    /*
+    Indica si la ruta es un archivo de paquetes (un directorio con índice).
+    */
+    public static boolean esArchivo(Path ruta) {
+        return Files.isRegularFile(ruta.resolve(INDICE));
+    }
+
+    /*
+    Carga el índice, recupera lo que falte en él de los segmentos y deja
+    abierto para añadir el último segmento (solo lo primero si es de solo lectura).
+    */
+    private void cargar() throws IOException {
+        Path ficheroBloqueo = this.directorio.resolve(BLOQUEO);
+        FileLock bloqueo;
+        try {
+            if (this.soloLectura) {
+                // Bloqueo compartido: otros lectores sí, un proceso que añade no
+                this.canalBloqueo = Files.exists(ficheroBloqueo) ? FileChannel.open(ficheroBloqueo, StandardOpenOption.READ) : null;
+                bloqueo = (this.canalBloqueo == null) ? null : this.canalBloqueo.tryLock(0, Long.MAX_VALUE, true);
+            } else {
+                this.canalBloqueo = FileChannel.open(ficheroBloqueo, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                bloqueo = this.canalBloqueo.tryLock();
+            }
+        } catch (OverlappingFileLockException ex) {
+            bloqueo = null;
+        }
+        if (bloqueo == null && this.canalBloqueo != null) {
+            throw new IOException("El archivo de paquetes " + this.directorio + " está abierto por otro proceso");
+        }
+
+        if (!this.soloLectura) {
+            Files.deleteIfExists(this.directorio.resolve(INDICE_NUEVO)); // compactación interrumpida antes del cambio
+        }
+        List<Integer> segmentos = this.listarSegmentos();
+        this.canalIndice = this.soloLectura ? FileChannel.open(this.directorio.resolve(INDICE), StandardOpenOption.READ)
+                : FileChannel.open(this.directorio.resolve(INDICE), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        Map<Integer, Long> indexado = new TreeMap<>();
+        if (this.canalIndice.size() == 0) {
+            this.primerSegmento = segmentos.isEmpty() ? 1 : segmentos.get(0);
+            if (!this.soloLectura) {
+                this.escribirCabeceraIndice(this.canalIndice, this.primerSegmento);
+            }
+        } else {
+            this.leerIndice(indexado);
+        }
+
+        for (int segmento : segmentos) {
+            Path fichero = this.ficheroSegmento(segmento);
+            if (segmento < this.primerSegmento) {
+                if (!this.soloLectura) {
+                    Files.delete(fichero); // ya compactado
+                }
+                continue;
+            }
+            boolean ultimo = (segmento == segmentos.get(segmentos.size() - 1));
+            this.recuperar(segmento, indexado.getOrDefault(segmento, 0L), ultimo);
+            this.bytesSegmentos += Files.size(fichero);
+        }
+
+        if (!this.soloLectura) {
+            int ultimoSegmento = segmentos.isEmpty() ? this.primerSegmento - 1 : segmentos.get(segmentos.size() - 1);
+            this.abrirSegmento(Math.max(ultimoSegmento, this.primerSegmento));
+        }
+    }
+
+    /*
+    Lee las entradas del índice y aplica las que apuntan a registros que
+    están en su segmento (ver validos()). Si descarta alguna, o hay una
+    entrada a medio escribir al final, reescribe el índice con las demás.
+    */
+    private void leerIndice(Map<Integer, Long> indexado) throws IOException {
+        ByteBuffer contenido = this.canalIndice.map(FileChannel.MapMode.READ_ONLY, 0, this.canalIndice.size());
+        byte[] magia = new byte[MAGIA_INDICE.length];
+        if (contenido.remaining() >= CABECERA_INDICE) {
+            contenido.get(magia);
+        }
+        if (!Arrays.equals(magia, MAGIA_INDICE)) {
+            throw new IOException("El índice de " + this.directorio + " no es un índice de archivo de paquetes");
+        }
+        this.primerSegmento = contenido.getInt();
+        List<Map.Entry<byte[], Ubicacion>> entradas = new ArrayList<>();
+        boolean incompleto = false;
+        try {
+            while (contenido.hasRemaining()) {
+                byte[] identificador = new byte[contenido.getShort() & 0xFFFF];
+                contenido.get(identificador);
+                int segmento = contenido.getInt();
+                long posicion = contenido.getLong();
+                int longitud = contenido.getInt();
+                if (segmento >= this.primerSegmento) {
+                    entradas.add(Map.entry(identificador, new Ubicacion(segmento, posicion, identificador.length, longitud)));
+                }
+            }
+        } catch (BufferUnderflowException ex) {
+            incompleto = true; // entrada a medio escribir
+        }
+
+        Map<Integer, Long> validos = this.validos(entradas);
+        int descartadas = 0;
+        for (Map.Entry<byte[], Ubicacion> entrada : entradas) {
+            Ubicacion ubicacion = entrada.getValue();
+            if (ubicacion.fin > validos.getOrDefault(ubicacion.segmento, 0L)) {
+                descartadas++;
+                continue;
+            }
+            this.aplicar(new String(entrada.getKey(), StandardCharsets.UTF_8), ubicacion);
+            indexado.merge(ubicacion.segmento, ubicacion.fin, Math::max);
+        }
+        if ((incompleto || descartadas > 0) && !this.soloLectura) {
+            this.reescribirIndice(entradas, validos);
+        }
+    }
+
+    /*
+    Fin del último registro correcto de cada segmento según el índice: la
+    entrada de más al final que está dentro del fichero y cuyo registro tiene
+    el identificador, la longitud y el CRC esperados. Los registros se llevan
+    a disco en orden, así que los anteriores a ese también están.
+    */
+    private Map<Integer, Long> validos(List<Map.Entry<byte[], Ubicacion>> entradas) throws IOException {
+        Map<Integer, List<Map.Entry<byte[], Ubicacion>>> porSegmento = entradas.stream()
+                .collect(Collectors.groupingBy(e -> e.getValue().segmento));
+        Map<Integer, Long> validos = new TreeMap<>();
+        for (Map.Entry<Integer, List<Map.Entry<byte[], Ubicacion>>> segmento : porSegmento.entrySet()) {
+            Path fichero = this.ficheroSegmento(segmento.getKey());
+            long tamano = Files.exists(fichero) ? Files.size(fichero) : 0;
+            List<Map.Entry<byte[], Ubicacion>> candidatas = segmento.getValue().stream()
+                    .filter(e -> e.getValue().fin <= tamano)
+                    .sorted(Comparator.comparingLong((Map.Entry<byte[], Ubicacion> e) -> e.getValue().fin).reversed())
+                    .collect(Collectors.toList());
+            if (candidatas.isEmpty()) {
+                continue;
+            }
+            try (FileChannel canal = FileChannel.open(fichero, StandardOpenOption.READ)) {
+                ByteBuffer mapa = canal.map(FileChannel.MapMode.READ_ONLY, 0, tamano);
+                for (Map.Entry<byte[], Ubicacion> candidata : candidatas) {
+                    Registro registro = leerRegistro(mapa, (int) candidata.getValue().posicion);
+                    if (registro != null && registro.longitud == candidata.getValue().longitud
+                            && Arrays.equals(registro.identificador, candidata.getKey())) {
+                        validos.put(segmento.getKey(), candidata.getValue().fin);
+                        break;
+                    }
+                }
+            }
+        }
+        return validos;
+    }
+
+    /*
+    Cambia el índice por uno con solo las entradas válidas (como en compactar()).
+    */
+    private void reescribirIndice(List<Map.Entry<byte[], Ubicacion>> entradas, Map<Integer, Long> validos) throws IOException {
+        Path ficheroIndiceNuevo = this.directorio.resolve(INDICE_NUEVO);
+        try (FileChannel indiceNuevo = FileChannel.open(ficheroIndiceNuevo, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            this.escribirCabeceraIndice(indiceNuevo, this.primerSegmento);
+            for (Map.Entry<byte[], Ubicacion> entrada : entradas) {
+                if (entrada.getValue().fin <= validos.getOrDefault(entrada.getValue().segmento, 0L)) {
+                    this.escribirEntradaIndice(indiceNuevo, entrada.getKey(), entrada.getValue());
+                }
+            }
+            indiceNuevo.force(true);
+        }
+        this.canalIndice.close();
+        Files.move(ficheroIndiceNuevo, this.directorio.resolve(INDICE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        this.canalIndice = FileChannel.open(this.directorio.resolve(INDICE), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /*
+    Indexa los registros del segmento a partir de desde (lo ya indexado). Un
+    registro incompleto o con CRC erróneo al final del último segmento es una
+    escritura interrumpida y se descarta; en cualquier otro sitio es un daño.
+    En solo lectura lo recuperado se indexa solo en memoria y no se trunca nada.
+    */
+    private void recuperar(int segmento, long desde, boolean ultimo) throws IOException {
+        Path fichero = this.ficheroSegmento(segmento);
+        try (FileChannel canal = this.soloLectura ? FileChannel.open(fichero, StandardOpenOption.READ)
+                : FileChannel.open(fichero, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (desde >= canal.size()) {
+                return;
+            }
+            ByteBuffer mapa = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+            long posicion = desde;
+            while (posicion < mapa.limit()) {
+                Registro registro = leerRegistro(mapa, (int) posicion);
+                if (registro == null) {
+                    if (!ultimo) {
+                        throw new IOException("Registro dañado en " + fichero + " (posición " + posicion + ")");
+                    }
+                    if (!this.soloLectura) {
+                        canal.truncate(posicion);
+                    }
+                    break;
+                }
+                Ubicacion ubicacion = new Ubicacion(segmento, posicion, registro.identificador.length, registro.longitud);
+                this.aplicar(new String(registro.identificador, StandardCharsets.UTF_8), ubicacion);
+                if (!this.soloLectura) {
+                    this.escribirEntradaIndice(this.canalIndice, registro.identificador, ubicacion);
+                }
+                posicion = ubicacion.fin;
+            }
+        }
+    }
+
+    private void aplicar(String identificador, Ubicacion ubicacion) {
+        if (ubicacion.longitud == BAJA) {
+            this.indice.remove(identificador);
+        } else {
+            this.indice.put(identificador, ubicacion);
+        }
+    }
+
+    private static class Registro {
+        byte[] identificador;
+        int longitud;
+    }
+
+    /*
+    Registro que empieza en posicion, o null si no hay uno completo y correcto.
+    */
+    private static Registro leerRegistro(ByteBuffer mapa, int posicion) {
+        int limite = mapa.limit();
+        if (limite - posicion < Integer.BYTES + Short.BYTES || mapa.getInt(posicion) != MAGIA_REGISTRO) {
+            return null;
+        }
+        Registro registro = new Registro();
+        registro.identificador = new byte[mapa.getShort(posicion + Integer.BYTES) & 0xFFFF];
+        int inicio = posicion + Integer.BYTES + Short.BYTES;
+        if (limite - inicio < registro.identificador.length + Integer.BYTES) {
+            return null;
+        }
+        mapa.get(inicio, registro.identificador);
+        registro.longitud = mapa.getInt(inicio + registro.identificador.length);
+        int inicioPaquete = inicio + registro.identificador.length + Integer.BYTES;
+        int longitud = Math.max(registro.longitud, 0);
+        if (registro.longitud < BAJA || (long) limite - inicioPaquete < (long) longitud + Integer.BYTES) {
+            return null;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(registro.identificador);
+        crc.update(mapa.slice(inicioPaquete, longitud));
+        return ((int) crc.getValue() == mapa.getInt(inicioPaquete + longitud)) ? registro : null;
+    }
+
+    private static long tamanoRegistro(int largoIdentificador, long longitud) {
+        return Integer.BYTES + Short.BYTES + largoIdentificador + Integer.BYTES + longitud + Integer.BYTES;
+    }
+
+    /*
+    Añade (o sustituye) el paquete guardado en un fichero.
+    */
+    public void anadir(String identificador, Path ficheroPaquete) throws IOException {
+        try (FileChannel canal = FileChannel.open(ficheroPaquete, StandardOpenOption.READ)) {
+            if (canal.size() > Integer.MAX_VALUE) {
+                throw new IOException("Paquete demasiado grande para el archivo: " + ficheroPaquete);
+            }
+            this.anadir(identificador, canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size()));
+        }
+    }
+
+    /*
+    Añade (o sustituye) un paquete en su formato (ver Paquete.getFormato()).
+    */
+    public void anadir(String identificador, Paquete paquete) throws IOException {
+        ByteArrayOutputStream contenido = new ByteArrayOutputStream();
+        paquete.escribirPaquete(contenido, paquete.getFormato());
+        this.anadir(identificador, ByteBuffer.wrap(contenido.toByteArray()));
+    }
+
+    /*
+    Añade (o sustituye) el paquete que hay entre position() y limit() del buffer.
+    */
+    public void anadir(String identificador, ByteBuffer paquete) throws IOException {
+        this.escribirRegistro(codificarIdentificador(identificador), paquete.slice());
+    }
+
+    /*
+    Da de baja un paquete; devuelve false si no estaba.
+    */
+    public boolean eliminar(String identificador) throws IOException {
+        this.comprobarEscritura();
+        byte[] codificado = codificarIdentificador(identificador);
+        this.cerrojo.writeLock().lock();
+        try {
+            if (!this.indice.containsKey(identificador)) {
+                return false;
+            }
+            this.escribirRegistro(codificado, null);
+            return true;
+        } finally {
+            this.cerrojo.writeLock().unlock();
+        }
+    }
+
+    /*
+    Escribe un registro al final del segmento activo y su entrada en el índice
+    (una baja si paquete es null). El registro se lleva a disco antes de
+    escribir la entrada, para que el índice nunca apunte a un registro que
+    no está (ver validos()).
+    */
+    private void escribirRegistro(byte[] identificador, ByteBuffer paquete) throws IOException {
+        this.comprobarEscritura();
+        int longitud = (paquete == null) ? BAJA : paquete.remaining();
+        long tamano = tamanoRegistro(identificador.length, Math.max(longitud, 0));
+        if (tamano > Integer.MAX_VALUE) {
+            throw new IOException("Paquete demasiado grande para el archivo: " + longitud + " bytes");
+        }
+        this.cerrojo.writeLock().lock();
+        try {
+            if (this.tamanoActivo > 0 && this.tamanoActivo + tamano > this.tamanoSegmento) {
+                this.abrirSegmento(this.segmentoActivo + 1);
+            }
+            ByteBuffer cabecera = ByteBuffer.allocate(Integer.BYTES + Short.BYTES + identificador.length + Integer.BYTES);
+            cabecera.putInt(MAGIA_REGISTRO).putShort((short) identificador.length).put(identificador).putInt(longitud).flip();
+            CRC32C crc = new CRC32C();
+            crc.update(identificador);
+            ByteBuffer contenido = (paquete == null) ? ByteBuffer.allocate(0) : paquete.duplicate();
+            crc.update(contenido.duplicate());
+            ByteBuffer cola = ByteBuffer.allocate(Integer.BYTES).putInt((int) crc.getValue()).flip();
+
+            Ubicacion ubicacion = new Ubicacion(this.segmentoActivo, this.tamanoActivo, identificador.length, longitud);
+            escribirTodo(this.canalSegmento, this.tamanoActivo, cabecera, contenido, cola);
+            this.canalSegmento.force(false);
+            this.tamanoActivo += tamano;
+            this.bytesSegmentos += tamano;
+            this.escribirEntradaIndice(this.canalIndice, identificador, ubicacion);
+            this.aplicar(new String(identificador, StandardCharsets.UTF_8), ubicacion);
+        } finally {
+            this.cerrojo.writeLock().unlock();
+        }
+    }
+
+    private void comprobarEscritura() {
+        if (this.soloLectura) {
+            throw new IllegalStateException("El archivo de paquetes " + this.directorio + " está abierto solo para lectura");
+        }
+    }
+
+    private static void escribirTodo(FileChannel canal, long posicion, ByteBuffer... partes) throws IOException {
+        for (ByteBuffer parte : partes) {
+            while (parte.hasRemaining()) {
+                posicion += canal.write(parte, posicion);
+            }
+        }
+    }
+
+    private void escribirEntradaIndice(FileChannel canal, byte[] identificador, Ubicacion ubicacion) throws IOException {
+        ByteBuffer entrada = ByteBuffer.allocate(Short.BYTES + identificador.length + Integer.BYTES + Long.BYTES + Integer.BYTES);
+        entrada.putShort((short) identificador.length).put(identificador)
+                .putInt(ubicacion.segmento).putLong(ubicacion.posicion).putInt(ubicacion.longitud).flip();
+        escribirTodo(canal, canal.size(), entrada);
+    }
+
+    private void escribirCabeceraIndice(FileChannel canal, int primero) throws IOException {
+        escribirTodo(canal, 0, ByteBuffer.allocate(CABECERA_INDICE).put(MAGIA_INDICE).putInt(primero).flip());
+    }
+
+    private static byte[] codificarIdentificador(String identificador) {
+        byte[] codificado = identificador.getBytes(StandardCharsets.UTF_8);
+        if (codificado.length == 0 || codificado.length > 0xFFFF || identificador.contains("/") || identificador.contains("\\")
+                || identificador.equals(".") || identificador.equals("..")) {
+            throw new IllegalArgumentException("Identificador de paquete no válido: " + identificador);
+        }
+        return codificado;
+    }
+
+    /*
+    El fichero del paquete tal cual (buffer de solo lectura sobre el segmento
+    mapeado), o null si no está en el archivo.
+    */
+    public ByteBuffer contenido(String identificador) throws IOException {
+        this.cerrojo.readLock().lock();
+        try {
+            Ubicacion ubicacion = this.indice.get(identificador);
+            if (ubicacion == null) {
+                return null;
+            }
+            MappedByteBuffer mapa = this.mapear(ubicacion.segmento, ubicacion.fin);
+            return mapa.slice((int) ubicacion.inicioPaquete(), ubicacion.longitud).asReadOnlyBuffer();
+        } finally {
+            this.cerrojo.readLock().unlock();
+        }
+    }
+
+    /*
+    Abre un paquete del archivo sin decodificarlo (ver Paquete.abrir), o null
+    si no está. Los bloques se leen del segmento mapeado al pedirlos.
+    */
+    public Paquete buscar(String identificador) throws IOException {
+        ByteBuffer contenido = this.contenido(identificador);
+        return (contenido == null) ? null : Paquete.abrir(contenido);
+    }
+
+    /*
+    Segmento mapeado al menos hasta fin. El segmento activo crece, así que se
+    vuelve a mapear si el mapa que hay se ha quedado corto.
+    */
+    private MappedByteBuffer mapear(int segmento, long fin) throws IOException {
+        MappedByteBuffer mapa = this.mapas.get(segmento);
+        if (mapa != null && mapa.capacity() >= fin) {
+            return mapa;
+        }
+        synchronized (this.mapas) {
+            mapa = this.mapas.get(segmento);
+            if (mapa == null || mapa.capacity() < fin) {
+                try (FileChannel canal = FileChannel.open(this.ficheroSegmento(segmento), StandardOpenOption.READ)) {
+                    mapa = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+                }
+                this.mapas.put(segmento, mapa);
+            }
+            return mapa;
+        }
+    }
+
+    public boolean contiene(String identificador) {
+        return this.indice.containsKey(identificador);
+    }
+
+    public int numeroPaquetes() {
+        return this.indice.size();
+    }
+
+    /*
+    Identificadores en el orden en que están en los segmentos: recorrer el
+    archivo en este orden lee los segmentos de principio a fin (ver
+    DesempaquetarFactura --lote).
+    */
+    public List<String> identificadores() {
+        this.cerrojo.readLock().lock();
+        try {
+            return this.indice.entrySet().stream()
+                    .sorted(Comparator.comparing((Map.Entry<String, Ubicacion> e) -> e.getValue().segmento).thenComparing(e -> e.getValue().posicion))
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toList());
+        } finally {
+            this.cerrojo.readLock().unlock();
+        }
+    }
+
+    /*
+    Bytes de los segmentos que ocupan paquetes vivos y bytes totales: la
+    diferencia es lo que recupera compactar().
+    */
+    public long bytesVivos() {
+        return this.indice.values().stream().mapToLong(u -> u.fin - u.posicion).sum();
+    }
+
+    public long bytesTotales() {
+        return this.bytesSegmentos;
+    }
+
+    /*
+    Copia los paquetes vivos a segmentos nuevos y borra los antiguos.
+    Devuelve los bytes liberados.
+    */
+    public long compactar() throws IOException {
+        this.comprobarEscritura();
+        this.cerrojo.writeLock().lock();
+        try {
+            long antes = this.bytesSegmentos;
+            int primeroNuevo = this.segmentoActivo + 1;
+            List<String> identificadores = this.identificadores();
+            Map<String, Ubicacion> nuevoIndice = new ConcurrentHashMap<>();
+            Path ficheroIndiceNuevo = this.directorio.resolve(INDICE_NUEVO);
+
+            int segmento = primeroNuevo;
+            long tamano = 0;
+            long total = 0;
+            FileChannel destino = FileChannel.open(this.ficheroSegmento(segmento), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            try (FileChannel indiceNuevo = FileChannel.open(ficheroIndiceNuevo, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                this.escribirCabeceraIndice(indiceNuevo, primeroNuevo);
+                for (String identificador : identificadores) {
+                    Ubicacion origen = this.indice.get(identificador);
+                    long largo = origen.fin - origen.posicion;
+                    if (tamano > 0 && tamano + largo > this.tamanoSegmento) {
+                        destino.force(true);
+                        destino.close();
+                        destino = FileChannel.open(this.ficheroSegmento(++segmento), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                        tamano = 0;
+                    }
+                    // El registro se copia entero, con su CRC, sin decodificarlo
+                    MappedByteBuffer mapa = this.mapear(origen.segmento, origen.fin);
+                    escribirTodo(destino, tamano, mapa.slice((int) origen.posicion, (int) largo));
+                    byte[] codificado = identificador.getBytes(StandardCharsets.UTF_8);
+                    Ubicacion ubicacion = new Ubicacion(segmento, tamano, codificado.length, origen.longitud);
+                    this.escribirEntradaIndice(indiceNuevo, codificado, ubicacion);
+                    nuevoIndice.put(identificador, ubicacion);
+                    tamano += largo;
+                    total += largo;
+                }
+                destino.force(true);
+                indiceNuevo.force(true);
+            } finally {
+                destino.close();
+            }
+
+            // Cambiar de índice: a partir de aquí los segmentos antiguos ya no cuentan
+            this.canalIndice.close();
+            Files.move(ficheroIndiceNuevo, this.directorio.resolve(INDICE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            this.canalIndice = FileChannel.open(this.directorio.resolve(INDICE), StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            this.canalSegmento.close();
+            for (int antiguo = this.primerSegmento; antiguo < primeroNuevo; antiguo++) {
+                this.mapas.remove(antiguo);
+                Files.deleteIfExists(this.ficheroSegmento(antiguo)); // los paquetes ya abiertos siguen leyendo de su mapa
+            }
+            this.indice = nuevoIndice;
+            this.primerSegmento = primeroNuevo;
+            this.bytesSegmentos = total;
+            this.abrirSegmento(segmento);
+            return antes - total;
+        } finally {
+            this.cerrojo.writeLock().unlock();
+        }
+    }
+
+    private void abrirSegmento(int segmento) throws IOException {
+        if (this.canalSegmento != null) {
+            this.canalSegmento.close();
+        }
+        this.canalSegmento = FileChannel.open(this.ficheroSegmento(segmento), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.segmentoActivo = segmento;
+        this.tamanoActivo = this.canalSegmento.size();
+    }
+
+    private Path ficheroSegmento(int segmento) {
+        return this.directorio.resolve(String.format("%s%08d%s", PREFIJO_SEGMENTO, segmento, EXTENSION_SEGMENTO));
+    }
+
+    private List<Integer> listarSegmentos() throws IOException {
+        try (Stream<Path> ficheros = Files.list(this.directorio)) {
+            return ficheros.map(f -> f.getFileName().toString())
+                    .filter(n -> n.startsWith(PREFIJO_SEGMENTO) && n.endsWith(EXTENSION_SEGMENTO))
+                    .map(n -> Integer.parseInt(n.substring(PREFIJO_SEGMENTO.length(), n.length() - EXTENSION_SEGMENTO.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /*
+    Lleva a disco lo añadido: primero los segmentos y después el índice.
+    */
+    public void sincronizar() throws IOException {
+        if (this.soloLectura) {
+            return;
+        }
+        this.cerrojo.writeLock().lock();
+        try {
+            this.canalSegmento.force(true);
+            this.canalIndice.force(true);
+        } finally {
+            this.cerrojo.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (this.canalSegmento != null && this.canalSegmento.isOpen()) {
+                this.sincronizar();
+                this.canalSegmento.close();
+            }
+        } finally {
+            if (this.canalIndice != null) {
+                this.canalIndice.close();
+            }
+            if (this.canalBloqueo != null) {
+                this.canalBloqueo.close(); // libera también el bloqueo
+            }
+            this.mapas.clear();
+        }
+    }
+
+    /*
+    java ArchivoPaquetes anadir <archivo> <paquete|directorio_paquetes>...
+    java ArchivoPaquetes extraer <archivo> <identificador> <paquete_salida>
+    java ArchivoPaquetes eliminar <archivo> <identificador>...
+    java ArchivoPaquetes listar <archivo>
+    java ArchivoPaquetes compactar <archivo>
+    El identificador de un paquete añadido es el nombre del fichero sin
+    extensión: si dos ficheros dan el mismo (p.ej. a.paquete y a.bin) no se
+    añade ninguno.
+    */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            mensajeAyuda();
+            System.exit(1);
+        }
+        String orden = args[0];
+        Path ruta = Paths.get(args[1]);
+        try (ArchivoPaquetes archivo = ArchivoPaquetes.abrir(ruta)) {
+            switch (orden) {
+                case "anadir":
+                    Map<String, Path> paquetes = new LinkedHashMap<>();
+                    for (int i = 2; i < args.length; i++) {
+                        for (Path paquete : listarPaquetes(Paths.get(args[i]))) {
+                            Path anterior = paquetes.putIfAbsent(nombreSinExtension(paquete), paquete);
+                            if (anterior != null) {
+                                System.err.println("Los paquetes " + anterior + " y " + paquete + " tendrían el mismo identificador "
+                                        + nombreSinExtension(paquete) + ": no se ha añadido ninguno");
+                                System.exit(1);
+                            }
+                        }
+                    }
+                    for (Map.Entry<String, Path> paquete : paquetes.entrySet()) {
+                        archivo.anadir(paquete.getKey(), paquete.getValue());
+                    }
+                    System.out.println("ÉXITO: " + paquetes.size() + " paquetes añadidos a " + ruta + " (" + archivo.numeroPaquetes() + " en total)");
+                    break;
+                case "extraer":
+                    if (args.length != 4) {
+                        mensajeAyuda();
+                        System.exit(1);
+                    }
+                    ByteBuffer contenido = archivo.contenido(args[2]);
+                    if (contenido == null) {
+                        System.err.println("No está en el archivo el paquete " + args[2]);
+                        System.exit(1);
+                    }
+                    try (FileChannel salida = FileChannel.open(Paths.get(args[3]), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                        escribirTodo(salida, 0, contenido);
+                    }
+                    System.out.println("ÉXITO: Paquete " + args[2] + " guardado en " + args[3]);
+                    break;
+                case "eliminar":
+                    for (int i = 2; i < args.length; i++) {
+                        if (!archivo.eliminar(args[i])) {
+                            System.err.println("No está en el archivo el paquete " + args[i]);
+                        }
+                    }
+                    break;
+                case "listar":
+                    for (String identificador : archivo.identificadores()) {
+                        Ubicacion ubicacion = archivo.indice.get(identificador);
+                        System.out.printf("%s\tsegmento %d\tposición %d\t%d bytes%n", identificador, ubicacion.segmento, ubicacion.posicion, ubicacion.longitud);
+                    }
+                    System.out.printf(Locale.ROOT, "%d paquetes, %d de %d bytes vivos en los segmentos%n", archivo.numeroPaquetes(), archivo.bytesVivos(), archivo.bytesTotales());
+                    break;
+                case "compactar":
+                    long liberados = archivo.compactar();
+                    System.out.println("ÉXITO: Archivo compactado, " + liberados + " bytes liberados (" + archivo.bytesTotales() + " bytes en los segmentos)");
+                    break;
+                default:
+                    mensajeAyuda();
+                    System.exit(1);
+            }
+        } catch (IOException | UncheckedIOException | IllegalArgumentException ex) {
+            System.err.println("Error en el archivo de paquetes " + ruta + ": " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static List<Path> listarPaquetes(Path ruta) throws IOException {
+        if (!Files.isDirectory(ruta)) {
+            return List.of(ruta);
+        }
+        try (Stream<Path> ficheros = Files.list(ruta)) {
+            return ficheros.filter(Files::isRegularFile).sorted().collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    private static String nombreSinExtension(Path fichero) {
+        String nombre = fichero.getFileName().toString();
+        int punto = nombre.lastIndexOf('.');
+        return (punto > 0) ? nombre.substring(0, punto) : nombre;
+    }
+
+    public static void mensajeAyuda() {
+        System.out.println("Archivo de paquetes sellados en segmentos con índice.");
+        System.out.println("\tSintaxis: java ArchivoPaquetes anadir <archivo> <paquete|directorio_paquetes>...");
+        System.out.println("\t          java ArchivoPaquetes extraer <archivo> <identificador> <paquete_salida>");
+        System.out.println("\t          java ArchivoPaquetes eliminar <archivo> <identificador>...");
+        System.out.println("\t          java ArchivoPaquetes listar <archivo>");
+        System.out.println("\t          java ArchivoPaquetes compactar <archivo>");
+        System.out.println();
+    }
+}
@@ -0,0 +1,276 @@
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+public final class CacheClaves {
+
+    /*
+    Cache en memoria de claves AES ya descifradas, para que DesempaquetarFactura
+    no repita la operación de clave privada de Hacienda al volver a abrir un
+    paquete (auditorías que abren los mismos paquetes varias veces, el modo
+    lote, un proceso de larga duración). Se activa con
+        -Dfactura.cache=<memoria>[:<segundos>]    p.ej. 16M:600
+    La clave de la cache es el SHA-256 de CLAVE_CIFRADA; el valor, los bytes de
+    la clave AES. Las entradas salen:
+      - por LRU, cuando las entradas ocupan más de la memoria indicada (se
+        cuenta un coste fijo por entrada, COSTE_ENTRADA)
+      - por caducidad, a los segundos indicados desde que entraron (600 por
+        defecto), aunque se sigan usando
+    y al salir se sobrescriben con ceros. Los SecretKey que se devuelven son
+    copias: la cache no puede borrar las que ya tenga quien las pidió.
+    Si varios hilos piden a la vez una clave que no está, solo uno la descifra
+    y los demás esperan su resultado.
+    Aciertos (incluidas las esperas), fallos (claves descifradas), expulsiones
+    y caducadas se cuentan para poder dimensionarla (ver comoTexto(),
+    comoJson() y el informe del modo lote).
+     */
+
+    public static final String PROPIEDAD_CACHE = "factura.cache";
+    public static final long SEGUNDOS_POR_DEFECTO = 600;
+
+    // Entrada del LinkedHashMap, cadena hexadecimal del resumen, Entrada y clave de 16 bytes, redondeado
+    static final int COSTE_ENTRADA = 256;
+
+    private static volatile CacheClaves configurada;
+    private static volatile boolean leidaConfiguracion = false;
+
+    private final long memoriaMaxima;
+    private final long nanosVida;
+    private final Map<String, Entrada> entradas;
+    private final Map<String, CompletableFuture<SecretKey>> enCurso = new ConcurrentHashMap<>();
+    private long proximaLimpieza;
+    private final LongAdder aciertos = new LongAdder();
+    private final LongAdder fallos = new LongAdder();
+    private final LongAdder expulsiones = new LongAdder();
+    private final LongAdder caducadas = new LongAdder();
+
+    /*
+    Descifrado de una clave que no está en la cache (p.ej. RSA con la clave privada de Hacienda).
+    */
+    public interface Descifrador {
+        SecretKey descifrar() throws GeneralSecurityException;
+    }
+
+    private static class Entrada {
+        final byte[] clave;
+        final String algoritmo;
+        final long caduca;
+
+        Entrada(byte[] clave, String algoritmo, long caduca) {
+            this.clave = clave;
+            this.algoritmo = algoritmo;
+            this.caduca = caduca;
+        }
+
+        void borrar() {
+            Arrays.fill(this.clave, (byte) 0);
+        }
+    }
+
+    public CacheClaves(long memoriaMaxima, long segundosVida) {
+        if (memoriaMaxima < COSTE_ENTRADA || segundosVida <= 0) {
+            throw new IllegalArgumentException("Cache de claves no válida: " + memoriaMaxima + " bytes, " + segundosVida + " s");
+        }
+        this.memoriaMaxima = memoriaMaxima;
+        this.nanosVida = TimeUnit.SECONDS.toNanos(segundosVida);
+        long maximoEntradas = memoriaMaxima / COSTE_ENTRADA;
+        this.entradas = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entrada> masAntigua) {
+                if (size() > maximoEntradas) {
+                    masAntigua.getValue().borrar();
+                    CacheClaves.this.expulsiones.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.proximaLimpieza = System.nanoTime() + this.nanosVida;
+    }
+
+    /*
+    Cache indicada en -Dfactura.cache, o null si no se ha pedido.
+    */
+    public static CacheClaves configurada() {
+        if (!leidaConfiguracion) {
+            synchronized (CacheClaves.class) {
+                if (!leidaConfiguracion) {
+                    configurada = deConfiguracion(System.getProperty(PROPIEDAD_CACHE));
+                    leidaConfiguracion = true;
+                }
+            }
+        }
+        return configurada;
+    }
+
+    /*
+    <memoria>[:<segundos>], con la memoria en bytes o con sufijo K, M o G.
+    */
+    static CacheClaves deConfiguracion(String configuracion) {
+        if (configuracion == null || configuracion.isEmpty()) {
+            return null;
+        }
+        int dosPuntos = configuracion.indexOf(':');
+        String memoria = ((dosPuntos < 0) ? configuracion : configuracion.substring(0, dosPuntos)).trim().toUpperCase(Locale.ROOT);
+        try {
+            long segundos = (dosPuntos < 0) ? SEGUNDOS_POR_DEFECTO : Long.parseLong(configuracion.substring(dosPuntos + 1).trim());
+            long multiplicador = 1;
+            if (memoria.endsWith("K") || memoria.endsWith("M") || memoria.endsWith("G")) {
+                multiplicador = 1L << (10 * ("KMG".indexOf(memoria.charAt(memoria.length() - 1)) + 1));
+                memoria = memoria.substring(0, memoria.length() - 1);
+            }
+            return new CacheClaves(Long.parseLong(memoria) * multiplicador, segundos);
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Valor no válido para -D" + PROPIEDAD_CACHE + ": " + configuracion + " (<memoria>[:<segundos>])");
+        }
+    }
+
+    /*
+    Clave AES de CLAVE_CIFRADA: de la cache si está y no ha caducado; si no,
+    la del descifrador, que se guarda. Los errores del descifrador no se
+    guardan y se lanzan a todos los que esperaban esa clave.
+    */
+    public SecretKey obtener(byte[] claveCifrada, Descifrador descifrador) throws GeneralSecurityException {
+        String id = identificador(claveCifrada);
+        SecretKey clave = this.buscar(id);
+        if (clave != null) {
+            this.aciertos.increment();
+            return clave;
+        }
+        CompletableFuture<SecretKey> nuevo = new CompletableFuture<>();
+        CompletableFuture<SecretKey> otro = this.enCurso.putIfAbsent(id, nuevo);
+        if (otro != null) {
+            try {
+                clave = otro.join(); // otro hilo la está descifrando
+            } catch (CompletionException ex) {
+                if (ex.getCause() instanceof GeneralSecurityException) {
+                    throw (GeneralSecurityException) ex.getCause();
+                }
+                throw ex;
+            }
+            this.aciertos.increment();
+            return clave;
+        }
+        try {
+            this.fallos.increment();
+            clave = descifrador.descifrar();
+            this.guardar(id, clave);
+            nuevo.complete(clave);
+            return clave;
+        } catch (GeneralSecurityException | RuntimeException ex) {
+            nuevo.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            this.enCurso.remove(id, nuevo);
+        }
+    }
+
+    private SecretKey buscar(String id) {
+        long ahora = System.nanoTime();
+        synchronized (this.entradas) {
+            Entrada entrada = this.entradas.get(id);
+            if (entrada == null) {
+                return null;
+            }
+            if (ahora - entrada.caduca >= 0) {
+                this.entradas.remove(id);
+                entrada.borrar();
+                this.caducadas.increment();
+                return null;
+            }
+            return new SecretKeySpec(entrada.clave, entrada.algoritmo); // SecretKeySpec copia los bytes
+        }
+    }
+
+    /*
+    De paso, de vez en cuando se borran las entradas caducadas que nadie ha
+    vuelto a pedir.
+    */
+    private void guardar(String id, SecretKey clave) {
+        long ahora = System.nanoTime();
+        Entrada nueva = new Entrada(clave.getEncoded(), clave.getAlgorithm(), ahora + this.nanosVida);
+        synchronized (this.entradas) {
+            if (ahora - this.proximaLimpieza >= 0) {
+                this.limpiar(ahora);
+            }
+            Entrada anterior = this.entradas.put(id, nueva);
+            if (anterior != null) {
+                anterior.borrar();
+            }
+        }
+    }
+
+    private void limpiar(long ahora) {
+        for (Iterator<Entrada> it = this.entradas.values().iterator(); it.hasNext(); ) {
+            Entrada entrada = it.next();
+            if (ahora - entrada.caduca >= 0) {
+                entrada.borrar();
+                it.remove();
+                this.caducadas.increment();
+            }
+        }
+        this.proximaLimpieza = ahora + this.nanosVida / 2;
+    }
+
+    /*
+    Vacía la cache borrando todas las claves.
+    */
+    public void vaciar() {
+        synchronized (this.entradas) {
+            for (Entrada entrada : this.entradas.values()) {
+                entrada.borrar();
+            }
+            this.entradas.clear();
+        }
+    }
+
+    private static String identificador(byte[] claveCifrada) {
+        return HexFormat.of().formatHex(Firmas.nuevoResumen().digest(claveCifrada));
+    }
+
+    public int getEntradas() {
+        synchronized (this.entradas) {
+            return this.entradas.size();
+        }
+    }
+
+    public long getAciertos() {
+        return this.aciertos.sum();
+    }
+
+    public long getFallos() {
+        return this.fallos.sum();
+    }
+
+    public long getExpulsiones() {
+        return this.expulsiones.sum();
+    }
+
+    public long getCaducadas() {
+        return this.caducadas.sum();
+    }
+
+    public String comoTexto() {
+        long aciertos = this.getAciertos();
+        long consultas = aciertos + this.getFallos();
+        return String.format(Locale.ROOT, "Cache de claves: %d aciertos, %d fallos (%.1f%% aciertos), %d expulsadas, %d caducadas, %d entradas de %d como máximo",
+                aciertos, this.getFallos(), (consultas == 0) ? 0.0 : 100.0 * aciertos / consultas, this.getExpulsiones(), this.getCaducadas(),
+                this.getEntradas(), this.memoriaMaxima / COSTE_ENTRADA);
+    }
+
+    public String comoJson() {
+        return String.format(Locale.ROOT, "{\"aciertos\": %d, \"fallos\": %d, \"expulsadas\": %d, \"caducadas\": %d, \"entradas\": %d, \"maximo_entradas\": %d}",
+                this.getAciertos(), this.getFallos(), this.getExpulsiones(), this.getCaducadas(), this.getEntradas(), this.memoriaMaxima / COSTE_ENTRADA);
+    }
+}
@@ -0,0 +1,266 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.util.concurrent.CompletionException;
+import java.util.stream.IntStream;
+import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
+
+public class CifradoSegmentado implements SuiteCifrado.Proceso {
+
+    /*
+    Cifrado AEAD por segmentos de la suite AES_128_GCM_SEGMENTADO, al estilo de
+    los "streaming AEAD" (construcción STREAM): la factura se parte en segmentos
+    de TAMANO_SEGMENTO bytes y cada uno se cifra con AES-GCM por separado, con
+    su propio nonce y su propia etiqueta:
+        nonce    = prefijo (7 bytes, VECTOR_INICIALIZACION) || índice (4 bytes) || último (1 byte)
+        cifrado  = GCM(segmento 0) || GCM(segmento 1) || ... || GCM(último segmento)
+    Todos los segmentos salvo el último están completos, así que el segmento i
+    empieza en i * SEGMENTO_CIFRADO. El índice en el nonce autentica el orden y
+    la marca de último segmento autentica el final: reordenar, quitar o truncar
+    segmentos hace que falle alguna etiqueta.
+    Los segmentos son independientes: se cifran y descifran en paralelo (en el
+    pool común de ForkJoin) y se puede descifrar un rango de la factura sin
+    procesar el resto (descifrarRango).
+     */
+
+    // Segmentos de 64 KB: con segmentos de 1 MB el GCM del JDK 17 no llega a compilarse con sus intrínsecos
+    public static final int TAMANO_SEGMENTO = 64 * 1024;
+    public static final int LONGITUD_PREFIJO = 7;
+    public static final int LONGITUD_ETIQUETA = 16;
+    public static final int SEGMENTO_CIFRADO = TAMANO_SEGMENTO + LONGITUD_ETIQUETA;
+
+    // Segmentos que se procesan juntos en paralelo: 1 MB por núcleo, la memoria queda acotada
+    private static final int SEGMENTOS_POR_TANDA = 16 * Runtime.getRuntime().availableProcessors();
+
+    // Un Cipher AES/GCM por hilo del pool, se reinicializa para cada segmento
+    private static final ThreadLocal<Cipher> CIPHER_GCM = ThreadLocal.withInitial(() -> {
+        try {
+            return Criptografia.cipher("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("No se puede crear el cifrador AES/GCM", ex);
+        }
+    });
+
+    private final int modo;
+    private final SecretKey clave;
+    private final byte[] prefijo;
+    private final int tamanoEntrada; // segmento en claro al cifrar, cifrado al descifrar
+    private final byte[] pendiente;
+    private int bytesPendientes = 0;
+    private long siguienteSegmento = 0;
+
+    public CifradoSegmentado(int modo, SecretKey clave, byte[] prefijo) throws InvalidAlgorithmParameterException {
+        if (prefijo == null || prefijo.length != LONGITUD_PREFIJO) {
+            throw new InvalidAlgorithmParameterException("El prefijo del nonce debe tener " + LONGITUD_PREFIJO + " bytes");
+        }
+        this.modo = modo;
+        this.clave = clave;
+        this.prefijo = prefijo.clone();
+        this.tamanoEntrada = (modo == Cipher.ENCRYPT_MODE) ? TAMANO_SEGMENTO : SEGMENTO_CIFRADO;
+        this.pendiente = new byte[SEGMENTOS_POR_TANDA * this.tamanoEntrada];
+    }
+
+    /*
+    Acumula los datos en tandas de segmentos. Una tanda completa solo se procesa
+    cuando llegan más datos detrás, porque hasta entonces su último segmento
+    podría ser el último de la factura.
+    */
+    @Override
+    public byte[] update(byte[] datos, int inicio, int longitud) throws GeneralSecurityException {
+        byte[] primeraTanda = null;
+        ByteArrayOutputStream variasTandas = null; // solo si un trozo grande completa más de una tanda
+        while (longitud > 0) {
+            if (this.bytesPendientes == this.pendiente.length) {
+                byte[] tanda = this.procesar(this.pendiente, this.bytesPendientes, false);
+                if (primeraTanda == null) {
+                    primeraTanda = tanda;
+                } else {
+                    if (variasTandas == null) {
+                        variasTandas = new ByteArrayOutputStream();
+                        variasTandas.writeBytes(primeraTanda);
+                    }
+                    variasTandas.writeBytes(tanda);
+                }
+                this.bytesPendientes = 0;
+            }
+            int copiados = Math.min(longitud, this.pendiente.length - this.bytesPendientes);
+            System.arraycopy(datos, inicio, this.pendiente, this.bytesPendientes, copiados);
+            this.bytesPendientes += copiados;
+            inicio += copiados;
+            longitud -= copiados;
+        }
+        if (variasTandas != null) {
+            return variasTandas.toByteArray();
+        }
+        return (primeraTanda == null) ? new byte[0] : primeraTanda;
+    }
+
+    /*
+    Procesa lo pendiente marcando su último segmento como último de la factura.
+    Una factura vacía es un único segmento vacío (solo la etiqueta).
+    */
+    @Override
+    public byte[] doFinal() throws GeneralSecurityException {
+        byte[] resultado = this.procesar(this.pendiente, this.bytesPendientes, true);
+        this.bytesPendientes = 0;
+        return resultado;
+    }
+
+    /*
+    Cifra o descifra en paralelo los segmentos de datos[0, longitud), que
+    empiezan en el segmento siguienteSegmento. Con conUltimo el último segmento
+    (que puede estar incompleto o vacío) lleva la marca de último.
+    */
+    private byte[] procesar(byte[] datos, int longitud, boolean conUltimo) throws GeneralSecurityException {
+        int segmentos = Math.max(1, (longitud + this.tamanoEntrada - 1) / this.tamanoEntrada);
+        if (this.modo == Cipher.DECRYPT_MODE && conUltimo && longitud < (segmentos - 1) * this.tamanoEntrada + LONGITUD_ETIQUETA) {
+            throw new AEADBadTagException("Factura cifrada truncada: el último segmento no tiene etiqueta");
+        }
+        int diferencia = (this.modo == Cipher.ENCRYPT_MODE) ? LONGITUD_ETIQUETA : -LONGITUD_ETIQUETA;
+        byte[] salida = new byte[longitud + segmentos * diferencia];
+        long primero = this.siguienteSegmento;
+        int tamanoSalida = this.tamanoEntrada + diferencia;
+        enParalelo(segmentos, i -> {
+            int inicio = i * this.tamanoEntrada;
+            int tamano = Math.min(this.tamanoEntrada, longitud - inicio);
+            boolean ultimo = conUltimo && i == segmentos - 1;
+            procesarSegmento(this.modo, this.clave, nonce(this.prefijo, primero + i, ultimo), datos, inicio, tamano, salida, i * tamanoSalida);
+        });
+        this.siguienteSegmento += segmentos;
+        return salida;
+    }
+
+    /*
+    Descifra los bytes [desde, desde + longitud) de la factura en claro leyendo
+    solo los segmentos que los contienen, y los escribe en salida. cifrado es
+    el contenido del bloque FACTURA_CIFRADA desde su principio; lo anterior al
+    rango se salta sin descifrar. Se procesa por tandas de segmentos, así que
+    la memoria no depende de la longitud del rango. Si el rango pasa del final
+    de la factura se escribe hasta el final. Devuelve los bytes escritos.
+    */
+    public static long descifrarRango(SecretKey clave, byte[] prefijo, InputStream cifrado, long desde, long longitud, OutputStream salida)
+            throws IOException, GeneralSecurityException {
+        if (prefijo == null || prefijo.length != LONGITUD_PREFIJO) {
+            throw new InvalidAlgorithmParameterException("El prefijo del nonce debe tener " + LONGITUD_PREFIJO + " bytes");
+        }
+        if (desde < 0 || longitud < 0 || desde > Long.MAX_VALUE - longitud) {
+            throw new IllegalArgumentException("Rango no válido: " + desde + "+" + longitud);
+        }
+        if (longitud == 0) {
+            return 0;
+        }
+        long primero = desde / TAMANO_SEGMENTO;
+        long restantes = (desde + longitud - 1) / TAMANO_SEGMENTO - primero + 1;
+        saltar(cifrado, primero * SEGMENTO_CIFRADO);
+
+        byte[] tanda = new byte[(int) Math.min(restantes, SEGMENTOS_POR_TANDA) * SEGMENTO_CIFRADO];
+        byte[] claro = new byte[tanda.length / SEGMENTO_CIFRADO * TAMANO_SEGMENTO];
+        long inicioTanda = primero * TAMANO_SEGMENTO; // posición en la factura de claro[0]
+        long escritos = 0;
+        int adelantado = -1; // byte leído para saber si la tanda anterior llegaba al final
+        while (restantes > 0) {
+            int pedidos = (int) Math.min(restantes, SEGMENTOS_POR_TANDA) * SEGMENTO_CIFRADO;
+            int leidos = 0;
+            if (adelantado >= 0) {
+                tanda[leidos++] = (byte) adelantado;
+            }
+            leidos += cifrado.readNBytes(tanda, leidos, pedidos - leidos);
+            if (leidos == 0) {
+                break; // el rango empieza después del final de la factura
+            }
+            // El último segmento de la factura se reconoce porque no hay nada detrás
+            adelantado = (leidos < pedidos) ? -1 : cifrado.read();
+            boolean incluyeUltimo = (adelantado == -1);
+
+            int segmentos = (leidos + SEGMENTO_CIFRADO - 1) / SEGMENTO_CIFRADO;
+            if (incluyeUltimo && leidos - (segmentos - 1) * SEGMENTO_CIFRADO < LONGITUD_ETIQUETA) {
+                throw new AEADBadTagException("Factura cifrada truncada: el último segmento no tiene etiqueta");
+            }
+            int bytesClaro = leidos - segmentos * LONGITUD_ETIQUETA;
+            long primeroTanda = primero;
+            int leidosTanda = leidos;
+            enParalelo(segmentos, i -> {
+                int inicio = i * SEGMENTO_CIFRADO;
+                int tamano = Math.min(SEGMENTO_CIFRADO, leidosTanda - inicio);
+                boolean ultimo = incluyeUltimo && i == segmentos - 1;
+                procesarSegmento(Cipher.DECRYPT_MODE, clave, nonce(prefijo, primeroTanda + i, ultimo), tanda, inicio, tamano, claro, i * TAMANO_SEGMENTO);
+            });
+
+            // Solo la parte de la tanda que cae dentro del rango
+            long inicioRango = Math.max(desde, inicioTanda);
+            long finRango = Math.min(desde + longitud, inicioTanda + bytesClaro);
+            if (inicioRango < finRango) {
+                salida.write(claro, (int) (inicioRango - inicioTanda), (int) (finRango - inicioRango));
+                escritos += finRango - inicioRango;
+            }
+            if (incluyeUltimo) {
+                break;
+            }
+            primero += segmentos;
+            restantes -= segmentos;
+            inicioTanda += bytesClaro;
+        }
+        return escritos;
+    }
+
+    public static byte[] nonce(byte[] prefijo, long indice, boolean ultimo) throws GeneralSecurityException {
+        if (indice > 0xFFFFFFFFL) {
+            throw new IllegalBlockSizeException("La factura tiene demasiados segmentos");
+        }
+        ByteBuffer nonce = ByteBuffer.allocate(LONGITUD_PREFIJO + 5);
+        nonce.put(prefijo).putInt((int) indice).put((byte) (ultimo ? 1 : 0));
+        return nonce.array();
+    }
+
+    private static void procesarSegmento(int modo, SecretKey clave, byte[] nonce, byte[] entrada, int inicio, int longitud, byte[] salida, int inicioSalida)
+            throws GeneralSecurityException {
+        Cipher cipher = CIPHER_GCM.get();
+        cipher.init(modo, clave, new GCMParameterSpec(LONGITUD_ETIQUETA * 8, nonce));
+        cipher.doFinal(entrada, inicio, longitud, salida, inicioSalida);
+    }
+
+    private interface TareaSegmento {
+        void procesar(int segmento) throws GeneralSecurityException;
+    }
+
+    /*
+    Ejecuta las tareas en el pool común de ForkJoin (el hilo que llama también
+    trabaja). El primer error criptográfico se relanza tal cual.
+    */
+    private static void enParalelo(int segmentos, TareaSegmento tarea) throws GeneralSecurityException {
+        try {
+            IntStream.range(0, segmentos).parallel().forEach(i -> {
+                try {
+                    tarea.procesar(i);
+                } catch (GeneralSecurityException ex) {
+                    throw new CompletionException(ex);
+                }
+            });
+        } catch (CompletionException ex) {
+            // ForkJoin puede envolver de nuevo la excepción al pasarla entre hilos
+            for (Throwable causa = ex; causa != null; causa = causa.getCause()) {
+                if (causa instanceof GeneralSecurityException) {
+                    throw (GeneralSecurityException) causa;
+                }
+            }
+            throw ex;
+        }
+    }
+
+    private static void saltar(InputStream entrada, long bytes) throws IOException {
+        while (bytes > 0) {
+            long saltados = entrada.skip(bytes);
+            if (saltados <= 0) {
+                if (entrada.read() == -1) {
+                    return; // el rango empieza después del final: no hay nada que leer
+                }
+                saltados = 1;
+            }
+            bytes -= saltados;
+        }
+    }
+}
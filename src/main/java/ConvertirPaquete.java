@@ -0,0 +1,39 @@
+import java.io.IOException;
+
+public class ConvertirPaquete {
+
+    /*
+    Convierte un paquete entre el formato texto (BASE64, para intercambio con
+    terceros) y el formato binario (almacenamiento y transporte interno).
+    El formato de entrada se detecta solo; los bloques se copian uno a uno
+    sin cargarlos en memoria, así que vale para facturas de cualquier tamaño.
+    Las firmas no se ven afectadas: cubren el contenido de los bloques, no su
+    codificación en el fichero.
+     */
+
+    public static void main(String[] args) {
+        if (args.length != 3 || Paquete.Formato.deOpcion(args[0]) == null) {
+            mensajeAyuda();
+            System.exit(1);
+        }
+
+        Paquete.Formato formato = Paquete.Formato.deOpcion(args[0]);
+        String paqueteEntrada = args[1];
+        String paqueteSalida = args[2];
+
+        try {
+            Paquete.Formato formatoEntrada = Paquete.detectarFormato(paqueteEntrada);
+            Paquete.convertir(paqueteEntrada, paqueteSalida, formato);
+            System.out.println("ÉXITO: Paquete convertido de " + formatoEntrada + " a " + formato + " en " + paqueteSalida);
+        } catch (IOException ex) {
+            System.err.println("Error convirtiendo el paquete " + paqueteEntrada + ": " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    public static void mensajeAyuda() {
+        System.out.println("Convierte un paquete entre el formato texto y el formato binario.");
+        System.out.println("\tSintaxis: java ConvertirPaquete <--texto|--binario> <paquete_entrada> <paquete_salida>");
+        System.out.println();
+    }
+}
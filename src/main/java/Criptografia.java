@@ -0,0 +1,54 @@
+import java.security.*;
+import javax.crypto.*;
+
+public class Criptografia {
+
+    /*
+    Punto único de creación de los objetos JCA de las herramientas, para poder
+    elegir el proveedor sin tocar el código:
+        -Dfactura.proveedor=BC      Bouncy Castle (por defecto)
+        -Dfactura.proveedor=JDK     proveedores de la JVM (SunJCE, SunRsaSign), que
+                                    usan las instrucciones AES-NI/CLMUL del procesador
+        -Dfactura.proveedor=<otro>  cualquier proveedor registrado, por nombre
+    Los paquetes no dependen del proveedor: las herramientas pueden usar
+    proveedores distintos y leer los paquetes de las demás.
+    La suite de cifrado simétrico se elige aparte (ver SuiteCifrado).
+     */
+
+    public static final String PROPIEDAD_PROVEEDOR = "factura.proveedor";
+    public static final String PROVEEDOR_JDK = "JDK";
+
+    private static final String PROVEEDOR = System.getProperty(PROPIEDAD_PROVEEDOR, "BC");
+
+    public static String getProveedor() {
+        return PROVEEDOR;
+    }
+
+    public static Cipher cipher(String transformacion) throws GeneralSecurityException {
+        return esJDK() ? Cipher.getInstance(transformacion) : Cipher.getInstance(transformacion, PROVEEDOR);
+    }
+
+    public static Signature signature(String algoritmo) throws GeneralSecurityException {
+        return esJDK() ? Signature.getInstance(algoritmo) : Signature.getInstance(algoritmo, PROVEEDOR);
+    }
+
+    public static KeyFactory keyFactory(String algoritmo) throws GeneralSecurityException {
+        return esJDK() ? KeyFactory.getInstance(algoritmo) : KeyFactory.getInstance(algoritmo, PROVEEDOR);
+    }
+
+    public static KeyGenerator keyGenerator(String algoritmo) throws GeneralSecurityException {
+        return esJDK() ? KeyGenerator.getInstance(algoritmo) : KeyGenerator.getInstance(algoritmo, PROVEEDOR);
+    }
+
+    public static KeyPairGenerator keyPairGenerator(String algoritmo) throws GeneralSecurityException {
+        return esJDK() ? KeyPairGenerator.getInstance(algoritmo) : KeyPairGenerator.getInstance(algoritmo, PROVEEDOR);
+    }
+
+    /*
+    Bouncy Castle se registra al final de la lista de proveedores, así que sin
+    indicar nombre se obtiene la implementación del JDK.
+    */
+    private static boolean esJDK() {
+        return PROVEEDOR.equals(PROVEEDOR_JDK);
+    }
+}
@@ -1,6 +1,27 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.security.*;
 import java.security.spec.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import javax.crypto.*;
 import javax.crypto.spec.*;
 
@@ -9,15 +30,75 @@ import org.bouncycastle.jce.provider.BouncyCastleProvider;
 public class DesempaquetarFactura {
 
     /*
-    Verifica firma de la Autoridad
+    Verifica firma de la Autoridad (directa, o de la raíz Merkle si se selló por lotes)
     Obtiene sellado
     Verifica firma de la Empresa
     Descifra clave AES con clave privada de Hacienda
     Descifra factura con clave AES
     Guarda factura en claro y muestra resultado
+
+    La factura cifrada se lee una sola vez: su resumen SHA-256 se compara con el
+    MANIFIESTO que firmaron la Empresa y la Autoridad (ver Manifiesto), que se
+    verifican mientras tanto, y se descifra a un fichero temporal mientras se
+    lee, con la clave AES descifrada en paralelo. En los paquetes sin manifiesto
+    el resumen sirve para las dos firmas (ver Firmas). La factura solo pasa a
+    su nombre definitivo si todas las comprobaciones son correctas.
+
+    Los paquetes empaquetados con sesión (ver SesionClaves) llevan la clave AES
+    envuelta con la clave de la sesión: se busca el paquete de sesión en el
+    directorio del paquete y su clave se descifra con RSA una sola vez por
+    proceso.
+
+    Con -Dfactura.cache=<memoria>[:<segundos>] las claves AES descifradas se
+    guardan en memoria (ver CacheClaves): al volver a abrir un paquete en el
+    mismo proceso (modo lote, o desde otra aplicación) no se repite ninguna
+    operación de clave privada.
+
+    Modo lote (--lote): verifica y descifra todos los paquetes de un directorio
+    (o de un ArchivoPaquetes, leyendo sus segmentos en orden) en un pool
+    work-stealing y escribe un informe JSON (informe.json) con el resultado de
+    cada paquete, el rendimiento y los percentiles de latencia.
+
+    Modo rango (--rango): con la suite AES_128_GCM_SEGMENTADO guarda solo los
+    bytes [desde, desde + longitud) de la factura. Las firmas cubren toda la
+    factura cifrada, así que se sigue resumiendo entera, pero solo se descifran
+    los segmentos del rango (ver CifradoSegmentado).
+
+    Modo sello (--sello): en los paquetes con manifiesto comprueba el sello de
+    tiempo y las firmas sin leer la factura cifrada ni necesitar la clave
+    privada de Hacienda.
      */
 
     public static void main(String[] args) throws Exception {
+        try {
+            CacheClaves.configurada(); // comprobar la configuración antes de empezar
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        }
+        if (args.length > 0 && args[0].equals("--lote")) {
+            desempaquetarLote(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--sello")) {
+            comprobarSello(args);
+            return;
+        }
+        long desde = 0;
+        long longitud = FACTURA_COMPLETA;
+        if (args.length > 0 && args[0].equals("--rango")) {
+            if (args.length != 8) {
+                mensajeAyuda();
+                System.exit(1);
+            }
+            desde = Long.parseLong(args[1]);
+            longitud = Long.parseLong(args[2]);
+            if (desde < 0 || longitud < 0) {
+                System.err.println("El rango debe ser <desde> <longitud> con valores no negativos");
+                System.exit(1);
+            }
+            args = Arrays.copyOfRange(args, 3, args.length);
+        }
         if (args.length != 5) {
             mensajeAyuda();
             System.exit(1);
@@ -31,78 +112,909 @@ public class DesempaquetarFactura {
 
         Security.addProvider(new BouncyCastleProvider());
 
-        // Cargar el paquete sellado desde disco
-        Paquete paquete = new Paquete(nombrePaquete);
+        // Cargar las claves criptográficas necesarias
+        // Las claves públicas pueden ser ficheros o directorios de claves donde se buscan por el identificador del paquete
+        DirectorioClaves clavesEmpresa = DirectorioClaves.abrir(ficheroClavePublicaEmpresa); // para verificar firma de la Empresa
+        DirectorioClaves clavesAutoridad = DirectorioClaves.abrir(ficheroClavePublicaAutoridad); // para verificar firma de la Autoridad
+        PrivateKey clavePrivadaHacienda = cargarClavePrivada(ficheroClavePrivadaHacienda); // para descifrar la clave AES
+
+        try {
+            String timestampStr = desempaquetar(nombrePaquete, Paths.get(facturaJson), clavePrivadaHacienda, clavesEmpresa, clavesAutoridad, desde, longitud);
+            System.out.println("Sello de Tiempo (Timestamp): " + timestampStr);
+        } catch (ErrorVerificacion ex) {
+            if (ex.getSelloTiempo() != null) {
+                System.out.println("Sello de Tiempo (Timestamp): " + ex.getSelloTiempo());
+            }
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        }
+
+        System.out.println("ÉXITO: Descifrado completo. Factura original guardada en: " + facturaJson);
+    }
 
-        // Recuperar todos los bloques necesarios del paquete
-        byte[] facturaCifrada = paquete.getContenidoBloque("FACTURA_CIFRADA");
-        byte[] claveCifrada = paquete.getContenidoBloque("CLAVE_CIFRADA");
-        byte[] firmaEmpresa = paquete.getContenidoBloque("FIRMA_EMPRESA");
-        byte[] selloTiempo = paquete.getContenidoBloque("SELLO_TIEMPO");
-        byte[] firmaAutoridad = paquete.getContenidoBloque("FIRMA_AUTORIDAD");
-        byte[] iv = paquete.getContenidoBloque("VECTOR_INICIALIZACION");
+    /*
+    Verifica un paquete sellado y guarda la factura descifrada en facturaJson.
+    Devuelve el sello de tiempo verificado. Cualquier comprobación fallida se
+    notifica con ErrorVerificacion (nunca termina el proceso) y en ese caso no
+    queda fichero de salida.
+    */
+    public static String desempaquetar(String nombrePaquete, Path facturaJson, PrivateKey clavePrivadaHacienda,
+                                       DirectorioClaves clavesEmpresa, DirectorioClaves clavesAutoridad) throws ErrorVerificacion, GeneralSecurityException {
+        return desempaquetar(nombrePaquete, facturaJson, clavePrivadaHacienda, clavesEmpresa, clavesAutoridad, 0, FACTURA_COMPLETA);
+    }
+
+    /*
+    Como desempaquetar(), pero guarda solo los bytes [desde, desde + longitud)
+    de la factura (o desde hasta el final si la factura es más corta). Solo
+    para paquetes de la suite AES_128_GCM_SEGMENTADO.
+    */
+    public static String desempaquetarRango(String nombrePaquete, Path facturaJson, PrivateKey clavePrivadaHacienda, DirectorioClaves clavesEmpresa,
+                                            DirectorioClaves clavesAutoridad, long desde, long longitud) throws ErrorVerificacion, GeneralSecurityException {
+        if (desde < 0 || longitud < 0) {
+            throw new IllegalArgumentException("Rango no válido: " + desde + "+" + longitud);
+        }
+        return desempaquetar(nombrePaquete, facturaJson, clavePrivadaHacienda, clavesEmpresa, clavesAutoridad, desde, longitud);
+    }
+
+    private static final long FACTURA_COMPLETA = -1;
+    private static final String INFORME_LOTE = "informe.json";
+
+    private static String desempaquetar(String nombrePaquete, Path facturaJson, PrivateKey clavePrivadaHacienda, DirectorioClaves clavesEmpresa,
+                                        DirectorioClaves clavesAutoridad, long desde, long longitud) throws ErrorVerificacion, GeneralSecurityException {
+        // Abrir el paquete sellado mapeado en memoria: solo se decodifican los bloques que se piden,
+        // y la factura cifrada se procesa como stream directamente del fichero
+        Paquete paquete;
+        try {
+            paquete = Paquete.abrir(nombrePaquete);
+        } catch (IOException | UncheckedIOException ex) {
+            throw paqueteIlegible(ex);
+        }
+        Path directorioSesiones = Paths.get(nombrePaquete).toAbsolutePath().getParent(); // las sesiones van junto a los paquetes
+        return desempaquetar(paquete, facturaJson, clavePrivadaHacienda, clavesEmpresa, clavesAutoridad, directorioSesiones, desde, longitud);
+    }
+
+    /*
+    Como desempaquetar(nombrePaquete, ...), para un paquete ya abierto (p.ej.
+    con ArchivoPaquetes.buscar()). Las sesiones se buscan en el directorio
+    de trabajo (o en -Dfactura.sesiones).
+    */
+    public static String desempaquetar(Paquete paquete, Path facturaJson, PrivateKey clavePrivadaHacienda,
+                                       DirectorioClaves clavesEmpresa, DirectorioClaves clavesAutoridad) throws ErrorVerificacion, GeneralSecurityException {
+        return desempaquetar(paquete, facturaJson, clavePrivadaHacienda, clavesEmpresa, clavesAutoridad, Paths.get(""), 0, FACTURA_COMPLETA);
+    }
+
+    private static String desempaquetar(ArchivoPaquetes archivo, Path directorioArchivo, String identificador, Path facturaJson, PrivateKey clavePrivadaHacienda,
+                                        DirectorioClaves clavesEmpresa, DirectorioClaves clavesAutoridad) throws ErrorVerificacion, GeneralSecurityException {
+        Paquete paquete;
+        try {
+            paquete = archivo.buscar(identificador);
+        } catch (IOException | UncheckedIOException ex) {
+            throw paqueteIlegible(ex);
+        }
+        return desempaquetar(paquete, facturaJson, clavePrivadaHacienda, clavesEmpresa, clavesAutoridad, directorioArchivo, 0, FACTURA_COMPLETA);
+    }
+
+    private static ErrorVerificacion paqueteIlegible(Exception ex) {
+        return new ErrorVerificacion("PAQUETE_ILEGIBLE", "¡ERROR CRÍTICO! No se puede leer el paquete: " + ex.getMessage(), null);
+    }
+
+    private static String desempaquetar(Paquete paquete, Path facturaJson, PrivateKey clavePrivadaHacienda, DirectorioClaves clavesEmpresa, DirectorioClaves clavesAutoridad,
+                                        Path directorioSesiones, long desde, long longitud) throws ErrorVerificacion, GeneralSecurityException {
+        boolean porRango = (longitud != FACTURA_COMPLETA);
+        byte[] claveCifrada, firmaEmpresa, selloTiempo, firmaAutoridad, iv, pruebaMerkle, suiteCifrado, algoritmoEmpresa, algoritmoAutoridad, compresion, idSesion, manifiesto;
+        try {
+            // Recuperar todos los bloques necesarios del paquete
+            claveCifrada = paquete.getContenidoBloque("CLAVE_CIFRADA");
+            firmaEmpresa = paquete.getContenidoBloque("FIRMA_EMPRESA");
+            selloTiempo = paquete.getContenidoBloque("SELLO_TIEMPO");
+            firmaAutoridad = paquete.getContenidoBloque("FIRMA_AUTORIDAD");
+            iv = paquete.getContenidoBloque("VECTOR_INICIALIZACION");
+            pruebaMerkle = paquete.getContenidoBloque("PRUEBA_MERKLE"); // solo en paquetes sellados por lotes
+            suiteCifrado = paquete.getContenidoBloque(SuiteCifrado.BLOQUE); // no está en los paquetes anteriores (AES_128_CBC)
+            algoritmoEmpresa = paquete.getContenidoBloque(AlgoritmoFirma.BLOQUE_EMPRESA); // ni estos (RSA_SHA256)
+            algoritmoAutoridad = paquete.getContenidoBloque(AlgoritmoFirma.BLOQUE_AUTORIDAD);
+            compresion = paquete.getContenidoBloque(Compresion.BLOQUE); // solo si la factura va comprimida
+            idSesion = paquete.getContenidoBloque(SesionClaves.BLOQUE); // solo si se empaquetó con sesión
+            manifiesto = paquete.getContenidoBloque(Manifiesto.BLOQUE); // ni este (firmas de factura cifrada || clave cifrada)
+        } catch (UncheckedIOException ex) {
+            throw paqueteIlegible(ex);
+        }
 
         // Verificar que todos los bloques críticos existen
-        if (facturaCifrada == null || claveCifrada == null || firmaEmpresa == null || selloTiempo == null || firmaAutoridad == null) {
-            System.err.println("¡ERROR CRÍTICO! El paquete está incompleto. Faltan bloques de Empresa y/o Autoridad.");
-            System.exit(1);
+        if (claveCifrada == null || firmaEmpresa == null || selloTiempo == null || firmaAutoridad == null) {
+            throw new ErrorVerificacion("PAQUETE_INCOMPLETO", "¡ERROR CRÍTICO! El paquete está incompleto. Faltan bloques de Empresa y/o Autoridad.", null);
         }
         if (iv == null) {
-            System.err.println("¡ERROR CRÍTICO! Falta el vector de inicialización (VECTOR_INICIALIZACION) en el paquete.");
+            throw new ErrorVerificacion("PAQUETE_INCOMPLETO", "¡ERROR CRÍTICO! Falta el vector de inicialización (VECTOR_INICIALIZACION) en el paquete.", null);
+        }
+        if (manifiesto != null) {
+            comprobarCobertura(paquete, manifiesto); // antes de usar la suite, el IV, la sesión o la compresión para descifrar
+        }
+
+        PublicKey clavePublicaEmpresa = buscarClave(clavesEmpresa, paquete.getContenidoBloque("ID_CLAVE_EMPRESA"), "las claves de Empresa");
+        PublicKey clavePublicaAutoridad = buscarClave(clavesAutoridad, paquete.getContenidoBloque("ID_CLAVE_AUTORIDAD"), "las claves de la Autoridad");
+
+        // Paso 1: Descifrar la clave AES con la clave privada de Hacienda (o con la clave de su sesión), en paralelo con la lectura de la factura
+        CompletableFuture<SecretKey> preparacionClave = CompletableFuture.supplyAsync(() -> descifrarClave(clavePrivadaHacienda, claveCifrada, idSesion, directorioSesiones));
+
+        // Con manifiesto, lo firmado no depende de la factura cifrada: las dos firmas se verifican mientras se lee
+        boolean selladoPorLotes = (pruebaMerkle != null);
+        CompletableFuture<Boolean> autoridadValida = null;
+        CompletableFuture<Boolean> empresaValida = null;
+        if (manifiesto != null) {
+            byte[] resumenManifiesto = Manifiesto.resumen(manifiesto);
+            byte[] resumenSelladoManifiesto = resumenSellado(resumenManifiesto, pruebaMerkle, selloTiempo);
+            autoridadValida = CompletableFuture.supplyAsync(() -> verificarFirma(clavePublicaAutoridad, algoritmoAutoridad, resumenSelladoManifiesto, firmaAutoridad));
+            empresaValida = CompletableFuture.supplyAsync(() -> verificarFirma(clavePublicaEmpresa, algoritmoEmpresa, resumenManifiesto, firmaEmpresa));
+        }
+
+        // Paso 2: Una sola pasada por la factura cifrada: se resume (una vez para las dos firmas, o para el manifiesto) y se
+        // descifra a un fichero temporal en cuanto la clave AES está disponible (por rango, se descifra después)
+        // Si el paquete ya tiene calculado el resumen que pide el manifiesto, no se vuelve a resumir
+        MessageDigest resumenFactura = (manifiesto != null && paquete.tieneResumenBloque("FACTURA_CIFRADA")) ? null : Firmas.nuevoResumen();
+        MessageDigest hojaMerkle = (selladoPorLotes && manifiesto == null) ? ArbolMerkle.nuevaHoja() : null; // en el sellado por lotes la Autoridad firmó la raíz del árbol
+        DescifradoEnCurso descifrado = null;
+        if (!porRango) {
+            descifrado = new DescifradoEnCurso(preparacionClave.thenApply(clave -> iniciarDescifrado(clave, iv, suiteCifrado)), compresion, crearTemporal(facturaJson));
+        }
+        if (resumenFactura != null || descifrado != null) {
+            try (InputStream facturaCifrada = paquete.abrirBloque("FACTURA_CIFRADA")) {
+                if (facturaCifrada == null) {
+                    throw new ErrorVerificacion("PAQUETE_INCOMPLETO", "¡ERROR CRÍTICO! El paquete está incompleto. Faltan bloques de Empresa y/o Autoridad.", null);
+                }
+                byte[] buffer = new byte[64 * 1024];
+                int leidos;
+                try (Metricas.Medicion resumen = Metricas.acumular(Metricas.Etapa.RESUMEN)) {
+                    while ((leidos = facturaCifrada.read(buffer)) != -1) {
+                        if (resumenFactura != null) {
+                            resumen.reanudar();
+                            resumenFactura.update(buffer, 0, leidos);
+                            if (hojaMerkle != null) {
+                                hojaMerkle.update(buffer, 0, leidos);
+                            }
+                            resumen.pausar(leidos);
+                        }
+                        if (descifrado != null) {
+                            descifrado.update(buffer, 0, leidos);
+                        }
+                    }
+                }
+            } catch (IOException | IllegalArgumentException ex) {
+                descartar(descifrado);
+                throw new ErrorVerificacion("PAQUETE_ILEGIBLE", "¡ERROR CRÍTICO! No se puede leer la factura cifrada: " + ex.getMessage(), null);
+            } catch (ErrorVerificacion ex) {
+                descartar(descifrado);
+                throw ex;
+            }
+        }
+        if (descifrado != null) {
+            descifrado.terminar();
+        }
+
+        // Paso 3: Resúmenes de lo firmado, a partir del resumen común de la factura cifrada
+        if (manifiesto != null) {
+            if (resumenFactura != null) {
+                paquete.guardarResumenBloque("FACTURA_CIFRADA", resumenFactura.digest()); // se compara con el manifiesto en el paso 5
+            }
+        } else {
+            resumenFactura.update(claveCifrada);
+            MessageDigest resumenAutoridad = Firmas.copiar(resumenFactura); // factura cifrada || clave cifrada || sello de tiempo
+            if (compresion != null) {
+                resumenFactura.update(compresion); // la Empresa firmó también la compresión (ver Compresion)
+            }
+            byte[] resumenEmpresa = resumenFactura.digest();
+            byte[] resumenSellado;
+            if (selladoPorLotes) {
+                // La Autoridad firmó raíz || sello de tiempo: se recalcula la raíz con la hoja del paquete y su prueba de inclusión
+                hojaMerkle.update(claveCifrada);
+                resumenSellado = resumenRaiz(hojaMerkle.digest(), pruebaMerkle, selloTiempo);
+            } else {
+                resumenAutoridad.update(selloTiempo);
+                resumenSellado = resumenAutoridad.digest();
+            }
+
+            // Paso 4: Verificar a la vez las firmas de la Autoridad (integridad del sello de tiempo) y de la Empresa
+            autoridadValida = CompletableFuture.supplyAsync(() -> verificarFirma(clavePublicaAutoridad, algoritmoAutoridad, resumenSellado, firmaAutoridad));
+            empresaValida = CompletableFuture.completedFuture(verificarFirma(clavePublicaEmpresa, algoritmoEmpresa, resumenEmpresa, firmaEmpresa));
+        }
+        if (!autoridadValida.join()) {
+            descartar(descifrado);
+            throw new ErrorVerificacion("FIRMA_AUTORIDAD", "Firma de la Autoridad: ¡FALLIDA! El Sello de Tiempo o los datos originales fueron alterados.", null);
+        }
+
+        // Paso 5: Obtener el sello de tiempo
+        String timestampStr = new String(selloTiempo, StandardCharsets.UTF_8); // convertir el timestamp de bytes a String
+
+        if (!empresaValida.join()) {
+            descartar(descifrado);
+            throw new ErrorVerificacion("FIRMA_EMPRESA", "Firma de la Empresa: ¡FALLIDA! El contenido de la Empresa fue alterado o la clave pública es incorrecta.", timestampStr);
+        }
+        if (manifiesto != null) {
+            try {
+                comprobarManifiesto(paquete, manifiesto, true, timestampStr);
+            } catch (ErrorVerificacion ex) {
+                descartar(descifrado);
+                throw ex;
+            }
+        }
+
+        // Paso 6: Con todo verificado, la factura descifrada pasa del temporal a su nombre definitivo
+        if (porRango) {
+            descifrarRango(paquete, preparacionClave, iv, suiteCifrado, compresion, idSesion, desde, longitud, facturaJson, timestampStr);
+            return timestampStr;
+        }
+        if (descifrado.getError() != null) {
+            descifrado.descartar();
+            String motivo = descifrado.esErrorDeClave() ? motivoErrorClave(idSesion) : "";
+            throw new ErrorVerificacion("DESCIFRADO", "Descifrado: ¡FALLIDO! " + motivo + descifrado.getError().getMessage(), timestampStr);
+        }
+        try {
+            moverSalida(descifrado.getTemporal(), facturaJson);
+        } catch (IOException ex) {
+            descifrado.descartar();
+            throw new ErrorVerificacion("DESCIFRADO", "Descifrado: ¡FALLIDO! No se puede guardar la factura: " + ex.getMessage(), timestampStr);
+        }
+
+        return timestampStr;
+    }
+
+    /*
+    Comprueba solo el sello de tiempo de un paquete con manifiesto: las firmas
+    de la Autoridad y de la Empresa y los bloques del manifiesto salvo
+    FACTURA_CIFRADA, que no se lee. No necesita la clave privada de Hacienda,
+    así que sirve también a terceros. Devuelve el sello de tiempo verificado.
+    */
+    public static String verificarSello(Paquete paquete, DirectorioClaves clavesEmpresa, DirectorioClaves clavesAutoridad) throws ErrorVerificacion {
+        byte[] firmaEmpresa, selloTiempo, firmaAutoridad, pruebaMerkle, algoritmoEmpresa, algoritmoAutoridad, manifiesto;
+        try {
+            firmaEmpresa = paquete.getContenidoBloque("FIRMA_EMPRESA");
+            selloTiempo = paquete.getContenidoBloque("SELLO_TIEMPO");
+            firmaAutoridad = paquete.getContenidoBloque("FIRMA_AUTORIDAD");
+            pruebaMerkle = paquete.getContenidoBloque("PRUEBA_MERKLE");
+            algoritmoEmpresa = paquete.getContenidoBloque(AlgoritmoFirma.BLOQUE_EMPRESA);
+            algoritmoAutoridad = paquete.getContenidoBloque(AlgoritmoFirma.BLOQUE_AUTORIDAD);
+            manifiesto = paquete.getContenidoBloque(Manifiesto.BLOQUE);
+        } catch (UncheckedIOException ex) {
+            throw paqueteIlegible(ex);
+        }
+        if (firmaEmpresa == null || selloTiempo == null || firmaAutoridad == null) {
+            throw new ErrorVerificacion("PAQUETE_INCOMPLETO", "¡ERROR CRÍTICO! El paquete está incompleto. Faltan bloques de Empresa y/o Autoridad.", null);
+        }
+        if (manifiesto == null) {
+            throw new ErrorVerificacion("PAQUETE_INCOMPLETO", "¡ERROR CRÍTICO! El paquete no tiene " + Manifiesto.BLOQUE
+                    + ": su sello solo se puede comprobar verificando la factura entera.", null);
+        }
+        PublicKey clavePublicaEmpresa = buscarClave(clavesEmpresa, paquete.getContenidoBloque("ID_CLAVE_EMPRESA"), "las claves de Empresa");
+        PublicKey clavePublicaAutoridad = buscarClave(clavesAutoridad, paquete.getContenidoBloque("ID_CLAVE_AUTORIDAD"), "las claves de la Autoridad");
+
+        byte[] resumenManifiesto = Manifiesto.resumen(manifiesto);
+        byte[] resumenSelladoManifiesto = resumenSellado(resumenManifiesto, pruebaMerkle, selloTiempo);
+        CompletableFuture<Boolean> autoridadValida = CompletableFuture.supplyAsync(() -> verificarFirma(clavePublicaAutoridad, algoritmoAutoridad, resumenSelladoManifiesto, firmaAutoridad));
+        boolean empresaValida = verificarFirma(clavePublicaEmpresa, algoritmoEmpresa, resumenManifiesto, firmaEmpresa);
+        if (!autoridadValida.join()) {
+            throw new ErrorVerificacion("FIRMA_AUTORIDAD", "Firma de la Autoridad: ¡FALLIDA! El Sello de Tiempo o el manifiesto fueron alterados.", null);
+        }
+        String timestampStr = new String(selloTiempo, StandardCharsets.UTF_8);
+        if (!empresaValida) {
+            throw new ErrorVerificacion("FIRMA_EMPRESA", "Firma de la Empresa: ¡FALLIDA! El manifiesto fue alterado o la clave pública es incorrecta.", timestampStr);
+        }
+        comprobarManifiesto(paquete, manifiesto, false, timestampStr);
+        return timestampStr;
+    }
+
+    private static PublicKey buscarClave(DirectorioClaves claves, byte[] idClave, String descripcion) throws ErrorVerificacion {
+        try {
+            return claves.buscarObligatoria(idClave, descripcion);
+        } catch (GeneralSecurityException | IOException ex) {
+            throw new ErrorVerificacion("CLAVE_DESCONOCIDA", "¡ERROR CRÍTICO! " + ex.getMessage(), null);
+        }
+    }
+
+    /*
+    Resumen que firmó la Autoridad en un paquete con manifiesto: resumen del
+    manifiesto || sello de tiempo o, si se selló por lotes, raíz del árbol de
+    Merkle (con el manifiesto como hoja) || sello de tiempo.
+    */
+    private static byte[] resumenSellado(byte[] resumenManifiesto, byte[] pruebaMerkle, byte[] selloTiempo) {
+        if (pruebaMerkle == null) {
+            return Manifiesto.resumenSello(resumenManifiesto, selloTiempo);
+        }
+        return resumenRaiz(ArbolMerkle.hoja(resumenManifiesto), pruebaMerkle, selloTiempo);
+    }
+
+    /*
+    Raíz del árbol de Merkle recalculada con la hoja del paquete y su prueba de inclusión || sello de tiempo.
+    */
+    private static byte[] resumenRaiz(byte[] hoja, byte[] pruebaMerkle, byte[] selloTiempo) {
+        byte[] raiz;
+        try {
+            raiz = ArbolMerkle.raizDesdePrueba(hoja, pruebaMerkle);
+        } catch (IllegalArgumentException ex) {
+            raiz = new byte[0]; // prueba mal formada: la firma no puede verificarse
+        }
+        MessageDigest resumen = Firmas.nuevoResumen();
+        resumen.update(raiz);
+        resumen.update(selloTiempo);
+        return resumen.digest();
+    }
+
+    /*
+    Rechaza el paquete si trae un bloque de Manifiesto.INTERPRETADOS que el
+    manifiesto no cubre. Su contenido se compara después con el manifiesto,
+    ya verificadas las firmas (comprobarManifiesto).
+    */
+    private static void comprobarCobertura(Paquete paquete, byte[] contenido) throws ErrorVerificacion {
+        String sinCubrir;
+        try {
+            sinCubrir = Manifiesto.leer(contenido).sinCubrir(paquete);
+        } catch (IllegalArgumentException ex) {
+            throw new ErrorVerificacion("FIRMA_EMPRESA", "Firma de la Empresa: ¡FALLIDA! El manifiesto firmado no es válido: " + ex.getMessage(), null);
+        }
+        if (sinCubrir != null) {
+            throw new ErrorVerificacion("FIRMA_EMPRESA", "Firma de la Empresa: ¡FALLIDA! El bloque " + sinCubrir
+                    + " no está en el manifiesto firmado: el contenido de la Empresa fue alterado.", null);
+        }
+    }
+
+    /*
+    Comprueba los bloques de la Empresa contra el manifiesto firmado (sin
+    FACTURA_CIFRADA si conFactura es false). Los que el paquete ya tiene
+    resumidos, como la factura cifrada tras leerla, no se vuelven a leer.
+    */
+    private static void comprobarManifiesto(Paquete paquete, byte[] contenido, boolean conFactura, String timestampStr) throws ErrorVerificacion {
+        String alterado;
+        try {
+            Manifiesto manifiesto = Manifiesto.leer(contenido);
+            List<String> bloques = new ArrayList<>(manifiesto.getBloques());
+            if (!conFactura) {
+                bloques.remove("FACTURA_CIFRADA");
+            }
+            alterado = manifiesto.comprobar(paquete, bloques);
+        } catch (IllegalArgumentException ex) {
+            throw new ErrorVerificacion("FIRMA_EMPRESA", "Firma de la Empresa: ¡FALLIDA! El manifiesto firmado no es válido: " + ex.getMessage(), timestampStr);
+        } catch (UncheckedIOException ex) {
+            throw paqueteIlegible(ex);
+        }
+        if (alterado != null) {
+            throw new ErrorVerificacion("FIRMA_EMPRESA", "Firma de la Empresa: ¡FALLIDA! El bloque " + alterado
+                    + " falta, no coincide o no está en el manifiesto firmado: el contenido de la Empresa fue alterado.", timestampStr);
+        }
+    }
+
+    /*
+    Descifra la clave AES con la clave privada de Hacienda usando RSA, o la
+    desenvuelve con la clave de su sesión si el paquete es de una sesión. Si
+    hay cache de claves y ya la tiene, no se descifra nada. Se ejecuta en otro
+    hilo.
+    */
+    private static SecretKey descifrarClave(PrivateKey clavePrivadaHacienda, byte[] claveCifrada, byte[] idSesion, Path directorioSesiones) {
+        CacheClaves cache = CacheClaves.configurada();
+        try {
+            if (cache != null) {
+                return cache.obtener(claveCifrada, () -> descifrarClaveSinCache(clavePrivadaHacienda, claveCifrada, idSesion, directorioSesiones));
+            }
+            return descifrarClaveSinCache(clavePrivadaHacienda, claveCifrada, idSesion, directorioSesiones);
+        } catch (GeneralSecurityException ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    @SuppressWarnings("try") // la Medicion solo mide el bloque, no se usa dentro
+    private static SecretKey descifrarClaveSinCache(PrivateKey clavePrivadaHacienda, byte[] claveCifrada, byte[] idSesion,
+                                                    Path directorioSesiones) throws GeneralSecurityException {
+        try (Metricas.Medicion medicion = Metricas.medir(Metricas.Etapa.DESCIFRAR_CLAVE)) {
+            if (idSesion != null) {
+                return SesionClaves.desenvolver(idSesion, claveCifrada, clavePrivadaHacienda, directorioSesiones);
+            }
+            Cipher descifradorRSA = Criptografia.cipher("RSA/ECB/PKCS1Padding"); // inicializar descifrador RSA, PKCS1 es estándar para operaciones RSA
+            descifradorRSA.init(Cipher.DECRYPT_MODE, clavePrivadaHacienda); // modo descifrado con la clave privada de Hacienda
+            byte[] claveAESDescifrada = descifradorRSA.doFinal(claveCifrada); // descifrar la clave AES
+            SecretKey claveAES = new SecretKeySpec(claveAESDescifrada, "AES"); // construir objeto SecretKey a partir de los bytes descifrados
+            Arrays.fill(claveAESDescifrada, (byte) 0); // SecretKeySpec se queda con una copia
+            return claveAES;
+        }
+    }
+
+    /*
+    Prepara el descifrado AES de la suite del paquete con la clave ya descifrada y el IV guardado.
+    */
+    private static SuiteCifrado.Proceso iniciarDescifrado(SecretKey claveSimetrica, byte[] iv, byte[] suiteCifrado) {
+        try {
+            SuiteCifrado suite = SuiteCifrado.deBloque(suiteCifrado);
+            Cipher descifradorAES = suite.esSegmentada() ? null : Criptografia.cipher(suite.getTransformacion()); // inicializar descifrador AES (CBC o GCM)
+            return suite.iniciar(descifradorAES, Cipher.DECRYPT_MODE, claveSimetrica, iv); // modo descifrado con la clave simétrica y el IV
+        } catch (GeneralSecurityException ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    /*
+    Descifra solo el rango pedido de la factura, ya verificadas las firmas.
+    */
+    private static void descifrarRango(Paquete paquete, CompletableFuture<SecretKey> preparacionClave, byte[] iv, byte[] suiteCifrado, byte[] compresion, byte[] idSesion,
+                                       long desde, long longitud, Path facturaJson, String timestampStr) throws ErrorVerificacion {
+        SecretKey claveSimetrica;
+        try {
+            claveSimetrica = preparacionClave.join();
+        } catch (CompletionException ex) {
+            throw new ErrorVerificacion("DESCIFRADO", "Descifrado: ¡FALLIDO! " + motivoErrorClave(idSesion) + ex.getCause().getMessage(), timestampStr);
+        }
+        SuiteCifrado suite;
+        try {
+            suite = SuiteCifrado.deBloque(suiteCifrado);
+            if (!suite.esSegmentada()) {
+                throw new ErrorVerificacion("DESCIFRADO", "Descifrado: ¡FALLIDO! La suite " + suite + " no permite descifrar un rango, solo "
+                        + SuiteCifrado.AES_128_GCM_SEGMENTADO, timestampStr);
+            }
+            if (Compresion.deBloque(compresion) != Compresion.NINGUNA) {
+                throw new ErrorVerificacion("DESCIFRADO", "Descifrado: ¡FALLIDO! La factura va comprimida y no se puede descifrar solo un rango", timestampStr);
+            }
+        } catch (GeneralSecurityException ex) {
+            throw new ErrorVerificacion("DESCIFRADO", "Descifrado: ¡FALLIDO! " + ex.getMessage(), timestampStr);
+        }
+
+        // El rango se escribe en el temporal según se descifra, sin tenerlo entero en memoria
+        Path temporal = crearTemporal(facturaJson);
+        boolean guardada = false;
+        try {
+            try (InputStream facturaCifrada = paquete.abrirBloque("FACTURA_CIFRADA");
+                 OutputStream salida = new BufferedOutputStream(Files.newOutputStream(temporal), 64 * 1024);
+                 Metricas.Medicion medicion = Metricas.medir(Metricas.Etapa.DESCIFRAR)) {
+                medicion.anadirBytes(CifradoSegmentado.descifrarRango(claveSimetrica, iv, facturaCifrada, desde, longitud, salida));
+            } catch (IOException | UncheckedIOException | GeneralSecurityException ex) {
+                throw new ErrorVerificacion("DESCIFRADO", "Descifrado: ¡FALLIDO! " + ex.getMessage(), timestampStr);
+            }
+            try {
+                moverSalida(temporal, facturaJson);
+            } catch (IOException ex) {
+                throw new ErrorVerificacion("DESCIFRADO", "Descifrado: ¡FALLIDO! No se puede guardar la factura: " + ex.getMessage(), timestampStr);
+            }
+            guardada = true;
+        } finally {
+            if (!guardada) {
+                borrarSalida(temporal);
+            }
+        }
+    }
+
+    private static String motivoErrorClave(byte[] idSesion) {
+        return (idSesion != null) ? "No se puede obtener la clave de la sesión: " : "La clave no corresponde a la clave privada de Hacienda: ";
+    }
+
+    private static Path crearTemporal(Path facturaJson) throws ErrorVerificacion {
+        try {
+            return Files.createTempFile(facturaJson.toAbsolutePath().getParent(), facturaJson.getFileName().toString(), ".parcial");
+        } catch (IOException ex) {
+            throw new ErrorVerificacion("DESCIFRADO", "Descifrado: ¡FALLIDO! No se puede crear el fichero de salida: " + ex.getMessage(), null);
+        }
+    }
+
+    /*
+    Una firma que no se puede comprobar (p.ej. de un algoritmo distinto al de
+    la clave o desconocido) cuenta como firma no válida.
+    */
+    private static boolean verificarFirma(PublicKey clavePublica, byte[] algoritmoDeclarado, byte[] resumen, byte[] firma) {
+        try {
+            return Firmas.verificarResumen(clavePublica, algoritmoDeclarado, resumen, firma);
+        } catch (GeneralSecurityException ex) {
+            return false;
+        }
+    }
+
+    private static void moverSalida(Path temporal, Path facturaJson) throws IOException {
+        try {
+            Files.move(temporal, facturaJson, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temporal, facturaJson, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /*
+    Descifrado AES de la factura mientras se lee para verificarla. Los trozos
+    que llegan antes de que esté lista la clave se guardan y se descifran en
+    cuanto lo está; si se acumulan demasiados se espera a la clave. Los errores
+    no se lanzan: se guardan y se informan después de verificar las firmas,
+    que tienen prioridad.
+    */
+    private static class DescifradoEnCurso {
+
+        private static final int MAXIMO_PENDIENTE = 4 * 1024 * 1024;
+
+        private final CompletableFuture<SuiteCifrado.Proceso> preparacion;
+        private final byte[] compresion;
+        private final Path temporal;
+        private final List<byte[]> pendientes = new ArrayList<>();
+        private int bytesPendientes = 0;
+        private OutputStream salida;
+        private SuiteCifrado.Proceso descifrador;
+        private Throwable error;
+        private boolean errorDeClave = false;
+        private final Metricas.Medicion medicion = Metricas.acumular(Metricas.Etapa.DESCIFRAR);
+
+        DescifradoEnCurso(CompletableFuture<SuiteCifrado.Proceso> preparacion, byte[] compresion, Path temporal) {
+            this.preparacion = preparacion;
+            this.compresion = compresion;
+            this.temporal = temporal;
+        }
+
+        void update(byte[] datos, int inicio, int longitud) {
+            if (this.error != null) {
+                return;
+            }
+            if (this.descifrador == null && !this.preparacion.isDone() && this.bytesPendientes + longitud <= MAXIMO_PENDIENTE) {
+                this.pendientes.add(Arrays.copyOfRange(datos, inicio, inicio + longitud));
+                this.bytesPendientes += longitud;
+                return;
+            }
+            if (this.preparar()) {
+                this.descifrar(datos, inicio, longitud);
+            }
+        }
+
+        void terminar() {
+            if (this.error == null && this.preparar()) {
+                try {
+                    this.medicion.reanudar();
+                    byte[] ultimoTrozo = this.descifrador.doFinal(); // último bloque, quitando el padding (en GCM comprueba la etiqueta)
+                    this.medicion.pausar(0);
+                    this.escribir(ultimoTrozo);
+                } catch (GeneralSecurityException ex) {
+                    this.error = ex;
+                }
+            }
+            this.cerrar();
+        }
+
+        private boolean preparar() {
+            if (this.descifrador != null) {
+                return true;
+            }
+            try {
+                this.descifrador = this.preparacion.join();
+                // Si la factura va comprimida, lo descifrado se descomprime al escribirlo
+                this.salida = Compresion.deBloque(this.compresion).descomprimir(new BufferedOutputStream(Files.newOutputStream(this.temporal)));
+            } catch (CompletionException ex) {
+                this.error = ex.getCause();
+                this.errorDeClave = true;
+                return false;
+            } catch (NoSuchAlgorithmException | IOException ex) {
+                this.error = ex;
+                return false;
+            }
+            for (byte[] trozo : this.pendientes) {
+                this.descifrar(trozo, 0, trozo.length);
+            }
+            this.pendientes.clear();
+            this.bytesPendientes = 0;
+            return true;
+        }
+
+        private void descifrar(byte[] datos, int inicio, int longitud) {
+            if (this.error == null) {
+                try {
+                    this.medicion.reanudar();
+                    byte[] trozoClaro = this.descifrador.update(datos, inicio, longitud);
+                    this.medicion.pausar(longitud);
+                    this.escribir(trozoClaro);
+                } catch (GeneralSecurityException ex) {
+                    this.error = ex; // en la suite segmentada, un segmento alterado
+                }
+            }
+        }
+
+        private void escribir(byte[] trozoClaro) {
+            if (trozoClaro != null && this.error == null) {
+                try {
+                    this.salida.write(trozoClaro);
+                } catch (IOException ex) {
+                    this.error = ex;
+                }
+            }
+        }
+
+        private void cerrar() {
+            this.medicion.close();
+            if (this.salida != null) {
+                try {
+                    this.salida.close();
+                } catch (IOException ex) {
+                    if (this.error == null) {
+                        this.error = ex;
+                    }
+                }
+            }
+        }
+
+        Throwable getError() {
+            return this.error;
+        }
+
+        Path getTemporal() {
+            return this.temporal;
+        }
+
+        boolean esErrorDeClave() {
+            return this.errorDeClave;
+        }
+
+        void descartar() {
+            this.cerrar();
+            borrarSalida(this.temporal);
+        }
+    }
+
+    private static void descartar(DescifradoEnCurso descifrado) {
+        if (descifrado != null) {
+            descifrado.descartar();
+        }
+    }
+
+    private static void borrarSalida(Path facturaJson) {
+        try {
+            Files.deleteIfExists(facturaJson);
+        } catch (IOException ex) {
+            // se informa del error original
+        }
+    }
+
+    /*
+    java DesempaquetarFactura --sello <paquete_sellado> <clave_publica_empresa|directorio_claves> <clave_publica_autoridad|directorio_claves>
+    */
+    private static void comprobarSello(String[] args) throws Exception {
+        if (args.length != 4) {
+            mensajeAyuda();
             System.exit(1);
         }
 
-        // Cargar las claves criptográficas necesarias
-        PublicKey clavePublicaEmpresa = cargarClavePublica(ficheroClavePublicaEmpresa); // para verificar firma de la Empresa
-        PublicKey clavePublicaAutoridad = cargarClavePublica(ficheroClavePublicaAutoridad); // para verificar firma de la Autoridad
-        PrivateKey clavePrivadaHacienda = cargarClavePrivada(ficheroClavePrivadaHacienda); // para descifrar la clave AES
+        Security.addProvider(new BouncyCastleProvider());
+        DirectorioClaves clavesEmpresa = DirectorioClaves.abrir(args[2]);
+        DirectorioClaves clavesAutoridad = DirectorioClaves.abrir(args[3]);
 
-        // Paso 1: Verificar la firma de la Autoridad de Sellado (integridad del sello de tiempo)
-        byte[] mensajeAFirmarAutoridad = concatenarBytes(facturaCifrada, claveCifrada, selloTiempo); // concatenar todos los datos que la Autoridad firmó
-        Signature verificadorAutoridad = Signature.getInstance("SHA256withRSA", "BC"); // inicializar verificador con SHA-256 y RSA
-        verificadorAutoridad.initVerify(clavePublicaAutoridad); // inicializar la verificación con la clave pública de la Autoridad
-        verificadorAutoridad.update(mensajeAFirmarAutoridad); // actualizar el verificador con el mensaje original
-        if (!verificadorAutoridad.verify(firmaAutoridad)) {
-            System.err.println("Firma de la Autoridad: ¡FALLIDA! El Sello de Tiempo o los datos originales fueron alterados.");
+        try {
+            Paquete paquete;
+            try {
+                paquete = Paquete.abrir(args[1]);
+            } catch (IOException | UncheckedIOException ex) {
+                throw paqueteIlegible(ex);
+            }
+            System.out.println("Sello de Tiempo (Timestamp): " + verificarSello(paquete, clavesEmpresa, clavesAutoridad));
+        } catch (ErrorVerificacion ex) {
+            if (ex.getSelloTiempo() != null) {
+                System.out.println("Sello de Tiempo (Timestamp): " + ex.getSelloTiempo());
+            }
+            System.err.println(ex.getMessage());
             System.exit(1);
         }
 
-        // Paso 2: Obtener el sello de tiempo
-        String timestampStr = new String(selloTiempo, "UTF-8"); // convertir el timestamp de bytes a String
-        System.out.println("Sello de Tiempo (Timestamp): " + timestampStr);
+        System.out.println("ÉXITO: Sello de tiempo y firma de la Empresa verificados sin leer la factura cifrada (ver " + Manifiesto.BLOQUE + ")");
+    }
 
-        // Paso 3: Verificar la firma de la Empresa
-        byte[] mensajeFirmadoEmpresa = concatenarBytes(facturaCifrada, claveCifrada); // concatenar los datos que la Empresa firmó originalmente
-        Signature verificadorEmpresa = Signature.getInstance("SHA256withRSA", "BC"); // inicializar verificador con SHA-256 y RSA
-        verificadorEmpresa.initVerify(clavePublicaEmpresa); // inicializar la verificación con la clave pública de la Empresa
-        verificadorEmpresa.update(mensajeFirmadoEmpresa); // actualizar el verificador con el mensaje original
-        if (!verificadorEmpresa.verify(firmaEmpresa)) {
-            System.err.println("Firma de la Empresa: ¡FALLIDA! El contenido de la Empresa fue alterado o la clave pública es incorrecta.");
+    /*
+    java DesempaquetarFactura --lote <directorio_paquetes|archivo_paquetes> <directorio_salida> <clave_privada_hacienda>
+                              <clave_publica_empresa|directorio_claves> <clave_publica_autoridad|directorio_claves> [hilos]
+    Un paquete que no supera alguna comprobación queda marcado en el informe y
+    no detiene el resto del lote. Los paquetes de sesión (.sesion) del
+    directorio no son facturas: se leen cuando los pide algún paquete.
+    */
+    private static void desempaquetarLote(String[] args) throws Exception {
+        if (args.length != 6 && args.length != 7) {
+            mensajeAyuda();
             System.exit(1);
         }
 
-        // Paso 4: Descifrar la clave simétrica AES con la clave privada de Hacienda usando RSA
-        Cipher descifradorRSA = Cipher.getInstance("RSA/ECB/PKCS1Padding", "BC"); // inicializar descifrador RSA, PKCS1 es estándar para operaciones RSA
-        descifradorRSA.init(Cipher.DECRYPT_MODE, clavePrivadaHacienda); // modo descifrado con la clave privada de Hacienda
-        byte[] claveAESDescifrada = descifradorRSA.doFinal(claveCifrada); // descifrar la clave AES
-        SecretKey claveSimetrica = new SecretKeySpec(claveAESDescifrada, "AES"); // construir objeto SecretKey a partir de los bytes descifrados
+        Path directorioPaquetes = Paths.get(args[1]);
+        Path directorioSalida = Paths.get(args[2]);
+        int hilos = (args.length == 7) ? Integer.parseInt(args[6]) : Runtime.getRuntime().availableProcessors();
 
-        // Paso 5: Descifrar la factura con la clave simétrica AES usando modo CBC y el IV guardado
-        Cipher descifradorAES = Cipher.getInstance("AES/CBC/PKCS5Padding", "BC"); // inicializar descifrador AES en modo CBC
-        IvParameterSpec ivSpec = new IvParameterSpec(iv); // crear especificación del IV
-        descifradorAES.init(Cipher.DECRYPT_MODE, claveSimetrica, ivSpec); // modo descifrado con la clave simétrica y el IV
-        byte[] facturaDescifrada = descifradorAES.doFinal(facturaCifrada); // descifrar la factura y quitar el padding
-        String facturaClaro = new String(facturaDescifrada, "UTF-8"); // convertir los bytes descifrados a String UTF-8
+        Security.addProvider(new BouncyCastleProvider());
 
-        // Paso 6: Guardar la factura descifrada en el archivo de salida
-        Files.write(Paths.get(facturaJson), facturaClaro.getBytes("UTF-8"));
+        // Las claves se cargan una sola vez; los directorios de claves se indexan una vez y se comparten
+        PrivateKey clavePrivadaHacienda = cargarClavePrivada(args[3]);
+        DirectorioClaves clavesEmpresa = DirectorioClaves.abrir(args[4]);
+        DirectorioClaves clavesAutoridad = DirectorioClaves.abrir(args[5]);
 
-        System.out.println("ÉXITO: Descifrado completo. Factura original guardada en: " + facturaJson);
+        // Un archivo de paquetes se recorre en el orden de sus segmentos; un directorio, fichero a fichero.
+        // Verificar no modifica el archivo: se abre solo para lectura
+        ArchivoPaquetes archivo = ArchivoPaquetes.esArchivo(directorioPaquetes) ? ArchivoPaquetes.abrirLectura(directorioPaquetes) : null;
+        List<ResultadoLote> resultados = new ArrayList<>();
+        double segundos;
+        try {
+            List<String> paquetes;
+            if (archivo != null) {
+                paquetes = archivo.identificadores();
+            } else {
+                try (Stream<Path> ficheros = Files.list(directorioPaquetes)) {
+                    paquetes = ficheros.filter(Files::isRegularFile).filter(f -> !f.getFileName().toString().endsWith(SesionClaves.EXTENSION)).sorted().map(f -> f.getFileName().toString()).collect(Collectors.toList());
+                }
+            }
+            Map<String, Path> salidas = salidasLote(paquetes, archivo != null, directorioSalida);
+            if (salidas == null) {
+                System.exit(1);
+            }
+            Files.createDirectories(directorioSalida);
+
+            long inicio = System.nanoTime();
+            ExecutorService pool = Executors.newWorkStealingPool(hilos);
+            List<Future<ResultadoLote>> tareas = new ArrayList<>();
+            for (String paquete : paquetes) {
+                Path facturaJson = salidas.get(paquete);
+                tareas.add(pool.submit(() -> {
+                    long inicioPaquete = System.nanoTime();
+                    ResultadoLote resultado = new ResultadoLote(paquete);
+                    try {
+                        if (archivo != null) {
+                            resultado.selloTiempo = desempaquetar(archivo, directorioPaquetes, paquete, facturaJson, clavePrivadaHacienda, clavesEmpresa, clavesAutoridad);
+                        } else {
+                            resultado.selloTiempo = desempaquetar(directorioPaquetes.resolve(paquete).toString(), facturaJson, clavePrivadaHacienda, clavesEmpresa, clavesAutoridad);
+                        }
+                    } catch (ErrorVerificacion ex) {
+                        resultado.comprobacion = ex.getComprobacion();
+                        resultado.mensaje = ex.getMessage();
+                        resultado.selloTiempo = ex.getSelloTiempo();
+                    } catch (Exception ex) {
+                        resultado.comprobacion = "ERROR_INTERNO";
+                        resultado.mensaje = ex.toString();
+                    }
+                    resultado.nanos = System.nanoTime() - inicioPaquete;
+                    return resultado;
+                }));
+            }
+
+            try {
+                for (Future<ResultadoLote> tarea : tareas) {
+                    resultados.add(tarea.get()); // las tareas capturan sus propios errores
+                }
+            } finally {
+                pool.shutdown();
+            }
+            segundos = (System.nanoTime() - inicio) / 1e9;
+        } finally {
+            if (archivo != null) {
+                archivo.close();
+            }
+        }
+
+        Path informe = directorioSalida.resolve(INFORME_LOTE);
+        CacheClaves cache = CacheClaves.configurada();
+        escribirInforme(informe, resultados, segundos, hilos, cache);
+
+        long validos = resultados.stream().filter(ResultadoLote::esValido).count();
+        long fallidos = resultados.size() - validos;
+        for (ResultadoLote resultado : resultados) {
+            if (!resultado.esValido()) {
+                System.err.println(resultado.paquete + ": " + resultado.comprobacion + " - " + resultado.mensaje);
+            }
+        }
+        System.out.printf("Lote terminado: %d paquetes válidos, %d fallidos en %.3f s (%.1f paquetes/s, %d hilos). Informe en %s%n",
+                validos, fallidos, segundos, resultados.size() / segundos, hilos, informe);
+        if (cache != null) {
+            System.out.println(cache.comoTexto());
+        }
+        if (fallidos > 0) {
+            System.exit(1);
+        }
+    }
+
+    /*
+    Fichero de salida de cada paquete del lote: el nombre del paquete sin
+    extensión (el identificador en un archivo de paquetes) y .json. Si dos
+    paquetes darían el mismo (a.paquete y a.bin) o uno daría el del informe
+    (informe.paquete), lo indica y devuelve null: no se desempaqueta ninguno.
+    */
+    private static Map<String, Path> salidasLote(List<String> paquetes, boolean deArchivo, Path directorioSalida) {
+        Map<String, Path> salidas = new LinkedHashMap<>();
+        Map<String, String> origen = new HashMap<>();
+        origen.put(INFORME_LOTE, "el informe del lote");
+        for (String paquete : paquetes) {
+            String nombre = ((deArchivo) ? paquete : nombreSinExtension(Paths.get(paquete))) + ".json";
+            String anterior = origen.putIfAbsent(nombre, paquete);
+            if (anterior != null) {
+                System.err.println("El paquete " + paquete + " y " + anterior + " se guardarían en el mismo fichero " + nombre
+                        + ": no se ha desempaquetado ningún paquete");
+                return null;
+            }
+            salidas.put(paquete, directorioSalida.resolve(nombre));
+        }
+        return salidas;
+    }
+
+    private static void escribirInforme(Path informe, List<ResultadoLote> resultados, double segundos, int hilos, CacheClaves cache) throws IOException {
+        long[] latencias = resultados.stream().mapToLong(r -> r.nanos).sorted().toArray();
+        long validos = resultados.stream().filter(ResultadoLote::esValido).count();
+
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(informe, StandardCharsets.UTF_8))) {
+            out.println("{");
+            out.printf("  \"paquetes\": %d,%n", resultados.size());
+            out.printf("  \"validos\": %d,%n", validos);
+            out.printf("  \"fallidos\": %d,%n", resultados.size() - validos);
+            out.printf("  \"hilos\": %d,%n", hilos);
+            out.printf(Locale.ROOT, "  \"segundos\": %.3f,%n", segundos);
+            out.printf(Locale.ROOT, "  \"paquetes_por_segundo\": %.1f,%n", resultados.size() / segundos);
+            out.printf(Locale.ROOT, "  \"latencia_ms\": {\"p50\": %.3f, \"p90\": %.3f, \"p99\": %.3f, \"max\": %.3f},%n",
+                    percentil(latencias, 50) / 1e6, percentil(latencias, 90) / 1e6, percentil(latencias, 99) / 1e6, percentil(latencias, 100) / 1e6);
+            if (cache != null) {
+                out.printf("  \"cache_claves\": %s,%n", cache.comoJson());
+            }
+            out.println("  \"resultados\": [");
+            for (int i = 0; i < resultados.size(); i++) {
+                ResultadoLote r = resultados.get(i);
+                out.printf(Locale.ROOT, "    {\"paquete\": %s, \"estado\": \"%s\", \"comprobacion\": %s, \"sello\": %s, \"ms\": %.3f, \"mensaje\": %s}%s%n",
+                        Json.cadena(r.paquete), r.esValido() ? "VALIDO" : "FALLIDO", Json.cadena(r.comprobacion),
+                        Json.cadena(r.selloTiempo), r.nanos / 1e6, Json.cadena(r.mensaje), (i < resultados.size() - 1) ? "," : "");
+            }
+            out.println("  ]");
+            out.println("}");
+        }
+    }
+
+    /*
+    Percentil por el método del rango más cercano sobre latencias ya ordenadas.
+    */
+    private static long percentil(long[] ordenadas, int p) {
+        if (ordenadas.length == 0) {
+            return 0;
+        }
+        int rango = (int) Math.ceil(p / 100.0 * ordenadas.length);
+        return ordenadas[Math.max(0, Math.min(ordenadas.length - 1, rango - 1))];
+    }
+
+    private static String nombreSinExtension(Path fichero) {
+        String nombre = fichero.getFileName().toString();
+        int punto = nombre.lastIndexOf('.');
+        return (punto > 0) ? nombre.substring(0, punto) : nombre;
+    }
+
+    private static class ResultadoLote {
+        final String paquete;
+        String comprobacion; // null si el paquete es válido
+        String mensaje;
+        String selloTiempo;
+        long nanos;
+
+        ResultadoLote(String paquete) {
+            this.paquete = paquete;
+        }
+
+        boolean esValido() {
+            return this.comprobacion == null;
+        }
+    }
+
+    /*
+    Comprobación fallida al desempaquetar. El código de comprobación identifica
+    el paso que falló (PAQUETE_ILEGIBLE, PAQUETE_INCOMPLETO, CLAVE_DESCONOCIDA,
+    FIRMA_AUTORIDAD, FIRMA_EMPRESA, DESCIFRADO). Si la firma de la Autoridad ya
+    se había verificado se conserva el sello de tiempo.
+    */
+    public static class ErrorVerificacion extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String comprobacion;
+        private final String selloTiempo;
+
+        public ErrorVerificacion(String comprobacion, String mensaje, String selloTiempo) {
+            super(mensaje);
+            this.comprobacion = comprobacion;
+            this.selloTiempo = selloTiempo;
+        }
+
+        public String getComprobacion() {
+            return this.comprobacion;
+        }
+
+        public String getSelloTiempo() {
+            return this.selloTiempo;
+        }
     }
 
     public static void mensajeAyuda() {
         System.out.println("Desempaqueta y verifica una Factura Sellada.");
-        System.out.println("\tSintaxis: java DesempaquetarFactura <paquete_sellado> <fichero_json_salida> <clave_privada_hacienda> <clave_publica_empresa> <clave_publica_autoridad>");
+        System.out.println("\tSintaxis: java DesempaquetarFactura <paquete_sellado> <fichero_json_salida> <clave_privada_hacienda> <clave_publica_empresa|directorio_claves> <clave_publica_autoridad|directorio_claves>");
+        System.out.println("\t          java DesempaquetarFactura --rango <desde> <longitud> <paquete_sellado> <fichero_salida> <clave_privada_hacienda> <clave_publica_empresa|directorio_claves> <clave_publica_autoridad|directorio_claves>");
+        System.out.println("\t          java DesempaquetarFactura --sello <paquete_sellado> <clave_publica_empresa|directorio_claves> <clave_publica_autoridad|directorio_claves>");
+        System.out.println("\t          java DesempaquetarFactura --lote <directorio_paquetes|archivo_paquetes> <directorio_salida> <clave_privada_hacienda> <clave_publica_empresa|directorio_claves> <clave_publica_autoridad|directorio_claves> [hilos]");
+        System.out.println("\tOpciones: -Dfactura.cache=<memoria>[:<segundos>]  cache de claves AES descifradas, p.ej. 16M:600 (ver CacheClaves)");
         System.out.println();
     }
 
@@ -110,37 +1022,13 @@ public class DesempaquetarFactura {
     Carga una clave pública RSA desde un fichero X509.
     */
     public static PublicKey cargarClavePublica(String ficheroClave) throws Exception {
-        byte[] keyBytes = Files.readAllBytes(Paths.get(ficheroClave)); // Leer el contenido del archivo binario
-        X509EncodedKeySpec spec = new X509EncodedKeySpec(keyBytes);
-        KeyFactory kf = KeyFactory.getInstance("RSA", "BC");
-        return kf.generatePublic(spec);
+        return DirectorioClaves.cargarClavePublica(Paths.get(ficheroClave));
     }
 
     /*
     Carga una clave privada RSA desde un fichero PKCS8.
     */
     public static PrivateKey cargarClavePrivada(String ficheroClave) throws Exception {
-        byte[] keyBytes = Files.readAllBytes(Paths.get(ficheroClave)); // Leer el contenido del archivo binario
-        PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(keyBytes);
-        KeyFactory kf = KeyFactory.getInstance("RSA", "BC");
-        return kf.generatePrivate(spec);
-    }
-
-    /*
-    Concatena arrays de bytes para generar el mensaje a firmar/verificar.
-    */
-    private static byte[] concatenarBytes(byte[]... arrays) {
-        int totalLength = 0;
-        for (byte[] array : arrays) {
-            totalLength += array.length;
-        }
-
-        byte[] result = new byte[totalLength];
-        int offset = 0;
-        for (byte[] array : arrays) {
-            System.arraycopy(array, 0, result, offset, array.length);
-            offset += array.length;
-        }
-        return result;
+        return DirectorioClaves.cargarClavePrivada(Paths.get(ficheroClave));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,290 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.*;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.*;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import org.bouncycastle.jcajce.interfaces.EdDSAPrivateKey;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.math.ec.ECPoint;
+
+public class DirectorioClaves {
+
+    /*
+    Directorio de claves públicas indexado por identificador de clave.
+    El identificador es el SHA-256 del SubjectPublicKeyInfo (X.509), que es
+    justo el contenido de los ficheros .publica generados por GenerarClaves,
+    así que para indexar basta con leer y resumir cada fichero, sin parsear ASN.1.
+    Las claves ya parseadas se guardan en una cache LRU de tamaño limitado.
+    Un identificador que no está en el índice hace reindexar solo si el
+    directorio ha cambiado (su fecha de modificación) o si han pasado
+    INTERVALO_REINDEXAR desde la última vez (por si el sistema de ficheros
+    guarda las fechas con poca resolución): muchos paquetes de claves
+    desconocidas no hacen recorrer el directorio una vez por paquete.
+    Los paquetes llevan el identificador del firmante en los bloques
+    ID_CLAVE_EMPRESA e ID_CLAVE_AUTORIDAD.
+     */
+
+    public static final int CAPACIDAD_CACHE_POR_DEFECTO = 10000;
+    public static final long INTERVALO_REINDEXAR = 1_000_000_000L; // nanosegundos
+
+    // Directorios ya abiertos por cargarOBuscar(), por ruta
+    private static final Map<String, DirectorioClaves> ABIERTOS = new ConcurrentHashMap<>();
+
+    private final Path directorio;
+    private final PublicKey claveFija;
+    private final Map<String, Path> indice = new ConcurrentHashMap<>();
+    private final Map<String, PublicKey> cache;
+    private FileTime modificacionIndexada;
+    private long ultimaIndexacion;
+
+    public DirectorioClaves(Path directorio) throws IOException {
+        this(directorio, CAPACIDAD_CACHE_POR_DEFECTO);
+    }
+
+    public DirectorioClaves(Path directorio, int capacidadCache) throws IOException {
+        this.directorio = directorio;
+        this.claveFija = null;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PublicKey> masAntigua) {
+                return size() > capacidadCache;
+            }
+        };
+        this.indexar();
+    }
+
+    /*
+    "Directorio" de una sola clave: buscar() la devuelve siempre, traiga el
+    paquete identificador o no (compatible con paquetes sin ID_CLAVE_*).
+    */
+    private DirectorioClaves(PublicKey claveFija) {
+        this.directorio = null;
+        this.claveFija = claveFija;
+        this.cache = new LinkedHashMap<>();
+    }
+
+    /*
+    Abre la ruta de claves de un verificador: si es un directorio se indexa y
+    las claves se buscan por el identificador que trae el paquete; si es un
+    fichero se usa siempre esa clave.
+    */
+    public static DirectorioClaves abrir(String ruta) throws GeneralSecurityException, IOException {
+        Path camino = Paths.get(ruta);
+        if (Files.isDirectory(camino)) {
+            return new DirectorioClaves(camino);
+        }
+        return new DirectorioClaves(cargarClavePublica(camino));
+    }
+
+    /*
+    (Re)construye el índice identificador -> fichero a partir de los .publica del directorio.
+    */
+    public synchronized void indexar() throws IOException {
+        if (this.directorio == null) {
+            return;
+        }
+        this.modificacionIndexada = Files.getLastModifiedTime(this.directorio);
+        this.ultimaIndexacion = System.nanoTime();
+        try (Stream<Path> ficheros = Files.list(this.directorio)) {
+            for (Path fichero : (Iterable<Path>) ficheros::iterator) {
+                if (fichero.getFileName().toString().endsWith(".publica")) {
+                    this.indice.put(HexFormat.of().formatHex(resumen(Files.readAllBytes(fichero))), fichero);
+                }
+            }
+        }
+    }
+
+    /*
+    Reindexa si el directorio ha cambiado o ha pasado INTERVALO_REINDEXAR
+    desde la última indexación. Varios hilos que no encuentran la misma
+    clave a la vez reindexan una sola vez.
+    */
+    private synchronized void reindexarSiCambia(String id) throws IOException {
+        if (this.indice.containsKey(id)) {
+            return; // lo ha indexado otro hilo mientras se esperaba
+        }
+        boolean cambiado = !Files.getLastModifiedTime(this.directorio).equals(this.modificacionIndexada);
+        if (cambiado || System.nanoTime() - this.ultimaIndexacion >= INTERVALO_REINDEXAR) {
+            this.indexar();
+        }
+    }
+
+    public int getNumeroClaves() {
+        return this.indice.size();
+    }
+
+    /*
+    Clave pública con el identificador indicado, o null si no está en el directorio.
+    Si el identificador no está indexado se reindexa por si se han añadido
+    ficheros nuevos (como mucho una vez por cambio del directorio o por
+    INTERVALO_REINDEXAR).
+    */
+    public PublicKey buscar(byte[] idClave) throws GeneralSecurityException, IOException {
+        if (this.claveFija != null) {
+            return this.claveFija;
+        }
+        if (idClave == null) {
+            return null;
+        }
+        String id = HexFormat.of().formatHex(idClave);
+        synchronized (this.cache) {
+            PublicKey clave = this.cache.get(id);
+            if (clave != null) {
+                return clave;
+            }
+        }
+
+        Path fichero = this.indice.get(id);
+        if (fichero == null) {
+            this.reindexarSiCambia(id);
+            fichero = this.indice.get(id);
+            if (fichero == null) {
+                return null;
+            }
+        }
+        PublicKey clave = cargarClavePublica(fichero);
+        synchronized (this.cache) {
+            this.cache.put(id, clave);
+        }
+        return clave;
+    }
+
+    /*
+    Clave pública del fichero <nombre>.publica del directorio, o null si no existe.
+    Se busca por su identificador (el resumen del fichero), así que pasa por
+    el mismo índice y la misma cache que buscar().
+    */
+    public PublicKey buscarPorNombre(String nombre) throws GeneralSecurityException, IOException {
+        if (this.directorio == null) {
+            return null;
+        }
+        Path fichero = this.directorio.resolve(nombre + ".publica");
+        if (!Files.isRegularFile(fichero)) {
+            return null;
+        }
+        return this.buscar(resumen(Files.readAllBytes(fichero)));
+    }
+
+    /*
+    Clave pública de un verificador: si la ruta es un directorio se busca en él
+    por el identificador que trae el paquete; si es un fichero se carga tal cual.
+    Cada ruta se abre (e indexa) una sola vez y se reutiliza en las llamadas siguientes.
+    */
+    public static PublicKey cargarOBuscar(String ruta, byte[] idClave) throws Exception {
+        DirectorioClaves claves = ABIERTOS.get(ruta);
+        if (claves == null) {
+            DirectorioClaves abierto = abrir(ruta);
+            claves = ABIERTOS.putIfAbsent(ruta, abierto);
+            claves = (claves != null) ? claves : abierto;
+        }
+        return claves.buscarObligatoria(idClave, ruta);
+    }
+
+    /*
+    Como buscar(), pero falla con un mensaje explicativo si no hay clave.
+    */
+    public PublicKey buscarObligatoria(byte[] idClave, String descripcion) throws GeneralSecurityException, IOException {
+        PublicKey clave = this.buscar(idClave);
+        if (clave != null) {
+            return clave;
+        }
+        if (idClave == null) {
+            throw new GeneralSecurityException("El paquete no indica el identificador de la clave y " + descripcion + " es un directorio");
+        }
+        throw new GeneralSecurityException("No hay ninguna clave con identificador " + HexFormat.of().formatHex(idClave) + " en " + descripcion);
+    }
+
+    /*
+    Identificador de una clave pública: SHA-256 de su codificación X.509.
+    */
+    public static byte[] identificador(PublicKey clave) {
+        return resumen(clave.getEncoded());
+    }
+
+    /*
+    Clave pública correspondiente a una clave privada. En RSA el módulo y el
+    exponente público van incluidos en la codificación PKCS#8 CRT que genera
+    GenerarClaves; en EC y Ed25519 se calcula a partir de la privada con las
+    clases de Bouncy Castle, que acepta la codificación PKCS#8 de cualquier proveedor.
+    */
+    public static PublicKey clavePublicaDe(PrivateKey clavePrivada) throws GeneralSecurityException {
+        if (clavePrivada instanceof RSAPrivateCrtKey) {
+            RSAPrivateCrtKey claveRSA = (RSAPrivateCrtKey) clavePrivada;
+            RSAPublicKeySpec spec = new RSAPublicKeySpec(claveRSA.getModulus(), claveRSA.getPublicExponent());
+            return Criptografia.keyFactory("RSA").generatePublic(spec);
+        }
+
+        AlgoritmoFirma algoritmo = AlgoritmoFirma.deClave(clavePrivada);
+        PKCS8EncodedKeySpec pkcs8 = new PKCS8EncodedKeySpec(clavePrivada.getEncoded());
+        PublicKey clavePublicaBC;
+        if (algoritmo == AlgoritmoFirma.ECDSA_SHA256) {
+            KeyFactory fabricaBC = KeyFactory.getInstance("EC", BouncyCastleProvider.PROVIDER_NAME);
+            org.bouncycastle.jce.interfaces.ECPrivateKey claveEC = (org.bouncycastle.jce.interfaces.ECPrivateKey) fabricaBC.generatePrivate(pkcs8);
+            ECPoint q = claveEC.getParameters().getG().multiply(claveEC.getD()).normalize(); // Q = d * G
+            clavePublicaBC = fabricaBC.generatePublic(new org.bouncycastle.jce.spec.ECPublicKeySpec(q, claveEC.getParameters()));
+        } else if (algoritmo == AlgoritmoFirma.ED25519_SHA256) {
+            KeyFactory fabricaBC = KeyFactory.getInstance("Ed25519", BouncyCastleProvider.PROVIDER_NAME);
+            clavePublicaBC = ((EdDSAPrivateKey) fabricaBC.generatePrivate(pkcs8)).getPublicKey();
+        } else {
+            throw new InvalidKeyException("No se puede obtener la clave pública de una clave " + clavePrivada.getAlgorithm());
+        }
+        // Devolverla como una clave del proveedor configurado
+        return Criptografia.keyFactory(algoritmo.getAlgoritmoClave()).generatePublic(new X509EncodedKeySpec(clavePublicaBC.getEncoded()));
+    }
+
+    /*
+    Carga una clave pública desde un fichero X509. El algoritmo (RSA, EC o
+    Ed25519) se reconoce probando las KeyFactory de cada uno.
+    */
+    public static PublicKey cargarClavePublica(Path ficheroClave) throws GeneralSecurityException, IOException {
+        try (Metricas.Medicion medicion = Metricas.medir(Metricas.Etapa.CARGAR_CLAVE)) {
+            byte[] keyBytes = Files.readAllBytes(ficheroClave); // Leer el contenido del archivo binario
+            medicion.anadirBytes(keyBytes.length);
+            X509EncodedKeySpec spec = new X509EncodedKeySpec(keyBytes);
+            InvalidKeySpecException primerError = null;
+            for (AlgoritmoFirma algoritmo : AlgoritmoFirma.values()) {
+                try {
+                    return Criptografia.keyFactory(algoritmo.getAlgoritmoClave()).generatePublic(spec);
+                } catch (InvalidKeySpecException ex) {
+                    primerError = (primerError != null) ? primerError : ex;
+                }
+            }
+            throw new InvalidKeySpecException("Clave pública no válida o de un algoritmo no admitido: " + ficheroClave, primerError);
+        }
+    }
+
+    /*
+    Carga una clave privada desde un fichero PKCS8 (RSA, EC o Ed25519).
+    */
+    public static PrivateKey cargarClavePrivada(Path ficheroClave) throws GeneralSecurityException, IOException {
+        try (Metricas.Medicion medicion = Metricas.medir(Metricas.Etapa.CARGAR_CLAVE)) {
+            byte[] keyBytes = Files.readAllBytes(ficheroClave); // Leer el contenido del archivo binario
+            medicion.anadirBytes(keyBytes.length);
+            PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(keyBytes);
+            InvalidKeySpecException primerError = null;
+            for (AlgoritmoFirma algoritmo : AlgoritmoFirma.values()) {
+                try {
+                    return Criptografia.keyFactory(algoritmo.getAlgoritmoClave()).generatePrivate(spec);
+                } catch (InvalidKeySpecException ex) {
+                    primerError = (primerError != null) ? primerError : ex;
+                }
+            }
+            throw new InvalidKeySpecException("Clave privada no válida o de un algoritmo no admitido: " + ficheroClave, primerError);
+        }
+    }
+
+    private static byte[] resumen(byte[] datos) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(datos);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex); // SHA-256 está en toda JVM
+        }
+    }
+}
@@ -1,8 +1,21 @@
 import javax.crypto.*;
 import javax.crypto.spec.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.*;
 import java.security.*;
 import java.security.spec.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
@@ -11,18 +24,48 @@ public class EmpaquetarFactura {
     /*
     Lee factura en formato JSON
     Genera clave simétrica AES-256
-    Cifra contendio de factura con AES
+    Opcionalmente la comprime antes de cifrarla (ver Compresion)
+    Cifra contendio de factura con AES (suite configurable, ver SuiteCifrado)
     Cifra clave AES con RSA (clave pública de Hacienda)
     Firma paquete con clave privada de la empresa
     Genera paquete con:
         - bloque con factura cifrada
         - bloque con clave AES cifrada
-        - bloque con firma del paquete
-        - bloque con vector de inicialización (IV) dado que se usó modo CBC
+        - bloque con vector de inicialización (IV) o nonce de la suite
+        - bloque con la suite de cifrado (SUITE_CIFRADO)
+        - bloque con la compresión (COMPRESION), solo si se comprime
+        - bloque con el identificador de la clave de la Empresa (ver DirectorioClaves)
+        - bloque con el resumen SHA-256 de cada uno de los anteriores (MANIFIESTO, ver Manifiesto)
+        - bloque con la firma del manifiesto y bloque con su algoritmo (ver AlgoritmoFirma)
     Guarda paquete en fichero
+
+    Modo lote (--lote): empaqueta todas las facturas de un directorio (o de un
+    fichero manifiesto) cargando las claves una sola vez y repartiendo las
+    facturas entre varios hilos. Con --sesion detrás de --lote, la clave AES de
+    cada factura no se cifra con RSA sino con una clave de sesión del lote, que
+    se cifra con RSA una sola vez (ver SesionClaves).
+
+    Con --binario delante del resto de argumentos los paquetes se escriben en
+    el formato binario de Paquete (por defecto, texto BASE64).
      */
 
     public static void main(String[] args) throws Exception {
+        Paquete.Formato formato = Paquete.Formato.TEXTO;
+        if (args.length > 0 && Paquete.Formato.deOpcion(args[0]) != null) {
+            formato = Paquete.Formato.deOpcion(args[0]);
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        try {
+            SuiteCifrado.configurada(); // comprobar la configuración antes de empezar
+            Compresion.configurada();
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        }
+        if (args.length > 0 && args[0].equals("--lote")) {
+            empaquetarLote(args, formato);
+            return;
+        }
         if (args.length != 4) {
             mensajeAyuda();
             System.exit(1);
@@ -35,59 +78,293 @@ public class EmpaquetarFactura {
 
         Security.addProvider(new BouncyCastleProvider());
 
-        // Paso 1: Leer la factura JSON original
-        byte[] facturaBytes = Files.readAllBytes(factura);
+        PublicKey haciendaPubKey = cargarClavePublica(haciendaPublicKey); // clave pública de Hacienda para cifrar la clave AES
+        PrivateKey empresaPrivKey = cargarClavePrivada(empresaPrivateKey); // clave privada de la Empresa para firmar
 
-        // Paso 2: Generar clave simétrica AES y vector de inicialización (IV)
-        KeyGenerator keyGen = KeyGenerator.getInstance("AES", "BC");
-        keyGen.init(128); // por compatibilidad con cualquier instalación de Java, 128 / 16 -> 16 bytes
-        SecretKey aesKey = keyGen.generateKey(); // genera clave binaria de 16 bytes que se usará en el cifrado AES
-        byte[] iv = new byte[16]; // iv -> vector de inicialización
-        SecureRandom random = new SecureRandom(); // genera 16 bytes aleatorios
-        random.nextBytes(iv);
-        IvParameterSpec ivSpec = new IvParameterSpec(iv); // etiqueta de autenticación de 16 bytes (128 bits)
-
-        // Paso 3: Cifrar contenido de la factura con clave AES
-        Cipher aesCipher = Cipher.getInstance("AES/CBC/PKCS5Padding", "BC");
-        aesCipher.init(Cipher.ENCRYPT_MODE, aesKey, ivSpec);
-        byte[] facturaCifrada = aesCipher.doFinal(facturaBytes);
-        // doFinal procesa cualquier bloque pendiente, aplica el padding, ejecuta el cifrado y devuelve el texto cifrado en bytes resultantes
-
-        // Paso 4: Preparar la clave pública de Hacienda y cifrar la clave AES
-        byte[] haciendaPubBytes = Files.readAllBytes(haciendaPublicKey); // cargamos la clave pública de Hacienda leyendo sus bytes
-        X509EncodedKeySpec pubSpec = new X509EncodedKeySpec(haciendaPubBytes); // convertimos los bytes en una clave pública X.509
-        KeyFactory keyFactory = KeyFactory.getInstance("RSA", "BC");
-        PublicKey haciendaPubKey = keyFactory.generatePublic(pubSpec); // cargar la clave pública de Hacienda para cifrar la clave AES
-        Cipher rsaCipher = Cipher.getInstance("RSA/ECB/PKCS1Padding", "BC"); // inicializar cifrador RSA, PKCS1 es estándar para operaciones RSA
-        rsaCipher.init(Cipher.ENCRYPT_MODE, haciendaPubKey); // inicializamos el cifrado con la clave pública de Hacienda
-        byte[] claveCifrada = rsaCipher.doFinal(aesKey.getEncoded()); // cifrar la clave AES
-
-        // Paso 5: Firmar paquete con la clave privada de la Empresa
-        byte[] empresaPrivBytes = Files.readAllBytes(empresaPrivateKey); // cargamos la clave privada de la Empresa leyendo sus bytes
-        PKCS8EncodedKeySpec privSpec = new PKCS8EncodedKeySpec(empresaPrivBytes); // convertimos los bytes en una clave privada PKCS#8
-        PrivateKey empresaPrivKey = keyFactory.generatePrivate(privSpec); // cargar la clave privada de la Empresa para firmar
-        Signature signature = Signature.getInstance("SHA256withRSA", "BC");
-        signature.initSign(empresaPrivKey); // inicializamos el firmador con la clave privada de la Empresa
-        signature.update(facturaCifrada); // actualizamos el firmador con el contenido crítico
-        signature.update(claveCifrada); // actualizamos el firmador con la clave cifrada
-        byte[] firmaEmpresa = signature.sign(); // firmamos el contenido crítico
-
-        // Paso 6: Construir el paquete con todos los bloques necesarios
-        Paquete paqueteFactura = new Paquete();
-        paqueteFactura.anadirBloque("FACTURA_CIFRADA", facturaCifrada);
-        paqueteFactura.anadirBloque("CLAVE_CIFRADA", claveCifrada);
-        paqueteFactura.anadirBloque("VECTOR_INICIALIZACION", iv);
-        paqueteFactura.anadirBloque("FIRMA_EMPRESA", firmaEmpresa);
-
-        // Paso 7: Guardar el paquete en disco
-        paqueteFactura.escribirPaquete(nombrePaquete.toString());
+        byte[] idClaveEmpresa = DirectorioClaves.identificador(DirectorioClaves.clavePublicaDe(empresaPrivKey)); // para localizar la clave de verificación
+
+        empaquetar(factura, nombrePaquete, haciendaPubKey, empresaPrivKey, idClaveEmpresa, formato);
 
         System.out.println("ÉXITO: Factura empaquetada correctamente en " + nombrePaquete);
     }
 
+    /*
+    Empaqueta una factura con claves ya cargadas.
+    Los objetos Cipher/MessageDigest no son thread-safe: cada hilo usa los suyos.
+    */
+    public static void empaquetar(Path factura, Path nombrePaquete, PublicKey haciendaPubKey, PrivateKey empresaPrivKey, byte[] idClaveEmpresa) throws Exception {
+        empaquetar(factura, nombrePaquete, haciendaPubKey, empresaPrivKey, idClaveEmpresa, Paquete.Formato.TEXTO);
+    }
+
+    public static void empaquetar(Path factura, Path nombrePaquete, PublicKey haciendaPubKey, PrivateKey empresaPrivKey, byte[] idClaveEmpresa,
+                                  Paquete.Formato formato) throws Exception {
+        empaquetar(factura, nombrePaquete, haciendaPubKey, empresaPrivKey, idClaveEmpresa, formato, null);
+    }
+
+    /*
+    Con una sesión (ver SesionClaves), la clave AES se envuelve con la clave de
+    la sesión en lugar de cifrarse con la clave pública de Hacienda.
+    */
+    @SuppressWarnings("try") // la Medicion solo mide el bloque, no se usa dentro
+    public static void empaquetar(Path factura, Path nombrePaquete, PublicKey haciendaPubKey, PrivateKey empresaPrivKey, byte[] idClaveEmpresa,
+                                  Paquete.Formato formato, SesionClaves sesion) throws Exception {
+        Herramientas herramientas = HERRAMIENTAS.get();
+        Compresion compresion = Compresion.configurada();
+
+        // Paso 1: La factura JSON original no se carga entera en memoria, se cifra como stream en el paso 6
+
+        // Paso 2: Generar clave simétrica AES y vector de inicialización (IV)
+        SecretKey aesKey = herramientas.keyGen.generateKey(); // genera clave binaria de 16 bytes que se usará en el cifrado AES
+        byte[] iv = new byte[herramientas.suite.getLongitudIV()]; // iv -> vector de inicialización (16 bytes en CBC, nonce de 12 en GCM, prefijo de 7 si es segmentada)
+        herramientas.random.nextBytes(iv); // genera los bytes aleatorios
+
+        // Paso 3: Preparar el cifrador AES (el cifrado se hace por trozos al escribir el paquete)
+        SuiteCifrado.Proceso cifradoAES = herramientas.suite.iniciar(herramientas.aesCipher, Cipher.ENCRYPT_MODE, aesKey, iv);
+
+        // Paso 4: Cifrar la clave AES con la clave pública de Hacienda (o envolverla con la clave de la sesión)
+        byte[] claveCifrada;
+        if (sesion != null) {
+            claveCifrada = sesion.envolver(aesKey); // AESWrap, sin operaciones RSA por factura
+        } else {
+            Cipher rsaCipher = herramientas.rsaCipher; // PKCS1 es estándar para operaciones RSA
+            try (Metricas.Medicion medicion = Metricas.medir(Metricas.Etapa.CIFRAR_CLAVE)) {
+                rsaCipher.init(Cipher.ENCRYPT_MODE, haciendaPubKey); // inicializamos el cifrado con la clave pública de Hacienda
+                claveCifrada = rsaCipher.doFinal(aesKey.getEncoded()); // cifrar la clave AES
+            }
+        }
+
+        // Paso 5: Preparar la firma con la clave privada de la Empresa: se resume cada bloque para el manifiesto y al final se firma el manifiesto
+        AlgoritmoFirma algoritmoFirma = AlgoritmoFirma.deClave(empresaPrivKey); // RSA, ECDSA P-256 o Ed25519 según la clave
+        Manifiesto manifiesto = new Manifiesto();
+        MessageDigest resumen = herramientas.resumen;
+        resumen.reset();
+
+        // Paso 6 y 7: Construir el paquete directamente en disco, bloque a bloque: primero los que cubre el manifiesto
+        // y al final MANIFIESTO y FIRMA_EMPRESA, que dependen de ellos (no es el orden alfabético de escribirPaquete;
+        // los lectores indexan los bloques por nombre, así que el orden no importa)
+        try (Paquete.Escritor escritor = new Paquete.Escritor(nombrePaquete.toString(), formato)) {
+            escribirBloque(escritor, manifiesto, AlgoritmoFirma.BLOQUE_EMPRESA, algoritmoFirma.getIdentificador());
+            escribirBloque(escritor, manifiesto, "CLAVE_CIFRADA", claveCifrada);
+            if (sesion != null) {
+                escribirBloque(escritor, manifiesto, SesionClaves.BLOQUE, sesion.getIdentificador());
+            }
+            if (compresion != Compresion.NINGUNA) {
+                escribirBloque(escritor, manifiesto, Compresion.BLOQUE, compresion.getIdentificador()); // sin él, los paquetes quedan como antes
+            }
+
+            // La factura se lee (comprimida, si se pide), se cifra, se firma y se escribe por trozos, sin copias completas en memoria
+            // (el tiempo de cada etapa se acumula por separado, ver Metricas)
+            try (InputStream facturaClaro = compresion.comprimir(Files.newInputStream(factura));
+                 OutputStream bloqueFactura = escritor.abrirBloque("FACTURA_CIFRADA");
+                 Metricas.Medicion cifrado = Metricas.acumular(Metricas.Etapa.CIFRAR);
+                 Metricas.Medicion resumenFactura = Metricas.acumular(Metricas.Etapa.RESUMEN)) {
+                byte[] buffer = new byte[64 * 1024];
+                int leidos;
+                while ((leidos = facturaClaro.read(buffer)) != -1) {
+                    cifrado.reanudar();
+                    byte[] trozoCifrado = cifradoAES.update(buffer, 0, leidos); // en la suite segmentada, tandas de segmentos cifrados en paralelo
+                    cifrado.pausar(leidos);
+                    if (trozoCifrado != null) {
+                        resumenFactura.reanudar();
+                        resumen.update(trozoCifrado); // el manifiesto lleva el resumen del texto cifrado tal cual se escribe
+                        resumenFactura.pausar(trozoCifrado.length);
+                        bloqueFactura.write(trozoCifrado);
+                    }
+                }
+                cifrado.reanudar();
+                byte[] ultimoTrozo = cifradoAES.doFinal(); // procesa el bloque pendiente y aplica el padding (o la etiqueta)
+                cifrado.pausar(0);
+                resumenFactura.reanudar();
+                resumen.update(ultimoTrozo);
+                resumenFactura.pausar(ultimoTrozo.length);
+                bloqueFactura.write(ultimoTrozo);
+            }
+
+            manifiesto.anadirResumen("FACTURA_CIFRADA", resumen.digest());
+            escribirBloque(escritor, manifiesto, "ID_CLAVE_EMPRESA", idClaveEmpresa); // SHA-256 de la clave pública de la Empresa
+            escribirBloque(escritor, manifiesto, SuiteCifrado.BLOQUE, herramientas.suite.getIdentificador());
+            escribirBloque(escritor, manifiesto, "VECTOR_INICIALIZACION", iv);
+
+            // Paso 8: Firmar el manifiesto, que cubre todos los bloques anteriores
+            byte[] contenidoManifiesto = manifiesto.codificar();
+            escritor.escribirBloque(Manifiesto.BLOQUE, contenidoManifiesto);
+            escritor.escribirBloque("FIRMA_EMPRESA", algoritmoFirma.firmar(empresaPrivKey, Manifiesto.resumen(contenidoManifiesto)));
+        }
+    }
+
+    private static void escribirBloque(Paquete.Escritor escritor, Manifiesto manifiesto, String nombre, byte[] contenido) throws IOException {
+        escritor.escribirBloque(nombre, contenido);
+        manifiesto.anadir(nombre, contenido);
+    }
+
+    /*
+    java EmpaquetarFactura --lote [--sesion] <directorio_facturas|manifiesto> <directorio_salida> hacienda.publica empresa.privada [hilos]
+    Un fallo en una factura se informa y no detiene el resto del lote. Con
+    --sesion el paquete de sesión se guarda en el directorio de salida.
+    Cada paquete se llama como su factura sin extensión y .paquete; si dos
+    facturas darían el mismo paquete (a.json y a.txt) no se empaqueta ninguna.
+    */
+    private static void empaquetarLote(String[] args, Paquete.Formato formato) throws Exception {
+        boolean conSesion = (args.length > 1 && args[1].equals("--sesion"));
+        if (conSesion) {
+            args = Arrays.copyOfRange(args, 1, args.length); // --lote queda en args[0]
+        }
+        if (args.length != 5 && args.length != 6) {
+            mensajeAyuda();
+            System.exit(1);
+        }
+
+        Path entrada = Paths.get(args[1]);
+        Path directorioSalida = Paths.get(args[2]);
+        int hilos = (args.length == 6) ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+
+        Security.addProvider(new BouncyCastleProvider());
+
+        // Las claves se cargan una sola vez para todo el lote
+        PublicKey haciendaPubKey = cargarClavePublica(Paths.get(args[3]));
+        PrivateKey empresaPrivKey = cargarClavePrivada(Paths.get(args[4]));
+        byte[] idClaveEmpresa = DirectorioClaves.identificador(DirectorioClaves.clavePublicaDe(empresaPrivKey));
+
+        List<Path> facturas = listarFacturas(entrada);
+        Map<Path, Path> paquetes = new HashMap<>();
+        Map<Path, Path> origen = new HashMap<>();
+        for (Path factura : facturas) {
+            Path nombrePaquete = directorioSalida.resolve(nombreSinExtension(factura) + ".paquete");
+            Path anterior = origen.putIfAbsent(nombrePaquete, factura);
+            if (anterior != null) {
+                System.err.println("Las facturas " + anterior + " y " + factura + " se guardarían en el mismo paquete " + nombrePaquete
+                        + ": no se ha empaquetado ninguna");
+                System.exit(1);
+            }
+            paquetes.put(factura, nombrePaquete);
+        }
+        Files.createDirectories(directorioSalida);
+
+        // Una sola operación RSA para todo el lote: la clave de sesión
+        SesionClaves sesion = null;
+        if (conSesion) {
+            sesion = SesionClaves.crear(haciendaPubKey, idClaveEmpresa);
+            System.out.println("Sesión guardada en " + sesion.guardar(directorioSalida, formato));
+        }
+        SesionClaves sesionLote = sesion;
+
+        long inicio = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(hilos);
+        List<Future<?>> tareas = new ArrayList<>();
+        for (Path factura : facturas) {
+            Path nombrePaquete = paquetes.get(factura);
+            tareas.add(pool.submit(() -> {
+                try {
+                    empaquetar(factura, nombrePaquete, haciendaPubKey, empresaPrivKey, idClaveEmpresa, formato, sesionLote);
+                } catch (Exception ex) {
+                    Files.deleteIfExists(nombrePaquete); // no dejar paquetes a medio escribir
+                    throw ex;
+                }
+                return null;
+            }));
+        }
+        pool.shutdown();
+
+        int fallidas = 0;
+        for (int i = 0; i < tareas.size(); i++) {
+            try {
+                tareas.get(i).get();
+            } catch (Exception ex) {
+                fallidas++;
+                Throwable causa = (ex.getCause() != null) ? ex.getCause() : ex;
+                System.err.println("Error empaquetando " + facturas.get(i) + ": " + causa);
+            }
+        }
+        double segundos = (System.nanoTime() - inicio) / 1e9;
+
+        int correctas = facturas.size() - fallidas;
+        System.out.printf("Lote terminado: %d facturas empaquetadas, %d fallidas en %.3f s (%.1f facturas/s, %d hilos)%n",
+                correctas, fallidas, segundos, correctas / segundos, hilos);
+        if (fallidas > 0) {
+            System.exit(1);
+        }
+    }
+
+    /*
+    Facturas de un directorio (todos los ficheros regulares) o de un manifiesto
+    con una ruta por línea; las rutas relativas se resuelven desde el manifiesto.
+    */
+    private static List<Path> listarFacturas(Path entrada) throws Exception {
+        if (Files.isDirectory(entrada)) {
+            try (Stream<Path> ficheros = Files.list(entrada)) {
+                return ficheros.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+        }
+        Path base = entrada.toAbsolutePath().getParent();
+        List<Path> facturas = new ArrayList<>();
+        for (String linea : Files.readAllLines(entrada)) {
+            linea = linea.trim();
+            if (!linea.isEmpty() && !linea.startsWith("#")) {
+                facturas.add(base.resolve(linea));
+            }
+        }
+        return facturas;
+    }
+
+    private static String nombreSinExtension(Path fichero) {
+        String nombre = fichero.getFileName().toString();
+        int punto = nombre.lastIndexOf('.');
+        return (punto > 0) ? nombre.substring(0, punto) : nombre;
+    }
+
+    /*
+    Carga una clave pública RSA desde un fichero X509.
+    */
+    public static PublicKey cargarClavePublica(Path ficheroClave) throws Exception {
+        return DirectorioClaves.cargarClavePublica(ficheroClave);
+    }
+
+    /*
+    Carga una clave privada RSA desde un fichero PKCS8.
+    */
+    public static PrivateKey cargarClavePrivada(Path ficheroClave) throws Exception {
+        return DirectorioClaves.cargarClavePrivada(ficheroClave);
+    }
+
+    /*
+    Objetos criptográficos de cada hilo: se crean una vez y se reinicializan
+    con init() para cada factura. Proveedor y suite salen de la configuración
+    (ver Criptografia y SuiteCifrado).
+    */
+    private static class Herramientas {
+        final SuiteCifrado suite;
+        final KeyGenerator keyGen;
+        final SecureRandom random;
+        final Cipher aesCipher;
+        final Cipher rsaCipher;
+        final MessageDigest resumen;
+
+        Herramientas() throws GeneralSecurityException {
+            this.suite = SuiteCifrado.configurada();
+            this.keyGen = Criptografia.keyGenerator("AES");
+            this.keyGen.init(SuiteCifrado.LONGITUD_CLAVE); // por compatibilidad con cualquier instalación de Java, 128 / 16 -> 16 bytes
+            this.random = new SecureRandom();
+            this.aesCipher = Criptografia.cipher(this.suite.getTransformacion());
+            this.rsaCipher = Criptografia.cipher("RSA/ECB/PKCS1Padding");
+            this.resumen = Firmas.nuevoResumen();
+        }
+    }
+
+    private static final ThreadLocal<Herramientas> HERRAMIENTAS = ThreadLocal.withInitial(() -> {
+        try {
+            return new Herramientas();
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("No se pueden crear los objetos criptográficos", ex);
+        }
+    });
+
     private static void mensajeAyuda() {
         System.out.println("Empaqueta y firma una Factura para enviarla a Hacienda.");
-        System.out.println("\tSintaxis:   java EmpaquetarFactura factura.json paquete.zip hacienda.publica empresa.privada");
+        System.out.println("\tSintaxis:   java EmpaquetarFactura [--texto|--binario] factura.json paquete.zip hacienda.publica empresa.privada");
+        System.out.println("\t            java EmpaquetarFactura [--texto|--binario] --lote [--sesion] <directorio_facturas|manifiesto> <directorio_salida> hacienda.publica empresa.privada [hilos]");
+        System.out.println("\tOpciones:   -Dfactura.suite=AES_128_CBC|AES_128_GCM|AES_128_GCM_SEGMENTADO  -Dfactura.proveedor=BC|JDK");
+        System.out.println("\t            -Dfactura.compresion=NINGUNA|DEFLATE  comprimir la factura antes de cifrarla");
+        System.out.println("\t            -Dfactura.metricas=texto|json[:fichero]  tiempos por etapa al terminar (ver Metricas)");
         System.out.println();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,600 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class FiltroDuplicados implements Closeable {
+
+    /*
+    Registro persistente de las facturas ya presentadas a la Autoridad de
+    sellado. Con él se rechaza una factura empaquetada que se vuelve a
+    presentar como paquete nuevo (sin FIRMA_AUTORIDAD) para conseguir otro
+    sello, antes de gastar la verificación de la firma de la Empresa y la
+    firma de la Autoridad.
+    La clave de cada factura es el resumen SHA-256 de H(FACTURA_CIFRADA) ||
+    H(CLAVE_CIFRADA), con los resúmenes del MANIFIESTO si el paquete lo tiene
+    (ver SellarFactura.claveFactura). No depende de la firma de la Empresa ni
+    del resto de bloques, así que también se reconoce la misma factura cifrada
+    con una firma nueva (las ECDSA cambian cada vez), con otro manifiesto
+    (bloques de más o de menos) o en un paquete sin manifiesto.
+    Dos ficheros, mapeados en memoria, en el directorio de -Dfactura.vistos:
+        vistos.bloom   filtro de Bloom de BITS_POR_HUECO bits por hueco de la
+                       tabla (unos 11 por factura con la tabla llena, <1% de
+                       falsos positivos con FUNCIONES_HASH funciones). Unos
+                       128 MB por cada 100 millones de facturas: se queda en
+                       memoria y contesta "no está" con pocos accesos a ella
+        vistos.tabla   tabla hash de direccionamiento abierto con los primeros
+                       16 bytes de cada clave; solo se consulta si el filtro
+                       dice "puede estar", para confirmarlo (tabla mucho más
+                       grande, que puede estar sobre todo en disco)
+    Cuando la tabla se llena (FACTOR_CARGA) se duplican las dos: se escriben
+    completas con otro nombre y se cambian por las anteriores. La tabla manda:
+    si al abrir el filtro no corresponde a ella (p.ej. un cambio a medias) se
+    reconstruye a partir de la tabla.
+    Una factura se registra después de guardar (o devolver) el paquete sellado,
+    así que un fallo de la Autoridad (al firmar, al guardar, un proceso que se
+    cae) no la deja marcada como presentada. Mientras se sella, la factura
+    está reservada (ver reservar()): en este proceso, en un conjunto común a
+    los registros del directorio, y frente a otros procesos, con un bloqueo
+    de un byte de vistos.reservas en una posición sacada de la clave, que el
+    sistema suelta solo si el proceso termina.
+    Varios procesos (p.ej. varios SellarFactura con el mismo -Dfactura.vistos)
+    comparten el registro: la consulta, el registro (comprobar y añadir) y la
+    duplicación se hacen con el fichero vistos.bloqueo bloqueado, exclusivo
+    salvo para consultar, y al bloquear se releen las entradas y se vuelven a
+    mapear los ficheros si otro proceso los ha duplicado. Dentro de un mismo
+    proceso los registros de un directorio se turnan con un monitor común (el
+    bloqueo de ficheros de Java es por proceso).
+     */
+
+    public static final String PROPIEDAD_VISTOS = "factura.vistos";
+
+    private static final String FICHERO_BLOOM = "vistos.bloom";
+    private static final String FICHERO_TABLA = "vistos.tabla";
+    private static final String FICHERO_BLOQUEO = "vistos.bloqueo";
+    private static final String FICHERO_RESERVAS = "vistos.reservas";
+    private static final String SUFIJO_NUEVO = ".nuevo";
+    private static final byte[] MAGIA_BLOOM = {'F', 'A', 'C', 'B', 'L', 'M', '1', '\n'};
+    private static final byte[] MAGIA_TABLA = {'F', 'A', 'C', 'T', 'B', 'L', '1', '\n'};
+    private static final int CABECERA = 64; // magia, tamaño, entradas; alinea huecos y palabras
+    private static final int BYTES_CLAVE = 16;
+    private static final int BITS_POR_HUECO = 8;
+    private static final int FUNCIONES_HASH = 7;
+    private static final double FACTOR_CARGA = 0.75;
+    private static final long HUECOS_INICIALES = 1L << 20;
+
+    private static FiltroDuplicados configurado;
+    private static final Map<Path, Object> MONITORES = new ConcurrentHashMap<>();
+    // Claves reservadas en este proceso, por directorio
+    private static final Map<Path, Set<String>> RESERVADAS = new ConcurrentHashMap<>();
+
+    private final Path directorio;
+    private final Object monitor;
+    private final Set<String> reservadas;
+    private FileChannel canalBloqueo;
+    private FileChannel canalReservas;
+    private Region bloom;
+    private Region tabla;
+    private long huecos;
+    private long bitsBloom;
+    private long entradas;
+
+    private FiltroDuplicados(Path directorio) {
+        this.directorio = directorio;
+        this.monitor = MONITORES.computeIfAbsent(directorio.toAbsolutePath().normalize(), d -> new Object());
+        this.reservadas = RESERVADAS.computeIfAbsent(directorio.toAbsolutePath().normalize(), d -> ConcurrentHashMap.newKeySet());
+    }
+
+    /*
+    Abre (o crea) el registro de un directorio.
+    */
+    @SuppressWarnings("try") // el FileLock solo se mantiene durante el bloque
+    public static FiltroDuplicados abrir(Path directorio) throws IOException {
+        Files.createDirectories(directorio);
+        FiltroDuplicados filtro = new FiltroDuplicados(directorio);
+        try {
+            filtro.canalBloqueo = FileChannel.open(directorio.resolve(FICHERO_BLOQUEO), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            filtro.canalReservas = FileChannel.open(directorio.resolve(FICHERO_RESERVAS), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            synchronized (filtro.monitor) {
+                try (FileLock bloqueo = filtro.bloquear(false)) {
+                    filtro.cargar();
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            filtro.close();
+            throw ex;
+        }
+        return filtro;
+    }
+
+    /*
+    Bloqueo del registro frente a otros procesos (se espera a que lo suelten).
+    */
+    private FileLock bloquear(boolean compartido) throws IOException {
+        return this.canalBloqueo.lock(0, Long.MAX_VALUE, compartido);
+    }
+
+    /*
+    Con el bloqueo ya tomado: entradas que han registrado otros procesos y,
+    si han duplicado la tabla, los ficheros nuevos.
+    */
+    private void actualizar() throws IOException {
+        if (Files.size(this.directorio.resolve(FICHERO_TABLA)) != this.tabla.tamano()) {
+            this.tabla.close();
+            this.bloom.close();
+            this.tabla = null;
+            this.bloom = null;
+            this.cargar();
+        } else {
+            this.entradas = this.tabla.getLong(MAGIA_TABLA.length + Long.BYTES);
+        }
+    }
+
+    /*
+    Registro del directorio indicado en -Dfactura.vistos, abierto una sola vez
+    por proceso y llevado a disco al terminar; null si no se ha configurado.
+    */
+    public static synchronized FiltroDuplicados configurado() throws IOException {
+        String directorio = System.getProperty(PROPIEDAD_VISTOS);
+        if (configurado == null && directorio != null && !directorio.isEmpty()) {
+            FiltroDuplicados filtro = abrir(Paths.get(directorio));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    filtro.close();
+                } catch (IOException ex) {
+                    System.err.println("No se puede guardar el registro de facturas vistas en " + directorio + ": " + ex.getMessage());
+                }
+            }, "cierre-vistos"));
+            configurado = filtro;
+        }
+        return configurado;
+    }
+
+    /*
+    Cierra el registro de -Dfactura.vistos, si está abierto: la siguiente
+    llamada a configurado() vuelve a leer la propiedad (p.ej. en las pruebas).
+    */
+    static synchronized void cerrarConfigurado() throws IOException {
+        if (configurado != null) {
+            configurado.close();
+            configurado = null;
+        }
+    }
+
+    private void cargar() throws IOException {
+        Path ficheroTabla = this.directorio.resolve(FICHERO_TABLA);
+        Path ficheroBloom = this.directorio.resolve(FICHERO_BLOOM);
+        Files.deleteIfExists(this.directorio.resolve(FICHERO_TABLA + SUFIJO_NUEVO)); // duplicación interrumpida
+        Files.deleteIfExists(this.directorio.resolve(FICHERO_BLOOM + SUFIJO_NUEVO));
+
+        if (!Files.exists(ficheroTabla)) {
+            crearTabla(ficheroTabla, HUECOS_INICIALES).close();
+            Files.deleteIfExists(ficheroBloom);
+        }
+        this.tabla = Region.abrir(ficheroTabla);
+        comprobarMagia(this.tabla, MAGIA_TABLA, ficheroTabla);
+        this.huecos = this.tabla.getLong(MAGIA_TABLA.length);
+        this.entradas = this.tabla.getLong(MAGIA_TABLA.length + Long.BYTES);
+        if (Long.bitCount(this.huecos) != 1 || this.tabla.tamano() != CABECERA + this.huecos * BYTES_CLAVE) {
+            throw new IOException("Tabla de facturas vistas dañada: " + ficheroTabla);
+        }
+
+        boolean valido = false;
+        if (Files.exists(ficheroBloom)) {
+            this.bloom = Region.abrir(ficheroBloom);
+            valido = Arrays.equals(this.bloom.get(0, MAGIA_BLOOM.length), MAGIA_BLOOM)
+                    && this.bloom.getLong(MAGIA_BLOOM.length) == this.huecos * BITS_POR_HUECO
+                    && this.bloom.getLong(MAGIA_BLOOM.length + Long.BYTES) == this.entradas;
+        }
+        if (!valido) {
+            if (this.bloom != null) {
+                this.bloom.close();
+            }
+            Path nuevo = this.directorio.resolve(FICHERO_BLOOM + SUFIJO_NUEVO);
+            crearBloom(nuevo, this.tabla, this.huecos, this.entradas).close();
+            Files.move(nuevo, ficheroBloom, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            this.bloom = Region.abrir(ficheroBloom);
+        }
+        this.bitsBloom = this.huecos * BITS_POR_HUECO;
+    }
+
+    private static void comprobarMagia(Region region, byte[] magia, Path fichero) throws IOException {
+        if (region.tamano() < CABECERA || !Arrays.equals(region.get(0, magia.length), magia)) {
+            throw new IOException("No es un registro de facturas vistas: " + fichero);
+        }
+    }
+
+    /*
+    Indica si la clave (resumen SHA-256) ya está registrada. Para casi todas
+    las facturas nuevas basta con consultar el filtro de Bloom.
+    */
+    @SuppressWarnings("try") // el FileLock solo se mantiene durante el bloque
+    public boolean contiene(byte[] resumen) throws IOException {
+        byte[] clave = claveDe(resumen);
+        synchronized (this.monitor) {
+            try (FileLock bloqueo = this.bloquear(true)) {
+                this.actualizar();
+                return this.enBloom(clave) && this.buscarHueco(this.tabla, this.huecos, clave) < 0;
+            }
+        }
+    }
+
+    /*
+    Registra la clave; devuelve false si ya estaba (p.ej. la misma factura
+    presentada a la vez por dos peticiones).
+    */
+    @SuppressWarnings("try") // el FileLock solo se mantiene durante el bloque
+    public boolean anadir(byte[] resumen) throws IOException {
+        byte[] clave = claveDe(resumen);
+        synchronized (this.monitor) {
+            try (FileLock bloqueo = this.bloquear(false)) {
+                this.actualizar();
+                if (this.enBloom(clave) && this.buscarHueco(this.tabla, this.huecos, clave) < 0) {
+                    return false;
+                }
+                if (this.entradas + 1 > this.huecos * FACTOR_CARGA) {
+                    this.duplicar();
+                }
+                long hueco = this.buscarHueco(this.tabla, this.huecos, clave);
+                this.tabla.put(hueco, clave);
+                marcarBloom(this.bloom, this.bitsBloom, clave);
+                this.entradas++;
+                this.tabla.putLong(MAGIA_TABLA.length + Long.BYTES, this.entradas);
+                this.bloom.putLong(MAGIA_BLOOM.length + Long.BYTES, this.entradas);
+                return true;
+            }
+        }
+    }
+
+    /*
+    Reserva la clave mientras se sella la factura: devuelve null si ya está
+    registrada o si la está sellando otra petición de este u otro proceso.
+    Con el paquete sellado ya guardado se registra con Reserva.registrar();
+    si el sellado falla, Reserva.close() la suelta sin registrarla.
+    */
+    public Reserva reservar(byte[] resumen) throws IOException {
+        byte[] clave = claveDe(resumen);
+        String id = HexFormat.of().formatHex(clave);
+        if (!this.reservadas.add(id)) {
+            return null;
+        }
+        FileLock bloqueo = null;
+        boolean reservada = false;
+        try {
+            try {
+                bloqueo = this.canalReservas.tryLock(palabra(clave, 0) >>> 2, 1, false); // posición en [0, 2^62)
+            } catch (OverlappingFileLockException ex) {
+                return null; // otra clave de este proceso en la misma posición
+            }
+            if (bloqueo == null || this.contiene(resumen)) {
+                return null;
+            }
+            reservada = true;
+            return new Reserva(resumen, id, bloqueo);
+        } finally {
+            if (!reservada) {
+                try {
+                    if (bloqueo != null) {
+                        bloqueo.release();
+                    }
+                } finally {
+                    this.reservadas.remove(id);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("try") // el FileLock solo se mantiene durante el bloque
+    public long numeroEntradas() throws IOException {
+        synchronized (this.monitor) {
+            try (FileLock bloqueo = this.bloquear(true)) {
+                this.actualizar();
+                return this.entradas;
+            }
+        }
+    }
+
+    /*
+    Los 16 primeros bytes del resumen; nunca todo ceros, que es un hueco libre.
+    */
+    private static byte[] claveDe(byte[] resumen) {
+        if (resumen.length < BYTES_CLAVE) {
+            throw new IllegalArgumentException("Resumen demasiado corto: " + resumen.length + " bytes");
+        }
+        byte[] clave = Arrays.copyOf(resumen, BYTES_CLAVE);
+        clave[BYTES_CLAVE - 1] |= 1;
+        return clave;
+    }
+
+    private static long palabra(byte[] clave, int desde) {
+        long valor = 0;
+        for (int i = desde; i < desde + Long.BYTES; i++) {
+            valor = (valor << 8) | (clave[i] & 0xFF);
+        }
+        return valor;
+    }
+
+    /*
+    Bits de la clave en el filtro por doble hash (h1 + i * h2): la clave ya es
+    un resumen SHA-256, así que sus dos mitades sirven de funciones hash.
+    */
+    private boolean enBloom(byte[] clave) {
+        long h1 = palabra(clave, 0);
+        long h2 = palabra(clave, Long.BYTES) | 1;
+        for (int i = 0; i < FUNCIONES_HASH; i++) {
+            long bit = (h1 + i * h2) & (this.bitsBloom - 1);
+            if ((this.bloom.getLong(CABECERA + (bit >>> 6) * Long.BYTES) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void marcarBloom(Region bloom, long bitsBloom, byte[] clave) {
+        long h1 = palabra(clave, 0);
+        long h2 = palabra(clave, Long.BYTES) | 1;
+        for (int i = 0; i < FUNCIONES_HASH; i++) {
+            long bit = (h1 + i * h2) & (bitsBloom - 1);
+            long posicion = CABECERA + (bit >>> 6) * Long.BYTES;
+            bloom.putLong(posicion, bloom.getLong(posicion) | (1L << bit));
+        }
+    }
+
+    /*
+    Sondeo lineal desde el hueco de la clave: devuelve -(posición + 1) si la
+    clave está en esa posición de la tabla, o la posición del primer hueco libre.
+    */
+    private long buscarHueco(Region region, long numeroHuecos, byte[] clave) {
+        long indice = palabra(clave, Long.BYTES) & (numeroHuecos - 1);
+        while (true) {
+            long posicion = CABECERA + indice * BYTES_CLAVE;
+            long alta = region.getLong(posicion);
+            long baja = region.getLong(posicion + Long.BYTES);
+            if (alta == 0 && baja == 0) {
+                return posicion;
+            }
+            if (alta == palabra(clave, 0) && baja == palabra(clave, Long.BYTES)) {
+                return -posicion - 1;
+            }
+            indice = (indice + 1) & (numeroHuecos - 1);
+        }
+    }
+
+    /*
+    Tabla y filtro del doble de tamaño con las mismas claves (con el bloqueo
+    exclusivo tomado).
+    */
+    private void duplicar() throws IOException {
+        long nuevosHuecos = this.huecos * 2;
+        Path ficheroTabla = this.directorio.resolve(FICHERO_TABLA);
+        Path ficheroBloom = this.directorio.resolve(FICHERO_BLOOM);
+        Path tablaNueva = this.directorio.resolve(FICHERO_TABLA + SUFIJO_NUEVO);
+        Path bloomNuevo = this.directorio.resolve(FICHERO_BLOOM + SUFIJO_NUEVO);
+
+        try (Region nueva = crearTabla(tablaNueva, nuevosHuecos)) {
+            byte[] clave = new byte[BYTES_CLAVE];
+            for (long i = 0; i < this.huecos; i++) {
+                long posicion = CABECERA + i * BYTES_CLAVE;
+                if (this.tabla.getLong(posicion) != 0 || this.tabla.getLong(posicion + Long.BYTES) != 0) {
+                    this.tabla.get(posicion, clave);
+                    nueva.put(this.buscarHueco(nueva, nuevosHuecos, clave), clave);
+                }
+            }
+            nueva.putLong(MAGIA_TABLA.length + Long.BYTES, this.entradas);
+            nueva.force();
+            crearBloom(bloomNuevo, nueva, nuevosHuecos, this.entradas).close();
+        }
+        this.tabla.close();
+        this.bloom.close();
+        Files.move(tablaNueva, ficheroTabla, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(bloomNuevo, ficheroBloom, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        this.tabla = Region.abrir(ficheroTabla);
+        this.bloom = Region.abrir(ficheroBloom);
+        this.huecos = nuevosHuecos;
+        this.bitsBloom = nuevosHuecos * BITS_POR_HUECO;
+    }
+
+    private static Region crearTabla(Path fichero, long numeroHuecos) throws IOException {
+        Region region = Region.crear(fichero, CABECERA + numeroHuecos * BYTES_CLAVE);
+        region.put(0, MAGIA_TABLA);
+        region.putLong(MAGIA_TABLA.length, numeroHuecos);
+        region.putLong(MAGIA_TABLA.length + Long.BYTES, 0);
+        return region;
+    }
+
+    /*
+    Filtro de Bloom con las claves de una tabla, ya llevado a disco.
+    */
+    private static Region crearBloom(Path fichero, Region tabla, long numeroHuecos, long entradas) throws IOException {
+        long bits = numeroHuecos * BITS_POR_HUECO;
+        Region bloom = Region.crear(fichero, CABECERA + bits / Byte.SIZE);
+        bloom.put(0, MAGIA_BLOOM);
+        bloom.putLong(MAGIA_BLOOM.length, bits);
+        bloom.putLong(MAGIA_BLOOM.length + Long.BYTES, entradas);
+        byte[] clave = new byte[BYTES_CLAVE];
+        for (long i = 0; i < numeroHuecos; i++) {
+            long posicion = CABECERA + i * BYTES_CLAVE;
+            if (tabla.getLong(posicion) != 0 || tabla.getLong(posicion + Long.BYTES) != 0) {
+                tabla.get(posicion, clave);
+                marcarBloom(bloom, bits, clave);
+            }
+        }
+        bloom.force();
+        return bloom;
+    }
+
+    /*
+    Lleva a disco lo registrado: primero la tabla, que es la que manda.
+    */
+    public void sincronizar() {
+        synchronized (this.monitor) {
+            this.tabla.force();
+            this.bloom.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this.monitor) {
+            try {
+                if (this.tabla != null) {
+                    this.tabla.force();
+                    this.tabla.close();
+                }
+            } finally {
+                if (this.bloom != null) {
+                    this.bloom.force();
+                    this.bloom.close();
+                }
+                this.tabla = null;
+                this.bloom = null;
+                if (this.canalBloqueo != null) {
+                    this.canalBloqueo.close();
+                }
+                if (this.canalReservas != null) {
+                    this.canalReservas.close();
+                }
+            }
+        }
+    }
+
+    /*
+    Factura que se está sellando (ver reservar()). close() la suelta sin
+    registrarla; se puede llamar más de una vez.
+    */
+    public class Reserva implements Closeable {
+
+        private final byte[] resumen;
+        private final String id;
+        private final FileLock bloqueo;
+        private boolean cerrada = false;
+
+        private Reserva(byte[] resumen, String id, FileLock bloqueo) {
+            this.resumen = resumen.clone();
+            this.id = id;
+            this.bloqueo = bloqueo;
+        }
+
+        /*
+        Registra la factura (con el paquete sellado ya guardado) y suelta la
+        reserva; devuelve false si ya estaba registrada.
+        */
+        public boolean registrar() throws IOException {
+            try {
+                return FiltroDuplicados.this.anadir(this.resumen);
+            } finally {
+                this.close();
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            if (this.cerrada) {
+                return;
+            }
+            this.cerrada = true;
+            try {
+                if (this.bloqueo.isValid()) {
+                    this.bloqueo.release();
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException("No se puede soltar la reserva de la factura", ex);
+            } finally {
+                FiltroDuplicados.this.reservadas.remove(this.id);
+            }
+        }
+    }
+
+    /*
+    Fichero mapeado en trozos de TROZO bytes (un MappedByteBuffer no pasa de
+    2 GB). Las lecturas de 8 y 16 bytes están alineadas y no cruzan trozos.
+    */
+    private static class Region implements Closeable {
+
+        private static final int BITS_TROZO = 30;
+        private static final long TROZO = 1L << BITS_TROZO;
+
+        private final FileChannel canal;
+        private final MappedByteBuffer[] trozos;
+        private final long tamano;
+
+        private Region(FileChannel canal, long tamano) throws IOException {
+            this.canal = canal;
+            this.tamano = tamano;
+            this.trozos = new MappedByteBuffer[(int) ((tamano + TROZO - 1) / TROZO)];
+            for (int i = 0; i < this.trozos.length; i++) {
+                long inicio = i * TROZO;
+                this.trozos[i] = canal.map(FileChannel.MapMode.READ_WRITE, inicio, Math.min(TROZO, tamano - inicio));
+            }
+        }
+
+        static Region abrir(Path fichero) throws IOException {
+            FileChannel canal = FileChannel.open(fichero, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                return new Region(canal, canal.size());
+            } catch (IOException | RuntimeException ex) {
+                canal.close();
+                throw ex;
+            }
+        }
+
+        /*
+        Fichero nuevo de ese tamaño, a ceros (disperso: no ocupa disco hasta que se escribe).
+        */
+        static Region crear(Path fichero, long tamano) throws IOException {
+            FileChannel canal = FileChannel.open(fichero, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                return new Region(canal, tamano); // mapear más allá del final alarga el fichero
+            } catch (IOException | RuntimeException ex) {
+                canal.close();
+                throw ex;
+            }
+        }
+
+        long tamano() {
+            return this.tamano;
+        }
+
+        long getLong(long posicion) {
+            return this.trozos[(int) (posicion >>> BITS_TROZO)].getLong((int) (posicion & (TROZO - 1)));
+        }
+
+        void putLong(long posicion, long valor) {
+            this.trozos[(int) (posicion >>> BITS_TROZO)].putLong((int) (posicion & (TROZO - 1)), valor);
+        }
+
+        byte[] get(long posicion, int longitud) {
+            byte[] destino = new byte[longitud];
+            this.get(posicion, destino);
+            return destino;
+        }
+
+        void get(long posicion, byte[] destino) {
+            this.trozos[(int) (posicion >>> BITS_TROZO)].get((int) (posicion & (TROZO - 1)), destino);
+        }
+
+        void put(long posicion, byte[] origen) {
+            this.trozos[(int) (posicion >>> BITS_TROZO)].put((int) (posicion & (TROZO - 1)), origen);
+        }
+
+        void force() {
+            for (MappedByteBuffer trozo : this.trozos) {
+                trozo.force();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.canal.close(); // los mapas siguen siendo válidos hasta que los recoge el GC
+        }
+    }
+}
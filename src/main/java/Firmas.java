@@ -0,0 +1,59 @@
+import java.security.*;
+
+public class Firmas {
+
+    /*
+    Firma y verificación a partir del resumen SHA-256 ya calculado. Permite
+    recorrer una sola vez los datos firmados aunque varias firmas compartan el
+    mismo prefijo (p.ej. la factura cifrada): se resume el prefijo, se clona el
+    MessageDigest para cada firma y cada una se verifica con su resumen.
+    El algoritmo de firma sale de la clave (ver AlgoritmoFirma); el de los
+    paquetes anteriores a los bloques ALGORITMO_FIRMA_* es SHA256withRSA.
+     */
+
+    public static MessageDigest nuevoResumen() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex); // SHA-256 está en toda JVM
+        }
+    }
+
+    /*
+    Continúa un resumen sin alterar el original (el estado se copia con clone()).
+    */
+    public static MessageDigest copiar(MessageDigest resumen) {
+        try {
+            return (MessageDigest) resumen.clone();
+        } catch (CloneNotSupportedException ex) {
+            throw new IllegalStateException("El proveedor de SHA-256 no permite clonar el resumen", ex);
+        }
+    }
+
+    /*
+    Firma el resumen SHA-256 de un mensaje con el algoritmo de la clave.
+    */
+    public static byte[] firmarResumen(PrivateKey clavePrivada, byte[] resumen) throws GeneralSecurityException {
+        return AlgoritmoFirma.deClave(clavePrivada).firmar(clavePrivada, resumen);
+    }
+
+    /*
+    Comprueba una firma dado el resumen SHA-256 del mensaje, con el algoritmo de la clave.
+    Una firma mal codificada (p.ej. de otra longitud) cuenta como no válida.
+    */
+    public static boolean verificarResumen(PublicKey clavePublica, byte[] resumen, byte[] firma) throws GeneralSecurityException {
+        return AlgoritmoFirma.deClave(clavePublica).verificar(clavePublica, resumen, firma);
+    }
+
+    /*
+    Como verificarResumen(), comprobando además que el algoritmo que declara el
+    paquete (contenido de su bloque ALGORITMO_FIRMA_*, null si no lo tiene) es el de la clave.
+    */
+    public static boolean verificarResumen(PublicKey clavePublica, byte[] algoritmoDeclarado, byte[] resumen, byte[] firma) throws GeneralSecurityException {
+        AlgoritmoFirma algoritmo = AlgoritmoFirma.deClave(clavePublica);
+        if (AlgoritmoFirma.deBloque(algoritmoDeclarado) != algoritmo) {
+            return false;
+        }
+        return algoritmo.verificar(clavePublica, resumen, firma);
+    }
+}
@@ -0,0 +1,456 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+public class GeneradorCarga {
+
+    /*
+    Carga de extremo a extremo Empresa -> Autoridad -> Hacienda en un solo
+    proceso, para dimensionar (p.ej. el último día de presentación) y para
+    comparar versiones con exactamente la misma carga:
+      1. Claves: las que falten en <directorio_trabajo>/claves se generan con
+         GenerarClaves (Hacienda y Autoridad RSA de 2048 bits, las Empresas con
+         GenerarClaves --lote). Para probar otros algoritmos basta con
+         generarlas antes en esas rutas.
+      2. Corpus: facturas sintéticas con la forma de factura.json (emisor,
+         receptor, líneas de detalle, impuestos) y tamaños según la
+         distribución indicada. La semilla es fija: con los mismos argumentos
+         se genera el mismo corpus.
+      3. Cada factura pasa por EmpaquetarFactura (con la clave de su Empresa),
+         SellarFactura y DesempaquetarFactura, con tantas facturas a la vez
+         como hilos.
+    Informe por etapa: facturas, latencia media, p50, p99, p99.9 y máxima, y
+    las facturas/s que sostendría la etapa sola con esos hilos; en total:
+    facturas/s, pico de heap y bytes escritos. Se muestra y se guarda en
+    <directorio_trabajo>/carga.json. Con -Dfactura.metricas se obtiene además
+    el desglose por operación (ver Metricas); las demás opciones -Dfactura.*
+    de las herramientas también valen aquí.
+     */
+
+    public static final String INFORME = "carga.json";
+
+    private static final long SEMILLA = 2203;
+    private static final long INTERVALO_PROGRESO = TimeUnit.SECONDS.toNanos(1);
+
+    private enum Etapa {
+        EMPAQUETAR, SELLAR, DESEMPAQUETAR
+    }
+
+    public static void main(String[] args) throws Exception {
+        Paquete.Formato formato = Paquete.Formato.TEXTO;
+        if (args.length > 0 && Paquete.Formato.deOpcion(args[0]) != null) {
+            formato = Paquete.Formato.deOpcion(args[0]);
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        if (args.length != 4 && args.length != 5) {
+            mensajeAyuda();
+            System.exit(1);
+        }
+
+        Path directorio = Paths.get(args[0]);
+        int numeroFacturas = Integer.parseInt(args[1]);
+        int numeroEmpresas = Integer.parseInt(args[2]);
+        Tamanos tamanos = null;
+        try {
+            tamanos = Tamanos.de(args[3]);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            mensajeAyuda();
+            System.exit(1);
+        }
+        int hilos = (args.length == 5) ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+        if (numeroFacturas < 1 || numeroEmpresas < 1 || hilos < 1) {
+            System.err.println("El número de facturas, de Empresas y de hilos tiene que ser positivo");
+            System.exit(1);
+        }
+
+        Security.addProvider(new BouncyCastleProvider());
+
+        // Paso 1: Claves de Hacienda, la Autoridad y las Empresas (se reutilizan las que ya haya)
+        Path claves = directorio.resolve("claves");
+        Path directorioEmpresas = claves.resolve("empresas");
+        Files.createDirectories(claves);
+        generarSiFalta(claves.resolve("hacienda"));
+        generarSiFalta(claves.resolve("autoridad"));
+        if (listarPrivadas(directorioEmpresas).size() < numeroEmpresas) {
+            GenerarClaves.main(new String[]{"--lote", directorioEmpresas.toString(), String.valueOf(numeroEmpresas)});
+        }
+        PublicKey haciendaPubKey = DirectorioClaves.cargarClavePublica(claves.resolve("hacienda.publica"));
+        PrivateKey haciendaPrivKey = DirectorioClaves.cargarClavePrivada(claves.resolve("hacienda.privada"));
+        PrivateKey autoridadPrivKey = DirectorioClaves.cargarClavePrivada(claves.resolve("autoridad.privada"));
+        DirectorioClaves clavesAutoridad = DirectorioClaves.abrir(claves.resolve("autoridad.publica").toString());
+        DirectorioClaves clavesEmpresas = new DirectorioClaves(directorioEmpresas); // la Autoridad y Hacienda buscan la clave por su identificador
+        List<Path> privadas = listarPrivadas(directorioEmpresas).subList(0, numeroEmpresas);
+        PrivateKey[] empresas = new PrivateKey[numeroEmpresas];
+        byte[][] idsEmpresas = new byte[numeroEmpresas][];
+        for (int i = 0; i < numeroEmpresas; i++) {
+            empresas[i] = DirectorioClaves.cargarClavePrivada(privadas.get(i));
+            idsEmpresas[i] = DirectorioClaves.identificador(DirectorioClaves.clavePublicaDe(empresas[i]));
+        }
+
+        // Paso 2: Corpus de facturas (fuera de la medición)
+        Path corpus = directorio.resolve("facturas");
+        Path paquetes = directorio.resolve("paquetes");
+        Path salida = directorio.resolve("salida");
+        for (Path subdirectorio : new Path[]{corpus, paquetes, salida}) {
+            Files.createDirectories(subdirectorio);
+            vaciar(subdirectorio);
+        }
+        SplittableRandom aleatorio = new SplittableRandom(SEMILLA);
+        long bytesCorpus = 0;
+        for (int i = 0; i < numeroFacturas; i++) {
+            bytesCorpus += escribirFactura(corpus.resolve(nombre(i) + ".json"), i + 1, i % numeroEmpresas + 1, tamanos.siguiente(aleatorio), aleatorio);
+        }
+        System.out.printf("Corpus: %d facturas (%s), %d bytes, %d Empresas%n", numeroFacturas, tamanos, bytesCorpus, numeroEmpresas);
+
+        // Paso 3: Empaquetar, sellar y desempaquetar cada factura, con tantas a la vez como hilos
+        long[][] nanos = new long[Etapa.values().length][numeroFacturas];
+        boolean[][] correctas = new boolean[Etapa.values().length][numeroFacturas];
+        String[] errores = new String[numeroFacturas];
+        AtomicLongArray bytesEscritos = new AtomicLongArray(Etapa.values().length);
+        Paquete.Formato formatoPaquetes = formato;
+
+        System.gc();
+        reiniciarPicoHeap();
+        long inicio = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(hilos);
+        CompletionService<Integer> terminadas = new ExecutorCompletionService<>(pool);
+        for (int i = 0; i < numeroFacturas; i++) {
+            int indice = i;
+            terminadas.submit(() -> {
+                Path factura = corpus.resolve(nombre(indice) + ".json");
+                Path paquete = paquetes.resolve(nombre(indice) + ".paquete");
+                Path facturaDescifrada = salida.resolve(nombre(indice) + ".json");
+                int empresa = indice % numeroEmpresas;
+                Etapa etapa = Etapa.EMPAQUETAR;
+                try {
+                    long t0 = System.nanoTime();
+                    EmpaquetarFactura.empaquetar(factura, paquete, haciendaPubKey, empresas[empresa], idsEmpresas[empresa], formatoPaquetes);
+                    long t1 = System.nanoTime();
+                    registrar(nanos, correctas, etapa, indice, t1 - t0);
+                    long tamanoEmpaquetado = Files.size(paquete);
+                    bytesEscritos.addAndGet(etapa.ordinal(), tamanoEmpaquetado);
+
+                    etapa = Etapa.SELLAR;
+                    SellarFactura.sellar(paquete.toString(), clavesEmpresas, autoridadPrivKey);
+                    long t2 = System.nanoTime();
+                    registrar(nanos, correctas, etapa, indice, t2 - t1);
+                    bytesEscritos.addAndGet(etapa.ordinal(), Files.size(paquete) - tamanoEmpaquetado);
+
+                    etapa = Etapa.DESEMPAQUETAR;
+                    DesempaquetarFactura.desempaquetar(paquete.toString(), facturaDescifrada, haciendaPrivKey, clavesEmpresas, clavesAutoridad);
+                    long t3 = System.nanoTime();
+                    registrar(nanos, correctas, etapa, indice, t3 - t2);
+                    bytesEscritos.addAndGet(etapa.ordinal(), Files.size(facturaDescifrada));
+                } catch (Exception ex) {
+                    errores[indice] = etapa + ": " + ex;
+                }
+                return indice;
+            });
+        }
+        pool.shutdown();
+
+        long ultimoAviso = inicio;
+        for (int terminada = 1; terminada <= numeroFacturas; terminada++) {
+            int indice = terminadas.take().get(); // las tareas capturan sus propios errores
+            if (errores[indice] != null) {
+                System.err.println("Error en " + nombre(indice) + ": " + errores[indice]);
+            }
+            long ahora = System.nanoTime();
+            if (ahora - ultimoAviso >= INTERVALO_PROGRESO) {
+                ultimoAviso = ahora;
+                System.out.printf("  %d/%d facturas (%.1f facturas/s)%n", terminada, numeroFacturas, terminada / ((ahora - inicio) / 1e9));
+            }
+        }
+        double segundos = (System.nanoTime() - inicio) / 1e9;
+        long picoHeap = picoHeap();
+
+        // Informe
+        long fallidas = Arrays.stream(errores).filter(e -> e != null).count();
+        long completas = numeroFacturas - fallidas;
+        long totalEscritos = 0;
+        StringBuilder texto = new StringBuilder();
+        StringBuilder json = new StringBuilder();
+        texto.append(String.format(Locale.ROOT, "%-14s %9s %10s %10s %10s %10s %10s %12s %14s%n",
+                "etapa", "facturas", "media_ms", "p50_ms", "p99_ms", "p999_ms", "max_ms", "facturas_s", "bytes"));
+        for (Etapa etapa : Etapa.values()) {
+            long[] latencias = latencias(nanos[etapa.ordinal()], correctas[etapa.ordinal()]);
+            double media = Arrays.stream(latencias).average().orElse(0);
+            long escritos = bytesEscritos.get(etapa.ordinal());
+            totalEscritos += escritos;
+            double porSegundo = (media == 0) ? 0 : hilos * 1e9 / media;
+            texto.append(String.format(Locale.ROOT, "%-14s %9d %10.3f %10.3f %10.3f %10.3f %10.3f %12.1f %14d%n",
+                    etapa, latencias.length, media / 1e6, percentil(latencias, 50) / 1e6, percentil(latencias, 99) / 1e6,
+                    percentil(latencias, 99.9) / 1e6, percentil(latencias, 100) / 1e6, porSegundo, escritos));
+            json.append(String.format(Locale.ROOT,
+                    "%s    %s: {\"facturas\": %d, \"media_ms\": %.3f, \"p50_ms\": %.3f, \"p99_ms\": %.3f, \"p999_ms\": %.3f, \"max_ms\": %.3f, \"facturas_por_segundo\": %.1f, \"bytes_escritos\": %d}",
+                    (etapa.ordinal() > 0) ? ",\n" : "", Json.cadena(etapa.name()), latencias.length, media / 1e6, percentil(latencias, 50) / 1e6,
+                    percentil(latencias, 99) / 1e6, percentil(latencias, 99.9) / 1e6, percentil(latencias, 100) / 1e6, porSegundo, escritos));
+        }
+        System.out.print(texto);
+        System.out.printf(Locale.ROOT, "Carga terminada: %d facturas completas, %d fallidas en %.3f s (%.1f facturas/s, %d hilos), pico de heap %.1f MB, %d bytes escritos%n",
+                completas, fallidas, segundos, completas / segundos, hilos, picoHeap / 1048576.0, totalEscritos);
+
+        Path informe = directorio.resolve(INFORME);
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(informe, StandardCharsets.UTF_8))) {
+            out.println("{");
+            out.printf("  \"facturas\": %d,%n", numeroFacturas);
+            out.printf("  \"empresas\": %d,%n", numeroEmpresas);
+            out.printf("  \"tamanos\": %s,%n", Json.cadena(tamanos.toString()));
+            out.printf("  \"bytes_corpus\": %d,%n", bytesCorpus);
+            out.printf("  \"formato\": %s,%n", Json.cadena(formato.name()));
+            out.printf("  \"hilos\": %d,%n", hilos);
+            out.printf("  \"proveedor\": %s,%n", Json.cadena(Criptografia.getProveedor()));
+            out.printf("  \"suite\": %s,%n", Json.cadena(SuiteCifrado.configurada().name()));
+            out.printf("  \"compresion\": %s,%n", Json.cadena(Compresion.configurada().name()));
+            out.printf("  \"java\": %s,%n", Json.cadena(System.getProperty("java.vm.name") + " " + System.getProperty("java.version")));
+            out.printf("  \"completas\": %d,%n", completas);
+            out.printf("  \"fallidas\": %d,%n", fallidas);
+            out.printf(Locale.ROOT, "  \"segundos\": %.3f,%n", segundos);
+            out.printf(Locale.ROOT, "  \"facturas_por_segundo\": %.1f,%n", completas / segundos);
+            out.printf("  \"pico_heap_bytes\": %d,%n", picoHeap);
+            out.printf("  \"bytes_escritos\": %d,%n", totalEscritos);
+            out.println("  \"etapas\": {");
+            out.println(json);
+            out.println("  }");
+            out.println("}");
+        }
+        System.out.println("Informe en " + informe);
+        if (fallidas > 0) {
+            System.exit(1);
+        }
+    }
+
+    /*
+    Distribución de tamaños de factura (en bytes, aproximados):
+        <bytes>                        todas iguales
+        <min>-<max>                    uniforme
+        lognormal:<mediana>:<sigma>    lognormal, como suelen repartirse los
+                                       tamaños reales: muchas pequeñas y unas
+                                       pocas muy grandes
+    */
+    private static class Tamanos {
+
+        private static final int MINIMO = 512;
+        private static final int MAXIMO = 1 << 30;
+
+        private final String descripcion;
+        private final long minimo;
+        private final long maximo;
+        private final double mediana;
+        private final double sigma;
+
+        private Tamanos(String descripcion, long minimo, long maximo, double mediana, double sigma) {
+            this.descripcion = descripcion;
+            this.minimo = minimo;
+            this.maximo = maximo;
+            this.mediana = mediana;
+            this.sigma = sigma;
+        }
+
+        static Tamanos de(String texto) {
+            try {
+                if (texto.startsWith("lognormal:")) {
+                    String[] partes = texto.split(":");
+                    double mediana = Double.parseDouble(partes[1]);
+                    double sigma = Double.parseDouble(partes[2]);
+                    if (partes.length == 3 && mediana > 0 && sigma >= 0) {
+                        return new Tamanos(texto, 0, 0, mediana, sigma);
+                    }
+                } else if (texto.contains("-")) {
+                    long minimo = Long.parseLong(texto.substring(0, texto.indexOf('-')));
+                    long maximo = Long.parseLong(texto.substring(texto.indexOf('-') + 1));
+                    if (minimo > 0 && minimo <= maximo) {
+                        return new Tamanos("uniforme:" + texto, minimo, maximo, 0, 0);
+                    }
+                } else {
+                    long tamano = Long.parseLong(texto);
+                    if (tamano > 0) {
+                        return new Tamanos("fijo:" + tamano, tamano, tamano, 0, 0);
+                    }
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+                // mismo mensaje que un valor fuera de rango
+            }
+            throw new IllegalArgumentException("Distribución de tamaños no válida: " + texto + " (<bytes>, <min>-<max> o lognormal:<mediana>:<sigma>)");
+        }
+
+        int siguiente(SplittableRandom aleatorio) {
+            double tamano;
+            if (this.mediana > 0) {
+                tamano = this.mediana * Math.exp(this.sigma * aleatorio.nextGaussian());
+            } else {
+                tamano = (this.minimo == this.maximo) ? this.minimo : aleatorio.nextLong(this.minimo, this.maximo + 1);
+            }
+            return (int) Math.max(MINIMO, Math.min(MAXIMO, tamano));
+        }
+
+        @Override
+        public String toString() {
+            return this.descripcion;
+        }
+    }
+
+    private static final String[] DESCRIPCIONES = {
+        "Servicio de Consultoría", "Diseño de Página Web", "Licencia de software", "Soporte técnico mensual",
+        "Formación presencial", "Hosting anual", "Desarrollo a medida", "Auditoría de seguridad", "Material de oficina"
+    };
+    private static final String[] NOMBRES = {"Juan Pérez", "María López", "Distribuciones Norte S.L.", "Ana García", "Talleres Sur S.A.", "Luis Fernández"};
+
+    /*
+    Factura JSON con la estructura de factura.json y unos tamano bytes,
+    rellenando con líneas de detalle; el emisor es la Empresa que la empaqueta.
+    Devuelve los bytes escritos.
+    */
+    private static long escribirFactura(Path fichero, int numero, int empresa, int tamano, SplittableRandom aleatorio) throws IOException {
+        LocalDate fecha = LocalDate.of(2024, 1, 1).plusDays(aleatorio.nextInt(366));
+        StringBuilder cabecera = new StringBuilder();
+        cabecera.append("{\n  \"factura\": {\n");
+        cabecera.append(String.format(Locale.ROOT, "    \"numero\": \"%d\",%n    \"fecha\": \"%s\",%n    \"vencimiento\": \"%s\",%n", numero, fecha, fecha.plusMonths(3)));
+        cabecera.append(String.format(Locale.ROOT, "    \"emisor\": {%n      \"nombre\": \"Empresa %05d\",%n      \"direccion\": \"Calle Falsa %d, Ciudad, País\",%n"
+                + "      \"telefono\": \"+34%09d\",%n      \"email\": \"facturacion@empresa%05d.com\"%n    },%n",
+                empresa, 1 + aleatorio.nextInt(500), aleatorio.nextInt(1_000_000_000), empresa));
+        cabecera.append(String.format(Locale.ROOT, "    \"receptor\": {%n      \"nombre\": \"%s\",%n      \"direccion\": \"Avenida Principal %d, Ciudad, País\",%n"
+                + "      \"telefono\": \"+34%09d\",%n      \"email\": \"cliente%d@correo.com\"%n    },%n    \"items\": [%n",
+                NOMBRES[aleatorio.nextInt(NOMBRES.length)], 1 + aleatorio.nextInt(500), aleatorio.nextInt(1_000_000_000), aleatorio.nextInt(100_000)));
+
+        long escritos;
+        try (BufferedWriter out = Files.newBufferedWriter(fichero, StandardCharsets.UTF_8)) {
+            out.write(cabecera.toString());
+            escritos = cabecera.length();
+            double subtotal = 0;
+            for (int linea = 0; linea == 0 || escritos < tamano - 300; linea++) { // ~300 bytes de cierre
+                int cantidad = 1 + aleatorio.nextInt(20);
+                double precio = Math.round((5 + aleatorio.nextDouble() * 995) * 100) / 100.0;
+                subtotal += cantidad * precio;
+                String item = String.format(Locale.ROOT, "%s      {%n        \"descripcion\": \"%s\",%n        \"cantidad\": %d,%n        \"precio_unitario\": %.2f,%n        \"total\": %.2f%n      }",
+                        (linea > 0) ? ",\n" : "", DESCRIPCIONES[aleatorio.nextInt(DESCRIPCIONES.length)], cantidad, precio, cantidad * precio);
+                out.write(item);
+                escritos += item.length();
+            }
+            String cierre = String.format(Locale.ROOT, "%n    ],%n    \"subtotal\": %.2f,%n    \"impuesto\": {%n      \"tipo\": \"IVA\",%n      \"porcentaje\": 21,%n"
+                    + "      \"monto\": %.2f%n    },%n    \"total\": %.2f,%n    \"forma_pago\": \"Transferencia Bancaria\",%n"
+                    + "    \"numero_cuenta\": \"%04d-%04d-%04d-%04d\"%n  }%n}%n",
+                    subtotal, subtotal * 0.21, subtotal * 1.21, aleatorio.nextInt(10000), aleatorio.nextInt(10000), aleatorio.nextInt(10000), aleatorio.nextInt(10000));
+            out.write(cierre);
+        }
+        return Files.size(fichero);
+    }
+
+    private static void registrar(long[][] nanos, boolean[][] correctas, Etapa etapa, int indice, long duracion) {
+        nanos[etapa.ordinal()][indice] = duracion;
+        correctas[etapa.ordinal()][indice] = true;
+    }
+
+    /*
+    Latencias ordenadas de las facturas que completaron la etapa.
+    */
+    private static long[] latencias(long[] nanos, boolean[] correctas) {
+        long[] completadas = new long[nanos.length];
+        int n = 0;
+        for (int i = 0; i < nanos.length; i++) {
+            if (correctas[i]) {
+                completadas[n++] = nanos[i];
+            }
+        }
+        long[] ordenadas = Arrays.copyOf(completadas, n);
+        Arrays.sort(ordenadas);
+        return ordenadas;
+    }
+
+    /*
+    Percentil por el método del rango más cercano sobre latencias ya ordenadas.
+    */
+    private static long percentil(long[] ordenadas, double p) {
+        if (ordenadas.length == 0) {
+            return 0;
+        }
+        int rango = (int) Math.ceil(p / 100.0 * ordenadas.length);
+        return ordenadas[Math.max(0, Math.min(ordenadas.length - 1, rango - 1))];
+    }
+
+    /*
+    El pico de heap es la suma de los picos de cada zona del heap (eden,
+    supervivientes, old...) desde reiniciarPicoHeap(): puede ser algo mayor
+    que el máximo real, porque las zonas no llegan a su pico a la vez.
+    */
+    private static void reiniciarPicoHeap() {
+        for (MemoryPoolMXBean zona : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (zona.getType() == MemoryType.HEAP) {
+                zona.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long picoHeap() {
+        long pico = 0;
+        for (MemoryPoolMXBean zona : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (zona.getType() == MemoryType.HEAP) {
+                pico += zona.getPeakUsage().getUsed();
+            }
+        }
+        return pico;
+    }
+
+    private static void generarSiFalta(Path prefijo) throws Exception {
+        if (!Files.exists(Paths.get(prefijo + ".privada")) || !Files.exists(Paths.get(prefijo + ".publica"))) {
+            GenerarClaves.main(new String[]{prefijo.toString(), "RSA-2048"});
+        }
+    }
+
+    private static List<Path> listarPrivadas(Path directorio) throws IOException {
+        if (!Files.isDirectory(directorio)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> ficheros = Files.list(directorio)) {
+            return ficheros.filter(f -> f.getFileName().toString().endsWith(".privada")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /*
+    Borra los ficheros de una ejecución anterior.
+    */
+    private static void vaciar(Path directorio) throws IOException {
+        try (Stream<Path> ficheros = Files.list(directorio)) {
+            for (Path fichero : (Iterable<Path>) ficheros::iterator) {
+                if (Files.isRegularFile(fichero)) {
+                    Files.delete(fichero);
+                }
+            }
+        }
+    }
+
+    private static String nombre(int indice) {
+        return String.format("factura-%07d", indice + 1);
+    }
+
+    public static void mensajeAyuda() {
+        System.out.println("Genera facturas sintéticas y las pasa por EmpaquetarFactura, SellarFactura y DesempaquetarFactura para medir el rendimiento.");
+        System.out.println("\tSintaxis:   java GeneradorCarga [--texto|--binario] <directorio_trabajo> <facturas> <empresas> <tamanos> [hilos]");
+        System.out.println("\tTamaños:    <bytes> (fijo), <min>-<max> (uniforme) o lognormal:<mediana>:<sigma>, p.ej. lognormal:4096:1.5");
+        System.out.println("\tOpciones:   las -Dfactura.* de las herramientas (suite, proveedor, compresión, métricas...)");
+        System.out.println();
+    }
+}
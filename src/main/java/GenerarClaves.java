@@ -1,6 +1,17 @@
 import java.io.*;
 
+import java.nio.file.*;
 import java.security.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 //import java.security.spec.*;
 
 //import javax.crypto.*;
@@ -10,20 +21,44 @@ import java.security.*;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 public class GenerarClaves {
+    /*
+    Algoritmos: RSA (512 bits, por defecto), RSA-<bits> (p.ej. RSA-3072),
+    EC-P256 (ECDSA) y Ed25519. Las claves de Hacienda tienen que ser RSA porque
+    cifran la clave AES; las de Empresas y Autoridad solo firman y pueden ser
+    de cualquiera (ver AlgoritmoFirma).
+
+    Modo lote (--lote): genera en paralelo las claves de muchos participantes
+    de una vez (p.ej. al dar de alta un grupo de Empresas), ver generarLote().
+    */
+
+    // Manifiesto del modo lote: una línea "nombre<TAB>algoritmo<TAB>id_clave" por participante
+    public static final String MANIFIESTO = "claves.manifiesto";
+
+    private static final long INTERVALO_PROGRESO = TimeUnit.SECONDS.toNanos(1);
+
+    // Una fuente de aleatoriedad por hilo para que los generadores no compitan por la misma
+    private static final ThreadLocal<SecureRandom> ALEATORIO = ThreadLocal.withInitial(SecureRandom::new);
+
     public static void main(String[] args) throws Exception {
-        if (args.length != 1) {
+        if (args.length > 0 && args[0].equals("--lote")) {
+            generarLote(args);
+            return;
+        }
+        if (args.length != 1 && args.length != 2) {
             mensajeAyuda();
             System.exit(1);
         }
 
         Security.addProvider(new BouncyCastleProvider()); // Cargar el provider BC
 
-        /* Crear claves RSA 512 bits  */
-        KeyPairGenerator generadorRSA = KeyPairGenerator.getInstance("RSA", "BC"); // Hace uso del provider BC
-        generadorRSA.initialize(512);
-        KeyPair clavesRSA = generadorRSA.generateKeyPair();
-        PrivateKey clavePrivada = clavesRSA.getPrivate();
-        PublicKey clavePublica = clavesRSA.getPublic();
+        String nombreAlgoritmo = (args.length == 2) ? args[1] : "RSA";
+        AlgoritmoFirma algoritmo = algoritmoDeNombre(nombreAlgoritmo);
+        int bitsRSA = bitsRSA(nombreAlgoritmo);
+
+        /* Crear el par de claves (RSA de 512 bits si no se indica otro algoritmo) */
+        KeyPair claves = algoritmo.generarClaves(bitsRSA); // Hace uso del provider BC (o el indicado en -Dfactura.proveedor)
+        PrivateKey clavePrivada = claves.getPrivate();
+        PublicKey clavePublica = claves.getPublic();
 
         /* 1 Volcar clave privada  a fichero */
         // 1.1 Recuperar de la clave su codificación en formato PKS8 (necesario para escribirla a disco)
@@ -43,13 +78,164 @@ public class GenerarClaves {
         out.write(encodedX509);
         out.close();
 
-        System.out.println("Generadas claves RSA pÃºblica y privada de 512 bits en ficheros "+args[0] + ".publica"+ " y "+args[0] + ".privada");
+        String descripcion = (algoritmo == AlgoritmoFirma.RSA_SHA256) ? "RSA" : nombreAlgoritmo;
+        String bits = (algoritmo == AlgoritmoFirma.RSA_SHA256) ? " de " + bitsRSA + " bits" : "";
+        System.out.println("Generadas claves " + descripcion + " pÃºblica y privada" + bits + " en ficheros "+args[0] + ".publica"+ " y "+args[0] + ".privada");
+
+    }
+
+    /*
+    java GenerarClaves --lote <directorio_salida> <numero|fichero_nombres> [algoritmo] [hilos]
+    Genera un par de claves por participante repartiendo el trabajo entre
+    varios hilos y los deja en el directorio como en el modo normal
+    (nombre.publica y nombre.privada), junto con el MANIFIESTO. El directorio
+    sirve tal cual como directorio de claves (ver DirectorioClaves).
+    Con un número se generan participante-00001, participante-00002, ...; con
+    un fichero, un nombre por línea (las que empiezan por # se ignoran).
+    Cada segundo se informa del progreso y de los pares por segundo.
+    */
+    private static void generarLote(String[] args) throws Exception {
+        if (args.length < 3 || args.length > 5) {
+            mensajeAyuda();
+            System.exit(1);
+        }
+
+        Path directorio = Paths.get(args[1]);
+        List<String> nombres = listarParticipantes(args[2]);
+        String nombreAlgoritmo = (args.length >= 4) ? args[3] : "RSA";
+        AlgoritmoFirma algoritmo = algoritmoDeNombre(nombreAlgoritmo);
+        int bitsRSA = bitsRSA(nombreAlgoritmo);
+        int hilos = (args.length == 5) ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+
+        Security.addProvider(new BouncyCastleProvider()); // Cargar el provider BC una sola vez para todo el lote
+        Files.createDirectories(directorio);
+
+        long inicio = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(hilos);
+        CompletionService<Integer> terminados = new ExecutorCompletionService<>(pool);
+        String[] identificadores = new String[nombres.size()];
+        String[] errores = new String[nombres.size()];
+        for (int i = 0; i < nombres.size(); i++) {
+            int indice = i;
+            terminados.submit(() -> {
+                Path publica = directorio.resolve(nombres.get(indice) + ".publica");
+                Path privada = directorio.resolve(nombres.get(indice) + ".privada");
+                try {
+                    KeyPair claves = algoritmo.generarClaves(bitsRSA, ALEATORIO.get());
+                    Files.write(privada, claves.getPrivate().getEncoded()); // PKCS8
+                    Files.write(publica, claves.getPublic().getEncoded()); // X509
+                    identificadores[indice] = HexFormat.of().formatHex(DirectorioClaves.identificador(claves.getPublic()));
+                } catch (Exception ex) {
+                    errores[indice] = ex.toString();
+                    try {
+                        Files.deleteIfExists(privada); // no dejar pares a medias
+                        Files.deleteIfExists(publica);
+                    } catch (IOException exBorrado) {
+                        // Se informa con el error de la generación; el resto del lote sigue
+                        errores[indice] += " (y no se han podido borrar los ficheros a medias: " + exBorrado + ")";
+                    }
+                }
+                return indice;
+            });
+        }
+        pool.shutdown();
+
+        // Los pares se cuentan según terminan, en el orden que sea
+        long ultimoAviso = inicio;
+        for (int generados = 1; generados <= nombres.size(); generados++) {
+            int indice = terminados.take().get();
+            if (errores[indice] != null) {
+                System.err.println("Error generando las claves de " + nombres.get(indice) + ": " + errores[indice]);
+            }
+            long ahora = System.nanoTime();
+            if (ahora - ultimoAviso >= INTERVALO_PROGRESO) {
+                ultimoAviso = ahora;
+                System.out.printf("  %d/%d pares (%.1f pares/s)%n", generados, nombres.size(), generados / ((ahora - inicio) / 1e9));
+            }
+        }
+        double segundos = (System.nanoTime() - inicio) / 1e9;
 
+        int fallidos = 0;
+        try (PrintWriter manifiesto = new PrintWriter(Files.newBufferedWriter(directorio.resolve(MANIFIESTO)))) {
+            manifiesto.println("# nombre\talgoritmo\tid_clave (SHA-256 de la clave pública, ver DirectorioClaves)");
+            for (int i = 0; i < nombres.size(); i++) {
+                if (identificadores[i] == null) {
+                    fallidos++;
+                } else {
+                    manifiesto.println(nombres.get(i) + "\t" + algoritmo.name() + "\t" + identificadores[i]);
+                }
+            }
+        }
+
+        int correctos = nombres.size() - fallidos;
+        System.out.printf("Lote terminado: %d pares de claves generados, %d fallidos en %.3f s (%.1f pares/s, %d hilos). Manifiesto en %s%n",
+                correctos, fallidos, segundos, correctos / segundos, hilos, directorio.resolve(MANIFIESTO));
+        if (fallidos > 0) {
+            System.exit(1);
+        }
+    }
+
+    /*
+    Nombres de los participantes: un número genera participante-00001..N; si
+    no, se lee el fichero con un nombre por línea. Los nombres se usan como
+    nombre de fichero, así que no pueden repetirse ni contener separadores.
+    */
+    private static List<String> listarParticipantes(String argumento) throws IOException {
+        List<String> nombres = new ArrayList<>();
+        if (argumento.matches("\\d+")) {
+            int numero = Integer.parseInt(argumento);
+            for (int i = 1; i <= numero; i++) {
+                nombres.add(String.format("participante-%05d", i));
+            }
+            return nombres;
+        }
+
+        Set<String> vistos = new HashSet<>();
+        for (String linea : Files.readAllLines(Paths.get(argumento))) {
+            linea = linea.trim();
+            if (linea.isEmpty() || linea.startsWith("#")) {
+                continue;
+            }
+            if (linea.contains("/") || linea.contains("\\") || linea.equals(".") || linea.equals("..") || !vistos.add(linea)) {
+                System.err.println("Nombre de participante no válido o repetido en " + argumento + ": " + linea);
+                System.exit(1);
+            }
+            nombres.add(linea);
+        }
+        return nombres;
+    }
+
+    /*
+    Algoritmo de los nombres que admite la línea de comandos: RSA, RSA-<bits>, EC-P256 o Ed25519.
+    */
+    private static AlgoritmoFirma algoritmoDeNombre(String nombreAlgoritmo) {
+        if (nombreAlgoritmo.equalsIgnoreCase("RSA") || nombreAlgoritmo.toUpperCase().startsWith("RSA-")) {
+            return AlgoritmoFirma.RSA_SHA256;
+        } else if (nombreAlgoritmo.equalsIgnoreCase("EC-P256")) {
+            return AlgoritmoFirma.ECDSA_SHA256;
+        } else if (nombreAlgoritmo.equalsIgnoreCase("Ed25519")) {
+            return AlgoritmoFirma.ED25519_SHA256;
+        }
+        System.err.println("Algoritmo de clave desconocido: " + nombreAlgoritmo);
+        mensajeAyuda();
+        System.exit(1);
+        return null;
+    }
+
+    /*
+    Longitud de las claves RSA (512 bits si no se indica); se ignora en los demás algoritmos.
+    */
+    private static int bitsRSA(String nombreAlgoritmo) {
+        if (nombreAlgoritmo.toUpperCase().startsWith("RSA-")) {
+            return Integer.parseInt(nombreAlgoritmo.substring("RSA-".length()));
+        }
+        return 512;
     }
 
     public static void mensajeAyuda() {
-        System.out.println("Generador de pares de clave RSA de 512 bits");
-        System.out.println("\tSintaxis:   java GenerarClaves prefijo");
+        System.out.println("Generador de pares de clave (RSA de 512 bits por defecto)");
+        System.out.println("\tSintaxis:   java GenerarClaves prefijo [RSA|RSA-<bits>|EC-P256|Ed25519]");
+        System.out.println("\t            java GenerarClaves --lote <directorio_salida> <numero|fichero_nombres> [RSA|RSA-<bits>|EC-P256|Ed25519] [hilos]");
         System.out.println();
     }
 }
\ No newline at end of file
@@ -0,0 +1,47 @@
+public class Json {
+
+    /*
+    Utilidades mínimas para escribir JSON a mano (informes, métricas y errores
+    del servicio) sin añadir dependencias al proyecto.
+     */
+
+    private Json() {
+    }
+
+    public static String cadena(String texto) {
+        return (texto == null) ? "null" : "\"" + escapar(texto) + "\"";
+    }
+
+    public static String escapar(String texto) {
+        if (texto == null) {
+            return "";
+        }
+        StringBuilder resultado = new StringBuilder();
+        for (char c : texto.toCharArray()) {
+            switch (c) {
+                case '"':
+                    resultado.append("\\\"");
+                    break;
+                case '\\':
+                    resultado.append("\\\\");
+                    break;
+                case '\n':
+                    resultado.append("\\n");
+                    break;
+                case '\r':
+                    resultado.append("\\r");
+                    break;
+                case '\t':
+                    resultado.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        resultado.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        resultado.append(c);
+                    }
+            }
+        }
+        return resultado.toString();
+    }
+}
@@ -0,0 +1,204 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+public class Manifiesto {
+
+    /*
+    Bloque MANIFIESTO: el resumen SHA-256 de cada bloque que escribe la Empresa,
+    en texto UTF-8, una línea por bloque ordenadas por nombre:
+        SHA-256
+        ALGORITMO_FIRMA_EMPRESA <64 dígitos hexadecimales>
+        CLAVE_CIFRADA <...>
+        FACTURA_CIFRADA <...>
+        ...
+    La Empresa firma el resumen del manifiesto (no factura cifrada || clave
+    cifrada) y la Autoridad firma resumen del manifiesto || sello de tiempo (o
+    lo usa como hoja del árbol de Merkle, ver ArbolMerkle). Así:
+      - las firmas se comprueban sin leer la factura cifrada; cada bloque se
+        comprueba aparte contra su línea, y los bloques grandes en paralelo
+      - se puede comprobar solo lo que se necesita, p.ej. el sello de tiempo
+        de una factura sin tocar FACTURA_CIFRADA (DesempaquetarFactura --sello)
+      - añadir un bloque de la Empresa es añadir una línea, sin cambiar lo que
+        se firma
+    Los bloques de la Empresa que deciden cómo se lee el paquete (INTERPRETADOS:
+    suite, IV, sesión, compresión, algoritmo e identificador de la clave) no se
+    admiten si el paquete los trae y el manifiesto no los cubre, aunque
+    cambiarlos hiciera fallar el descifrado. ALGORITMO_FIRMA_AUTORIDAD e
+    ID_CLAVE_AUTORIDAD los añade la Autoridad al sellar: si no corresponden a
+    su clave, su firma no se da por válida.
+    Los resúmenes ya calculados de un paquete abierto no se repiten (ver
+    Paquete.getResumenBloque). Los paquetes sin MANIFIESTO se siguen firmando
+    y verificando como antes.
+     */
+
+    public static final String BLOQUE = "MANIFIESTO";
+    public static final String ALGORITMO = "SHA-256";
+
+    // Bloques que tiene que cubrir el manifiesto de cualquier paquete
+    public static final List<String> OBLIGATORIOS = List.of("FACTURA_CIFRADA", "CLAVE_CIFRADA");
+
+    // Bloques que el manifiesto tiene que cubrir si el paquete los trae
+    public static final List<String> INTERPRETADOS = List.of(AlgoritmoFirma.BLOQUE_EMPRESA, Compresion.BLOQUE, "ID_CLAVE_EMPRESA",
+            SesionClaves.BLOQUE, SuiteCifrado.BLOQUE, "VECTOR_INICIALIZACION");
+
+    // Por debajo de este tamaño no compensa resumir un bloque en otro hilo
+    static final long MINIMO_PARALELO = 256 * 1024;
+
+    private final Map<String, byte[]> resumenes = new TreeMap<>();
+
+    public void anadir(String nombreBloque, byte[] contenido) {
+        this.anadirResumen(nombreBloque, Firmas.nuevoResumen().digest(contenido));
+    }
+
+    /*
+    Para bloques resumidos mientras se escriben (p.ej. la factura cifrada).
+    */
+    public void anadirResumen(String nombreBloque, byte[] resumen) {
+        if (this.resumenes.put(nombreBloque, resumen.clone()) != null) {
+            throw new IllegalArgumentException("Bloque repetido en el manifiesto: " + nombreBloque);
+        }
+    }
+
+    public Set<String> getBloques() {
+        return this.resumenes.keySet();
+    }
+
+    public byte[] getResumen(String nombreBloque) {
+        byte[] resumen = this.resumenes.get(nombreBloque);
+        return (resumen != null) ? resumen.clone() : null;
+    }
+
+    public byte[] codificar() {
+        StringBuilder texto = new StringBuilder(ALGORITMO).append('\n');
+        for (Map.Entry<String, byte[]> entrada : this.resumenes.entrySet()) {
+            texto.append(entrada.getKey()).append(' ').append(HexFormat.of().formatHex(entrada.getValue())).append('\n');
+        }
+        return texto.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /*
+    Lee el contenido del bloque MANIFIESTO. Solo se aceptan manifiestos con
+    la forma exacta de codificar() y que cubran los bloques OBLIGATORIOS.
+    */
+    public static Manifiesto leer(byte[] contenido) {
+        String[] lineas = new String(contenido, StandardCharsets.UTF_8).split("\n", -1);
+        if (lineas.length < 2 || !lineas[0].equals(ALGORITMO) || !lineas[lineas.length - 1].isEmpty()) {
+            throw new IllegalArgumentException("Manifiesto mal formado");
+        }
+        Manifiesto manifiesto = new Manifiesto();
+        String anterior = "";
+        for (int i = 1; i < lineas.length - 1; i++) {
+            int espacio = lineas[i].indexOf(' ');
+            String nombreBloque = (espacio > 0) ? lineas[i].substring(0, espacio) : "";
+            if (nombreBloque.compareTo(anterior) <= 0 || lineas[i].length() - espacio - 1 != 2 * ArbolMerkle.TAMANO_HASH) {
+                throw new IllegalArgumentException("Manifiesto mal formado en la línea " + (i + 1));
+            }
+            manifiesto.anadirResumen(nombreBloque, HexFormat.of().parseHex(lineas[i], espacio + 1, lineas[i].length()));
+            anterior = nombreBloque;
+        }
+        for (String obligatorio : OBLIGATORIOS) {
+            if (!manifiesto.resumenes.containsKey(obligatorio)) {
+                throw new IllegalArgumentException("El manifiesto no cubre el bloque " + obligatorio);
+            }
+        }
+        return manifiesto;
+    }
+
+    /*
+    Resumen que firma la Empresa: el del contenido del bloque MANIFIESTO.
+    */
+    public static byte[] resumen(byte[] contenido) {
+        return Firmas.nuevoResumen().digest(contenido);
+    }
+
+    /*
+    Resumen que firma la Autoridad al sellar un paquete suelto: resumen del
+    manifiesto || sello de tiempo.
+    */
+    public static byte[] resumenSello(byte[] resumenManifiesto, byte[] selloTiempo) {
+        MessageDigest resumen = Firmas.nuevoResumen();
+        resumen.update(resumenManifiesto);
+        resumen.update(selloTiempo);
+        return resumen.digest();
+    }
+
+    /*
+    Primer bloque de INTERPRETADOS que está en el paquete y no en el manifiesto
+    (null si no hay ninguno).
+    */
+    public String sinCubrir(Paquete paquete) {
+        for (String nombreBloque : INTERPRETADOS) {
+            if (paquete.contieneBloque(nombreBloque) && !this.resumenes.containsKey(nombreBloque)) {
+                return nombreBloque;
+            }
+        }
+        return null;
+    }
+
+    /*
+    Comprueba los bloques indicados contra el manifiesto y devuelve el nombre
+    del primero que falta o no coincide, o de un bloque INTERPRETADOS que el
+    manifiesto no cubre (null si todo coincide). Los bloques grandes se
+    resumen a la vez en otros hilos, salvo uno que se resume en este; los que
+    el paquete ya tenía resumidos no se vuelven a leer.
+    */
+    public String comprobar(Paquete paquete, Collection<String> nombresBloque) {
+        String sinCubrir = this.sinCubrir(paquete);
+        if (sinCubrir != null) {
+            return sinCubrir;
+        }
+        for (String nombreBloque : nombresBloque) {
+            if (!this.resumenes.containsKey(nombreBloque) || !paquete.contieneBloque(nombreBloque)) {
+                return nombreBloque;
+            }
+        }
+        List<String> enParalelo = new ArrayList<>();
+        List<CompletableFuture<byte[]>> resumenesEnParalelo = new ArrayList<>();
+        List<String> enEsteHilo = new ArrayList<>();
+        boolean grandeEnEsteHilo = false;
+        for (String nombreBloque : nombresBloque) {
+            boolean grande = !paquete.tieneResumenBloque(nombreBloque) && paquete.getLongitudAproximada(nombreBloque) >= MINIMO_PARALELO;
+            if (grande && grandeEnEsteHilo) {
+                enParalelo.add(nombreBloque);
+                resumenesEnParalelo.add(CompletableFuture.supplyAsync(() -> paquete.getResumenBloque(nombreBloque)));
+            } else {
+                enEsteHilo.add(nombreBloque);
+                grandeEnEsteHilo |= grande;
+            }
+        }
+        String distinto = null;
+        for (String nombreBloque : enEsteHilo) {
+            if (distinto == null && !MessageDigest.isEqual(this.resumenes.get(nombreBloque), paquete.getResumenBloque(nombreBloque))) {
+                distinto = nombreBloque;
+            }
+        }
+        for (int i = 0; i < enParalelo.size(); i++) {
+            byte[] resumen;
+            try {
+                resumen = resumenesEnParalelo.get(i).join();
+            } catch (CompletionException ex) {
+                throw (ex.getCause() instanceof RuntimeException) ? (RuntimeException) ex.getCause() : ex;
+            }
+            if (distinto == null && !MessageDigest.isEqual(this.resumenes.get(enParalelo.get(i)), resumen)) {
+                distinto = enParalelo.get(i);
+            }
+        }
+        return distinto;
+    }
+
+    /*
+    Comprueba todos los bloques del manifiesto.
+    */
+    public String comprobar(Paquete paquete) {
+        return this.comprobar(paquete, this.resumenes.keySet());
+    }
+}
@@ -0,0 +1,245 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.*;
+
+public final class Metricas {
+
+    /*
+    Medición por etapas de las herramientas, para saber en qué se va el tiempo
+    de un paquete (BASE64 de Paquete, carga de claves, RSA, AES...) sin tener
+    que enganchar un profiler a un lote en producción. Cada medición:
+      - emite un evento "factura.Etapa" de JDK Flight Recorder, que solo cuesta
+        algo si se está grabando (-XX:StartFlightRecording o jcmd <pid> JFR.start)
+      - y se suma al registro en memoria de su etapa: mediciones, bytes, tiempo
+        total, máximo y un histograma de latencias en potencias de 2
+    El registro se vuelca al terminar la JVM con
+        -Dfactura.metricas=texto|json             en la salida de error
+        -Dfactura.metricas=texto|json:<fichero>   en un fichero
+    o cuando se quiera con comoTexto() y comoJson() (ServicioSellado lo sirve
+    en GET /metricas).
+    Las etapas que se intercalan al procesar la factura por trozos (cifrar,
+    resumir, escribir) se acumulan con pausar()/reanudar() y cuentan como una
+    sola medición por factura.
+     */
+
+    public enum Etapa {
+        LEER_PAQUETE,       // indexar el fichero y decodificar bloques
+        ESCRIBIR_PAQUETE,   // codificar y escribir bloques
+        CARGAR_CLAVE,       // leer y parsear ficheros .publica / .privada
+        RESUMEN,            // SHA-256 de lo firmado
+        FIRMAR,
+        VERIFICAR,
+        CIFRAR_CLAVE,       // RSA de la clave AES con la clave pública de Hacienda
+        DESCIFRAR_CLAVE,
+        CIFRAR,             // AES de la factura
+        DESCIFRAR,
+        COMPRIMIR,          // factura en claro, antes de cifrar (ver Compresion)
+        DESCOMPRIMIR
+    }
+
+    public static final String PROPIEDAD_METRICAS = "factura.metricas";
+
+    private static final Histograma[] HISTOGRAMAS = new Histograma[Etapa.values().length];
+
+    static {
+        for (int i = 0; i < HISTOGRAMAS.length; i++) {
+            HISTOGRAMAS[i] = new Histograma();
+        }
+        programarVolcado(System.getProperty(PROPIEDAD_METRICAS));
+    }
+
+    private Metricas() {
+    }
+
+    /*
+    Medición que empieza ya; termina con close() (try-with-resources).
+    */
+    public static Medicion medir(Etapa etapa) {
+        return new Medicion(etapa, true);
+    }
+
+    /*
+    Medición parada, que se va acumulando entre reanudar() y pausar().
+    */
+    public static Medicion acumular(Etapa etapa) {
+        return new Medicion(etapa, false);
+    }
+
+    public static final class Medicion implements AutoCloseable {
+
+        private final Etapa etapa;
+        private final EventoEtapa evento = new EventoEtapa();
+        private long inicio = -1; // -1 si está parada
+        private long nanos = 0;
+        private long bytes = 0;
+        private boolean cerrada = false;
+
+        private Medicion(Etapa etapa, boolean enMarcha) {
+            this.etapa = etapa;
+            this.evento.begin();
+            if (enMarcha) {
+                this.inicio = System.nanoTime();
+            }
+        }
+
+        public void reanudar() {
+            if (this.inicio < 0) {
+                this.inicio = System.nanoTime();
+            }
+        }
+
+        /*
+        Para el reloj y suma los bytes procesados desde reanudar().
+        */
+        public void pausar(long bytesProcesados) {
+            if (this.inicio >= 0) {
+                this.nanos += System.nanoTime() - this.inicio;
+                this.inicio = -1;
+            }
+            this.bytes += bytesProcesados;
+        }
+
+        public void anadirBytes(long bytesProcesados) {
+            this.bytes += bytesProcesados;
+        }
+
+        @Override
+        public void close() {
+            if (this.cerrada) {
+                return;
+            }
+            this.cerrada = true;
+            this.pausar(0);
+            HISTOGRAMAS[this.etapa.ordinal()].registrar(this.nanos, this.bytes);
+            this.evento.end();
+            if (this.evento.shouldCommit()) {
+                this.evento.etapa = this.etapa.name();
+                this.evento.bytes = this.bytes;
+                this.evento.tiempoActivo = this.nanos;
+                this.evento.commit();
+            }
+        }
+    }
+
+    @Name("factura.Etapa")
+    @Label("Etapa de factura")
+    @Category("Factura")
+    @Description("Una etapa de EmpaquetarFactura, SellarFactura o DesempaquetarFactura (ver Metricas.Etapa)")
+    static class EventoEtapa extends Event {
+
+        @Label("Etapa")
+        String etapa;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Tiempo activo")
+        @Description("Tiempo dentro de la etapa; menor que la duración si se ha intercalado con otras")
+        @Timespan(Timespan.NANOSECONDS)
+        long tiempoActivo;
+    }
+
+    /*
+    Registro de una etapa. La cubeta i cuenta las mediciones de menos de 2^i ns
+    (y al menos 2^(i-1)), así que los percentiles son la cota superior de su cubeta.
+    */
+    private static class Histograma {
+
+        private final LongAdder mediciones = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAccumulator maximo = new LongAccumulator(Math::max, 0);
+        private final AtomicLongArray cubetas = new AtomicLongArray(Long.SIZE + 1);
+
+        void registrar(long nanosMedicion, long bytesMedicion) {
+            this.mediciones.increment();
+            this.nanos.add(nanosMedicion);
+            this.bytes.add(bytesMedicion);
+            this.maximo.accumulate(nanosMedicion);
+            this.cubetas.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(nanosMedicion));
+        }
+
+        long percentil(long total, int p) {
+            long rango = (long) Math.ceil(p / 100.0 * total);
+            long acumuladas = 0;
+            for (int i = 0; i < this.cubetas.length(); i++) {
+                acumuladas += this.cubetas.get(i);
+                if (acumuladas >= rango) {
+                    return Math.min((i == 0) ? 0 : 1L << Math.min(i, 62), this.maximo.get());
+                }
+            }
+            return this.maximo.get();
+        }
+    }
+
+    public static String comoTexto() {
+        StringBuilder texto = new StringBuilder();
+        texto.append(String.format(Locale.ROOT, "%-16s %10s %14s %12s %10s %10s %10s %10s %10s%n",
+                "etapa", "mediciones", "bytes", "total_ms", "media_ms", "p50_ms", "p90_ms", "p99_ms", "max_ms"));
+        for (Etapa etapa : Etapa.values()) {
+            Histograma h = HISTOGRAMAS[etapa.ordinal()];
+            long mediciones = h.mediciones.sum();
+            if (mediciones > 0) {
+                texto.append(String.format(Locale.ROOT, "%-16s %10d %14d %12.3f %10.3f %10.3f %10.3f %10.3f %10.3f%n",
+                        etapa, mediciones, h.bytes.sum(), h.nanos.sum() / 1e6, h.nanos.sum() / 1e6 / mediciones,
+                        h.percentil(mediciones, 50) / 1e6, h.percentil(mediciones, 90) / 1e6, h.percentil(mediciones, 99) / 1e6, h.maximo.get() / 1e6));
+            }
+        }
+        return texto.toString();
+    }
+
+    public static String comoJson() {
+        StringBuilder json = new StringBuilder("{\"etapas\": {");
+        String separador = "";
+        for (Etapa etapa : Etapa.values()) {
+            Histograma h = HISTOGRAMAS[etapa.ordinal()];
+            long mediciones = h.mediciones.sum();
+            if (mediciones > 0) {
+                json.append(separador).append(Json.cadena(etapa.name())).append(String.format(Locale.ROOT,
+                        ": {\"mediciones\": %d, \"bytes\": %d, \"total_ms\": %.3f, \"media_ms\": %.3f, \"p50_ms\": %.3f, \"p90_ms\": %.3f, \"p99_ms\": %.3f, \"max_ms\": %.3f}",
+                        mediciones, h.bytes.sum(), h.nanos.sum() / 1e6, h.nanos.sum() / 1e6 / mediciones,
+                        h.percentil(mediciones, 50) / 1e6, h.percentil(mediciones, 90) / 1e6, h.percentil(mediciones, 99) / 1e6, h.maximo.get() / 1e6));
+                separador = ", ";
+            }
+        }
+        return json.append("}}").toString();
+    }
+
+    /*
+    Con -Dfactura.metricas=texto|json[:fichero] el registro se vuelca al terminar,
+    también si la herramienta acaba con System.exit().
+    */
+    private static void programarVolcado(String configuracion) {
+        if (configuracion == null || configuracion.isEmpty()) {
+            return;
+        }
+        int dosPuntos = configuracion.indexOf(':');
+        String formato = (dosPuntos < 0) ? configuracion : configuracion.substring(0, dosPuntos);
+        String fichero = (dosPuntos < 0) ? null : configuracion.substring(dosPuntos + 1);
+        if (!formato.equalsIgnoreCase("texto") && !formato.equalsIgnoreCase("json")) {
+            System.err.println("Valor no válido para -D" + PROPIEDAD_METRICAS + ": " + configuracion + " (texto|json[:fichero])");
+            return;
+        }
+        boolean json = formato.equalsIgnoreCase("json");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            String informe = json ? comoJson() + System.lineSeparator() : comoTexto();
+            if (fichero == null) {
+                System.err.print(informe);
+                System.err.flush();
+                return;
+            }
+            try {
+                Files.write(Paths.get(fichero), informe.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException ex) {
+                System.err.println("No se pueden guardar las métricas en " + fichero + ": " + ex.getMessage());
+            }
+        }, "volcado-metricas"));
+    }
+}
@@ -1,22 +1,72 @@
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.PushbackInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Base64;
 
 public class Paquete {
 
+    /*
+    Formatos de fichero de un paquete. Al leer se detecta solo; al escribir
+    se usa el formato con el que se leyo (TEXTO en paquetes nuevos).
+    */
+    public enum Formato {
+        TEXTO, BINARIO;
+
+        /*
+        Formato indicado por una opcion de linea de comandos (--texto o
+        --binario), o null si el argumento no es una de ellas.
+        */
+        public static Formato deOpcion(String opcion) {
+            switch (opcion) {
+                case "--texto":
+                    return TEXTO;
+                case "--binario":
+                    return BINARIO;
+                default:
+                    return null;
+            }
+        }
+    }
+
     private Map<String, Bloque> bloques;
+    private Formato formato = Formato.TEXTO;
 
     public Paquete() {
         this.bloques = new HashMap<>();
@@ -27,16 +77,116 @@ public class Paquete {
         this.leerPaquete(nombreFichero);
     }
 
+    /*
+    Lee el paquete sin cargar en memoria los bloques indicados (p.ej. una
+    FACTURA_CIFRADA muy grande), que se pueden procesar despues como stream
+    con abrirBloque(nombreFichero, nombreBloque).
+    */
+    public Paquete(String nombreFichero, String... bloquesOmitidos) {
+        this();
+        Set<String> omitidos = new HashSet<>();
+        for (String nombreBloque : bloquesOmitidos) {
+            omitidos.add(normalizarNombre(nombreBloque));
+        }
+        this.leerPaquete(nombreFichero, omitidos);
+    }
+
     public byte[] getContenidoBloque(String nombreBloque) {
         String nombreNormalizado = normalizarNombre(nombreBloque);
         Bloque bloque = this.bloques.get(nombreNormalizado);
-        if (bloque != null) {
+        if (bloque instanceof BloqueMapeado) {
+            return ((BloqueMapeado) bloque).decodificar();
+        } else if (bloque != null) {
             return bloque.contenido;
         } else {
             return null;
         }
     }
 
+    public boolean contieneBloque(String nombreBloque) {
+        return this.bloques.containsKey(normalizarNombre(nombreBloque));
+    }
+
+    /*
+    Resumen SHA-256 del contenido de un bloque, o null si no existe. Se
+    calcula como stream la primera vez que se pide y se guarda en el bloque
+    mientras no se sustituya (ver Manifiesto).
+    */
+    public byte[] getResumenBloque(String nombreBloque) {
+        Bloque bloque = this.bloques.get(normalizarNombre(nombreBloque));
+        if (bloque == null) {
+            return null;
+        }
+        byte[] resumen = bloque.resumen;
+        if (resumen == null) {
+            MessageDigest sha256 = Firmas.nuevoResumen();
+            try (Metricas.Medicion medicion = Metricas.medir(Metricas.Etapa.RESUMEN);
+                 InputStream in = this.abrirBloque(nombreBloque)) {
+                byte[] buffer = new byte[64 * 1024];
+                int leidos;
+                while ((leidos = in.read(buffer)) != -1) {
+                    sha256.update(buffer, 0, leidos);
+                    medicion.anadirBytes(leidos);
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);  // Solo puede venir de un BASE64 mal formado
+            }
+            resumen = sha256.digest();
+            bloque.resumen = resumen;
+        }
+        return resumen.clone();
+    }
+
+    /*
+    Indica si el resumen del bloque ya esta calculado.
+    */
+    public boolean tieneResumenBloque(String nombreBloque) {
+        Bloque bloque = this.bloques.get(normalizarNombre(nombreBloque));
+        return bloque != null && bloque.resumen != null;
+    }
+
+    /*
+    Guarda el resumen de un bloque calculado por otro camino (p.ej. mientras
+    se descifra), para no volver a leerlo.
+    */
+    void guardarResumenBloque(String nombreBloque, byte[] resumen) {
+        Bloque bloque = this.bloques.get(normalizarNombre(nombreBloque));
+        if (bloque != null) {
+            bloque.resumen = resumen.clone();
+        }
+    }
+
+    /*
+    Longitud del contenido de un bloque sin decodificarlo (en los bloques
+    BASE64 sin decodificar, aproximada), o -1 si no existe.
+    */
+    public long getLongitudAproximada(String nombreBloque) {
+        Bloque bloque = this.bloques.get(normalizarNombre(nombreBloque));
+        if (bloque instanceof BloqueMapeado) {
+            return ((BloqueMapeado) bloque).longitudAproximada();
+        } else if (bloque != null) {
+            return bloque.contenido.length;
+        } else {
+            return -1;
+        }
+    }
+
+    /*
+    Stream con el contenido de un bloque, o null si no existe. En un paquete
+    abierto con abrir() se decodifica directamente del fichero mapeado, sin
+    cargar el bloque entero en memoria ni guardarlo en la cache.
+    */
+    public InputStream abrirBloque(String nombreBloque) {
+        Bloque bloque = this.bloques.get(normalizarNombre(nombreBloque));
+        if (bloque instanceof BloqueMapeado) {
+            return ((BloqueMapeado) bloque).abrir();
+        } else if (bloque != null) {
+            return new ByteArrayInputStream(bloque.contenido);
+        } else {
+            return null;
+        }
+    }
+
     public void anadirBloque(String nombre, byte[] contenido) {
         if (this.bloques == null) {
             this.bloques = new HashMap<>();
@@ -62,6 +212,14 @@ public class Paquete {
         }
     }
 
+    public Formato getFormato() {
+        return this.formato;
+    }
+
+    public void setFormato(Formato formato) {
+        this.formato = formato;
+    }
+
     public List<String> getNombresBloque() {
         List<String> result = new ArrayList<>(this.bloques.keySet());
 
@@ -70,10 +228,31 @@ public class Paquete {
     }
 
     private String normalizarNombre(String nombreBloque) {
+        return normalizarNombreBloque(nombreBloque);
+    }
+
+    private static String normalizarNombreBloque(String nombreBloque) {
         String result = nombreBloque.trim().replaceAll(" ", "_").toUpperCase();
         return result;
     }
 
+    /*
+    Nombre de un bloque leido de un fichero, normalizado igual que en
+    anadirBloque. Lo usan todos los lectores, de texto y binarios, para que
+    un paquete se acepte o se rechace igual en los dos formatos: un nombre
+    vacio o un bloque repetido hacen el paquete invalido.
+    */
+    private static String nombreBloqueLeido(String nombreBloque, Set<String> leidos) throws IOException {
+        String nombre = normalizarNombreBloque(nombreBloque);
+        if (nombre.isEmpty()) {
+            throw new IOException("Bloque sin nombre en el paquete");
+        }
+        if (!leidos.add(nombre)) {
+            throw new IOException("Bloque repetido en el paquete: " + nombre);
+        }
+        return nombre;
+    }
+
     public final static String MARCA_CABECERA = "-----";
     public final static String INICIO_PAQUETE = MARCA_CABECERA + "INICIO PAQUETE" + MARCA_CABECERA;
     public final static String FIN_PAQUETE = MARCA_CABECERA + "FIN PAQUETE" + MARCA_CABECERA;
@@ -83,9 +262,209 @@ public class Paquete {
     public final static String FIN_BLOQUE_FORMATO = FIN_BLOQUE + " %s" + MARCA_CABECERA;
     public final static int ANCHO_LINEA = 65;
 
+    /*
+    Formato binario: MAGIA_BINARIA, numero de bloques (int) y por cada bloque
+    longitud del nombre (unsigned short), nombre en UTF-8, longitud del
+    contenido (long) y contenido. Enteros en big-endian (DataOutputStream).
+    La cabecera empieza por un byte no ASCII y lleva CR LF y ^Z, asi no se
+    confunde con el formato texto y se nota si se ha transferido como texto.
+    */
+    public final static byte[] MAGIA_BINARIA = {(byte) 0x89, 'P', 'A', 'Q', '\r', '\n', 0x1A, '\n'};
+
+    /*
+    Como el constructor con bloques omitidos, pero sin terminar el proceso si el
+    fichero no existe o esta mal formado: el error se devuelve al llamador
+    (necesario en los modos lote, donde un paquete malo no debe parar el resto).
+    */
+    public static Paquete cargar(String nombreFichero, String... bloquesOmitidos) throws IOException {
+        Set<String> omitidos = new HashSet<>();
+        for (String nombreBloque : bloquesOmitidos) {
+            omitidos.add(nombreBloque.trim().replaceAll(" ", "_").toUpperCase());
+        }
+        Paquete paquete = new Paquete();
+        try (InputStream in = new FileInputStream(nombreFichero)) {
+            paquete.leerPaquete(in, omitidos);
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Contenido BASE64 no valido en " + nombreFichero, ex);
+        }
+        return paquete;
+    }
+
+    /*
+    Abre un paquete sin decodificar sus bloques: el fichero se mapea en
+    memoria, se recorren solo las cabeceras para saber donde empieza y acaba
+    cada bloque, y cada bloque se decodifica la primera vez que se pide con
+    getContenidoBloque() (y se guarda). Consultar los nombres o leer un bloque
+    pequeno de un paquete grande no obliga a decodificar la factura.
+    */
+    public static Paquete abrir(String nombreFichero) throws IOException {
+        try (FileChannel canal = FileChannel.open(Paths.get(nombreFichero), StandardOpenOption.READ);
+             Metricas.Medicion medicion = Metricas.medir(Metricas.Etapa.LEER_PAQUETE)) {
+            medicion.anadirBytes(canal.size());
+            if (canal.size() > Integer.MAX_VALUE) {
+                throw new IOException("Paquete demasiado grande para mapearlo en memoria: " + nombreFichero);
+            }
+            MappedByteBuffer mapa = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+            return indexar(mapa);
+        }
+    }
+
+    /*
+    Como abrir(nombreFichero), para un paquete que esta entre position() y
+    limit() de un buffer (p.ej. un trozo mapeado de un segmento de
+    ArchivoPaquetes). Los bloques se decodifican del propio buffer, que no
+    debe modificarse mientras se use el paquete.
+    */
+    public static Paquete abrir(ByteBuffer contenido) throws IOException {
+        try (Metricas.Medicion medicion = Metricas.medir(Metricas.Etapa.LEER_PAQUETE)) {
+            medicion.anadirBytes(contenido.remaining());
+            return indexar(contenido.slice());
+        }
+    }
+
+    private static Paquete indexar(ByteBuffer mapa) throws IOException {
+        Paquete paquete = new Paquete();
+        if (empiezaPor(mapa, MAGIA_BINARIA)) {
+            paquete.indexarBinario(mapa);
+        } else {
+            paquete.indexarTexto(mapa);
+        }
+        return paquete;
+    }
+
+    private static boolean empiezaPor(ByteBuffer mapa, byte[] prefijo) {
+        if (mapa.limit() < prefijo.length) {
+            return false;
+        }
+        for (int i = 0; i < prefijo.length; i++) {
+            if (mapa.get(i) != prefijo[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void indexarBinario(ByteBuffer mapa) throws IOException {
+        this.formato = Formato.BINARIO;
+        try {
+            Set<String> leidos = new HashSet<>();
+            int posicion = MAGIA_BINARIA.length;
+            int numeroBloques = mapa.getInt(posicion);
+            posicion += Integer.BYTES;
+            for (int i = 0; i < numeroBloques; i++) {
+                int largoNombre = mapa.getShort(posicion) & 0xFFFF;
+                posicion += Short.BYTES;
+                byte[] nombre = new byte[largoNombre];
+                mapa.get(posicion, nombre);
+                posicion += largoNombre;
+                long longitud = mapa.getLong(posicion);
+                posicion += Long.BYTES;
+                if (longitud < 0 || longitud > mapa.limit() - posicion) {
+                    throw new EOFException("Paquete binario incompleto");
+                }
+                String nombreBloque = nombreBloqueLeido(new String(nombre, StandardCharsets.UTF_8), leidos);
+                this.bloques.put(nombreBloque, new BloqueMapeado(nombreBloque, mapa.slice(posicion, (int) longitud), false));
+                posicion += (int) longitud;
+            }
+        } catch (IndexOutOfBoundsException ex) {
+            throw new EOFException("Paquete binario incompleto");
+        }
+    }
+
+    /*
+    Recorre las cabeceras del formato texto. Dentro de un bloque las lineas
+    llenas miden ANCHO_LINEA, asi que se salta de linea en linea mirando
+    su primer caracter (y comprobando que era llena, ver sinFinLinea) hasta
+    dar con la marca de fin de bloque.
+    */
+    private void indexarTexto(ByteBuffer mapa) throws IOException {
+        Set<String> leidos = new HashSet<>();
+        int posicion = 0;
+        boolean iniciado = false;
+        while (true) {
+            if (posicion >= mapa.limit()) {
+                throw new EOFException(iniciado ? "Paquete incompleto, falta " + FIN_PAQUETE : "No se encuentra " + INICIO_PAQUETE);
+            }
+            int finLinea = buscarFinLinea(mapa, posicion);
+            String linea = lineaTexto(mapa, posicion, finLinea);
+            posicion = finLinea + 1;
+            if (!iniciado) {
+                iniciado = linea.equals(INICIO_PAQUETE);
+            } else if (linea.equals(FIN_PAQUETE)) {
+                return;
+            } else if (linea.startsWith(INICIO_BLOQUE)) {
+                String nombre = nombreBloqueLeido(extraerNombreBloque(linea), leidos);
+                int inicioContenido = posicion;
+                while ((posicion < mapa.limit()) && (mapa.get(posicion) != '-')) {
+                    int saltoLinea = posicion + ANCHO_LINEA;
+                    if ((saltoLinea < mapa.limit()) && (mapa.get(saltoLinea) == '\n') && sinFinLinea(mapa, posicion)) {
+                        posicion = saltoLinea + 1;
+                    } else if ((saltoLinea + 1 < mapa.limit()) && (mapa.get(saltoLinea) == '\r') && (mapa.get(saltoLinea + 1) == '\n') && sinFinLinea(mapa, posicion)) {
+                        posicion = saltoLinea + 2;
+                    } else {
+                        posicion = buscarFinLinea(mapa, posicion) + 1;  // Ultima linea del bloque (mas corta)
+                    }
+                }
+                if (posicion >= mapa.limit()) {
+                    throw new EOFException("Bloque incompleto, falta " + FIN_BLOQUE);
+                }
+                this.bloques.put(nombre, new BloqueMapeado(nombre, mapa.slice(inicioContenido, posicion - inicioContenido), true));
+                posicion = buscarFinLinea(mapa, posicion) + 1;  // Saltar la linea FIN_BLOQUE
+            }
+        }
+    }
+
+    /*
+    Comprueba que la linea que empieza en inicio es una linea llena, es decir,
+    que no hay ningun '\n' antes de la columna ANCHO_LINEA: una ultima linea
+    corta seguida de la linea de fin de bloque tambien puede acabar justo ahi.
+    Se leen 8 bytes de cada vez y se busca un byte '\n' con la tecnica de
+    "hay un byte cero" sobre (palabra XOR '\n' repetido).
+    */
+    private static boolean sinFinLinea(ByteBuffer mapa, int inicio) {
+        int fin = inicio + ANCHO_LINEA;
+        int posicion = inicio;
+        for (; posicion + Long.BYTES <= fin; posicion += Long.BYTES) {
+            long palabra = mapa.getLong(posicion) ^ OCHO_FINES_LINEA;
+            if (((palabra - OCHO_UNOS) & ~palabra & OCHO_BITS_ALTOS) != 0) {
+                return false;
+            }
+        }
+        for (; posicion < fin; posicion++) {
+            if (mapa.get(posicion) == '\n') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final long OCHO_UNOS = 0x0101010101010101L;
+    private static final long OCHO_BITS_ALTOS = 0x8080808080808080L;
+    private static final long OCHO_FINES_LINEA = OCHO_UNOS * '\n';
+
+    private static int buscarFinLinea(ByteBuffer mapa, int posicion) {
+        while ((posicion < mapa.limit()) && (mapa.get(posicion) != '\n')) {
+            posicion++;
+        }
+        return posicion;
+    }
+
+    private static String lineaTexto(ByteBuffer mapa, int inicio, int fin) {
+        if ((fin > inicio) && (mapa.get(fin - 1) == '\r')) {
+            fin--;
+        }
+        byte[] linea = new byte[fin - inicio];
+        mapa.get(inicio, linea);
+        return new String(linea, StandardCharsets.ISO_8859_1);
+    }
+
     public void leerPaquete(String nombreFichero) {
+        this.leerPaquete(nombreFichero, Collections.emptySet());
+    }
+
+    private void leerPaquete(String nombreFichero, Set<String> omitidos) {
         try (InputStream in = new FileInputStream(nombreFichero)) {
-            this.leerPaquete(in);
+            this.leerPaquete(in, omitidos);
         } catch (FileNotFoundException ex) {
             System.err.println("No existe fichero de paquete " + nombreFichero);
             ex.printStackTrace(System.err);
@@ -98,30 +477,76 @@ public class Paquete {
     }
 
     public void escribirPaquete(String nombreFichero) {
-        try (PrintStream out = new PrintStream(nombreFichero)) {
-            this.escribirPaquete(out);
-        } catch (FileNotFoundException ex) {
+        // Un paquete abierto con abrir() puede estar leyendo del mismo fichero que se va a sobrescribir
+        for (String nombreBloque : this.getNombresBloque()) {
+            this.getContenidoBloque(nombreBloque);
+        }
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(nombreFichero), 64 * 1024)) {
+            this.escribirPaquete(out, this.formato);
+        } catch (IOException ex) {
             System.err.println("Error escribiendo fichero de paquete " + nombreFichero);
             ex.printStackTrace(System.err);
             System.exit(1);
         }
     }
 
-    private void leerPaquete(InputStream entrada) throws IOException {
-        BufferedReader in = new BufferedReader(new InputStreamReader(entrada));
-        String linea = in.readLine();
+    public void escribirPaquete(OutputStream salida, Formato formato) throws IOException {
+        try (Metricas.Medicion medicion = Metricas.medir(Metricas.Etapa.ESCRIBIR_PAQUETE)) {
+            for (String nombreBloque : this.getNombresBloque()) {
+                medicion.anadirBytes(this.getContenidoBloque(nombreBloque).length);
+            }
+            this.escribirPaqueteSinMedir(salida, formato);
+        }
+    }
 
-        while (!linea.equals(INICIO_PAQUETE)) {
-            linea = in.readLine();
+    private void escribirPaqueteSinMedir(OutputStream salida, Formato formato) throws IOException {
+        if (formato == Formato.BINARIO) {
+            DataOutputStream out = new DataOutputStream(salida);
+            List<String> nombres = this.getNombresBloque();
+            out.write(MAGIA_BINARIA);
+            out.writeInt(nombres.size());
+            for (String nombreBloque : nombres) {
+                byte[] contenido = this.getContenidoBloque(nombreBloque);
+                escribirCabeceraBinaria(out, nombreBloque);
+                out.writeLong(contenido.length);
+                out.write(contenido);
+            }
+            out.flush();
+        } else {
+            PrintStream out = new PrintStream(salida);
+            this.escribirPaquete(out);
+            out.flush();
+            if (out.checkError()) {
+                throw new IOException("Error escribiendo el paquete");
+            }
         }
-        Paquete.Bloque bloque = leerBloque(in);
-        while (bloque != null) {
-            this.anadirBloque(bloque.nombre, bloque.contenido);
-            bloque = leerBloque(in);
+    }
+
+    public void leerPaquete(InputStream entrada) throws IOException {
+        this.leerPaquete(entrada, Collections.emptySet());
+    }
+
+    private void leerPaquete(InputStream entrada, Set<String> omitidos) throws IOException {
+        try (Metricas.Medicion medicion = Metricas.medir(Metricas.Etapa.LEER_PAQUETE)) {
+            LectorPaquete lector = abrirLector(entrada);
+            this.formato = lector.getFormato();
+            String nombre = lector.siguienteBloque();
+            while (nombre != null) {
+                if (omitidos.contains(nombre)) {
+                    nombre = lector.siguienteBloque();  // Se salta sin decodificar
+                    continue;
+                }
+                try (InputStream contenido = lector.abrirContenido()) {
+                    byte[] bytes = contenido.readAllBytes();
+                    this.anadirBloque(nombre, bytes);
+                    medicion.anadirBytes(bytes.length);
+                }
+                nombre = lector.siguienteBloque();
+            }
         }
     }
 
-    private void escribirPaquete(PrintStream out) {
+    public void escribirPaquete(PrintStream out) {
         out.println(INICIO_PAQUETE);
         for (String nombreBloque : this.getNombresBloque()) {
             escribirBloque(out, nombreBloque, this.getContenidoBloque(nombreBloque));
@@ -129,70 +554,785 @@ public class Paquete {
         out.println(FIN_PAQUETE);
     }
 
-    private void escribirBloque(PrintStream out, String nombreBloque, byte[] contenido) {
+    private static void escribirBloque(PrintStream out, String nombreBloque, byte[] contenido) {
         if ((nombreBloque != null) && (contenido != null)) {
-            out.printf(INICIO_BLOQUE_FORMATO + "\n", nombreBloque);
+            try (OutputStream salida = abrirBloque(out, nombreBloque)) {
+                salida.write(contenido);
+            } catch (IOException ex) {
+                // PrintStream no lanza IOException, los errores se consultan con checkError()
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    /*
+    Abre un bloque en la salida: escribe la cabecera y devuelve un stream que
+    codifica en BASE64 lo que recibe, cortando en lineas de ANCHO_LINEA.
+    Al cerrarlo se escribe la ultima linea y la marca de fin de bloque.
+    */
+    private static OutputStream abrirBloque(PrintStream out, String nombreBloque) {
+        out.printf(INICIO_BLOQUE_FORMATO + "\n", nombreBloque);
+        return Base64.getEncoder().wrap(new SalidaLineas(out, nombreBloque));
+    }
+
+    private static void escribirCabeceraBinaria(DataOutputStream out, String nombreBloque) throws IOException {
+        byte[] nombre = nombreBloque.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(nombre.length);
+        out.write(nombre);
+    }
 
-            byte[] contenidoBASE64 = Base64.getEncoder().encode(contenido);
+    private static String extraerNombreBloque(String texto) {
+        int inicioNombreBloque = INICIO_BLOQUE.length() + 1;
+        int finNombreBloque = texto.lastIndexOf(MARCA_CABECERA);
+        return texto.substring(inicioNombreBloque, finNombreBloque);
+    }
 
-            int lineas = contenidoBASE64.length / ANCHO_LINEA;
-            int resto = contenidoBASE64.length % ANCHO_LINEA;
-            for (int i = 0; i < lineas; i++) {
-                out.println(new String(contenidoBASE64, i * ANCHO_LINEA, ANCHO_LINEA));
+    /*
+    Abre directamente del fichero el contenido (ya decodificado) de un bloque,
+    sin cargar el paquete en memoria. Devuelve null si el bloque no existe.
+    El stream devuelto debe cerrarse para liberar el fichero.
+    */
+    public static InputStream abrirBloque(String nombreFichero, String nombreBloque) throws IOException {
+        String nombreBuscado = nombreBloque.trim().replaceAll(" ", "_").toUpperCase();
+        LectorPaquete lector = abrirLector(new FileInputStream(nombreFichero));
+        try {
+            String nombre = lector.siguienteBloque();
+            while (nombre != null) {
+                if (nombre.equals(nombreBuscado)) {
+                    return new FilterInputStream(lector.abrirContenido()) {
+                        @Override
+                        public void close() throws IOException {
+                            lector.close();
+                        }
+                    };
+                }
+                nombre = lector.siguienteBloque();
+            }
+        } catch (IOException | RuntimeException ex) {
+            lector.close();
+            throw ex;
+        }
+        lector.close();
+        return null;
+    }
+
+    /*
+    Copia un paquete en otro fichero con el formato indicado, bloque a bloque
+    y sin cargar los contenidos en memoria. Los bloques conservan su orden.
+    */
+    public static void convertir(String ficheroEntrada, String ficheroSalida, Formato formato) throws IOException {
+        try (LectorPaquete lector = abrirLector(new FileInputStream(ficheroEntrada));
+             Escritor escritor = new Escritor(ficheroSalida, formato)) {
+            String nombre = lector.siguienteBloque();
+            while (nombre != null) {
+                try (InputStream contenido = lector.abrirContenido()) {
+                    escritor.escribirBloque(nombre, contenido);
+                }
+                nombre = lector.siguienteBloque();
             }
-            out.println(new String(contenidoBASE64, lineas * ANCHO_LINEA, resto));
+        }
+    }
+
+    /*
+    Anade bloques al final de un paquete ya escrito sin reescribir los que
+    tiene (p.ej. el sello a un paquete con una FACTURA_CIFRADA muy grande):
+    en formato texto se escriben encima de la linea FIN_PAQUETE, que se
+    vuelve a poner detras; en binario se escriben al final y despues se
+    actualiza el numero de bloques de la cabecera.
+    Todo se hace con el fichero bloqueado (FileLock exclusivo frente a otros
+    procesos, y un monitor por fichero dentro de este): dos selladores del
+    mismo paquete no anexan a la vez ni deshacen el anexo del otro. Con el
+    bloqueo tomado se vuelven a leer los nombres de los bloques: si alguno de
+    los nuevos ya esta (p.ej. otro proceso acaba de poner FIRMA_AUTORIDAD) no
+    se toca el fichero y se devuelve false.
+    Antes de tocar el fichero se guarda en <fichero>.diario su longitud y
+    los bytes que se van a sobrescribir, y el diario se borra cuando lo
+    nuevo ya esta en disco (fsync). Si falla a medias, o el proceso muere,
+    recuperarAnexo() deja el paquete como estaba.
+    En un mismo proceso, cerrar otro canal del fichero suelta el FileLock (es
+    por proceso): mientras se anexa no se debe abrir el paquete en otro hilo.
+    */
+    @SuppressWarnings("try") // el FileLock solo se mantiene durante el bloque
+    public static boolean anexarBloques(String nombreFichero, Map<String, byte[]> nuevos) throws IOException {
+        Path fichero = Paths.get(nombreFichero);
+        synchronized (monitorAnexo(fichero)) {
+            try (FileChannel canal = FileChannel.open(fichero, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 FileLock bloqueo = canal.lock();
+                 Metricas.Medicion medicion = Metricas.medir(Metricas.Etapa.ESCRIBIR_PAQUETE)) {
+                for (byte[] contenido : nuevos.values()) {
+                    medicion.anadirBytes(contenido.length);  // y sin bloques null antes de tocar el fichero
+                }
+                recuperarAnexo(fichero, canal);
+                long longitud = canal.size();
+                if (longitud > Integer.MAX_VALUE) {
+                    throw new IOException("Paquete demasiado grande para mapearlo en memoria: " + nombreFichero);
+                }
+                Paquete actual = indexar(canal.map(FileChannel.MapMode.READ_ONLY, 0, longitud));  // sobre este canal, sin soltar el bloqueo
+                for (String nombreBloque : nuevos.keySet()) {
+                    if (actual.contieneBloque(nombreBloque)) {
+                        return false;
+                    }
+                }
 
-            out.printf(FIN_BLOQUE_FORMATO + "\n", nombreBloque);
+                ByteBuffer cabecera = ByteBuffer.allocate(MAGIA_BINARIA.length + Integer.BYTES);
+                leerEn(canal, 0, cabecera);
+                boolean binario = empiezaPor(cabecera, MAGIA_BINARIA);
+                long inicio = binario ? longitud : buscarFinPaquete(canal, longitud);
+                long zona = binario ? MAGIA_BINARIA.length : inicio;  // lo que se sobrescribe
+                ByteBuffer original = ByteBuffer.allocate((int) (binario ? Integer.BYTES : longitud - inicio));
+                leerEn(canal, zona, original);
+                escribirDiario(fichero, longitud, zona, original.array());
+                try {
+                    OutputStream salida = new BufferedOutputStream(Channels.newOutputStream(canal.position(inicio)), 64 * 1024);
+                    if (binario) {
+                        DataOutputStream out = new DataOutputStream(salida);
+                        for (Map.Entry<String, byte[]> bloque : nuevos.entrySet()) {
+                            escribirCabeceraBinaria(out, normalizarNombreBloque(bloque.getKey()));
+                            out.writeLong(bloque.getValue().length);
+                            out.write(bloque.getValue());
+                        }
+                        out.flush();
+                        canal.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, cabecera.getInt(MAGIA_BINARIA.length) + nuevos.size()), MAGIA_BINARIA.length);
+                    } else {
+                        PrintStream out = new PrintStream(salida);
+                        for (Map.Entry<String, byte[]> bloque : nuevos.entrySet()) {
+                            escribirBloque(out, normalizarNombreBloque(bloque.getKey()), bloque.getValue());
+                        }
+                        out.println(FIN_PAQUETE);
+                        out.flush();
+                        if (out.checkError()) {
+                            throw new IOException("Error anadiendo bloques al paquete " + nombreFichero);
+                        }
+                        canal.truncate(canal.position());  // por si habia mas saltos de linea tras FIN_PAQUETE
+                    }
+                    canal.force(true);
+                } catch (IOException | RuntimeException ex) {
+                    recuperarAnexo(fichero, canal);  // con el bloqueo aun tomado
+                    throw ex;
+                }
+                Files.delete(diario(fichero));
+                sincronizarDirectorio(fichero);  // sin esto el diario podria volver tras un corte y deshacer el anexo
+            }
         }
+        return true;
     }
 
-    private Paquete.Bloque leerBloque(BufferedReader in) throws IOException {
-        String linea = in.readLine();
-        while ((!linea.startsWith(INICIO_BLOQUE) && (!linea.equals(FIN_PAQUETE)))) {
-            linea = in.readLine();
+    /*
+    Deshace un anexarBloques() interrumpido del fichero, si lo hay: vuelve a
+    poner los bytes guardados en el diario y la longitud original. Devuelve
+    true si habia algo que deshacer. Si hay diario se espera al bloqueo del
+    fichero: el de un anexo que sigue en curso en otro proceso no se toca.
+    */
+    @SuppressWarnings("try") // el FileLock solo se mantiene durante el bloque
+    public static boolean recuperarAnexo(String nombreFichero) throws IOException {
+        Path fichero = Paths.get(nombreFichero);
+        if (!Files.exists(diario(fichero)) && !Files.exists(diarioTemporal(fichero))) {
+            return false;  // lo normal: sin abrir ni bloquear el paquete
         }
-        if (linea.equals(FIN_PAQUETE)) {
-            return null;  // No hay mÃ¡s bloques
-        } else {
-            String nombre = extraerNombreBloque(linea);
-            byte[] contenido = extraerContenidoBloque(in);
-            return new Paquete.Bloque(nombre, contenido);
+        synchronized (monitorAnexo(fichero)) {
+            try (FileChannel canal = FileChannel.open(fichero, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 FileLock bloqueo = canal.lock()) {
+                return recuperarAnexo(fichero, canal);
+            }
         }
     }
 
-    private String extraerNombreBloque(String texto) {
-        int inicioNombreBloque = INICIO_BLOQUE.length() + 1;
-        int finNombreBloque = texto.lastIndexOf(MARCA_CABECERA);
-        return texto.substring(inicioNombreBloque, finNombreBloque);
+    /*
+    recuperarAnexo() con el fichero ya abierto y bloqueado.
+    */
+    private static boolean recuperarAnexo(Path fichero, FileChannel canal) throws IOException {
+        Path diario = diario(fichero);
+        Files.deleteIfExists(diarioTemporal(fichero));  // no se llego a usar
+        if (!Files.exists(diario)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(diario)))) {
+            if (!Arrays.equals(in.readNBytes(MAGIA_DIARIO.length), MAGIA_DIARIO)) {
+                throw new IOException("Diario no valido: " + diario);
+            }
+            long longitud = in.readLong();
+            long zona = in.readLong();
+            byte[] original = in.readNBytes(in.readInt());
+            canal.write(ByteBuffer.wrap(original), zona);
+            canal.truncate(longitud);
+            canal.force(true);
+        }
+        Files.delete(diario);
+        sincronizarDirectorio(fichero);
+        return true;
     }
 
-    private byte[] extraerContenidoBloque(BufferedReader in) throws IOException {
-        List<String> partesBloque = new ArrayList<>();
-        int tamanoBloque = 0;
+    // Monitores de anexarBloques() en este proceso, repartidos por fichero
+    private static final Object[] MONITORES_ANEXO = new Object[64];
 
-        String linea = in.readLine(); // Avanzar una linea
-        while (!linea.startsWith(FIN_BLOQUE)) {
-            partesBloque.add(linea);
-            tamanoBloque += linea.length();
-            linea = in.readLine();
+    static {
+        for (int i = 0; i < MONITORES_ANEXO.length; i++) {
+            MONITORES_ANEXO[i] = new Object();
         }
+    }
 
-        byte[] result = new byte[tamanoBloque];
-        int posicion = 0;
-        for (String parte : partesBloque) {
-            byte[] contenidoParte = parte.getBytes();
-            for (byte b : contenidoParte) {
-                result[posicion] = b;
-                posicion++;
+    private static Object monitorAnexo(Path fichero) {
+        return MONITORES_ANEXO[Math.floorMod(fichero.toAbsolutePath().normalize().hashCode(), MONITORES_ANEXO.length)];
+    }
+
+    private static final byte[] MAGIA_DIARIO = {'P', 'A', 'Q', 'D', 'I', 'A', 'R', '1'};
+
+    private static Path diario(Path fichero) {
+        return fichero.resolveSibling(fichero.getFileName() + ".diario");
+    }
+
+    private static Path diarioTemporal(Path fichero) {
+        return fichero.resolveSibling(fichero.getFileName() + ".diario.tmp");
+    }
+
+    /*
+    El diario se escribe con otro nombre y se renombra: o esta completo o no
+    esta. El rename se lleva a disco (el directorio) antes de tocar el paquete.
+    */
+    private static void escribirDiario(Path fichero, long longitud, long zona, byte[] original) throws IOException {
+        Path temporal = diarioTemporal(fichero);
+        try (FileChannel canal = FileChannel.open(temporal, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer contenido = ByteBuffer.allocate(MAGIA_DIARIO.length + 2 * Long.BYTES + Integer.BYTES + original.length);
+            contenido.put(MAGIA_DIARIO).putLong(longitud).putLong(zona).putInt(original.length).put(original).flip();
+            while (contenido.hasRemaining()) {
+                canal.write(contenido);
+            }
+            canal.force(true);
+        }
+        Files.move(temporal, diario(fichero), StandardCopyOption.ATOMIC_MOVE);
+        sincronizarDirectorio(fichero);
+    }
+
+    /*
+    Lleva a disco las entradas del directorio del fichero: un rename o un
+    borrado no sobrevive a un corte hasta que se hace fsync del directorio.
+    Donde no se puede abrir un directorio (Windows) no se hace.
+    */
+    private static void sincronizarDirectorio(Path fichero) throws IOException {
+        FileChannel canal;
+        try {
+            canal = FileChannel.open(fichero.toAbsolutePath().getParent(), StandardOpenOption.READ);
+        } catch (IOException ex) {
+            return;
+        }
+        try (canal) {
+            canal.force(true);
+        }
+    }
+
+    /*
+    Posicion de la linea FIN_PAQUETE, que tiene que ser la ultima del fichero
+    (solo puede ir seguida de saltos de linea).
+    */
+    private static long buscarFinPaquete(FileChannel canal, long longitud) throws IOException {
+        int cola = (int) Math.min(longitud, FIN_PAQUETE.length() + 8);
+        ByteBuffer ultimos = ByteBuffer.allocate(cola);
+        leerEn(canal, longitud - cola, ultimos);
+        String texto = new String(ultimos.array(), StandardCharsets.ISO_8859_1);
+        int fin = texto.length();
+        while (fin > 0 && (texto.charAt(fin - 1) == '\n' || texto.charAt(fin - 1) == '\r')) {
+            fin--;
+        }
+        int marca = fin - FIN_PAQUETE.length();
+        if (marca < 1 || !texto.startsWith(FIN_PAQUETE, marca) || texto.charAt(marca - 1) != '\n') {
+            throw new EOFException("Paquete incompleto, falta " + FIN_PAQUETE + " al final");
+        }
+        return longitud - cola + marca;
+    }
+
+    private static void leerEn(FileChannel canal, long posicion, ByteBuffer destino) throws IOException {
+        while (destino.hasRemaining()) {
+            if (canal.read(destino, posicion + destino.position()) < 0) {
+                throw new EOFException("Paquete incompleto");
+            }
+        }
+        destino.flip();
+    }
+
+    /*
+    Formato de un fichero de paquete, mirando solo su cabecera.
+    */
+    public static Formato detectarFormato(String nombreFichero) throws IOException {
+        try (InputStream in = new FileInputStream(nombreFichero)) {
+            byte[] inicio = in.readNBytes(MAGIA_BINARIA.length);
+            return Arrays.equals(inicio, MAGIA_BINARIA) ? Formato.BINARIO : Formato.TEXTO;
+        }
+    }
+
+    /*
+    Elige el lector segun la cabecera del paquete. Los bytes consultados se
+    devuelven al stream, asi funciona tambien con entradas no reposicionables
+    (p.ej. el cuerpo de una peticion HTTP).
+    */
+    private static LectorPaquete abrirLector(InputStream entrada) throws IOException {
+        PushbackInputStream in = new PushbackInputStream(entrada, MAGIA_BINARIA.length);
+        byte[] inicio = in.readNBytes(MAGIA_BINARIA.length);
+        in.unread(inicio);
+        if (Arrays.equals(inicio, MAGIA_BINARIA)) {
+            return new LectorBinario(in);
+        }
+        return new LectorBloques(in);
+    }
+
+    /*
+    Escritura de un paquete bloque a bloque, con memoria constante.
+    Genera exactamente el mismo formato que escribirPaquete(), pero los bloques
+    se escriben en el orden en que se anaden y su contenido puede venir de un
+    stream (p.ej. un CipherInputStream) sin tenerlo entero en memoria.
+    */
+    public static class Escritor implements Closeable {
+
+        private final String nombreFichero;
+        private final Formato formato;
+        private PrintStream out;          // formato texto
+        private FileChannel canal;        // formato binario: para rellenar despues las longitudes
+        private DataOutputStream datos;   // formato binario
+        private int numeroBloques = 0;
+        private OutputStream bloqueAbierto;
+        private final Metricas.Medicion escritura = Metricas.acumular(Metricas.Etapa.ESCRIBIR_PAQUETE);
+
+        public Escritor(String nombreFichero) throws IOException {
+            this(nombreFichero, Formato.TEXTO);
+        }
+
+        public Escritor(String nombreFichero, Formato formato) throws IOException {
+            this.nombreFichero = nombreFichero;
+            this.formato = formato;
+            if (formato == Formato.BINARIO) {
+                this.canal = FileChannel.open(Paths.get(nombreFichero),
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                this.datos = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(this.canal), 64 * 1024));
+                this.datos.write(MAGIA_BINARIA);
+                this.datos.writeInt(0);  // Numero de bloques, se rellena al cerrar
+            } else {
+                this.out = new PrintStream(new BufferedOutputStream(new FileOutputStream(nombreFichero), 64 * 1024));
+                this.out.println(INICIO_PAQUETE);
+            }
+        }
+
+        public void escribirBloque(String nombre, byte[] contenido) throws IOException {
+            try (OutputStream salida = this.abrirBloque(nombre)) {
+                salida.write(contenido);
+            }
+        }
+
+        public void escribirBloque(String nombre, InputStream contenido) throws IOException {
+            try (OutputStream salida = this.abrirBloque(nombre)) {
+                contenido.transferTo(salida);
+            }
+        }
+
+        /*
+        Devuelve un stream para escribir el contenido del bloque; el bloque
+        se termina al cerrar el stream. Solo puede haber un bloque abierto.
+        */
+        public OutputStream abrirBloque(String nombre) throws IOException {
+            if (this.bloqueAbierto != null) {
+                throw new IOException("Hay un bloque sin cerrar en el paquete " + this.nombreFichero);
+            }
+            String nombreNormalizado = nombre.trim().replaceAll(" ", "_").toUpperCase();
+            this.numeroBloques++;
+            if (this.formato == Formato.BINARIO) {
+                this.bloqueAbierto = this.abrirBloqueBinario(nombreNormalizado);
+                return this.bloqueAbierto;
+            }
+            OutputStream salida = Paquete.abrirBloque(this.out, nombreNormalizado);
+            this.bloqueAbierto = new FilterOutputStream(salida) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    escritura.reanudar();
+                    out.write(b, off, len);
+                    escritura.pausar(len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    bloqueAbierto = null;
+                }
+            };
+            return this.bloqueAbierto;
+        }
+
+        /*
+        La longitud del contenido no se conoce hasta cerrar el bloque: se deja
+        a cero y se sobrescribe en su posicion del fichero.
+        */
+        private OutputStream abrirBloqueBinario(String nombreBloque) throws IOException {
+            escribirCabeceraBinaria(this.datos, nombreBloque);
+            this.datos.flush();
+            long posicionLongitud = this.canal.position();
+            this.datos.writeLong(0);
+            return new FilterOutputStream(this.datos) {
+                private long longitud = 0;
+
+                @Override
+                public void write(int b) throws IOException {
+                    datos.write(b);
+                    this.longitud++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    escritura.reanudar();
+                    datos.write(b, off, len);
+                    escritura.pausar(len);
+                    this.longitud += len;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    datos.flush();
+                    escribirEn(posicionLongitud, ByteBuffer.allocate(Long.BYTES).putLong(0, this.longitud));
+                    bloqueAbierto = null;
+                }
+            };
+        }
+
+        private void escribirEn(long posicion, ByteBuffer valor) throws IOException {
+            while (valor.hasRemaining()) {
+                posicion += this.canal.write(valor, posicion);
+            }
+        }
+
+        /*
+        El tiempo de escritura de todos los bloques cuenta como una sola
+        medicion ESCRIBIR_PAQUETE (ver Metricas).
+        */
+        @Override
+        public void close() throws IOException {
+            this.escritura.reanudar();
+            try {
+                this.cerrar();
+            } finally {
+                this.escritura.close();
+            }
+        }
+
+        private void cerrar() throws IOException {
+            if (this.bloqueAbierto != null) {
+                this.bloqueAbierto.close();
+            }
+            if (this.formato == Formato.BINARIO) {
+                try {
+                    this.datos.flush();
+                    escribirEn(MAGIA_BINARIA.length, ByteBuffer.allocate(Integer.BYTES).putInt(0, this.numeroBloques));
+                } finally {
+                    this.datos.close();
+                }
+                return;
+            }
+            this.out.println(FIN_PAQUETE);
+            this.out.close();
+            if (this.out.checkError()) {
+                throw new IOException("Error escribiendo fichero de paquete " + this.nombreFichero);
+            }
+        }
+    }
+
+    /*
+    Recibe los caracteres BASE64 de un bloque y los escribe partidos en lineas
+    de ANCHO_LINEA caracteres. Igual que el formato original, la ultima linea
+    se escribe siempre (aunque quede vacia) seguida de la marca de fin de bloque.
+    */
+    private static class SalidaLineas extends OutputStream {
+
+        private final PrintStream out;
+        private final String nombreBloque;
+        private int columna = 0;
+
+        SalidaLineas(PrintStream out, String nombreBloque) {
+            this.out = out;
+            this.nombreBloque = nombreBloque;
+        }
+
+        @Override
+        public void write(int b) {
+            this.out.write(b);
+            this.columna++;
+            if (this.columna == ANCHO_LINEA) {
+                this.out.println();
+                this.columna = 0;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                int trozo = Math.min(len, ANCHO_LINEA - this.columna);
+                this.out.write(b, off, trozo);
+                this.columna += trozo;
+                off += trozo;
+                len -= trozo;
+                if (this.columna == ANCHO_LINEA) {
+                    this.out.println();
+                    this.columna = 0;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            this.out.println();  // Ultima linea (puede quedar vacia)
+            this.out.printf(FIN_BLOQUE_FORMATO + "\n", this.nombreBloque);
+        }
+    }
+
+    /*
+    Lectura secuencial de los bloques de un paquete, en cualquiera de los formatos.
+    */
+    private interface LectorPaquete extends Closeable {
+
+        Formato getFormato();
+
+        /*
+        Avanza hasta el siguiente bloque y devuelve su nombre, o null si se
+        ha llegado al fin del paquete. Lo no leido del bloque anterior se salta.
+        */
+        String siguienteBloque() throws IOException;
+
+        /*
+        Stream con el contenido decodificado del bloque actual.
+        */
+        InputStream abrirContenido();
+    }
+
+    /*
+    Lector del formato binario: el contenido se lee tal cual, sin decodificar,
+    y los bloques que no se piden se saltan sin leerlos.
+    */
+    private static class LectorBinario implements LectorPaquete {
+
+        private final DataInputStream entrada;
+        private int bloquesRestantes = -1;
+        private long pendiente = 0;  // Bytes sin leer del bloque actual
+        private final Set<String> leidos = new HashSet<>();
+
+        LectorBinario(InputStream entrada) {
+            this.entrada = new DataInputStream(new BufferedInputStream(entrada, 64 * 1024));
+        }
+
+        @Override
+        public Formato getFormato() {
+            return Formato.BINARIO;
+        }
+
+        @Override
+        public String siguienteBloque() throws IOException {
+            try {
+                return this.leerCabecera();
+            } catch (EOFException ex) {
+                throw new EOFException("Paquete binario incompleto");
+            }
+        }
+
+        private String leerCabecera() throws IOException {
+            if (this.bloquesRestantes < 0) {
+                this.entrada.skipNBytes(MAGIA_BINARIA.length);
+                this.bloquesRestantes = this.entrada.readInt();
+            }
+            this.entrada.skipNBytes(this.pendiente);
+            this.pendiente = 0;
+            if (this.bloquesRestantes == 0) {
+                return null;  // No hay mas bloques
+            }
+            this.bloquesRestantes--;
+            byte[] nombre = new byte[this.entrada.readUnsignedShort()];
+            this.entrada.readFully(nombre);
+            this.pendiente = this.entrada.readLong();
+            if (this.pendiente < 0) {
+                throw new IOException("Longitud de bloque no valida en paquete binario");
+            }
+            return nombreBloqueLeido(new String(nombre, StandardCharsets.UTF_8), this.leidos);
+        }
+
+        @Override
+        public InputStream abrirContenido() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] uno = new byte[1];
+                    return (this.read(uno, 0, 1) == 1) ? (uno[0] & 0xFF) : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (pendiente == 0) {
+                        return -1;
+                    }
+                    int leidos = entrada.read(b, off, (int) Math.min(len, pendiente));
+                    if (leidos < 0) {
+                        throw new EOFException("Bloque incompleto en paquete binario");
+                    }
+                    pendiente -= leidos;
+                    return leidos;
+                }
+
+                @Override
+                public void close() {
+                    // El fichero lo cierra el LectorBinario
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.entrada.close();
+        }
+    }
+
+    /*
+    Lector secuencial de los bloques de un paquete en formato texto. Trabaja
+    directamente sobre los bytes del fichero con un buffer propio, sin crear
+    un String por cada linea de contenido.
+    */
+    private static class LectorBloques implements LectorPaquete {
+
+        private final InputStream entrada;
+        private final byte[] buffer = new byte[64 * 1024];
+        private int posicion = 0;
+        private int limite = 0;
+        private boolean iniciado = false;
+        private ContenidoBloque contenidoActual;
+        private final Set<String> leidos = new HashSet<>();
+
+        LectorBloques(InputStream entrada) {
+            this.entrada = entrada;
+        }
+
+        @Override
+        public Formato getFormato() {
+            return Formato.TEXTO;
+        }
+
+        /*
+        Avanza hasta la cabecera del siguiente bloque y devuelve su nombre,
+        o null si se ha llegado al fin del paquete.
+        */
+        @Override
+        public String siguienteBloque() throws IOException {
+            if (this.contenidoActual != null) {
+                this.contenidoActual.descartar();
+                this.contenidoActual = null;
+            }
+            String linea = this.leerLinea();
+            while (!this.iniciado) {
+                if (linea == null) {
+                    throw new EOFException("No se encuentra " + INICIO_PAQUETE);
+                }
+                this.iniciado = linea.equals(INICIO_PAQUETE);
+                linea = this.leerLinea();
+            }
+            while ((linea != null) && !linea.startsWith(INICIO_BLOQUE) && !linea.equals(FIN_PAQUETE)) {
+                linea = this.leerLinea();
+            }
+            if (linea == null) {
+                throw new EOFException("Paquete incompleto, falta " + FIN_PAQUETE);
+            }
+            if (linea.equals(FIN_PAQUETE)) {
+                return null;  // No hay mas bloques
+            }
+            this.contenidoActual = new ContenidoBloque();
+            return nombreBloqueLeido(extraerNombreBloque(linea), this.leidos);
+        }
+
+        @Override
+        public InputStream abrirContenido() {
+            return Base64.getDecoder().wrap(this.contenidoActual);
+        }
+
+        private boolean rellenar() throws IOException {
+            int leidos = this.entrada.read(this.buffer);
+            if (leidos <= 0) {
+                return false;
+            }
+            this.posicion = 0;
+            this.limite = leidos;
+            return true;
+        }
+
+        private String leerLinea() throws IOException {
+            StringBuilder linea = new StringBuilder();
+            while (true) {
+                if ((this.posicion == this.limite) && !this.rellenar()) {
+                    return (linea.length() > 0) ? linea.toString() : null;
+                }
+                byte c = this.buffer[this.posicion++];
+                if (c == '\n') {
+                    int largo = linea.length();
+                    if ((largo > 0) && (linea.charAt(largo - 1) == '\r')) {
+                        linea.setLength(largo - 1);
+                    }
+                    return linea.toString();
+                }
+                linea.append((char) (c & 0xFF));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.entrada.close();
+        }
+
+        /*
+        Caracteres BASE64 del bloque actual, sin saltos de linea. Termina
+        al encontrar la linea de FIN_BLOQUE (el caracter '-' no pertenece
+        al alfabeto BASE64).
+        */
+        private class ContenidoBloque extends InputStream {
+
+            private boolean inicioLinea = true;
+            private boolean terminado = false;
+
+            @Override
+            public int read() throws IOException {
+                byte[] uno = new byte[1];
+                return (this.read(uno, 0, 1) == 1) ? (uno[0] & 0xFF) : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int leidos = 0;
+                while ((leidos < len) && !this.terminado) {
+                    if ((posicion == limite) && !rellenar()) {
+                        throw new EOFException("Bloque incompleto, falta " + FIN_BLOQUE);
+                    }
+                    byte c = buffer[posicion];
+                    if ((c == '\n') || (c == '\r')) {
+                        this.inicioLinea = true;
+                        posicion++;
+                    } else if (this.inicioLinea && (c == '-')) {
+                        this.terminado = true;
+                        leerLinea();  // Consumir la linea FIN_BLOQUE
+                    } else {
+                        this.inicioLinea = false;
+                        b[off + leidos] = c;
+                        leidos++;
+                        posicion++;
+                    }
+                }
+                return ((leidos == 0) && this.terminado) ? -1 : leidos;
+            }
+
+            void descartar() throws IOException {
+                byte[] basura = new byte[4096];
+                while (this.read(basura, 0, basura.length) >= 0) {
+                    // Saltar el resto del bloque sin decodificarlo
+                }
+            }
+
+            @Override
+            public void close() {
+                // El fichero lo cierra el LectorBloques
             }
         }
-        return Base64.getDecoder().decode(result);
     }
 
     public static class Bloque {
 
         public String nombre;
         public byte[] contenido;
+        volatile byte[] resumen;  // SHA-256 del contenido, ver getResumenBloque()
 
         public Bloque(String nombre, byte[] contenido) {
             this.nombre = nombre;
@@ -201,6 +1341,127 @@ public class Paquete {
 
     }
 
+    /*
+    Bloque de un paquete abierto con abrir(): guarda la zona del fichero
+    mapeado donde esta su contenido (BASE64 o binario) y lo decodifica
+    la primera vez que se pide.
+    */
+    private static class BloqueMapeado extends Bloque {
+
+        private ByteBuffer zona;
+        private final boolean base64;
+
+        BloqueMapeado(String nombre, ByteBuffer zona, boolean base64) {
+            super(nombre, null);
+            this.zona = zona;
+            this.base64 = base64;
+        }
+
+        byte[] decodificar() {
+            if (this.contenido == null) {
+                try (Metricas.Medicion medicion = Metricas.medir(Metricas.Etapa.LEER_PAQUETE);
+                     InputStream in = this.abrir()) {
+                    this.contenido = in.readAllBytes();
+                    medicion.anadirBytes(this.contenido.length);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);  // Solo puede venir de un BASE64 mal formado
+                }
+                this.zona = null;
+            }
+            return this.contenido;
+        }
+
+        long longitudAproximada() {
+            byte[] contenido = this.contenido;
+            if (contenido != null) {
+                return contenido.length;
+            }
+            ByteBuffer zona = this.zona;
+            if (zona == null) {
+                return 0;
+            }
+            return this.base64 ? zona.remaining() / 4L * 3 : zona.remaining();
+        }
+
+        InputStream abrir() {
+            if (this.contenido != null) {
+                return new ByteArrayInputStream(this.contenido);
+            }
+            if (this.base64) {
+                return Base64.getDecoder().wrap(new EntradaSinSaltos(this.zona.duplicate()));
+            }
+            return new EntradaBuffer(this.zona.duplicate());
+        }
+    }
+
+    /*
+    InputStream sobre una zona del fichero mapeado.
+    */
+    private static class EntradaBuffer extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        EntradaBuffer(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return this.buffer.hasRemaining() ? (this.buffer.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!this.buffer.hasRemaining()) {
+                return -1;
+            }
+            int leidos = Math.min(len, this.buffer.remaining());
+            this.buffer.get(b, off, leidos);
+            return leidos;
+        }
+
+        @Override
+        public long skip(long n) {
+            int saltados = (int) Math.max(0, Math.min(n, this.buffer.remaining()));
+            this.buffer.position(this.buffer.position() + saltados); // sin copiar: permite leer solo una parte del bloque
+            return saltados;
+        }
+    }
+
+    /*
+    Caracteres BASE64 de una zona del fichero mapeado sin los saltos de
+    linea. Como en ContenidoBloque, se quitan antes de decodificar: el
+    relleno '=' puede quedar partido entre dos lineas y el decodificador
+    MIME no lo admite.
+    */
+    private static class EntradaSinSaltos extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        EntradaSinSaltos(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            byte[] uno = new byte[1];
+            return (this.read(uno, 0, 1) == 1) ? (uno[0] & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int leidos = 0;
+            while ((leidos < len) && this.buffer.hasRemaining()) {
+                byte c = this.buffer.get();
+                if ((c != '\n') && (c != '\r')) {
+                    b[off + leidos] = c;
+                    leidos++;
+                }
+            }
+            return ((leidos == 0) && (len > 0)) ? -1 : leidos;
+        }
+    }
+
     /*
      * Ejemplo de uso de la clase Paquete
      */
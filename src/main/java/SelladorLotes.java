@@ -0,0 +1,126 @@
+import java.io.Closeable;
+import java.security.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class SelladorLotes implements Closeable {
+
+    /*
+    Agrupa los paquetes que llegan a ServicioSellado y los sella en lotes con
+    SellarFactura.sellarLote(): un lote se cierra cuando pasa la ventana de
+    tiempo desde su primer paquete o cuando alcanza el máximo de paquetes.
+    La firma de la Empresa se verifica al recibir cada paquete, en el hilo de la
+    petición; la única operación de clave privada es la firma del lote.
+    Con -Dfactura.vistos cada factura queda reservada al verificarla y se
+    registra como presentada cuando su lote se ha sellado; si el lote falla,
+    las reservas se sueltan y las facturas se pueden volver a presentar.
+     */
+
+    private final PrivateKey clavePrivadaAutoridad;
+    private final long ventanaMilisegundos;
+    private final int maximoPorLote;
+    private final ScheduledExecutorService temporizador = Executors.newSingleThreadScheduledExecutor(tarea -> {
+        Thread hilo = new Thread(tarea, "sellador-lotes");
+        hilo.setDaemon(true);
+        return hilo;
+    });
+
+    private long numeroLote = 0;
+    private List<Paquete> paquetes = new ArrayList<>();
+    private List<CompletableFuture<Paquete>> pendientes = new ArrayList<>();
+    private List<FiltroDuplicados.Reserva> reservas = new ArrayList<>();
+
+    public SelladorLotes(PrivateKey clavePrivadaAutoridad, long ventanaMilisegundos, int maximoPorLote) {
+        this.clavePrivadaAutoridad = clavePrivadaAutoridad;
+        this.ventanaMilisegundos = ventanaMilisegundos;
+        this.maximoPorLote = maximoPorLote;
+    }
+
+    /*
+    Verifica el paquete y lo añade al lote en curso. El resultado se completa
+    con el paquete sellado cuando se cierre el lote.
+    */
+    public CompletableFuture<Paquete> enviar(Paquete paquete, PublicKey clavePublicaEmpresa) throws SellarFactura.ErrorSellado, GeneralSecurityException {
+        FiltroDuplicados.Reserva reserva = SellarFactura.verificarEmpresa(paquete, clavePublicaEmpresa);
+
+        CompletableFuture<Paquete> resultado = new CompletableFuture<>();
+        boolean lleno;
+        synchronized (this) {
+            if (this.paquetes.isEmpty()) {
+                long numero = this.numeroLote;
+                this.temporizador.schedule(() -> this.cerrarLote(numero), this.ventanaMilisegundos, TimeUnit.MILLISECONDS);
+            }
+            this.paquetes.add(paquete);
+            this.pendientes.add(resultado);
+            this.reservas.add(reserva);
+            lleno = this.paquetes.size() >= this.maximoPorLote;
+        }
+        if (lleno) {
+            this.cerrarLote(-1);
+        }
+        return resultado;
+    }
+
+    /*
+    Sella el lote en curso (si hay alguno) y avisa a todas sus peticiones.
+    */
+    public void cerrarLote() {
+        this.cerrarLote(-1);
+    }
+
+    /*
+    numero >= 0 solo cierra si sigue abierto ese lote (vencimiento de la ventana).
+    */
+    private void cerrarLote(long numero) {
+        List<Paquete> lote;
+        List<CompletableFuture<Paquete>> avisos;
+        List<FiltroDuplicados.Reserva> reservasLote;
+        synchronized (this) {
+            if (this.paquetes.isEmpty() || (numero >= 0 && numero != this.numeroLote)) {
+                return; // ya se cerró por tamaño antes de vencer la ventana
+            }
+            this.numeroLote++;
+            lote = this.paquetes;
+            avisos = this.pendientes;
+            reservasLote = this.reservas;
+            this.paquetes = new ArrayList<>();
+            this.pendientes = new ArrayList<>();
+            this.reservas = new ArrayList<>();
+        }
+
+        try {
+            SellarFactura.sellarLote(lote, this.clavePrivadaAutoridad);
+        } catch (Exception ex) {
+            try {
+                for (FiltroDuplicados.Reserva reserva : reservasLote) {
+                    if (reserva != null) {
+                        reserva.close(); // se pueden volver a presentar
+                    }
+                }
+            } finally {
+                for (CompletableFuture<Paquete> aviso : avisos) {
+                    aviso.completeExceptionally(ex);
+                }
+            }
+            return;
+        }
+        for (int i = 0; i < lote.size(); i++) {
+            try {
+                SellarFactura.registrar(reservasLote.get(i));
+                avisos.get(i).complete(lote.get(i));
+            } catch (RuntimeException ex) {
+                avisos.get(i).completeExceptionally(ex); // sin registrar no se entrega el sello
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        this.cerrarLote();
+        this.temporizador.shutdownNow();
+    }
+}
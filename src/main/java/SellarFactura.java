@@ -1,8 +1,16 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.security.*;
 import java.security.spec.*;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
@@ -11,13 +19,42 @@ public class SellarFactura {
     /*
     Recibe paquete
     Verifica firma de la empresa con clave pública
+    Comprueba los bloques de la empresa contra su manifiesto (ver Manifiesto)
     Genera timestamp
-    Firma timestamp con clave privada
-    Añade timestamp y firma
+    Firma timestamp y manifiesto con clave privada
+    Añade timestamp, firma, algoritmo de la firma e identificador de la clave de la Autoridad
     Guarda paquete
+
+    Con -Dfactura.vistos=<directorio> se rechaza (DUPLICADO) una factura que
+    ya se presentó antes, aunque llegue como paquete nuevo sin sellar, sin
+    llegar a verificar ni firmar nada (ver FiltroDuplicados). La factura se
+    registra una vez guardado el paquete sellado; mientras tanto queda
+    reservada, y si el sellado falla se puede volver a presentar.
+
+    Modo lote (--lote): una sola firma de la Autoridad por lote sobre la raíz de
+    un árbol de Merkle, y una prueba de inclusión en cada paquete (ver ArbolMerkle).
+
+    El paquete sellado se guarda en el mismo formato (texto o binario) en que
+    llegó, salvo que se indique --texto o --binario delante del resto de argumentos.
+    Si no cambia de formato, los bloques del sello se añaden al final del
+    fichero sin reescribir el resto (ver Paquete.anexarBloques).
      */
 
+    // Bloques que añade el sellado (PRUEBA_MERKLE solo en lotes)
+    private static final String[] BLOQUES_SELLO = {
+        "SELLO_TIEMPO", "FIRMA_AUTORIDAD", AlgoritmoFirma.BLOQUE_AUTORIDAD, "ID_CLAVE_AUTORIDAD", "PRUEBA_MERKLE"
+    };
+
     public static void main(String[] args) throws Exception {
+        Paquete.Formato formato = null; // null -> conservar el formato de cada paquete
+        if (args.length > 0 && Paquete.Formato.deOpcion(args[0]) != null) {
+            formato = Paquete.Formato.deOpcion(args[0]);
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        if (args.length > 0 && args[0].equals("--lote")) {
+            sellarLote(args, formato);
+            return;
+        }
         if (args.length != 3) {
             mensajeAyuda();
             System.exit(1);
@@ -29,61 +66,459 @@ public class SellarFactura {
 
         Security.addProvider(new BouncyCastleProvider());
 
-        // Paso 1: Cargar el paquete
-        Paquete paquete = new Paquete(nombrePaquete);
+        // Paso 1: Abrir el paquete (mapeado, cada bloque se decodifica cuando se necesita),
+        // deshaciendo antes un sellado anterior que se interrumpiera al guardar
+        Paquete paquete = null;
+        try {
+            Paquete.recuperarAnexo(nombrePaquete);
+            paquete = Paquete.abrir(nombrePaquete);
+        } catch (IOException ex) {
+            System.err.println("Error en fichero de paquete " + nombrePaquete + ": " + ex.getMessage());
+            System.exit(1);
+        }
 
-        if (paquete.getContenidoBloque("FIRMA_AUTORIDAD") != null) {
-            System.err.println("Error: El paquete ya ha sido sellado.");
+        // cargar clave pública de la empresa (o buscarla por su identificador si se indica un directorio de claves)
+        PublicKey clavePublicaEmpresa = DirectorioClaves.cargarOBuscar(ficheroClavePublicaEmpresa, paquete.getContenidoBloque("ID_CLAVE_EMPRESA"));
+        PrivateKey clavePrivadaAutoridad = cargarClavePrivada(ficheroClavePrivadaAutoridad); // cargar clave privada de la autoridad
+
+        // Pasos 2 a 5: verificar, generar el sello de tiempo, firmar y guardar el paquete sellado;
+        // la factura se registra como presentada (con -Dfactura.vistos) una vez guardado
+        boolean anexable = sinBloquesSello(paquete);
+        try (FiltroDuplicados.Reserva reserva = verificarEmpresa(paquete, clavePublicaEmpresa)) {
+            firmar(paquete, clavePrivadaAutoridad);
+            if (!guardar(paquete, nombrePaquete, formato, anexable)) {
+                System.exit(1);
+            }
+            registrar(reserva);
+        } catch (ErrorSellado ex) {
+            System.err.println(ex.getMessage());
             System.exit(1);
         }
 
+        System.out.println("ÉXITO: Factura sellada correctamente y guardada en " + nombrePaquete);
+    }
+
+    /*
+    Sella el paquete de un fichero y guarda el sello como el modo normal, con
+    claves ya cargadas y la clave de la Empresa buscada por su identificador.
+    No termina el proceso (ver GeneradorCarga).
+    */
+    public static void sellar(String nombrePaquete, DirectorioClaves clavesEmpresa, PrivateKey clavePrivadaAutoridad)
+            throws ErrorSellado, GeneralSecurityException, IOException {
+        Paquete.recuperarAnexo(nombrePaquete);
+        Paquete paquete = Paquete.abrir(nombrePaquete);
+        PublicKey clavePublicaEmpresa = clavesEmpresa.buscarObligatoria(paquete.getContenidoBloque("ID_CLAVE_EMPRESA"), "las claves de Empresa");
+        boolean anexable = sinBloquesSello(paquete);
+        try (FiltroDuplicados.Reserva reserva = verificarEmpresa(paquete, clavePublicaEmpresa)) {
+            firmar(paquete, clavePrivadaAutoridad);
+            guardarSellado(paquete, nombrePaquete, null, anexable);
+            registrar(reserva);
+        }
+    }
+
+    /*
+    Sella un paquete ya cargado con claves ya cargadas, añadiéndole los bloques
+    SELLO_TIEMPO y FIRMA_AUTORIDAD. No termina el proceso: los rechazos se
+    notifican con ErrorSellado para que los pueda usar también ServicioSellado.
+    Quien lo llama entrega el paquete sellado, así que la factura se registra
+    como presentada en cuanto está firmado.
+    */
+    public static void sellar(Paquete paquete, PublicKey clavePublicaEmpresa, PrivateKey clavePrivadaAutoridad) throws ErrorSellado, GeneralSecurityException {
         // Paso 2: Verificar la firma de la Empresa
+        try (FiltroDuplicados.Reserva reserva = verificarEmpresa(paquete, clavePublicaEmpresa)) {
+            firmar(paquete, clavePrivadaAutoridad);
+            registrar(reserva);
+        }
+    }
+
+    /*
+    Pasos 3 y 4: sello de tiempo y firma de la Autoridad de un paquete ya verificado.
+    */
+    private static void firmar(Paquete paquete, PrivateKey clavePrivadaAutoridad) throws GeneralSecurityException {
+        // Paso 3: Generar Timestamp
+        byte[] selloTiempo = generarSelloTiempo();
+        paquete.anadirBloque("SELLO_TIEMPO", selloTiempo);
+
+        // Paso 4: Firmar con la Autoridad (resumen del manifiesto || sello de tiempo, sin volver a leer la factura cifrada;
+        // en los paquetes sin manifiesto, factura cifrada || clave cifrada || sello de tiempo)
+        byte[] resumenAutoridad;
+        byte[] manifiesto = paquete.getContenidoBloque(Manifiesto.BLOQUE);
+        if (manifiesto != null) {
+            resumenAutoridad = Manifiesto.resumenSello(Manifiesto.resumen(manifiesto), selloTiempo);
+        } else {
+            byte[] facturaCifrada = paquete.getContenidoBloque("FACTURA_CIFRADA");
+            byte[] claveCifrada = paquete.getContenidoBloque("CLAVE_CIFRADA");
+            try (Metricas.Medicion medicion = Metricas.medir(Metricas.Etapa.RESUMEN)) {
+                MessageDigest resumen = Firmas.nuevoResumen();
+                resumen.update(facturaCifrada);
+                resumen.update(claveCifrada);
+                resumen.update(selloTiempo);
+                resumenAutoridad = resumen.digest();
+                medicion.anadirBytes(facturaCifrada.length + claveCifrada.length + selloTiempo.length);
+            }
+        }
+        byte[] firmaAutoridad = Firmas.firmarResumen(clavePrivadaAutoridad, resumenAutoridad);
+        paquete.anadirBloque("FIRMA_AUTORIDAD", firmaAutoridad);
+        paquete.anadirBloque(AlgoritmoFirma.BLOQUE_AUTORIDAD, AlgoritmoFirma.deClave(clavePrivadaAutoridad).getIdentificador());
+        paquete.anadirBloque("ID_CLAVE_AUTORIDAD", DirectorioClaves.identificador(DirectorioClaves.clavePublicaDe(clavePrivadaAutoridad)));
+    }
+
+    /*
+    Comprueba que el paquete no está sellado, que tiene los bloques de la Empresa,
+    que la factura no se ha presentado antes (con -Dfactura.vistos), que la
+    firma de la Empresa es válida (solo operaciones de clave pública) y que
+    los bloques coinciden con el manifiesto firmado. Con -Dfactura.vistos
+    devuelve la reserva de la factura (null sin él): se registra con
+    registrar() una vez guardado el paquete sellado y, si el sellado falla,
+    se cierra sin registrarla.
+    */
+    public static FiltroDuplicados.Reserva verificarEmpresa(Paquete paquete, PublicKey clavePublicaEmpresa) throws ErrorSellado, GeneralSecurityException {
+        if (paquete.contieneBloque("FIRMA_AUTORIDAD")) { // basta con el nombre, sin decodificar nada
+            throw new ErrorSellado("YA_SELLADO", "Error: El paquete ya ha sido sellado.");
+        }
+
         // Recuperar los bloques necesarios del paquete para verificar la firma de la Empresa
-        byte[] facturaCifrada = paquete.getContenidoBloque("FACTURA_CIFRADA");
-        byte[] claveCifrada = paquete.getContenidoBloque("CLAVE_CIFRADA");
+        byte[] manifiesto = paquete.getContenidoBloque(Manifiesto.BLOQUE); // no está en los paquetes anteriores
         byte[] firmaEmpresa = paquete.getContenidoBloque("FIRMA_EMPRESA");
 
         // Verificar que todos los bloques críticos existen
-        if (facturaCifrada == null || claveCifrada == null || firmaEmpresa == null) {
-            System.err.println("Error: El paquete no contiene los bloques necesarios.");
-            System.exit(1);
+        if (firmaEmpresa == null || !paquete.contieneBloque("FACTURA_CIFRADA") || !paquete.contieneBloque("CLAVE_CIFRADA")) {
+            throw new ErrorSellado("PAQUETE_INCOMPLETO", "Error: El paquete no contiene los bloques necesarios.");
         }
 
-        PublicKey clavePublicaEmpresa = cargarClavePublica(ficheroClavePublicaEmpresa); // cargar clave pública de la empresa
-        PrivateKey clavePrivadaAutoridad = cargarClavePrivada(ficheroClavePrivadaAutoridad); // cargar clave privada de la autoridad
+        // Verificar firma de la Empresa (del manifiesto o, sin manifiesto, de factura cifrada || clave cifrada [|| compresión]) con el algoritmo de su clave
+        Manifiesto leido = null;
+        byte[] resumenEmpresa;
+        if (manifiesto != null) {
+            leido = leerManifiesto(manifiesto);
+            resumenEmpresa = Manifiesto.resumen(manifiesto); // la factura cifrada se comprueba después, contra el manifiesto
+        } else {
+            byte[] facturaCifrada = paquete.getContenidoBloque("FACTURA_CIFRADA");
+            byte[] claveCifrada = paquete.getContenidoBloque("CLAVE_CIFRADA");
+            byte[] compresion = paquete.getContenidoBloque(Compresion.BLOQUE);
+            try (Metricas.Medicion medicion = Metricas.medir(Metricas.Etapa.RESUMEN)) {
+                MessageDigest resumen = Firmas.nuevoResumen();
+                resumen.update(facturaCifrada);
+                resumen.update(claveCifrada);
+                if (compresion != null) {
+                    resumen.update(compresion);
+                }
+                resumenEmpresa = resumen.digest();
+                medicion.anadirBytes(facturaCifrada.length + claveCifrada.length);
+            }
+        }
+        // Rechazar una factura ya presentada antes de cualquier operación de clave pública o privada
+        FiltroDuplicados vistos = filtroDuplicados();
+        byte[] claveFactura = (vistos != null) ? claveFactura(paquete, leido) : null;
+        if (vistos != null && presentada(vistos, claveFactura)) {
+            throw new ErrorSellado("DUPLICADO", "Error: La factura ya se presentó para sellar.");
+        }
+
+        byte[] algoritmoDeclarado = paquete.getContenidoBloque(AlgoritmoFirma.BLOQUE_EMPRESA);
+        boolean firmaValida;
+        try {
+            firmaValida = Firmas.verificarResumen(clavePublicaEmpresa, algoritmoDeclarado, resumenEmpresa, firmaEmpresa);
+        } catch (NoSuchAlgorithmException | InvalidKeyException ex) {
+            firmaValida = false; // algoritmo declarado desconocido o clave de un algoritmo que no firma
+        }
+        if (!firmaValida) {
+            throw new ErrorSellado("FIRMA_EMPRESA_INVALIDA", "La verificación de la firma de la Empresa falló.");
+        }
+        if (leido != null) {
+            comprobarManifiesto(paquete, leido);
+        }
+        // Solo se reserva con la firma verificada; si otra petición la registró o la está sellando, es un duplicado
+        if (vistos == null) {
+            return null;
+        }
+        FiltroDuplicados.Reserva reserva = reservar(vistos, claveFactura);
+        if (reserva == null) {
+            throw new ErrorSellado("DUPLICADO", "Error: La factura ya se presentó para sellar.");
+        }
+        return reserva;
+    }
+
+    private static Manifiesto leerManifiesto(byte[] manifiesto) throws ErrorSellado {
+        try {
+            return Manifiesto.leer(manifiesto);
+        } catch (IllegalArgumentException ex) {
+            throw new ErrorSellado("FIRMA_EMPRESA_INVALIDA", "El manifiesto firmado por la Empresa no es válido: " + ex.getMessage());
+        }
+    }
 
-        // Verificar firma de la Empresa
-        byte[] mensajeFirmadoEmpresa = concatenarBytes(facturaCifrada, claveCifrada); // concatenar factura cifrada y clave cifrada
-        Signature verificadorEmpresa = Signature.getInstance("SHA256withRSA", "BC");
-        verificadorEmpresa.initVerify(clavePublicaEmpresa);
-        verificadorEmpresa.update(mensajeFirmadoEmpresa);
-        if (!verificadorEmpresa.verify(firmaEmpresa)) {
-            System.err.println("La verificación de la firma de la Empresa falló.");
+    /*
+    Comprueba todos los bloques del manifiesto firmado por la Empresa (los
+    grandes en paralelo, ver Manifiesto.comprobar).
+    */
+    private static void comprobarManifiesto(Paquete paquete, Manifiesto manifiesto) throws ErrorSellado {
+        String alterado = manifiesto.comprobar(paquete);
+        if (alterado != null) {
+            throw new ErrorSellado("FIRMA_EMPRESA_INVALIDA", "El bloque " + alterado + " falta, no coincide o no está en el manifiesto firmado por la Empresa.");
+        }
+    }
+
+    /*
+    Registro de facturas presentadas de -Dfactura.vistos, o null si no se usa.
+    Un registro que no se puede leer o escribir detiene el sellado.
+    */
+    private static FiltroDuplicados filtroDuplicados() {
+        try {
+            return FiltroDuplicados.configurado();
+        } catch (IOException ex) {
+            throw new UncheckedIOException("No se puede abrir el registro de facturas presentadas", ex);
+        }
+    }
+
+    /*
+    Clave de la factura en el registro de presentadas: resumen de
+    H(FACTURA_CIFRADA) || H(CLAVE_CIFRADA), tomados del manifiesto si lo hay.
+    Solo depende de la factura cifrada y su clave: volver a firmarlas con otro
+    manifiesto (con un bloque de más, sin ALGORITMO_FIRMA_EMPRESA...) o en un
+    paquete sin manifiesto da la misma clave.
+    */
+    static byte[] claveFactura(Paquete paquete, Manifiesto manifiesto) {
+        MessageDigest resumen = Firmas.nuevoResumen();
+        for (String nombreBloque : Manifiesto.OBLIGATORIOS) {
+            resumen.update((manifiesto != null) ? manifiesto.getResumen(nombreBloque) : paquete.getResumenBloque(nombreBloque));
+        }
+        return resumen.digest();
+    }
+
+    private static boolean presentada(FiltroDuplicados vistos, byte[] claveFactura) {
+        try {
+            return vistos.contiene(claveFactura);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("No se puede consultar el registro de facturas presentadas", ex);
+        }
+    }
+
+    private static FiltroDuplicados.Reserva reservar(FiltroDuplicados vistos, byte[] claveFactura) {
+        try {
+            return vistos.reservar(claveFactura);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("No se puede consultar el registro de facturas presentadas", ex);
+        }
+    }
+
+    /*
+    Registra como presentada la factura de una reserva de verificarEmpresa()
+    (nada si es null), con el paquete sellado ya guardado.
+    */
+    static void registrar(FiltroDuplicados.Reserva reserva) {
+        if (reserva == null) {
+            return;
+        }
+        try {
+            reserva.registrar();
+        } catch (IOException ex) {
+            throw new UncheckedIOException("No se puede actualizar el registro de facturas presentadas", ex);
+        }
+    }
+
+    /*
+    Sella con una única firma de la Autoridad un lote de paquetes ya verificados con
+    verificarEmpresa(). Se construye un árbol de Merkle con una hoja por paquete,
+    la Autoridad firma raíz || sello de tiempo y cada paquete recibe los bloques
+    SELLO_TIEMPO, FIRMA_AUTORIDAD (la firma de la raíz) y PRUEBA_MERKLE.
+    */
+    public static void sellarLote(List<Paquete> paquetes, PrivateKey clavePrivadaAutoridad) throws GeneralSecurityException {
+        List<byte[]> hojas = new ArrayList<>();
+        ArbolMerkle arbol;
+        try (Metricas.Medicion medicion = Metricas.medir(Metricas.Etapa.RESUMEN)) {
+            for (Paquete paquete : paquetes) {
+                byte[] manifiesto = paquete.getContenidoBloque(Manifiesto.BLOQUE);
+                if (manifiesto != null) {
+                    hojas.add(ArbolMerkle.hoja(Manifiesto.resumen(manifiesto)));
+                    medicion.anadirBytes(manifiesto.length);
+                } else {
+                    byte[] facturaCifrada = paquete.getContenidoBloque("FACTURA_CIFRADA");
+                    byte[] claveCifrada = paquete.getContenidoBloque("CLAVE_CIFRADA");
+                    hojas.add(ArbolMerkle.hoja(facturaCifrada, claveCifrada));
+                    medicion.anadirBytes(facturaCifrada.length + claveCifrada.length);
+                }
+            }
+            arbol = new ArbolMerkle(hojas);
+        }
+
+        byte[] selloTiempo = generarSelloTiempo();
+        MessageDigest resumenAutoridad = Firmas.nuevoResumen();
+        resumenAutoridad.update(arbol.getRaiz());
+        resumenAutoridad.update(selloTiempo);
+        byte[] firmaAutoridad = Firmas.firmarResumen(clavePrivadaAutoridad, resumenAutoridad.digest()); // una sola operación de clave privada para todo el lote
+        byte[] algoritmoAutoridad = AlgoritmoFirma.deClave(clavePrivadaAutoridad).getIdentificador();
+        byte[] idClaveAutoridad = DirectorioClaves.identificador(DirectorioClaves.clavePublicaDe(clavePrivadaAutoridad));
+
+        for (int i = 0; i < paquetes.size(); i++) {
+            Paquete paquete = paquetes.get(i);
+            paquete.anadirBloque("SELLO_TIEMPO", selloTiempo);
+            paquete.anadirBloque("FIRMA_AUTORIDAD", firmaAutoridad);
+            paquete.anadirBloque(AlgoritmoFirma.BLOQUE_AUTORIDAD, algoritmoAutoridad);
+            paquete.anadirBloque("PRUEBA_MERKLE", arbol.prueba(i));
+            paquete.anadirBloque("ID_CLAVE_AUTORIDAD", idClaveAutoridad);
+        }
+    }
+
+    /*
+    Indica si el paquete no tiene ninguno de los bloques que añade el sellado,
+    así que se pueden añadir al final del fichero sin repetir nombres.
+    */
+    private static boolean sinBloquesSello(Paquete paquete) {
+        for (String nombreBloque : BLOQUES_SELLO) {
+            if (paquete.contieneBloque(nombreBloque)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+    Guarda el paquete sellado en su fichero. Si no cambia de formato solo se
+    añaden al final los bloques del sello (ver Paquete.anexarBloques), sin
+    volver a escribir la factura cifrada; si no, se reescribe entero.
+    Devuelve false (y lo informa) si otro proceso lo ha sellado mientras tanto.
+    */
+    private static boolean guardar(Paquete paquete, String nombrePaquete, Paquete.Formato formato, boolean anexable) {
+        try {
+            guardarSellado(paquete, nombrePaquete, formato, anexable);
+            return true;
+        } catch (ErrorSellado ex) {
+            System.err.println(nombrePaquete + ": " + ex.getMessage());
+            return false;
+        } catch (IOException ex) {
+            System.err.println("Error guardando el sello en el paquete " + nombrePaquete + ": " + ex.getMessage());
             System.exit(1);
+            return false;
         }
+    }
 
-        // Paso 3: Generar Timestamp
+    private static void guardarSellado(Paquete paquete, String nombrePaquete, Paquete.Formato formato, boolean anexable) throws ErrorSellado, IOException {
+        if (anexable && (formato == null || formato == paquete.getFormato())) {
+            Map<String, byte[]> sello = new LinkedHashMap<>();
+            for (String nombreBloque : BLOQUES_SELLO) {
+                if (paquete.contieneBloque(nombreBloque)) {
+                    sello.put(nombreBloque, paquete.getContenidoBloque(nombreBloque));
+                }
+            }
+            if (!Paquete.anexarBloques(nombrePaquete, sello)) { // con el fichero bloqueado ya tenía alguno
+                throw new ErrorSellado("YA_SELLADO", "Error: El paquete ya ha sido sellado.");
+            }
+            return;
+        }
+        if (formato != null) {
+            paquete.setFormato(formato);
+        }
+        paquete.escribirPaquete(nombrePaquete);
+    }
+
+    private static byte[] generarSelloTiempo() {
         String timestampStr = LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
-        byte[] selloTiempo = timestampStr.getBytes("UTF-8");
-        paquete.anadirBloque("SELLO_TIEMPO", selloTiempo);
+        return timestampStr.getBytes(StandardCharsets.UTF_8);
+    }
 
-        // Paso 4: Firmar con la Autoridad
-        byte[] mensajeAFirmarAutoridad = concatenarBytes(facturaCifrada, claveCifrada, selloTiempo);
-        Signature firmadorAutoridad = Signature.getInstance("SHA256withRSA", "BC");
-        firmadorAutoridad.initSign(clavePrivadaAutoridad);
-        firmadorAutoridad.update(mensajeAFirmarAutoridad);
-        byte[] firmaAutoridad = firmadorAutoridad.sign();
-        paquete.anadirBloque("FIRMA_AUTORIDAD", firmaAutoridad);
+    /*
+    java SellarFactura --lote <max_por_lote> <clave_publica_empresa|directorio_claves> <clave_privada_autoridad> paquete1 [paquete2 ...]
+    Los paquetes rechazados se informan y quedan fuera del lote sin detenerlo.
+    */
+    private static void sellarLote(String[] args, Paquete.Formato formato) throws Exception {
+        if (args.length < 5) {
+            mensajeAyuda();
+            System.exit(1);
+        }
 
-        // Paso 5: Guardar el paquete sellado
-        paquete.escribirPaquete(nombrePaquete);
+        int maximoPorLote = Integer.parseInt(args[1]);
+        Security.addProvider(new BouncyCastleProvider());
+        Path rutaClavesEmpresa = Paths.get(args[2]); // fichero de clave o directorio de claves de varias Empresas
+        DirectorioClaves directorioEmpresas = Files.isDirectory(rutaClavesEmpresa) ? new DirectorioClaves(rutaClavesEmpresa) : null;
+        PublicKey clavePublicaEmpresa = (directorioEmpresas == null) ? cargarClavePublica(args[2]) : null;
+        PrivateKey clavePrivadaAutoridad = cargarClavePrivada(args[3]);
 
-        System.out.println("ÉXITO: Factura sellada correctamente y guardada en " + nombrePaquete);
+        List<String> nombres = new ArrayList<>();
+        List<Paquete> paquetes = new ArrayList<>();
+        List<Boolean> anexables = new ArrayList<>();
+        List<FiltroDuplicados.Reserva> reservas = new ArrayList<>();
+        int rechazados = 0;
+        int firmas = 0;
+        for (int i = 4; i < args.length; i++) {
+            try {
+                Paquete paquete;
+                try {
+                    Paquete.recuperarAnexo(args[i]);
+                    paquete = Paquete.abrir(args[i]);
+                } catch (IOException ex) {
+                    throw new ErrorSellado("PAQUETE_ILEGIBLE", "No se puede leer el paquete: " + ex.getMessage());
+                }
+                PublicKey clave = clavePublicaEmpresa;
+                if (directorioEmpresas != null) {
+                    byte[] idClaveEmpresa = paquete.getContenidoBloque("ID_CLAVE_EMPRESA");
+                    clave = (idClaveEmpresa != null) ? directorioEmpresas.buscar(idClaveEmpresa) : null;
+                    if (clave == null) {
+                        throw new ErrorSellado("EMPRESA_DESCONOCIDA", "No se encuentra la clave pública de la Empresa en " + args[2]);
+                    }
+                }
+                reservas.add(verificarEmpresa(paquete, clave));
+                nombres.add(args[i]);
+                paquetes.add(paquete);
+                anexables.add(sinBloquesSello(paquete));
+            } catch (ErrorSellado ex) {
+                rechazados++;
+                System.err.println(args[i] + ": " + ex.getMessage());
+            }
+            if (paquetes.size() == maximoPorLote || (i == args.length - 1 && !paquetes.isEmpty())) {
+                try {
+                    sellarLote(paquetes, clavePrivadaAutoridad);
+                    firmas++;
+                    for (int j = 0; j < paquetes.size(); j++) {
+                        if (guardar(paquetes.get(j), nombres.get(j), formato, anexables.get(j))) {
+                            registrar(reservas.get(j));
+                        } else {
+                            rechazados++;
+                        }
+                    }
+                } finally {
+                    for (FiltroDuplicados.Reserva reserva : reservas) {
+                        if (reserva != null) {
+                            reserva.close(); // las no registradas quedan libres
+                        }
+                    }
+                }
+                nombres.clear();
+                paquetes.clear();
+                anexables.clear();
+                reservas.clear();
+            }
+        }
+
+        int sellados = args.length - 4 - rechazados;
+        System.out.println("ÉXITO: " + sellados + " facturas selladas con " + firmas + " firmas de la Autoridad (" + rechazados + " rechazadas)");
+        if (rechazados > 0) {
+            System.exit(1);
+        }
+    }
+
+    /*
+    Rechazo de un paquete por parte de la Autoridad de sellado.
+    El código identifica la comprobación que ha fallado.
+    */
+    public static class ErrorSellado extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String codigo;
+
+        public ErrorSellado(String codigo, String mensaje) {
+            super(mensaje);
+            this.codigo = codigo;
+        }
+
+        public String getCodigo() {
+            return this.codigo;
+        }
     }
 
     public static void mensajeAyuda() {
         System.out.println("Sella una Factura Empaquetada con un Sello de Tiempo y Firma de Autoridad.");
-        System.out.println("\tSintaxis: java SellarFactura <nombre_paquete> <clave_publica_empresa> <clave_privada_autoridad>");
+        System.out.println("\tSintaxis: java SellarFactura [--texto|--binario] <nombre_paquete> <clave_publica_empresa|directorio_claves> <clave_privada_autoridad>");
+        System.out.println("\t          java SellarFactura [--texto|--binario] --lote <max_por_lote> <clave_publica_empresa|directorio_claves> <clave_privada_autoridad> paquete1 [paquete2 ...]");
         System.out.println();
     }
 
@@ -92,10 +527,7 @@ public class SellarFactura {
     Basado en la lógica inversa de GenerarClaves.java.
     */
     public static PublicKey cargarClavePublica(String ficheroClave) throws Exception {
-        byte[] keyBytes = Files.readAllBytes(Paths.get(ficheroClave)); // Leer el contenido del archivo binario
-        X509EncodedKeySpec spec = new X509EncodedKeySpec(keyBytes);
-        KeyFactory kf = KeyFactory.getInstance("RSA", "BC");
-        return kf.generatePublic(spec);
+        return DirectorioClaves.cargarClavePublica(Paths.get(ficheroClave));
     }
 
     /*
@@ -103,27 +535,6 @@ public class SellarFactura {
     Basado en la lógica inversa de GenerarClaves.java.
     */
     public static PrivateKey cargarClavePrivada(String ficheroClave) throws Exception {
-        byte[] keyBytes = Files.readAllBytes(Paths.get(ficheroClave)); // Leer el contenido del archivo binario
-        PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(keyBytes);
-        KeyFactory kf = KeyFactory.getInstance("RSA", "BC");
-        return kf.generatePrivate(spec);
-    }
-
-    /*
-    Concatena arrays de bytes para generar el mensaje a firmar/verificar.
-    */
-    private static byte[] concatenarBytes(byte[]... arrays) {
-        int totalLength = 0;
-        for (byte[] array : arrays) {
-            totalLength += array.length;
-        }
-
-        byte[] result = new byte[totalLength];
-        int offset = 0;
-        for (byte[] array : arrays) {
-            System.arraycopy(array, 0, result, offset, array.length);
-            offset += array.length;
-        }
-        return result;
+        return DirectorioClaves.cargarClavePrivada(Paths.get(ficheroClave));
     }
 }
\ No newline at end of file
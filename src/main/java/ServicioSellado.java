@@ -0,0 +1,218 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+public class ServicioSellado {
+
+    /*
+    Servicio local (HTTP en loopback) de la Autoridad de sellado.
+    Carga una sola vez la clave privada de la Autoridad e indexa las claves
+    públicas de las Empresas (ver DirectorioClaves), y sella cada petición sin
+    arrancar una JVM nueva:
+        POST /sellar?empresa=<id>   cuerpo: paquete sin sellar (texto o binario)
+            200 -> paquete sellado, en el mismo formato que la petición
+            4xx -> {"error": "<código>", "mensaje": "<texto>"}
+        GET /salud                  -> 200 OK
+        GET /metricas[?formato=json] -> tiempos por etapa desde el arranque (ver Metricas)
+    <id> es el prefijo del fichero <id>.publica en el directorio de claves; si no
+    se indica, la clave se busca por el bloque ID_CLAVE_EMPRESA del paquete.
+    Con <ventana_ms> <max_por_lote> las peticiones se sellan por lotes con una
+    sola firma de la Autoridad por lote (ver SelladorLotes).
+     */
+
+    private final PrivateKey clavePrivadaAutoridad;
+    private final DirectorioClaves directorioEmpresas;
+    private SelladorLotes selladorLotes;
+
+    public ServicioSellado(PrivateKey clavePrivadaAutoridad, Path directorioClaves) throws Exception {
+        this.clavePrivadaAutoridad = clavePrivadaAutoridad;
+        this.directorioEmpresas = new DirectorioClaves(directorioClaves);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3 && args.length != 5) {
+            mensajeAyuda();
+            System.exit(1);
+        }
+
+        int puerto = Integer.parseInt(args[0]);
+        String ficheroClavePrivadaAutoridad = args[1];
+        Path directorioClaves = Paths.get(args[2]);
+
+        Security.addProvider(new BouncyCastleProvider());
+
+        PrivateKey clavePrivadaAutoridad = SellarFactura.cargarClavePrivada(ficheroClavePrivadaAutoridad);
+        ServicioSellado servicio = new ServicioSellado(clavePrivadaAutoridad, directorioClaves);
+        if (args.length == 5) {
+            servicio.selladorLotes = new SelladorLotes(clavePrivadaAutoridad, Long.parseLong(args[3]), Integer.parseInt(args[4]));
+        }
+
+        HttpServer servidor = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), puerto), 0);
+        servidor.createContext("/sellar", servicio::atenderSellado);
+        servidor.createContext("/salud", intercambio -> responder(intercambio, 200, "text/plain", "OK".getBytes(StandardCharsets.UTF_8)));
+        servidor.createContext("/metricas", ServicioSellado::atenderMetricas);
+        servidor.setExecutor(crearEjecutor());
+        servidor.start();
+
+        System.out.println("Servicio de sellado escuchando en http://" + servidor.getAddress().getHostString() + ":" + servidor.getAddress().getPort()
+                + " (" + servicio.directorioEmpresas.getNumeroClaves() + " claves de Empresa indexadas)");
+    }
+
+    /*
+    Sella un paquete ya leído. Las claves de Empresa se buscan en el
+    DirectorioClaves, que solo guarda en memoria las usadas recientemente.
+    */
+    public Paquete sellar(Paquete paquete, String idEmpresa) throws SellarFactura.ErrorSellado, GeneralSecurityException, IOException {
+        PublicKey clavePublicaEmpresa = (idEmpresa != null) ? this.buscarClaveEmpresa(idEmpresa) : this.buscarClaveEmpresa(paquete);
+        if (this.selladorLotes != null) {
+            return this.selladorLotes.enviar(paquete, clavePublicaEmpresa).join(); // espera al cierre del lote
+        }
+        SellarFactura.sellar(paquete, clavePublicaEmpresa, this.clavePrivadaAutoridad);
+        return paquete;
+    }
+
+    private PublicKey buscarClaveEmpresa(String idEmpresa) throws SellarFactura.ErrorSellado {
+        if (idEmpresa == null || !idEmpresa.matches("[A-Za-z0-9_.-]+") || idEmpresa.contains("..")) {
+            throw new SellarFactura.ErrorSellado("EMPRESA_INVALIDA", "Identificador de Empresa no válido: " + idEmpresa);
+        }
+        PublicKey clave;
+        try {
+            clave = this.directorioEmpresas.buscarPorNombre(idEmpresa);
+        } catch (Exception ex) {
+            throw new SellarFactura.ErrorSellado("EMPRESA_DESCONOCIDA", "Clave pública de la Empresa " + idEmpresa + " no válida: " + ex.getMessage());
+        }
+        if (clave == null) {
+            throw new SellarFactura.ErrorSellado("EMPRESA_DESCONOCIDA", "No hay clave pública para la Empresa " + idEmpresa);
+        }
+        return clave;
+    }
+
+    private PublicKey buscarClaveEmpresa(Paquete paquete) throws SellarFactura.ErrorSellado, GeneralSecurityException, IOException {
+        byte[] idClaveEmpresa = paquete.getContenidoBloque("ID_CLAVE_EMPRESA");
+        if (idClaveEmpresa == null) {
+            throw new SellarFactura.ErrorSellado("EMPRESA_INVALIDA", "Indique ?empresa=<id>: el paquete no trae ID_CLAVE_EMPRESA");
+        }
+        PublicKey clave = this.directorioEmpresas.buscar(idClaveEmpresa);
+        if (clave == null) {
+            throw new SellarFactura.ErrorSellado("EMPRESA_DESCONOCIDA", "No hay clave pública para la Empresa del paquete");
+        }
+        return clave;
+    }
+
+    private void atenderSellado(HttpExchange intercambio) throws IOException {
+        try {
+            if (!intercambio.getRequestMethod().equals("POST")) {
+                responderError(intercambio, 405, "METODO_NO_PERMITIDO", "Use POST /sellar?empresa=<id>");
+                return;
+            }
+            String idEmpresa = parametro(intercambio.getRequestURI(), "empresa");
+
+            Paquete paquete = new Paquete();
+            try (InputStream cuerpo = intercambio.getRequestBody()) {
+                paquete.leerPaquete(cuerpo);
+            } catch (IOException | IllegalArgumentException ex) {
+                responderError(intercambio, 400, "PAQUETE_ILEGIBLE", ex.getMessage());
+                return;
+            }
+
+            this.sellar(paquete, idEmpresa);
+
+            ByteArrayOutputStream salida = new ByteArrayOutputStream();
+            paquete.escribirPaquete(salida, paquete.getFormato());
+            String tipo = (paquete.getFormato() == Paquete.Formato.BINARIO) ? "application/octet-stream" : "text/plain; charset=utf-8";
+            responder(intercambio, 200, tipo, salida.toByteArray());
+        } catch (SellarFactura.ErrorSellado ex) {
+            int estado;
+            switch (ex.getCodigo()) {
+                case "EMPRESA_DESCONOCIDA":
+                    estado = 404;
+                    break;
+                case "YA_SELLADO":
+                case "DUPLICADO":
+                    estado = 409;
+                    break;
+                case "FIRMA_EMPRESA_INVALIDA":
+                    estado = 403;
+                    break;
+                default:
+                    estado = 400;
+            }
+            responderError(intercambio, estado, ex.getCodigo(), ex.getMessage());
+        } catch (Exception ex) {
+            responderError(intercambio, 500, "ERROR_INTERNO", ex.toString());
+        } finally {
+            intercambio.close();
+        }
+    }
+
+    private static void atenderMetricas(HttpExchange intercambio) throws IOException {
+        if ("json".equals(parametro(intercambio.getRequestURI(), "formato"))) {
+            responder(intercambio, 200, "application/json; charset=utf-8", Metricas.comoJson().getBytes(StandardCharsets.UTF_8));
+        } else {
+            responder(intercambio, 200, "text/plain; charset=utf-8", Metricas.comoTexto().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String parametro(URI uri, String nombre) {
+        String consulta = uri.getRawQuery();
+        if (consulta == null) {
+            return null;
+        }
+        for (String par : consulta.split("&")) {
+            int igual = par.indexOf('=');
+            if (igual > 0 && par.substring(0, igual).equals(nombre)) {
+                return URLDecoder.decode(par.substring(igual + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private static void responderError(HttpExchange intercambio, int estado, String codigo, String mensaje) throws IOException {
+        String json = "{\"error\": " + Json.cadena(codigo) + ", \"mensaje\": " + Json.cadena(mensaje) + "}";
+        responder(intercambio, estado, "application/json; charset=utf-8", json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void responder(HttpExchange intercambio, int estado, String tipo, byte[] cuerpo) throws IOException {
+        intercambio.getResponseHeaders().set("Content-Type", tipo);
+        intercambio.sendResponseHeaders(estado, cuerpo.length);
+        try (OutputStream out = intercambio.getResponseBody()) {
+            out.write(cuerpo);
+        }
+    }
+
+    /*
+    Un hilo virtual por petición si la JVM los ofrece (Java 21+); el proyecto
+    compila con release 17, así que se busca por reflexión y, si no existe,
+    se usa un pool de hilos de plataforma que crece bajo demanda.
+    */
+    private static ExecutorService crearEjecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public static void mensajeAyuda() {
+        System.out.println("Servicio local de sellado de Facturas Empaquetadas (HTTP en loopback).");
+        System.out.println("\tSintaxis: java ServicioSellado <puerto> <clave_privada_autoridad> <directorio_claves_empresas> [<ventana_ms> <max_por_lote>]");
+        System.out.println("\tPeticiones: POST /sellar[?empresa=<id>] con el paquete en el cuerpo (clave <id>.publica)");
+        System.out.println("\t            GET /metricas[?formato=json] tiempos por etapa (ver -Dfactura.metricas)");
+        System.out.println();
+    }
+}
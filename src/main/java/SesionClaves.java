@@ -0,0 +1,169 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.security.*;
+import java.util.HexFormat;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+public final class SesionClaves {
+
+    /*
+    Modo sesión del empaquetado por lotes (EmpaquetarFactura --lote --sesion).
+    Sin sesión, cada factura lleva su clave AES cifrada con RSA para Hacienda y
+    cada una cuesta a Hacienda una operación de clave privada. Con sesión:
+      - se genera una clave de sesión (KEK, AES-128) por lote, se cifra una sola
+        vez con RSA para Hacienda y se guarda en el paquete de sesión
+        <id_sesion>.sesion, junto a los paquetes del lote:
+            ID_SESION              16 bytes aleatorios
+            CLAVE_SESION_CIFRADA   la KEK cifrada con RSA/ECB/PKCS1Padding
+            ID_CLAVE_EMPRESA       la Empresa que abrió la sesión
+      - cada factura sigue teniendo su propia clave AES aleatoria, pero en
+        CLAVE_CIFRADA va envuelta con la KEK (AESWrap, RFC 3394) y el paquete
+        lleva el bloque ID_SESION
+    El sellado no cambia: ID_SESION y CLAVE_CIFRADA van en el MANIFIESTO que
+    firma la Empresa como los demás bloques (ver Manifiesto), así que
+    cambiarlos, quitarlos o añadir un ID_SESION invalida su firma. En los
+    paquetes sin manifiesto ID_SESION no va firmado: cambiarlo solo hace que
+    falle el desenvolvimiento (AESWrap comprueba la integridad de la clave
+    envuelta).
+    DesempaquetarFactura busca la sesión en el directorio del paquete (o en
+    -Dfactura.sesiones), descifra la KEK con RSA la primera vez y la guarda en
+    memoria: el resto de facturas de la sesión solo usan operaciones simétricas.
+     */
+
+    public static final String BLOQUE = "ID_SESION";
+    public static final String BLOQUE_CLAVE = "CLAVE_SESION_CIFRADA";
+    public static final String EXTENSION = ".sesion";
+    public static final String PROPIEDAD_SESIONES = "factura.sesiones";
+
+    private static final int LONGITUD_ID = 16;
+
+    // Sesiones cuya KEK se guarda a la vez; las demás salen por LRU
+    static final int MAXIMO_SESIONES = 1024;
+
+    // KEK ya descifradas, por identificador de sesión; una sola operación RSA por sesión aunque la pidan varios hilos a la vez
+    private static final CacheClaves CLAVES_SESION = new CacheClaves(MAXIMO_SESIONES * CacheClaves.COSTE_ENTRADA, CacheClaves.SEGUNDOS_POR_DEFECTO);
+
+    private static final ThreadLocal<Cipher> ENVOLTORIO = ThreadLocal.withInitial(() -> {
+        try {
+            return Criptografia.cipher("AESWrap");
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("No se puede crear el cifrador AESWrap", ex);
+        }
+    });
+
+    private final byte[] identificador;
+    private final SecretKey clave;
+    private final byte[] claveCifrada;
+    private final byte[] idClaveEmpresa;
+
+    private SesionClaves(byte[] identificador, SecretKey clave, byte[] claveCifrada, byte[] idClaveEmpresa) {
+        this.identificador = identificador;
+        this.clave = clave;
+        this.claveCifrada = claveCifrada;
+        this.idClaveEmpresa = idClaveEmpresa;
+    }
+
+    /*
+    Abre una sesión nueva: genera la KEK y la cifra con la clave pública de Hacienda.
+    */
+    @SuppressWarnings("try") // la Medicion solo mide el bloque, no se usa dentro
+    public static SesionClaves crear(PublicKey haciendaPubKey, byte[] idClaveEmpresa) throws GeneralSecurityException {
+        SecureRandom random = new SecureRandom();
+        byte[] identificador = new byte[LONGITUD_ID];
+        random.nextBytes(identificador);
+        KeyGenerator keyGen = Criptografia.keyGenerator("AES");
+        keyGen.init(SuiteCifrado.LONGITUD_CLAVE, random);
+        SecretKey clave = keyGen.generateKey();
+
+        byte[] claveCifrada;
+        try (Metricas.Medicion medicion = Metricas.medir(Metricas.Etapa.CIFRAR_CLAVE)) {
+            Cipher rsaCipher = Criptografia.cipher("RSA/ECB/PKCS1Padding");
+            rsaCipher.init(Cipher.ENCRYPT_MODE, haciendaPubKey);
+            claveCifrada = rsaCipher.doFinal(clave.getEncoded());
+        }
+        return new SesionClaves(identificador, clave, claveCifrada, idClaveEmpresa);
+    }
+
+    public byte[] getIdentificador() {
+        return this.identificador.clone();
+    }
+
+    /*
+    Fichero de la sesión en el directorio indicado: <id_sesion>.sesion.
+    */
+    public static Path fichero(Path directorio, byte[] identificador) {
+        return directorio.resolve(HexFormat.of().formatHex(identificador) + EXTENSION);
+    }
+
+    /*
+    Guarda el paquete de sesión en el directorio de los paquetes del lote.
+    */
+    public Path guardar(Path directorio, Paquete.Formato formato) throws IOException {
+        Path fichero = fichero(directorio, this.identificador);
+        try (Paquete.Escritor escritor = new Paquete.Escritor(fichero.toString(), formato)) {
+            escritor.escribirBloque(BLOQUE, this.identificador);
+            escritor.escribirBloque(BLOQUE_CLAVE, this.claveCifrada);
+            escritor.escribirBloque("ID_CLAVE_EMPRESA", this.idClaveEmpresa);
+        }
+        return fichero;
+    }
+
+    /*
+    Clave AES de una factura envuelta con la KEK de la sesión (el contenido de
+    CLAVE_CIFRADA). El Cipher es de cada hilo.
+    */
+    @SuppressWarnings("try") // la Medicion solo mide el bloque, no se usa dentro
+    public byte[] envolver(SecretKey claveFactura) throws GeneralSecurityException {
+        try (Metricas.Medicion medicion = Metricas.medir(Metricas.Etapa.CIFRAR_CLAVE)) {
+            Cipher envoltorio = ENVOLTORIO.get();
+            envoltorio.init(Cipher.WRAP_MODE, this.clave);
+            return envoltorio.wrap(claveFactura);
+        }
+    }
+
+    /*
+    Clave AES de una factura de la sesión idSesion a partir de su CLAVE_CIFRADA.
+    La KEK se busca en directorio (o en -Dfactura.sesiones, si se indica) y se
+    descifra con la clave privada de Hacienda solo la primera vez. Si no se
+    puede descifrar no se guarda, para que se pueda volver a intentar. Las KEK
+    se guardan en una CacheClaves: como mucho MAXIMO_SESIONES (sale la usada
+    hace más tiempo) y durante CacheClaves.SEGUNDOS_POR_DEFECTO, y al salir se
+    sobrescriben con ceros.
+    */
+    public static SecretKey desenvolver(byte[] idSesion, byte[] claveEnvuelta, PrivateKey clavePrivadaHacienda, Path directorio) throws GeneralSecurityException {
+        SecretKey claveSesion = CLAVES_SESION.obtener(idSesion, () -> descifrarSesion(idSesion, clavePrivadaHacienda, directorio));
+        Cipher envoltorio = ENVOLTORIO.get();
+        envoltorio.init(Cipher.UNWRAP_MODE, claveSesion);
+        return (SecretKey) envoltorio.unwrap(claveEnvuelta, "AES", Cipher.SECRET_KEY);
+    }
+
+    private static SecretKey descifrarSesion(byte[] idSesion, PrivateKey clavePrivadaHacienda, Path directorio) throws GeneralSecurityException {
+        String configurado = System.getProperty(PROPIEDAD_SESIONES);
+        Path fichero = fichero((configurado != null) ? Paths.get(configurado) : directorio, idSesion);
+        byte[] claveCifrada;
+        try {
+            Paquete sesion = Paquete.abrir(fichero.toString());
+            if (!MessageDigest.isEqual(idSesion, sesion.getContenidoBloque(BLOQUE))) {
+                throw new GeneralSecurityException("El paquete de sesión " + fichero + " es de otra sesión");
+            }
+            claveCifrada = sesion.getContenidoBloque(BLOQUE_CLAVE);
+        } catch (IOException | UncheckedIOException ex) {
+            throw new GeneralSecurityException("No se puede leer el paquete de sesión " + fichero + ": " + ex.getMessage(), ex);
+        }
+        if (claveCifrada == null) {
+            throw new GeneralSecurityException("Falta " + BLOQUE_CLAVE + " en el paquete de sesión " + fichero);
+        }
+        Cipher descifradorRSA = Criptografia.cipher("RSA/ECB/PKCS1Padding");
+        descifradorRSA.init(Cipher.DECRYPT_MODE, clavePrivadaHacienda);
+        return new SecretKeySpec(descifradorRSA.doFinal(claveCifrada), "AES");
+    }
+
+    /*
+    Olvida las KEK descifradas (p.ej. al terminar un lote en un proceso de larga duración).
+    */
+    public static void olvidar() {
+        CLAVES_SESION.vaciar();
+    }
+}
@@ -0,0 +1,126 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.AlgorithmParameterSpec;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+public enum SuiteCifrado {
+
+    /*
+    Cifrado simétrico de la factura. EmpaquetarFactura usa la suite indicada en
+    -Dfactura.suite (AES_128_CBC por defecto) y guarda su nombre en el bloque
+    SUITE_CIFRADO; DesempaquetarFactura descifra según ese bloque. Los paquetes
+    sin SUITE_CIFRADO son los anteriores a este bloque, todos AES_128_CBC.
+        AES_128_CBC  AES/CBC/PKCS5Padding, IV de 16 bytes
+        AES_128_GCM  AES/GCM/NoPadding, nonce de 12 bytes y etiqueta de 128 bits:
+                     autentica el texto cifrado y el JDK lo acelera con AES-NI/CLMUL
+        AES_128_GCM_SEGMENTADO
+                     AES-GCM por segmentos de 64 KB con prefijo de nonce de 7 bytes
+                     (ver CifradoSegmentado): se cifra y descifra en paralelo y
+                     permite descifrar un rango de la factura
+    El bloque va en el MANIFIESTO que firma la Empresa (ver Manifiesto), así
+    que cambiarlo o quitarlo invalida su firma. En los paquetes sin manifiesto
+    no va firmado y cambiarlo solo hace que el descifrado falle.
+     */
+
+    AES_128_CBC("AES/CBC/PKCS5Padding", 16),
+    AES_128_GCM("AES/GCM/NoPadding", 12),
+    AES_128_GCM_SEGMENTADO("AES/GCM/NoPadding", CifradoSegmentado.LONGITUD_PREFIJO);
+
+    public static final String BLOQUE = "SUITE_CIFRADO";
+    public static final String PROPIEDAD_SUITE = "factura.suite";
+    public static final int LONGITUD_CLAVE = 128;
+    public static final int LONGITUD_ETIQUETA_GCM = 128;
+
+    private final String transformacion;
+    private final int longitudIV;
+
+    SuiteCifrado(String transformacion, int longitudIV) {
+        this.transformacion = transformacion;
+        this.longitudIV = longitudIV;
+    }
+
+    public String getTransformacion() {
+        return this.transformacion;
+    }
+
+    public int getLongitudIV() {
+        return this.longitudIV;
+    }
+
+    public boolean esSegmentada() {
+        return this == AES_128_GCM_SEGMENTADO;
+    }
+
+    public AlgorithmParameterSpec parametros(byte[] iv) {
+        return (this == AES_128_CBC) ? new IvParameterSpec(iv) : new GCMParameterSpec(LONGITUD_ETIQUETA_GCM, iv);
+    }
+
+    /*
+    Empieza a cifrar o descifrar (modo de Cipher) con la clave y el IV del
+    paquete. Las suites de un solo mensaje reutilizan el Cipher indicado, que
+    debe ser de getTransformacion(); la segmentada usa sus propios Cipher.
+    */
+    public Proceso iniciar(Cipher cipher, int modo, SecretKey clave, byte[] iv) throws GeneralSecurityException {
+        if (this.esSegmentada()) {
+            return new CifradoSegmentado(modo, clave, iv);
+        }
+        cipher.init(modo, clave, this.parametros(iv));
+        return new Proceso() {
+            @Override
+            public byte[] update(byte[] datos, int inicio, int longitud) {
+                return cipher.update(datos, inicio, longitud);
+            }
+
+            @Override
+            public byte[] doFinal() throws GeneralSecurityException {
+                return cipher.doFinal();
+            }
+        };
+    }
+
+    public byte[] getIdentificador() {
+        return this.name().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /*
+    Suite indicada en la configuración (-Dfactura.suite).
+    */
+    public static SuiteCifrado configurada() {
+        String nombre = System.getProperty(PROPIEDAD_SUITE, AES_128_CBC.name());
+        try {
+            return valueOf(nombre.trim().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Suite de cifrado desconocida en -D" + PROPIEDAD_SUITE + ": " + nombre);
+        }
+    }
+
+    /*
+    Suite de un paquete a partir del contenido de su bloque SUITE_CIFRADO (null si no lo tiene).
+    */
+    public static SuiteCifrado deBloque(byte[] identificador) throws NoSuchAlgorithmException {
+        if (identificador == null) {
+            return AES_128_CBC;
+        }
+        String nombre = new String(identificador, StandardCharsets.UTF_8);
+        for (SuiteCifrado suite : values()) {
+            if (suite.name().equals(nombre)) {
+                return suite;
+            }
+        }
+        throw new NoSuchAlgorithmException("Suite de cifrado desconocida: " + nombre);
+    }
+
+    /*
+    Cifrado o descifrado en curso de una factura, con los update()/doFinal() de
+    Cipher: update() puede devolver null o un array vacío si aún no hay salida.
+    */
+    public interface Proceso {
+        byte[] update(byte[] datos, int inicio, int longitud) throws GeneralSecurityException;
+
+        byte[] doFinal() throws GeneralSecurityException;
+    }
+}
@@ -0,0 +1,67 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.security.Security;
+import java.security.spec.ECGenParameterSpec;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class AlgoritmoFirmaTest {
+
+    private static final Provider BC = new BouncyCastleProvider();
+
+    @BeforeAll
+    static void registrarProveedor() {
+        Security.addProvider(BC); // como hacen las herramientas al arrancar (ver Criptografia)
+    }
+
+    private static KeyPair claveEc(String curva, Provider proveedor) throws Exception {
+        KeyPairGenerator generador = (proveedor == null) ? KeyPairGenerator.getInstance("EC") : KeyPairGenerator.getInstance("EC", proveedor);
+        generador.initialize(new ECGenParameterSpec(curva));
+        return generador.generateKeyPair();
+    }
+
+    @Test
+    void firmaYVerificaConCadaAlgoritmo() throws Exception {
+        byte[] resumen = MessageDigest.getInstance("SHA-256").digest(new byte[]{1, 2, 3});
+        for (AlgoritmoFirma algoritmo : AlgoritmoFirma.values()) {
+            KeyPair claves = algoritmo.generarClaves(2048);
+            assertEquals(algoritmo, AlgoritmoFirma.deClave(claves.getPrivate()));
+            assertEquals(algoritmo, AlgoritmoFirma.deClave(claves.getPublic()));
+            byte[] firma = algoritmo.firmar(claves.getPrivate(), resumen);
+            assertTrue(algoritmo.verificar(claves.getPublic(), resumen, firma), algoritmo.name());
+            resumen[0] ^= 1;
+            assertFalse(algoritmo.verificar(claves.getPublic(), resumen, firma), algoritmo.name());
+        }
+    }
+
+    @Test
+    void aceptaP256DeCualquierProveedor() throws Exception {
+        assertEquals(AlgoritmoFirma.ECDSA_SHA256, AlgoritmoFirma.deClave(claveEc("secp256r1", null).getPublic()));
+        assertEquals(AlgoritmoFirma.ECDSA_SHA256, AlgoritmoFirma.deClave(claveEc("secp256r1", BC).getPublic()));
+        assertEquals(AlgoritmoFirma.ECDSA_SHA256, AlgoritmoFirma.deClave(claveEc("prime256v1", BC).getPrivate()));
+    }
+
+    /*
+    Curvas con un cuerpo de 256 bits que no son P-256.
+    */
+    @Test
+    void rechazaOtrasCurvasDe256Bits() throws Exception {
+        for (String curva : new String[]{"secp256k1", "brainpoolP256r1", "brainpoolP256t1", "secp384r1"}) {
+            KeyPair claves = claveEc(curva, BC);
+            assertThrows(InvalidKeyException.class, () -> AlgoritmoFirma.deClave(claves.getPublic()), curva);
+            assertThrows(InvalidKeyException.class, () -> AlgoritmoFirma.deClave(claves.getPrivate()), curva);
+        }
+    }
+
+    @Test
+    void rechazaEd448() throws Exception {
+        KeyPair claves = KeyPairGenerator.getInstance("Ed448").generateKeyPair();
+        assertThrows(InvalidKeyException.class, () -> AlgoritmoFirma.deClave(claves.getPublic()));
+    }
+}
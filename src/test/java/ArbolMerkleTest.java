@@ -0,0 +1,77 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ArbolMerkleTest {
+
+    private static List<byte[]> hojas(int numero) {
+        List<byte[]> hojas = new ArrayList<>();
+        for (int i = 0; i < numero; i++) {
+            hojas.add(ArbolMerkle.hoja(ByteBuffer.allocate(Integer.BYTES).putInt(i).array()));
+        }
+        return hojas;
+    }
+
+    /*
+    Con cualquier número de hojas (también impar, en que el último nodo sube
+    sin combinarse) la prueba de cada hoja lleva a la raíz.
+    */
+    @Test
+    void cadaPruebaLlevaALaRaiz() {
+        for (int numero = 1; numero <= 70; numero++) {
+            List<byte[]> hojas = hojas(numero);
+            ArbolMerkle arbol = new ArbolMerkle(hojas);
+            for (int i = 0; i < numero; i++) {
+                byte[] prueba = arbol.prueba(i);
+                assertEquals(0, prueba.length % (ArbolMerkle.TAMANO_HASH + 1));
+                assertArrayEquals(arbol.getRaiz(), ArbolMerkle.raizDesdePrueba(hojas.get(i), prueba), numero + " hojas, hoja " + i);
+            }
+        }
+    }
+
+    @Test
+    void unaHojaEsLaRaiz() {
+        byte[] hoja = ArbolMerkle.hoja(new byte[]{1, 2, 3});
+        ArbolMerkle arbol = new ArbolMerkle(List.of(hoja));
+        assertArrayEquals(hoja, arbol.getRaiz());
+        assertEquals(0, arbol.prueba(0).length);
+    }
+
+    @Test
+    void pruebasAlteradasNoLlevanALaRaiz() {
+        List<byte[]> hojas = hojas(13);
+        ArbolMerkle arbol = new ArbolMerkle(hojas);
+        for (int i = 0; i < hojas.size(); i++) {
+            byte[] prueba = arbol.prueba(i);
+            assertFalse(Arrays.equals(arbol.getRaiz(), ArbolMerkle.raizDesdePrueba(hojas.get((i + 1) % hojas.size()), prueba)), "otra hoja");
+            for (int posicion = 0; posicion < prueba.length; posicion++) {
+                byte[] alterada = prueba.clone();
+                alterada[posicion] ^= (posicion % (ArbolMerkle.TAMANO_HASH + 1) == 0) ? 0x01 : 0x40; // cambia el lado o el hash
+                assertFalse(Arrays.equals(arbol.getRaiz(), ArbolMerkle.raizDesdePrueba(hojas.get(i), alterada)), "hoja " + i + ", byte " + posicion);
+            }
+        }
+        assertThrows(IllegalArgumentException.class, () -> ArbolMerkle.raizDesdePrueba(hojas.get(0), new byte[ArbolMerkle.TAMANO_HASH]));
+        byte[] ladoNoValido = arbol.prueba(0);
+        ladoNoValido[0] = 7;
+        assertThrows(IllegalArgumentException.class, () -> ArbolMerkle.raizDesdePrueba(hojas.get(0), ladoNoValido));
+    }
+
+    /*
+    Las hojas y los nodos llevan prefijos distintos: un nodo interno no pasa
+    por hoja.
+    */
+    @Test
+    void unNodoNoPasaPorHoja() {
+        List<byte[]> hojas = hojas(4);
+        ArbolMerkle arbol = new ArbolMerkle(hojas);
+        ArbolMerkle dosHojas = new ArbolMerkle(hojas.subList(0, 2));
+        byte[] pruebaSubarbol = Arrays.copyOfRange(arbol.prueba(0), ArbolMerkle.TAMANO_HASH + 1, arbol.prueba(0).length);
+        byte[] comoHoja = ArbolMerkle.hoja(dosHojas.getRaiz());
+        assertFalse(Arrays.equals(arbol.getRaiz(), ArbolMerkle.raizDesdePrueba(comoHoja, pruebaSubarbol)));
+        assertArrayEquals(arbol.getRaiz(), ArbolMerkle.raizDesdePrueba(dosHojas.getRaiz(), pruebaSubarbol));
+    }
+}
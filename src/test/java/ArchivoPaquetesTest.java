@@ -0,0 +1,150 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ArchivoPaquetesTest {
+
+    private static final Path SEGMENTO = Path.of("segmento-00000001.seg");
+
+    @TempDir
+    Path directorio;
+
+    private static ByteBuffer paquete(String texto) {
+        return ByteBuffer.wrap(texto.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String contenido(ArchivoPaquetes archivo, String identificador) throws IOException {
+        ByteBuffer contenido = archivo.contenido(identificador);
+        return (contenido == null) ? null : StandardCharsets.UTF_8.decode(contenido).toString();
+    }
+
+    private void truncar(Path fichero, long tamano) throws IOException {
+        try (FileChannel canal = FileChannel.open(this.directorio.resolve(fichero), StandardOpenOption.WRITE)) {
+            canal.truncate(tamano);
+        }
+    }
+
+    private long tamano(Path fichero) throws IOException {
+        return Files.size(this.directorio.resolve(fichero));
+    }
+
+    @Test
+    void recuerdaSustituyeYElimina() throws Exception {
+        try (ArchivoPaquetes archivo = ArchivoPaquetes.abrir(this.directorio)) {
+            archivo.anadir("a", paquete("uno"));
+            archivo.anadir("b", paquete("dos"));
+            archivo.anadir("a", paquete("tres"));
+            assertTrue(archivo.eliminar("b"));
+            assertFalse(archivo.eliminar("b"));
+        }
+        try (ArchivoPaquetes archivo = ArchivoPaquetes.abrir(this.directorio)) {
+            assertEquals("tres", contenido(archivo, "a"));
+            assertNull(contenido(archivo, "b"));
+            assertEquals(1, archivo.numeroPaquetes());
+            assertTrue(archivo.compactar() > 0);
+            assertEquals("tres", contenido(archivo, "a"));
+        }
+        try (ArchivoPaquetes archivo = ArchivoPaquetes.abrir(this.directorio)) {
+            assertEquals("tres", contenido(archivo, "a"));
+            assertEquals(archivo.bytesVivos(), archivo.bytesTotales());
+        }
+    }
+
+    /*
+    Registros escritos cuya entrada no llegó al índice: se indexan al abrir.
+    Un registro a medio escribir al final se descarta.
+    */
+    @Test
+    void recuperaRegistrosSinIndexar() throws Exception {
+        try (ArchivoPaquetes archivo = ArchivoPaquetes.abrir(this.directorio)) {
+            archivo.anadir("a", paquete("uno"));
+            archivo.anadir("b", paquete("dos"));
+        }
+        long completo = this.tamano(SEGMENTO);
+        this.truncar(Path.of(ArchivoPaquetes.INDICE), 12); // solo la cabecera
+        Files.write(this.directorio.resolve(SEGMENTO), new byte[]{0x50, 0x51, 0x52}, StandardOpenOption.APPEND);
+        try (ArchivoPaquetes archivo = ArchivoPaquetes.abrir(this.directorio)) {
+            assertEquals("uno", contenido(archivo, "a"));
+            assertEquals("dos", contenido(archivo, "b"));
+            archivo.anadir("c", paquete("tres"));
+        }
+        assertTrue(this.tamano(SEGMENTO) > completo);
+        try (ArchivoPaquetes archivo = ArchivoPaquetes.abrir(this.directorio)) {
+            assertEquals("tres", contenido(archivo, "c"));
+            assertEquals(3, archivo.numeroPaquetes());
+        }
+    }
+
+    /*
+    Entradas del índice que apuntan más allá del final del segmento, o a un
+    registro con CRC erróneo, se descartan; si sustituían a otro registro,
+    vuelve a valer el anterior.
+    */
+    @Test
+    void descartaEntradasSinRegistro() throws Exception {
+        long antesDeB;
+        try (ArchivoPaquetes archivo = ArchivoPaquetes.abrir(this.directorio)) {
+            archivo.anadir("a", paquete("uno"));
+            archivo.anadir("b", paquete("dos"));
+            antesDeB = this.tamano(SEGMENTO);
+            archivo.anadir("a", paquete("sustituido"));
+        }
+        this.truncar(SEGMENTO, antesDeB + 5); // el último registro se pierde a medias
+        try (ArchivoPaquetes archivo = ArchivoPaquetes.abrir(this.directorio)) {
+            assertEquals("uno", contenido(archivo, "a"));
+            assertEquals("dos", contenido(archivo, "b"));
+            assertEquals(antesDeB, this.tamano(SEGMENTO));
+            archivo.anadir("c", paquete("nuevo")); // ocupa el sitio del registro perdido
+        }
+        try (ArchivoPaquetes archivo = ArchivoPaquetes.abrir(this.directorio)) {
+            assertEquals("uno", contenido(archivo, "a"));
+            assertEquals("nuevo", contenido(archivo, "c"));
+            assertEquals(3, archivo.numeroPaquetes());
+        }
+
+        // Mismo tamaño pero contenido distinto: lo detecta el CRC
+        long fin = this.tamano(SEGMENTO);
+        try (FileChannel canal = FileChannel.open(this.directorio.resolve(SEGMENTO), StandardOpenOption.WRITE)) {
+            canal.write(ByteBuffer.wrap(new byte[]{'X'}), fin - Integer.BYTES - 1);
+        }
+        try (ArchivoPaquetes archivo = ArchivoPaquetes.abrir(this.directorio)) {
+            assertNull(contenido(archivo, "c"));
+            assertEquals("uno", contenido(archivo, "a"));
+            assertEquals(antesDeB, this.tamano(SEGMENTO));
+        }
+    }
+
+    @Test
+    void soloLecturaNoModificaNada() throws Exception {
+        try (ArchivoPaquetes archivo = ArchivoPaquetes.abrir(this.directorio)) {
+            archivo.anadir("a", paquete("uno"));
+            archivo.anadir("b", paquete("dos"));
+        }
+        this.truncar(Path.of(ArchivoPaquetes.INDICE), 12);
+        Files.write(this.directorio.resolve(SEGMENTO), new byte[]{0x50, 0x51}, StandardOpenOption.APPEND);
+        long segmento = this.tamano(SEGMENTO);
+
+        try (ArchivoPaquetes lector = ArchivoPaquetes.abrirLectura(this.directorio)) {
+            assertEquals("uno", contenido(lector, "a"));
+            assertEquals("dos", contenido(lector, "b"));
+            assertThrows(IllegalStateException.class, () -> lector.anadir("c", paquete("tres")));
+            assertThrows(IOException.class, () -> ArchivoPaquetes.abrir(this.directorio), "abierto para leer");
+        }
+        assertEquals(segmento, this.tamano(SEGMENTO));
+        assertEquals(12, this.tamano(Path.of(ArchivoPaquetes.INDICE)));
+
+        try (ArchivoPaquetes archivo = ArchivoPaquetes.abrir(this.directorio)) {
+            assertEquals("uno", contenido(archivo, "a"));
+            assertEquals("dos", contenido(archivo, "b"));
+            assertThrows(IOException.class, () -> ArchivoPaquetes.abrirLectura(this.directorio), "abierto para añadir");
+        }
+    }
+}
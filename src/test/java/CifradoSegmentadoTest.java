@@ -0,0 +1,82 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Random;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class CifradoSegmentadoTest {
+
+    private static final SecretKey CLAVE = new SecretKeySpec(new byte[16], "AES");
+    private static final byte[] PREFIJO = {1, 2, 3, 4, 5, 6, 7};
+    private static final int SEGMENTO = CifradoSegmentado.TAMANO_SEGMENTO;
+
+    @BeforeAll
+    static void registrarProveedor() {
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    private static byte[] cifrar(byte[] claro) throws Exception {
+        CifradoSegmentado cifrado = new CifradoSegmentado(Cipher.ENCRYPT_MODE, CLAVE, PREFIJO);
+        ByteArrayOutputStream salida = new ByteArrayOutputStream();
+        salida.writeBytes(cifrado.update(claro, 0, claro.length));
+        salida.writeBytes(cifrado.doFinal());
+        return salida.toByteArray();
+    }
+
+    private static byte[] rango(byte[] cifrado, long desde, long longitud) throws Exception {
+        ByteArrayOutputStream salida = new ByteArrayOutputStream();
+        long escritos = CifradoSegmentado.descifrarRango(CLAVE, PREFIJO, new ByteArrayInputStream(cifrado), desde, longitud, salida);
+        assertEquals(salida.size(), escritos);
+        return salida.toByteArray();
+    }
+
+    /*
+    Rangos dentro de un segmento, entre segmentos, de varias tandas, hasta el
+    final y más allá del final.
+    */
+    @Test
+    void descifraRangos() throws Exception {
+        byte[] claro = new byte[40 * SEGMENTO + 123]; // más de una tanda de segmentos
+        new Random(1).nextBytes(claro);
+        byte[] cifrado = cifrar(claro);
+        long[][] rangos = {
+                {0, 1}, {0, SEGMENTO}, {SEGMENTO - 1, 2}, {5, 3 * SEGMENTO}, {SEGMENTO, 17 * SEGMENTO + 9},
+                {3, claro.length - 3}, {0, claro.length}, {claro.length - 1, 1}, {claro.length - 50, 1000},
+                {claro.length, 10}, {claro.length + SEGMENTO, 10}, {7, Long.MAX_VALUE - 7}, {12345, 0}};
+        for (long[] rango : rangos) {
+            int desde = (int) Math.min(rango[0], claro.length);
+            int hasta = (int) Math.min(rango[0] + rango[1], claro.length);
+            assertArrayEquals(Arrays.copyOfRange(claro, desde, Math.max(desde, hasta)), rango(cifrado, rango[0], rango[1]), rango[0] + "+" + rango[1]);
+        }
+    }
+
+    @Test
+    void facturaDeSegmentosCompletosYVacia() throws Exception {
+        byte[] claro = new byte[2 * SEGMENTO];
+        new Random(2).nextBytes(claro);
+        assertArrayEquals(Arrays.copyOfRange(claro, SEGMENTO - 10, 2 * SEGMENTO), rango(cifrar(claro), SEGMENTO - 10, SEGMENTO + 100));
+        assertEquals(0, rango(cifrar(new byte[0]), 0, 10).length);
+    }
+
+    @Test
+    void rechazaFacturasTruncadas() throws Exception {
+        byte[] claro = new byte[3 * SEGMENTO + 10];
+        byte[] cifrado = cifrar(claro);
+        byte[] sinUltimo = Arrays.copyOf(cifrado, 3 * CifradoSegmentado.SEGMENTO_CIFRADO);
+        assertThrows(AEADBadTagException.class, () -> rango(sinUltimo, 2 * SEGMENTO, SEGMENTO + 10));
+        byte[] alterado = cifrado.clone();
+        alterado[CifradoSegmentado.SEGMENTO_CIFRADO + 5] ^= 1;
+        assertThrows(AEADBadTagException.class, () -> rango(alterado, SEGMENTO, 10));
+        assertEquals(10, rango(alterado, 0, 10).length); // los segmentos fuera del rango no se descifran
+        assertThrows(IllegalArgumentException.class, () -> rango(cifrado, -1, 10));
+    }
+}
@@ -0,0 +1,70 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.Security;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DirectorioClavesTest {
+
+    @TempDir
+    Path directorio;
+
+    @BeforeAll
+    static void registrarProveedor() {
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    private KeyPair guardar(String nombre) throws Exception {
+        KeyPair claves = AlgoritmoFirma.ED25519_SHA256.generarClaves(0);
+        Files.write(this.directorio.resolve(nombre + ".publica"), claves.getPublic().getEncoded());
+        return claves;
+    }
+
+    @Test
+    void encuentraClavesAnadidasDespues() throws Exception {
+        KeyPair primera = this.guardar("primera");
+        DirectorioClaves claves = new DirectorioClaves(this.directorio);
+        assertEquals(primera.getPublic(), claves.buscar(DirectorioClaves.identificador(primera.getPublic())));
+
+        KeyPair segunda = this.guardar("segunda");
+        assertEquals(segunda.getPublic(), claves.buscar(DirectorioClaves.identificador(segunda.getPublic())));
+        assertNull(claves.buscar(new byte[32]));
+    }
+
+    /*
+    Si el directorio no cambia, una clave desconocida no hace reindexar hasta
+    que pasa INTERVALO_REINDEXAR.
+    */
+    @Test
+    void noReindexaSiElDirectorioNoCambia() throws Exception {
+        this.guardar("primera");
+        FileTime modificacion = Files.getLastModifiedTime(this.directorio);
+        long inicio = System.nanoTime();
+        DirectorioClaves claves = new DirectorioClaves(this.directorio);
+        KeyPair oculta = this.guardar("oculta");
+        Files.setLastModifiedTime(this.directorio, modificacion);
+        byte[] id = DirectorioClaves.identificador(oculta.getPublic());
+        PublicKey encontrada = claves.buscar(id);
+        if (System.nanoTime() - inicio < DirectorioClaves.INTERVALO_REINDEXAR) {
+            assertNull(encontrada);
+        }
+        Thread.sleep(DirectorioClaves.INTERVALO_REINDEXAR / 1_000_000 + 10);
+        assertEquals(oculta.getPublic(), claves.buscar(id));
+    }
+
+    @Test
+    void cargarOBuscarAdmiteFicheroYDirectorio() throws Exception {
+        KeyPair clave = this.guardar("empresa");
+        byte[] id = DirectorioClaves.identificador(clave.getPublic());
+        assertEquals(clave.getPublic(), DirectorioClaves.cargarOBuscar(this.directorio.toString(), id));
+        assertEquals(clave.getPublic(), DirectorioClaves.cargarOBuscar(this.directorio.toString(), id));
+        assertEquals(clave.getPublic(), DirectorioClaves.cargarOBuscar(this.directorio.resolve("empresa.publica").toString(), null));
+    }
+}
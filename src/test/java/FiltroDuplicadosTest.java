@@ -0,0 +1,128 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FiltroDuplicadosTest {
+
+    @TempDir
+    Path directorio;
+
+    private static byte[] resumen(long numero) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(ByteBuffer.allocate(Long.BYTES).putLong(numero).array());
+    }
+
+    @Test
+    void registraYRecuerdaAlReabrir() throws Exception {
+        try (FiltroDuplicados filtro = FiltroDuplicados.abrir(this.directorio)) {
+            for (long i = 0; i < 1000; i++) {
+                assertFalse(filtro.contiene(resumen(i)));
+                assertTrue(filtro.anadir(resumen(i)));
+                assertFalse(filtro.anadir(resumen(i)), "segunda presentación");
+            }
+        }
+        try (FiltroDuplicados filtro = FiltroDuplicados.abrir(this.directorio)) {
+            assertEquals(1000, filtro.numeroEntradas());
+            for (long i = 0; i < 1000; i++) {
+                assertTrue(filtro.contiene(resumen(i)));
+            }
+            assertFalse(filtro.contiene(resumen(1000)));
+        }
+    }
+
+    /*
+    Una factura reservada no se puede reservar otra vez hasta que se suelta
+    (entonces sí) o se registra (entonces ya no), también desde otro registro
+    del mismo directorio.
+    */
+    @Test
+    void reservaHastaRegistrarOSoltar() throws Exception {
+        try (FiltroDuplicados primero = FiltroDuplicados.abrir(this.directorio);
+             FiltroDuplicados segundo = FiltroDuplicados.abrir(this.directorio)) {
+            FiltroDuplicados.Reserva reserva = primero.reservar(resumen(1));
+            assertNotNull(reserva);
+            assertNull(primero.reservar(resumen(1)));
+            assertNull(segundo.reservar(resumen(1)));
+            assertFalse(primero.contiene(resumen(1)));
+            reserva.close();
+            reserva.close();
+
+            reserva = segundo.reservar(resumen(1));
+            assertNotNull(reserva, "soltada");
+            assertTrue(reserva.registrar());
+            assertTrue(primero.contiene(resumen(1)));
+            assertNull(primero.reservar(resumen(1)), "registrada");
+            reserva.close();
+            assertNull(segundo.reservar(resumen(1)), "registrada");
+        }
+    }
+
+    /*
+    Un registro que sigue abierto ve las facturas y la duplicación de la
+    tabla que hace otro registro del mismo directorio.
+    */
+    @Test
+    void otroRegistroVeLaDuplicacion() throws Exception {
+        int registradas = 800_000; // más de FACTOR_CARGA * HUECOS_INICIALES: duplica una vez
+        try (FiltroDuplicados primero = FiltroDuplicados.abrir(this.directorio);
+             FiltroDuplicados segundo = FiltroDuplicados.abrir(this.directorio)) {
+            for (long i = 0; i < registradas; i++) {
+                assertTrue(primero.anadir(resumen(i)));
+            }
+            assertEquals(registradas, segundo.numeroEntradas());
+            for (long i = 0; i < registradas; i += 997) {
+                assertFalse(segundo.anadir(resumen(i)), "registrada por el otro: " + i);
+            }
+            assertTrue(segundo.anadir(resumen(registradas)));
+            assertTrue(primero.contiene(resumen(registradas)));
+        }
+    }
+
+    /*
+    Dos procesos registran a la vez las mismas facturas: cada una se acepta
+    una sola vez.
+    */
+    @Test
+    void dosProcesosNoAceptanDosVeces() throws Exception {
+        int facturas = 3000;
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<Process> procesos = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            procesos.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), FiltroDuplicadosTest.class.getName(),
+                    this.directorio.toString(), Integer.toString(facturas)).redirectError(ProcessBuilder.Redirect.INHERIT).start());
+        }
+        int aceptadas = 0;
+        for (Process proceso : procesos) {
+            String salida = new String(proceso.getInputStream().readAllBytes()).trim();
+            assertEquals(0, proceso.waitFor());
+            aceptadas += Integer.parseInt(salida);
+        }
+        assertEquals(facturas, aceptadas);
+        try (FiltroDuplicados filtro = FiltroDuplicados.abrir(this.directorio)) {
+            assertEquals(facturas, filtro.numeroEntradas());
+        }
+    }
+
+    /*
+    Proceso de dosProcesosNoAceptanDosVeces: registra las facturas 0..n-1 e
+    imprime cuántas ha aceptado.
+    */
+    public static void main(String[] args) throws Exception {
+        int aceptadas = 0;
+        try (FiltroDuplicados filtro = FiltroDuplicados.abrir(new File(args[0]).toPath())) {
+            for (long i = 0; i < Integer.parseInt(args[1]); i++) {
+                if (filtro.anadir(resumen(i))) {
+                    aceptadas++;
+                }
+            }
+        }
+        System.out.println(aceptadas);
+    }
+}
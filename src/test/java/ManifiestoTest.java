@@ -0,0 +1,169 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.Security;
+import java.util.Arrays;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ManifiestoTest {
+
+    @TempDir
+    static Path directorio;
+
+    private static KeyPair hacienda;
+    private static KeyPair empresa;
+    private static KeyPair autoridad;
+    private static DirectorioClaves clavesEmpresa;
+    private static DirectorioClaves clavesAutoridad;
+    private static Path factura;
+
+    @BeforeAll
+    static void prepararClaves() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        hacienda = AlgoritmoFirma.RSA_SHA256.generarClaves(1024);
+        empresa = AlgoritmoFirma.RSA_SHA256.generarClaves(1024);
+        autoridad = AlgoritmoFirma.RSA_SHA256.generarClaves(1024);
+        Files.write(directorio.resolve("empresa.publica"), empresa.getPublic().getEncoded());
+        Files.write(directorio.resolve("autoridad.publica"), autoridad.getPublic().getEncoded());
+        clavesEmpresa = DirectorioClaves.abrir(directorio.resolve("empresa.publica").toString());
+        clavesAutoridad = DirectorioClaves.abrir(directorio.resolve("autoridad.publica").toString());
+        StringBuilder json = new StringBuilder("{\"lineas\":[");
+        for (int i = 0; i < 500; i++) {
+            json.append(i == 0 ? "" : ",").append("{\"concepto\":\"linea ").append(i).append("\",\"importe\":").append(i * 3).append('}');
+        }
+        factura = directorio.resolve("factura.json");
+        Files.writeString(factura, json.append("]}").toString());
+    }
+
+    /*
+    Empaqueta y sella la factura con la compresión indicada.
+    */
+    private static Paquete sellado(String nombre, Compresion compresion) throws Exception {
+        Path fichero = directorio.resolve(nombre + ".paquete");
+        System.setProperty(Compresion.PROPIEDAD_COMPRESION, compresion.name());
+        try {
+            EmpaquetarFactura.empaquetar(factura, fichero, hacienda.getPublic(), empresa.getPrivate(), DirectorioClaves.identificador(empresa.getPublic()));
+        } finally {
+            System.clearProperty(Compresion.PROPIEDAD_COMPRESION);
+        }
+        Paquete paquete = Paquete.cargar(fichero.toString());
+        SellarFactura.sellar(paquete, empresa.getPublic(), autoridad.getPrivate());
+        return paquete;
+    }
+
+    private static String desempaquetar(Paquete paquete, String nombre) throws Exception {
+        Path fichero = directorio.resolve(nombre + ".paquete");
+        paquete.escribirPaquete(fichero.toString());
+        return DesempaquetarFactura.desempaquetar(fichero.toString(), directorio.resolve(nombre + ".json"), hacienda.getPrivate(), clavesEmpresa, clavesAutoridad);
+    }
+
+    private static Paquete copia(Paquete paquete) {
+        Paquete copia = new Paquete();
+        for (String nombre : paquete.getNombresBloque()) {
+            copia.anadirBloque(nombre, paquete.getContenidoBloque(nombre));
+        }
+        return copia;
+    }
+
+    private static void assertRechazado(Paquete paquete, String nombre, String motivo) {
+        DesempaquetarFactura.ErrorVerificacion error = assertThrows(DesempaquetarFactura.ErrorVerificacion.class,
+                () -> desempaquetar(paquete, nombre), motivo);
+        assertNotNull(error.getComprobacion(), motivo);
+        assertFalse(Files.exists(directorio.resolve(nombre + ".json")), "no debe quedar factura: " + motivo);
+    }
+
+    @Test
+    void codificaYLee() {
+        Manifiesto manifiesto = new Manifiesto();
+        manifiesto.anadir("FACTURA_CIFRADA", new byte[]{1, 2, 3});
+        manifiesto.anadir("CLAVE_CIFRADA", new byte[]{4});
+        manifiesto.anadir(Compresion.BLOQUE, Compresion.DEFLATE.getIdentificador());
+        Manifiesto leido = Manifiesto.leer(manifiesto.codificar());
+        assertEquals(manifiesto.getBloques(), leido.getBloques());
+        for (String bloque : manifiesto.getBloques()) {
+            assertArrayEquals(manifiesto.getResumen(bloque), leido.getResumen(bloque));
+        }
+        assertArrayEquals(manifiesto.codificar(), leido.codificar());
+    }
+
+    @Test
+    void rechazaManifiestosMalFormados() {
+        Manifiesto manifiesto = new Manifiesto();
+        manifiesto.anadir("FACTURA_CIFRADA", new byte[]{1});
+        String texto = new String(manifiesto.codificar(), StandardCharsets.UTF_8);
+        assertThrows(RuntimeException.class, () -> Manifiesto.leer(texto.getBytes(StandardCharsets.UTF_8)), "sin CLAVE_CIFRADA");
+
+        manifiesto.anadir("CLAVE_CIFRADA", new byte[]{2});
+        String[] lineas = new String(manifiesto.codificar(), StandardCharsets.UTF_8).split("\n");
+        String desordenado = String.join("\n", lineas[1], lineas[0]) + "\n";
+        assertThrows(RuntimeException.class, () -> Manifiesto.leer(desordenado.getBytes(StandardCharsets.UTF_8)), "desordenado");
+        String malHex = String.join("\n", lineas).replaceFirst("[0-9a-f]$", "z") + "\n";
+        assertThrows(RuntimeException.class, () -> Manifiesto.leer(malHex.getBytes(StandardCharsets.UTF_8)), "hexadecimal no válido");
+    }
+
+    @Test
+    void aceptaLosPaquetesSinAlterar() throws Exception {
+        for (Compresion compresion : Compresion.values()) {
+            String nombre = "intacto-" + compresion;
+            assertNotNull(desempaquetar(sellado(nombre, compresion), nombre));
+            assertEquals(Files.readString(factura), Files.readString(directorio.resolve(nombre + ".json")));
+        }
+    }
+
+    /*
+    Alterar cualquier bloque de un paquete sellado (con y sin compresión) hace
+    que se rechace, y también quitarlo salvo ALGORITMO_FIRMA_AUTORIDAD, cuyo
+    valor por defecto es RSA_SHA256. ID_CLAVE_AUTORIDAD solo elige la clave
+    en un directorio: con un fichero de clave no se usa.
+    */
+    @Test
+    void rechazaCadaBloqueAlterado() throws Exception {
+        for (Compresion compresion : Compresion.values()) {
+            Paquete original = sellado("original-" + compresion, compresion);
+            for (String bloque : original.getNombresBloque()) {
+                if (bloque.equals("ID_CLAVE_AUTORIDAD")) {
+                    continue;
+                }
+                Paquete alterado = copia(original);
+                byte[] contenido = original.getContenidoBloque(bloque);
+                byte[] cambiado = Arrays.copyOf(contenido, contenido.length);
+                cambiado[cambiado.length - 1] ^= 0x01;
+                alterado.actualizarBloque(bloque, cambiado);
+                assertRechazado(alterado, "alterado-" + compresion + "-" + bloque, "alterado " + bloque + " (" + compresion + ")");
+
+                if (bloque.equals(AlgoritmoFirma.BLOQUE_AUTORIDAD)) {
+                    continue;
+                }
+                Paquete sinBloque = copia(original);
+                sinBloque.eliminarBloque(bloque);
+                assertRechazado(sinBloque, "sin-" + compresion + "-" + bloque, "sin " + bloque + " (" + compresion + ")");
+            }
+        }
+    }
+
+    /*
+    Un bloque que cambia cómo se interpreta la factura y que no está en el
+    manifiesto firmado se rechaza aunque el resto de firmas sean válidas.
+    */
+    @Test
+    void rechazaBloquesInterpretadosFueraDelManifiesto() throws Exception {
+        Paquete original = sellado("sin-cubrir", Compresion.NINGUNA);
+        Manifiesto manifiesto = Manifiesto.leer(original.getContenidoBloque(Manifiesto.BLOQUE));
+        for (String bloque : Manifiesto.INTERPRETADOS) {
+            if (manifiesto.getBloques().contains(bloque)) {
+                continue;
+            }
+            Paquete inyectado = copia(original);
+            inyectado.anadirBloque(bloque, bloque.equals(Compresion.BLOQUE) ? Compresion.DEFLATE.getIdentificador() : new byte[16]);
+            assertEquals(bloque, manifiesto.sinCubrir(inyectado));
+            assertRechazado(inyectado, "inyectado-" + bloque, "inyectado " + bloque);
+        }
+        assertNull(manifiesto.sinCubrir(original));
+    }
+}
@@ -0,0 +1,56 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class PaqueteMapeadoTest {
+
+    /*
+    El indexador del formato texto salta de ANCHO_LINEA en ANCHO_LINEA. Una
+    última línea corta seguida de la línea FIN_BLOQUE puede acabar justo en el
+    salto (según la longitud de la línea y la del nombre del bloque), y el
+    bloque no debe tragarse esa línea ni la cabecera del siguiente. Se prueban
+    todas las longitudes de última línea (1..64) con nombres de 1 a 45
+    caracteres, los tres rellenos BASE64 ('=' partido entre líneas incluido)
+    y saltos de línea LF y CRLF.
+    */
+    @Test
+    void indexaTodasLasLongitudesDeUltimaLinea() throws Exception {
+        Random aleatorio = new Random(9);
+        byte[] siguiente = "bloque siguiente".getBytes(StandardCharsets.UTF_8);
+        BitSet ultimasLineas = new BitSet();
+        for (int largoNombre = 1; largoNombre <= 45; largoNombre++) {
+            char[] letras = new char[largoNombre];
+            Arrays.fill(letras, 'N');
+            String nombre = new String(letras);
+            for (int longitud = 1; longitud <= 3 * Paquete.ANCHO_LINEA; longitud++) {
+                byte[] contenido = new byte[longitud];
+                aleatorio.nextBytes(contenido);
+                int largoBase64 = Base64.getEncoder().encodeToString(contenido).length();
+                ultimasLineas.set(largoBase64 % Paquete.ANCHO_LINEA);
+
+                Paquete paquete = new Paquete();
+                paquete.anadirBloque(nombre, contenido);
+                paquete.anadirBloque("SIGUIENTE", siguiente);
+                ByteArrayOutputStream salida = new ByteArrayOutputStream();
+                paquete.escribirPaquete(salida, Paquete.Formato.TEXTO);
+                String texto = salida.toString(StandardCharsets.US_ASCII);
+
+                for (String fichero : new String[]{texto, texto.replace("\n", "\r\n")}) {
+                    String caso = "nombre de " + largoNombre + ", " + longitud + " bytes" + (fichero.contains("\r") ? ", CRLF" : "");
+                    Paquete abierto = Paquete.abrir(ByteBuffer.wrap(fichero.getBytes(StandardCharsets.US_ASCII)));
+                    assertEquals(2, abierto.getNombresBloque().size(), caso);
+                    assertArrayEquals(contenido, abierto.getContenidoBloque(nombre), caso);
+                    assertArrayEquals(siguiente, abierto.getContenidoBloque("SIGUIENTE"), caso);
+                }
+            }
+        }
+        assertEquals(Paquete.ANCHO_LINEA, ultimasLineas.cardinality(), "longitudes de última línea cubiertas");
+    }
+}
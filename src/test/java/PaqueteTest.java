@@ -0,0 +1,201 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PaqueteTest {
+
+    @TempDir
+    Path directorio;
+
+    private static byte[] aleatorio(int longitud, long semilla) {
+        byte[] datos = new byte[longitud];
+        new Random(semilla).nextBytes(datos);
+        return datos;
+    }
+
+    /*
+    Lo que escribe el Escritor bloque a bloque se lee igual con el paquete
+    completo (cargar), con el lector perezoso (abrir) y con abrirBloque.
+    */
+    @Test
+    void escritorYLectoresCoinciden() throws Exception {
+        byte[] pequeno = aleatorio(100, 1);
+        byte[] grande = aleatorio(300_000, 2);
+        for (Paquete.Formato formato : Paquete.Formato.values()) {
+            String fichero = this.directorio.resolve("p-" + formato + ".paquete").toString();
+            try (Paquete.Escritor escritor = new Paquete.Escritor(fichero, formato)) {
+                escritor.escribirBloque("Pequeno", pequeno);
+                escritor.escribirBloque("GRANDE", new ByteArrayInputStream(grande));
+            }
+            assertEquals(formato, Paquete.detectarFormato(fichero));
+
+            Paquete cargado = Paquete.cargar(fichero);
+            assertArrayEquals(pequeno, cargado.getContenidoBloque("PEQUENO"));
+            assertArrayEquals(grande, cargado.getContenidoBloque("GRANDE"));
+
+            Paquete abierto = Paquete.abrir(fichero);
+            assertArrayEquals(pequeno, abierto.getContenidoBloque("PEQUENO"));
+            try (InputStream entrada = abierto.abrirBloque("GRANDE")) {
+                assertArrayEquals(grande, entrada.readAllBytes());
+            }
+
+            try (InputStream entrada = Paquete.abrirBloque(fichero, "grande")) {
+                assertArrayEquals(grande, entrada.readAllBytes());
+            }
+            assertNull(Paquete.abrirBloque(fichero, "NO_EXISTE"));
+        }
+    }
+
+    /*
+    escribirPaquete() y el Escritor generan el mismo fichero.
+    */
+    @Test
+    void escribirPaqueteIgualQueEscritor() throws Exception {
+        byte[] contenido = aleatorio(1000, 3);
+        Paquete paquete = new Paquete();
+        paquete.anadirBloque("A", contenido);
+        String completo = this.directorio.resolve("completo.paquete").toString();
+        String porBloques = this.directorio.resolve("bloques.paquete").toString();
+        paquete.escribirPaquete(completo);
+        try (Paquete.Escritor escritor = new Paquete.Escritor(porBloques)) {
+            escritor.escribirBloque("A", contenido);
+        }
+        assertEquals(-1L, java.nio.file.Files.mismatch(Path.of(completo), Path.of(porBloques)));
+    }
+
+    /*
+    anexarBloques() añade los bloques sin reescribir el paquete y no deja el
+    diario al terminar.
+    */
+    @Test
+    void anexarBloques() throws Exception {
+        for (Paquete.Formato formato : Paquete.Formato.values()) {
+            String fichero = this.directorio.resolve("anexo-" + formato + ".paquete").toString();
+            try (Paquete.Escritor escritor = new Paquete.Escritor(fichero, formato)) {
+                escritor.escribirBloque("FACTURA", aleatorio(5000, 4));
+            }
+            if (formato == Paquete.Formato.TEXTO) {
+                Files.write(Path.of(fichero), "\n\n".getBytes(), StandardOpenOption.APPEND); // saltos de línea tras FIN_PAQUETE
+            }
+            Map<String, byte[]> nuevos = new LinkedHashMap<>();
+            nuevos.put("SELLO_TIEMPO", aleatorio(30, 5));
+            nuevos.put("FIRMA_AUTORIDAD", aleatorio(256, 6));
+            Paquete.anexarBloques(fichero, nuevos);
+
+            Paquete paquete = Paquete.cargar(fichero);
+            assertArrayEquals(aleatorio(5000, 4), paquete.getContenidoBloque("FACTURA"));
+            assertArrayEquals(nuevos.get("SELLO_TIEMPO"), paquete.getContenidoBloque("SELLO_TIEMPO"));
+            assertArrayEquals(nuevos.get("FIRMA_AUTORIDAD"), paquete.getContenidoBloque("FIRMA_AUTORIDAD"));
+            assertFalse(Files.exists(Path.of(fichero + ".diario")));
+            assertFalse(Paquete.recuperarAnexo(fichero));
+        }
+    }
+
+    /*
+    Dos selladores que anexan a la vez el mismo bloque: solo uno lo consigue
+    y el otro no toca el fichero.
+    */
+    @Test
+    void anexarBloquesNoRepiteBloques() throws Exception {
+        for (Paquete.Formato formato : Paquete.Formato.values()) {
+            String fichero = this.directorio.resolve("concurrente-" + formato + ".paquete").toString();
+            try (Paquete.Escritor escritor = new Paquete.Escritor(fichero, formato)) {
+                escritor.escribirBloque("FACTURA", aleatorio(50_000, 10));
+            }
+            ExecutorService hilos = Executors.newFixedThreadPool(4);
+            int anexados = 0;
+            try {
+                List<Future<Boolean>> resultados = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    Map<String, byte[]> nuevos = Map.of("FIRMA_AUTORIDAD", aleatorio(256, i));
+                    resultados.add(hilos.submit((Callable<Boolean>) () -> Paquete.anexarBloques(fichero, nuevos)));
+                }
+                for (Future<Boolean> resultado : resultados) {
+                    anexados += resultado.get() ? 1 : 0;
+                }
+            } finally {
+                hilos.shutdown();
+            }
+            assertEquals(1, anexados, formato.toString());
+            Paquete paquete = Paquete.cargar(fichero);
+            assertEquals(List.of("FACTURA", "FIRMA_AUTORIDAD"), paquete.getNombresBloque());
+            assertFalse(Files.exists(Path.of(fichero + ".diario")));
+        }
+    }
+
+    /*
+    Si el proceso muere con el diario escrito y el paquete a medio modificar,
+    recuperarAnexo() deja el paquete como estaba. Un diario temporal (el
+    proceso murió antes de renombrarlo) no se usa.
+    */
+    @Test
+    void recuperarAnexoInterrumpido() throws Exception {
+        Path fichero = this.directorio.resolve("interrumpido.paquete");
+        try (Paquete.Escritor escritor = new Paquete.Escritor(fichero.toString(), Paquete.Formato.BINARIO)) {
+            escritor.escribirBloque("FACTURA", aleatorio(2000, 7));
+        }
+        byte[] original = Files.readAllBytes(fichero);
+
+        Method escribirDiario = Paquete.class.getDeclaredMethod("escribirDiario", Path.class, long.class, long.class, byte[].class);
+        escribirDiario.setAccessible(true);
+        escribirDiario.invoke(null, fichero, (long) original.length, 0L, original.clone());
+        Files.write(fichero, aleatorio(3000, 8)); // lo que quedó a medias
+        assertTrue(Paquete.recuperarAnexo(fichero.toString()));
+        assertArrayEquals(original, Files.readAllBytes(fichero));
+        assertFalse(Files.exists(Path.of(fichero + ".diario")));
+
+        Files.write(Path.of(fichero + ".diario.tmp"), aleatorio(10, 9));
+        assertFalse(Paquete.recuperarAnexo(fichero.toString()));
+        assertArrayEquals(original, Files.readAllBytes(fichero));
+        assertFalse(Files.exists(Path.of(fichero + ".diario.tmp")));
+    }
+
+    /*
+    Los nombres de bloque se leen igual en los dos formatos: en un paquete
+    binario se normalizan como en el de texto, y un bloque repetido hace el
+    paquete invalido con cualquier lector.
+    */
+    @Test
+    void nombresDeBloqueIgualesEnLosDosFormatos() throws Exception {
+        Path binario = this.directorio.resolve("nombre.paquete");
+        try (Paquete.Escritor escritor = new Paquete.Escritor(binario.toString(), Paquete.Formato.BINARIO)) {
+            escritor.escribirBloque("XFACTURAX", aleatorio(100, 10));
+        }
+        byte[] bytes = Files.readAllBytes(binario);
+        String cabecera = new String(bytes, StandardCharsets.ISO_8859_1);
+        int inicio = cabecera.indexOf("XFACTURAX");
+        System.arraycopy(" factura ".getBytes(StandardCharsets.US_ASCII), 0, bytes, inicio, 9);
+        Files.write(binario, bytes);
+        assertArrayEquals(aleatorio(100, 10), Paquete.cargar(binario.toString()).getContenidoBloque("FACTURA"));
+        assertArrayEquals(aleatorio(100, 10), Paquete.abrir(binario.toString()).getContenidoBloque("FACTURA"));
+        assertEquals(List.of("FACTURA"), Paquete.abrir(binario.toString()).getNombresBloque());
+
+        for (Paquete.Formato formato : Paquete.Formato.values()) {
+            String fichero = this.directorio.resolve("repetido-" + formato + ".paquete").toString();
+            try (Paquete.Escritor escritor = new Paquete.Escritor(fichero, formato)) {
+                escritor.escribirBloque("FACTURA", aleatorio(100, 11));
+                escritor.escribirBloque(" factura", aleatorio(100, 12));
+            }
+            assertThrows(IOException.class, () -> Paquete.cargar(fichero), formato.toString());
+            assertThrows(IOException.class, () -> Paquete.abrir(fichero), formato.toString());
+        }
+    }
+}
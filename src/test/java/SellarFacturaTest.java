@@ -0,0 +1,146 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Security;
+import java.util.concurrent.CompletionException;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SellarFacturaTest {
+
+    @TempDir
+    static Path directorio;
+
+    private static KeyPair hacienda;
+    private static KeyPair empresa;
+    private static KeyPair autoridad;
+    private static Path factura;
+
+    @BeforeAll
+    static void prepararClaves() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        hacienda = AlgoritmoFirma.RSA_SHA256.generarClaves(1024);
+        empresa = AlgoritmoFirma.RSA_SHA256.generarClaves(1024);
+        autoridad = AlgoritmoFirma.RSA_SHA256.generarClaves(1024);
+        factura = directorio.resolve("factura.json");
+        Files.writeString(factura, "{\"concepto\":\"prueba\",\"importe\":100}");
+        System.setProperty(FiltroDuplicados.PROPIEDAD_VISTOS, directorio.resolve("vistos").toString());
+    }
+
+    @AfterAll
+    static void cerrarRegistro() throws Exception {
+        System.clearProperty(FiltroDuplicados.PROPIEDAD_VISTOS);
+        FiltroDuplicados.cerrarConfigurado();
+    }
+
+    private static Paquete empaquetado(String nombre) throws Exception {
+        Path fichero = directorio.resolve(nombre + ".paquete");
+        EmpaquetarFactura.empaquetar(factura, fichero, hacienda.getPublic(), empresa.getPrivate(), DirectorioClaves.identificador(empresa.getPublic()));
+        return Paquete.cargar(fichero.toString());
+    }
+
+    private static Paquete copia(Paquete paquete) {
+        Paquete copia = new Paquete();
+        for (String nombre : paquete.getNombresBloque()) {
+            copia.anadirBloque(nombre, paquete.getContenidoBloque(nombre));
+        }
+        return copia;
+    }
+
+    /*
+    El paquete con el manifiesto indicado, firmado de nuevo por la Empresa.
+    */
+    private static Paquete refirmado(Paquete paquete, Manifiesto manifiesto) throws Exception {
+        byte[] codificado = manifiesto.codificar();
+        paquete.actualizarBloque(Manifiesto.BLOQUE, codificado);
+        paquete.actualizarBloque("FIRMA_EMPRESA", Firmas.firmarResumen(empresa.getPrivate(), Manifiesto.resumen(codificado)));
+        return paquete;
+    }
+
+    private static void assertDuplicado(Paquete paquete, String motivo) {
+        SellarFactura.ErrorSellado error = assertThrows(SellarFactura.ErrorSellado.class,
+                () -> SellarFactura.sellar(paquete, empresa.getPublic(), autoridad.getPrivate()), motivo);
+        assertEquals("DUPLICADO", error.getCodigo(), motivo);
+    }
+
+    /*
+    La Empresa no consigue un segundo sello para la misma factura cifrada
+    volviendo a firmar el manifiesto con un bloque de más, sin
+    ALGORITMO_FIRMA_EMPRESA o en un paquete sin manifiesto.
+    */
+    @Test
+    void rechazaLaMismaFacturaFirmadaDeNuevo() throws Exception {
+        Paquete original = empaquetado("refirmado");
+        Manifiesto manifiesto = Manifiesto.leer(original.getContenidoBloque(Manifiesto.BLOQUE));
+
+        Paquete conBloqueDeMas = copia(original);
+        conBloqueDeMas.anadirBloque("OBSERVACIONES", new byte[]{1, 2, 3});
+        Manifiesto ampliado = Manifiesto.leer(manifiesto.codificar());
+        ampliado.anadir("OBSERVACIONES", new byte[]{1, 2, 3});
+        SellarFactura.sellar(refirmado(conBloqueDeMas, ampliado), empresa.getPublic(), autoridad.getPrivate()); // la firma nueva es válida
+
+        assertDuplicado(copia(original), "paquete original");
+
+        Paquete sinAlgoritmo = copia(original);
+        sinAlgoritmo.eliminarBloque(AlgoritmoFirma.BLOQUE_EMPRESA);
+        Manifiesto reducido = new Manifiesto();
+        for (String bloque : manifiesto.getBloques()) {
+            if (!bloque.equals(AlgoritmoFirma.BLOQUE_EMPRESA)) {
+                reducido.anadirResumen(bloque, manifiesto.getResumen(bloque));
+            }
+        }
+        assertDuplicado(refirmado(sinAlgoritmo, reducido), "sin " + AlgoritmoFirma.BLOQUE_EMPRESA);
+
+        Paquete sinManifiesto = copia(original);
+        sinManifiesto.eliminarBloque(Manifiesto.BLOQUE);
+        sinManifiesto.eliminarBloque(AlgoritmoFirma.BLOQUE_EMPRESA);
+        MessageDigest resumen = Firmas.nuevoResumen();
+        resumen.update(original.getContenidoBloque("FACTURA_CIFRADA"));
+        resumen.update(original.getContenidoBloque("CLAVE_CIFRADA"));
+        sinManifiesto.actualizarBloque("FIRMA_EMPRESA", Firmas.firmarResumen(empresa.getPrivate(), resumen.digest()));
+        assertDuplicado(sinManifiesto, "sin manifiesto");
+    }
+
+    // Clave con la que la Autoridad no puede firmar: el sellado falla después de verificar a la Empresa
+    private static PrivateKey claveQueNoFirma() throws Exception {
+        KeyPairGenerator generador = KeyPairGenerator.getInstance("DSA");
+        generador.initialize(1024);
+        return generador.generateKeyPair().getPrivate();
+    }
+
+    /*
+    Si la Autoridad no llega a sellar, la factura no queda registrada y se
+    puede volver a presentar; una vez sellada, ya no.
+    */
+    @Test
+    void unSelladoFallidoNoRegistraLaFactura() throws Exception {
+        Paquete paquete = empaquetado("fallido");
+        PrivateKey noFirma = claveQueNoFirma();
+        assertThrows(GeneralSecurityException.class, () -> SellarFactura.sellar(copia(paquete), empresa.getPublic(), noFirma));
+        SellarFactura.sellar(copia(paquete), empresa.getPublic(), autoridad.getPrivate());
+        assertDuplicado(copia(paquete), "ya sellada");
+    }
+
+    @Test
+    void unLoteFallidoNoRegistraSusFacturas() throws Exception {
+        Paquete paquete = empaquetado("lote-fallido");
+        try (SelladorLotes fallido = new SelladorLotes(claveQueNoFirma(), 60_000, 1)) {
+            CompletionException error = assertThrows(CompletionException.class, () -> fallido.enviar(copia(paquete), empresa.getPublic()).join());
+            assertInstanceOf(GeneralSecurityException.class, error.getCause());
+        }
+        try (SelladorLotes sellador = new SelladorLotes(autoridad.getPrivate(), 60_000, 1)) {
+            assertTrue(sellador.enviar(copia(paquete), empresa.getPublic()).join().contieneBloque("FIRMA_AUTORIDAD"));
+            SellarFactura.ErrorSellado error = assertThrows(SellarFactura.ErrorSellado.class, () -> sellador.enviar(copia(paquete), empresa.getPublic()));
+            assertEquals("DUPLICADO", error.getCodigo());
+        }
+    }
+}
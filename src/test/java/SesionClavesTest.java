@@ -0,0 +1,76 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.Security;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SesionClavesTest {
+
+    @TempDir
+    Path directorio;
+
+    private static KeyPair hacienda;
+
+    @BeforeAll
+    static void prepararClaves() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        hacienda = AlgoritmoFirma.RSA_SHA256.generarClaves(1024);
+    }
+
+    @AfterEach
+    void olvidarSesiones() {
+        SesionClaves.olvidar();
+    }
+
+    private static SecretKey claveFactura() throws Exception {
+        KeyGenerator generador = KeyGenerator.getInstance("AES");
+        generador.init(SuiteCifrado.LONGITUD_CLAVE);
+        return generador.generateKey();
+    }
+
+    /*
+    La KEK se descifra la primera vez y después sale de memoria, aunque ya no
+    esté el paquete de sesión, hasta que se olvida.
+    */
+    @Test
+    void guardaLaKekHastaOlvidarla() throws Exception {
+        SesionClaves sesion = SesionClaves.crear(hacienda.getPublic(), new byte[32]);
+        Path fichero = sesion.guardar(this.directorio, Paquete.Formato.TEXTO);
+        SecretKey primera = claveFactura();
+        SecretKey segunda = claveFactura();
+        byte[] envueltaPrimera = sesion.envolver(primera);
+        byte[] envueltaSegunda = sesion.envolver(segunda);
+
+        assertArrayEquals(primera.getEncoded(), SesionClaves.desenvolver(sesion.getIdentificador(), envueltaPrimera, hacienda.getPrivate(), this.directorio).getEncoded());
+        Files.delete(fichero);
+        assertArrayEquals(segunda.getEncoded(), SesionClaves.desenvolver(sesion.getIdentificador(), envueltaSegunda, hacienda.getPrivate(), this.directorio).getEncoded());
+
+        SesionClaves.olvidar();
+        assertThrows(GeneralSecurityException.class,
+                () -> SesionClaves.desenvolver(sesion.getIdentificador(), envueltaSegunda, hacienda.getPrivate(), this.directorio));
+    }
+
+    /*
+    Una sesión que no se puede descifrar no se guarda: si después aparece el
+    paquete de sesión, se descifra.
+    */
+    @Test
+    void noGuardaLosErrores() throws Exception {
+        SesionClaves sesion = SesionClaves.crear(hacienda.getPublic(), new byte[32]);
+        SecretKey clave = claveFactura();
+        byte[] envuelta = sesion.envolver(clave);
+        assertThrows(GeneralSecurityException.class,
+                () -> SesionClaves.desenvolver(sesion.getIdentificador(), envuelta, hacienda.getPrivate(), this.directorio));
+        sesion.guardar(this.directorio, Paquete.Formato.TEXTO);
+        assertArrayEquals(clave.getEncoded(), SesionClaves.desenvolver(sesion.getIdentificador(), envuelta, hacienda.getPrivate(), this.directorio).getEncoded());
+    }
+}